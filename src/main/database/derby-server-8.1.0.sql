@@ -17,6 +17,10 @@
 --
 
 
+run 'database/derby-server-8.1.0-sp.sql';
+
 run 'database/derby-server-8.1.0-props.sql';
 
+-- LOAD FILE: database/derby-server-8.1.0-sp.sql
+
 -- LOAD FILE: database/derby-server-8.1.0-props.sql
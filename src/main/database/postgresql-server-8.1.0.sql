@@ -16,6 +16,10 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+\i database/postgresql-server-8.1.0-sp.sql
+
 \i database/postgresql-server-8.1.0-props.sql
 
+-- LOAD FILE: database/postgresql-server-8.1.0-sp.sql
+
 -- LOAD FILE: database/postgresql-server-8.1.0-props.sql
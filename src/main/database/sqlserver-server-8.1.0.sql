@@ -16,4 +16,6 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+-- LOAD FILE: database/sqlserver-server-8.1.0-sp.sql
+
 -- LOAD FILE: database/sqlserver-server-8.1.0-props.sql
@@ -27,6 +27,7 @@ import tigase.db.UserNotFoundException
 import tigase.db.UserRepository
 import tigase.server.Command
 import tigase.server.Iq
+import tigase.server.xmppsession.UserDataChangedEvent
 import tigase.vhosts.VHostManagerIfc
 import tigase.vhosts.filter.CustomDomainFilter
 import tigase.vhosts.filter.DomainFilterPolicy
@@ -96,6 +97,7 @@ try {
 		repo.setData(bareJID, null, DomainFilter.ALLOWED_DOMAINS_LIST_KEY, domainList)
 	}
 	repo.setData(bareJID, null, DomainFilter.ALLOWED_DOMAINS_KEY, new_value)
+	eventBus.fire(new UserDataChangedEvent(null, tigase.xmpp.jid.JID.jidInstance(bareJID), null, null))
 
 	return "Changed an old value: $old_value (domains list: $old_value_domains) to a new value: $new_value (domains list: $domainList) for user: $jid"
 } catch (e) {
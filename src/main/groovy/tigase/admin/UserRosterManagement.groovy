@@ -27,8 +27,10 @@ AS:Component: sess-man
 package tigase.admin
 
 import tigase.db.UserRepository
+import tigase.eventbus.EventBus
 import tigase.server.Command
 import tigase.server.Packet
+import tigase.server.xmppsession.UserDataChangedEvent
 import tigase.vhosts.VHostManagerIfc
 import tigase.xml.Element
 import tigase.xmpp.XMPPResourceConnection
@@ -53,6 +55,7 @@ class Field {
 class RosterChangesControler {
 
 	UserRepository repository
+	EventBus eventBus
 	VHostManagerIfc vhost_man
 	Set<BareJID> admins
 
@@ -193,6 +196,7 @@ class RosterChangesControler {
 			sb.append(relem.getRosterElement().toString())
 		}
 		repository.setData(ownerBareJID, null, RosterAbstract.ROSTER, sb.toString());
+		eventBus.fire(new UserDataChangedEvent(null, JID.jidInstance(ownerBareJID), null, null))
 	}
 
 	Queue<Packet> addJidToRoster(ownerJid, jidToAdd, groups, subscriptionType) {
@@ -233,6 +237,7 @@ class RosterChangesControler {
 }
 
 def changesControler = new RosterChangesControler(repository: userRepository,
+												  eventBus: (EventBus) eventBus,
 												  admins: adminsSet,
 												  vhost_man: vhostMan,
 												  sessions: userSessions,
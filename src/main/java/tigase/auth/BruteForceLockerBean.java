@@ -97,6 +97,8 @@ public class BruteForceLockerBean
 	@Inject
 	private EventBus eventBus;
 	private Map<Key, Value> map;
+	@ConfigField(desc = "Replication of invalid login attempts between cluster nodes")
+	private ClusterMapFactory.Replication mapReplication = ClusterMapFactory.Replication.immediate;
 	@Inject
 	private SessionManager sessionManager;
 
@@ -253,7 +255,7 @@ public class BruteForceLockerBean
 
 	@Override
 	public void initialize() {
-		this.map = ClusterMapFactory.get().createMap(MAP_TYPE, Key.class, Value.class);
+		this.map = ClusterMapFactory.get().createMap(MAP_TYPE, Key.class, Value.class, mapReplication);
 		assert this.map != null : "Distributed Map is NULL!";
 		assert this.sessionManager != null : "SessionManager is NULL!";
 
@@ -37,6 +37,7 @@ import tigase.kernel.beans.selector.ClusterModeRequired;
 import tigase.kernel.beans.selector.ConfigType;
 import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.core.Kernel;
+import tigase.map.ClusterMapFactory;
 import tigase.net.ConnectionType;
 import tigase.net.SocketType;
 import tigase.server.ConnectionManager;
@@ -85,6 +86,10 @@ public class ClusterConnectionManager
 		extends ConnectionManager<XMPPIOService<Object>>
 		implements ClusteredComponentIfc, RepositoryChangeListenerIfc<ClusterRepoItem>, ClusterConnectionHandler {
 
+	public static final String BINARY_FRAMING_PROP_KEY = "binary-framing";
+
+	public static final boolean BINARY_FRAMING_PROP_VAL = false;
+
 	public static final String CLUSTER_CONNECTIONS_PER_NODE_PROP_KEY = "cluster-connections-per-node";
 
 	public static final int CLUSTER_CONNECTIONS_PER_NODE_VAL = 5;
@@ -125,6 +130,11 @@ public class ClusterConnectionManager
 	@Inject
 	private ClusterControllerIfc clusterController = null;
 	private tigase.eventbus.EventListener<ClusterInitializedEvent> clusterEventHandler = null;
+	@ConfigField(desc = "Negotiate binary framing of cluster connections", alias = BINARY_FRAMING_PROP_KEY)
+	private boolean binaryFraming = BINARY_FRAMING_PROP_VAL;
+	@ConfigField(desc = "Maximal number of strings in binary framing dictionary", alias = "binary-framing-dictionary-size")
+	private int binaryFramingDictionarySize = ClusterFrameCodec.DEF_DICTIONARY_SIZE;
+	private final ClusterIOService.Statistics framingStatistics = new ClusterIOService.Statistics();
 	@ConfigField(desc = "Compress stream", alias = COMPRESS_STREAM_PROP_KEY)
 	private boolean compress_stream = COMPRESS_STREAM_PROP_VAL;
 	@ConfigField(desc = "Connect to all nodes", alias = CONNECT_ALL_PROP_KEY)
@@ -632,6 +642,11 @@ public class ClusterConnectionManager
 								new Object[]{id, secret, digest, item});
 					}
 
+					if (binaryFraming) {
+						return new String[]{
+								"<handshake " + ClusterIOService.FRAMING_ATTR + "='" + ClusterIOService.BINARY_FRAMING +
+										"'>" + digest + "</handshake>"};
+					}
 					return new String[] { "<handshake>" + digest + "</handshake>" };
 				} catch (NoSuchAlgorithmException e) {
 					log.log(Level.SEVERE, "Can not generate digest for pass phrase.", e);
@@ -690,6 +705,9 @@ public class ClusterConnectionManager
 		list.add(getName(), "Average compression ratio", ioStatsGetter.getAverageCompressionRatio(), Level.FINE);
 		list.add(getName(), "Average decompression ratio", ioStatsGetter.getAverageDecompressionRatio(), Level.FINE);
 		list.add(getName(), "Waiting to send", ioStatsGetter.getWaitingToSend(), Level.FINE);
+		list.add(getName(), "Binary framing connections", ioStatsGetter.getBinaryFramingConnections(), Level.FINE);
+		framingStatistics.getStatistics(getName(), list);
+		ClusterMapFactory.get().getStatistics(getName(), list);
 
 		list.add(getName(), "Max daily cluster nodes count in last month", maxNodes, Level.INFO);
 		list.add(getName(), "Max nodes count within last week", maxNodesWithinLastWeek, Level.INFO);
@@ -854,7 +872,7 @@ public class ClusterConnectionManager
 
 	@Override
 	protected XMPPIOService<Object> getXMPPIOServiceInstance() {
-		return new XMPPIOService<>();
+		return new ClusterIOService<>(framingStatistics, binaryFramingDictionarySize);
 	}
 
 	@Override
@@ -901,6 +919,10 @@ public class ClusterConnectionManager
 				String data = p.getElemCData();
 
 				if (data == null) {
+					if (binaryFraming && ClusterIOService.BINARY_FRAMING.equals(
+							p.getAttributeStaticStr(ClusterIOService.FRAMING_ATTR)) && serv instanceof ClusterIOService) {
+						((ClusterIOService<Object>) serv).startBinaryFraming();
+					}
 					serviceConnected(serv);
 				} else {
 					log.log(Level.WARNING, "Incorrect packet received: {0}", p);
@@ -925,6 +947,14 @@ public class ClusterConnectionManager
 					if ((digest != null) && digest.equals(loc_digest)) {
 						Packet resp = Packet.packetInstance(new Element("handshake"), null, null);
 
+						if (binaryFraming && ClusterIOService.BINARY_FRAMING.equals(
+								p.getAttributeStaticStr(ClusterIOService.FRAMING_ATTR)) &&
+								serv instanceof ClusterIOService) {
+							// other node accepts binary frames as soon as it gets this confirmation
+							resp.getElement().setAttribute(ClusterIOService.FRAMING_ATTR, ClusterIOService.BINARY_FRAMING);
+							((ClusterIOService<Object>) serv).startBinaryFraming();
+						}
+
 						writePacketToSocket(serv, resp);
 						serviceConnected(serv);
 					} else {
@@ -1018,6 +1048,7 @@ public class ClusterConnectionManager
 	private class IOServiceStatisticsGetter
 			implements ServiceChecker<XMPPIOService<Object>> {
 
+		private int binaryFramingConnections = 0;
 		private int clIOQueue = 0;
 		private float compressionRatio = 0f;
 		private int counter = 0;
@@ -1031,6 +1062,9 @@ public class ClusterConnectionManager
 			decompressionRatio += list.getValue("zlibio", "Average decompression rate", -1f);
 			++counter;
 			clIOQueue += service.waitingToSendSize();
+			if (service instanceof ClusterIOService && ((ClusterIOService<Object>) service).isBinaryFraming()) {
+				++binaryFramingConnections;
+			}
 		}
 
 		public void reset() {
@@ -1040,12 +1074,17 @@ public class ClusterConnectionManager
 			// any stats in case of the disconnection.
 			// bytesReceived = 0;
 			// bytesSent = 0;
+			binaryFramingConnections = 0;
 			clIOQueue = 0;
 			counter = 0;
 			compressionRatio = 0f;
 			decompressionRatio = 0f;
 		}
 
+		public int getBinaryFramingConnections() {
+			return binaryFramingConnections;
+		}
+
 		public float getAverageCompressionRatio() {
 			return compressionRatio / counter;
 		}
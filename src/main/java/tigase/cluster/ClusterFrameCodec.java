@@ -0,0 +1,489 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import tigase.cluster.api.ClusterElement;
+import tigase.net.ElementByteWriter;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Binary framing of packets sent over cluster connections.
+ * <br>
+ * Binary data starts with a single <code>0</code> byte, which is never present in XML stream, followed by the version
+ * of the format. Each frame is prefixed with its length as 4 bytes integer and its first byte is the type of the
+ * frame: element or raw XML data (ie. stream close). Element names, attribute names, addresses and namespaces are
+ * kept in a per connection dictionary, so each of them is sent as text only once and later only as its index.
+ * Stanzas carried in <code>data</code> element of the cluster packet are embedded as UTF-8 encoded XML.
+ * <br>
+ * Each direction of the connection has its own dictionary, {@link Encoder} and {@link Decoder} are not thread safe.
+ */
+public class ClusterFrameCodec {
+
+	public static final byte MARKER = 0;
+
+	public static final byte VERSION = 1;
+
+	public static final int DEF_DICTIONARY_SIZE = 4096;
+
+	private static final int CONTENT_CDATA = 1;
+	private static final int CONTENT_CHILDREN = 2;
+	private static final int CONTENT_EMPTY = 0;
+	private static final int FRAME_ELEMENT = 1;
+	private static final int FRAME_RAW = 2;
+	private static final int FRAME_HEADER_SIZE = 4;
+	private static final Set<String> INTERNED_ATTRIBUTES = new HashSet<>(
+			Arrays.asList("xmlns", "from", "to", "type", ClusterElement.CLUSTER_NAME_ATTR));
+	private static final Set<String> INTERNED_CDATA = new HashSet<>(
+			Arrays.asList(ClusterElement.NODE_ID_EL_NAME, ClusterElement.FIRST_NODE_EL_NAME));
+	private static final int MAX_DICTIONARY_SIZE = 64 * 1024;
+	private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+	private static final int MAX_INTERNED_LENGTH = 256;
+	private static final int NODE_ELEMENT = 0;
+	private static final int NODE_XML = 1;
+	private static final int STRING_LITERAL = 2;
+	private static final int STRING_NEW = 0;
+	private static final int STRING_REF = 1;
+
+	/**
+	 * Receives decoded frames.
+	 */
+	public interface FrameHandler {
+
+		void elementReceived(Element elem) throws IOException;
+
+		void rawDataReceived(String data) throws IOException;
+
+	}
+
+	/**
+	 * Serializes elements to frames stored in a reusable output buffer.
+	 */
+	public static class Encoder {
+
+		private final Map<String, Integer> dictionary = new HashMap<>();
+		private final int maxDictionarySize;
+		private byte[] buf = new byte[4 * 1024];
+		private int pos = 0;
+		private boolean started = false;
+
+		public Encoder(int maxDictionarySize) {
+			this.maxDictionarySize = Math.min(maxDictionarySize, MAX_DICTIONARY_SIZE);
+		}
+
+		public int getDictionarySize() {
+			return dictionary.size();
+		}
+
+		/**
+		 * Returns number of bytes serialized since last call to {@link #release(ByteBuffer)}
+		 */
+		public int size() {
+			return pos;
+		}
+
+		public void writeElement(Element elem) {
+			if (isMixed(elem)) {
+				writeRawData(elem.toString());
+				return;
+			}
+			int start = beginFrame(FRAME_ELEMENT);
+			writeElementContent(elem, false);
+			endFrame(start);
+		}
+
+		public void writeRawData(String data) {
+			int start = beginFrame(FRAME_RAW);
+			putUTF8(data);
+			endFrame(start);
+		}
+
+		/**
+		 * Returns buffer with serialized frames ready to be written to the socket.
+		 */
+		public ByteBuffer flip() {
+			return ByteBuffer.wrap(buf, 0, pos);
+		}
+
+		/**
+		 * Method needs to be called after buffer returned by {@link #flip()} was passed to the socket.
+		 *
+		 * @param written buffer returned by {@link #flip()}
+		 */
+		public void release(ByteBuffer written) {
+			if (written.hasRemaining() && written.array() == buf) {
+				// socket keeps reference to this buffer in its output queue
+				buf = new byte[4 * 1024];
+			} else if (buf.length > 64 * 1024) {
+				buf = new byte[4 * 1024];
+			}
+			pos = 0;
+		}
+
+		private int beginFrame(int type) {
+			if (!started) {
+				put(MARKER);
+				put(VERSION);
+				started = true;
+			}
+			ensureCapacity(FRAME_HEADER_SIZE + 1);
+			int start = pos;
+			pos += FRAME_HEADER_SIZE;
+			put((byte) type);
+			return start;
+		}
+
+		private void endFrame(int start) {
+			int len = pos - start - FRAME_HEADER_SIZE;
+			buf[start] = (byte) (len >>> 24);
+			buf[start + 1] = (byte) (len >>> 16);
+			buf[start + 2] = (byte) (len >>> 8);
+			buf[start + 3] = (byte) len;
+		}
+
+		private void writeElementContent(Element elem, boolean embedChildren) {
+			String name = elem.getName();
+			writeString(name, true);
+			Map<String, String> attributes = elem.getAttributes();
+			writeVarInt(attributes == null ? 0 : attributes.size());
+			if (attributes != null) {
+				for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+					writeString(attribute.getKey(), true);
+					writeString(attribute.getValue(), INTERNED_ATTRIBUTES.contains(attribute.getKey()));
+				}
+			}
+
+			String cdata = elem.getCData();
+			List<Element> children = elem.getChildren();
+			if (children != null && !children.isEmpty()) {
+				put((byte) CONTENT_CHILDREN);
+				writeVarInt(children.size());
+				boolean embed = ClusterElement.CLUSTER_EL_NAME.equals(name);
+				for (Element child : children) {
+					if (embedChildren || isMixed(child)) {
+						// stanzas and elements with mixed content are sent as XML
+						put((byte) NODE_XML);
+						writeXML(child);
+					} else {
+						put((byte) NODE_ELEMENT);
+						writeElementContent(child, embed && ClusterElement.CLUSTER_DATA_EL_NAME.equals(child.getName()));
+					}
+				}
+			} else if (cdata != null) {
+				put((byte) CONTENT_CDATA);
+				writeString(cdata, INTERNED_CDATA.contains(name));
+			} else {
+				put((byte) CONTENT_EMPTY);
+			}
+		}
+
+		private void writeXML(Element elem) {
+			ElementByteWriter writer = ElementByteWriter.getInstance();
+			ByteBuffer data = writer.write(elem).flip();
+			try {
+				int len = data.remaining();
+				writeVarInt(len);
+				ensureCapacity(len);
+				data.get(buf, pos, len);
+				pos += len;
+			} finally {
+				writer.release(data);
+			}
+		}
+
+		private void writeString(String value, boolean intern) {
+			if (intern) {
+				Integer idx = dictionary.get(value);
+				if (idx != null) {
+					writeVarInt((idx << 2) | STRING_REF);
+					return;
+				}
+			}
+			int len = utf8Length(value);
+			if (intern && len <= MAX_INTERNED_LENGTH && dictionary.size() < maxDictionarySize) {
+				dictionary.put(value, dictionary.size());
+				writeVarInt((len << 2) | STRING_NEW);
+			} else {
+				writeVarInt((len << 2) | STRING_LITERAL);
+			}
+			putUTF8(value);
+		}
+
+		private void writeVarInt(int value) {
+			ensureCapacity(5);
+			while ((value & ~0x7f) != 0) {
+				buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buf[pos++] = (byte) value;
+		}
+
+		private void putUTF8(String data) {
+			final int len = data.length();
+			ensureCapacity(len);
+			for (int i = 0; i < len; i++) {
+				char c = data.charAt(i);
+				if (c < 0x80) {
+					buf[pos++] = (byte) c;
+				} else if (c < 0x800) {
+					ensureCapacity(2 + len - i);
+					buf[pos++] = (byte) (0xc0 | (c >> 6));
+					buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(data.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, data.charAt(++i));
+					ensureCapacity(4 + len - i);
+					buf[pos++] = (byte) (0xf0 | (cp >> 18));
+					buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					// unpaired surrogate is not valid in UTF-8
+					buf[pos++] = (byte) '?';
+				} else {
+					ensureCapacity(3 + len - i);
+					buf[pos++] = (byte) (0xe0 | (c >> 12));
+					buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+		}
+
+		private void put(byte b) {
+			ensureCapacity(1);
+			buf[pos++] = b;
+		}
+
+		private void ensureCapacity(int len) {
+			if (buf.length - pos < len) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + len));
+			}
+		}
+	}
+
+	/**
+	 * Decodes frames from received data.
+	 */
+	public static class Decoder {
+
+		private final List<String> dictionary = new ArrayList<>();
+		private byte[] buf;
+		private int limit;
+		private int pos;
+		private boolean started = false;
+
+		public int getDictionarySize() {
+			return dictionary.size();
+		}
+
+		/**
+		 * Decodes all complete frames from passed data.
+		 *
+		 * @param data received bytes
+		 * @param offset of the first byte to decode
+		 * @param length number of bytes to decode
+		 * @param handler receiving decoded frames
+		 *
+		 * @return number of bytes consumed, remaining bytes belong to incomplete frame
+		 *
+		 * @throws IOException if data is not a valid frame
+		 */
+		public int decode(byte[] data, int offset, int length, FrameHandler handler) throws IOException {
+			int start = offset;
+			int end = offset + length;
+			if (!started) {
+				if (length < 2) {
+					return 0;
+				}
+				if (data[start] != MARKER || data[start + 1] != VERSION) {
+					throw new IOException("Unsupported cluster framing version: " + data[start + 1]);
+				}
+				started = true;
+				start += 2;
+			}
+			while (end - start >= FRAME_HEADER_SIZE) {
+				int len = ((data[start] & 0xff) << 24) | ((data[start + 1] & 0xff) << 16) |
+						((data[start + 2] & 0xff) << 8) | (data[start + 3] & 0xff);
+				if (len <= 0 || len > MAX_FRAME_SIZE) {
+					throw new IOException("Invalid cluster frame length: " + len);
+				}
+				if (end - start - FRAME_HEADER_SIZE < len) {
+					break;
+				}
+				buf = data;
+				pos = start + FRAME_HEADER_SIZE;
+				limit = pos + len;
+				int type = buf[pos++];
+				switch (type) {
+					case FRAME_ELEMENT:
+						Element elem = readElement();
+						if (pos != limit) {
+							throw new IOException("Cluster frame not fully decoded");
+						}
+						handler.elementReceived(elem);
+						break;
+					case FRAME_RAW:
+						handler.rawDataReceived(new String(buf, pos, limit - pos, StandardCharsets.UTF_8));
+						break;
+					default:
+						throw new IOException("Unknown cluster frame type: " + type);
+				}
+				buf = null;
+				start += FRAME_HEADER_SIZE + len;
+			}
+			return start - offset;
+		}
+
+		private Element readElement() throws IOException {
+			Element elem = new Element(readString());
+			int attributes = readVarInt();
+			for (int i = 0; i < attributes; i++) {
+				String key = readString();
+				String value = readString();
+				if ("xmlns".equals(key)) {
+					elem.setXMLNS(value);
+				} else {
+					elem.setAttribute(key, value);
+				}
+			}
+			int content = readByte();
+			switch (content) {
+				case CONTENT_EMPTY:
+					break;
+				case CONTENT_CDATA:
+					elem.setCData(readString());
+					break;
+				case CONTENT_CHILDREN:
+					int children = readVarInt();
+					for (int i = 0; i < children; i++) {
+						int node = readByte();
+						if (node == NODE_ELEMENT) {
+							elem.addChild(readElement());
+						} else if (node == NODE_XML) {
+							elem.addChild(readXML());
+						} else {
+							throw new IOException("Unknown cluster frame node type: " + node);
+						}
+					}
+					break;
+				default:
+					throw new IOException("Unknown cluster frame content type: " + content);
+			}
+			return elem;
+		}
+
+		private Element readXML() throws IOException {
+			int len = readVarInt();
+			checkAvailable(len);
+			char[] data = new String(buf, pos, len, StandardCharsets.UTF_8).toCharArray();
+			pos += len;
+
+			DomBuilderHandler domHandler = new DomBuilderHandler();
+			SimpleParser parser = SingletonFactory.getParserInstance();
+			parser.parse(domHandler, data, 0, data.length);
+			Queue<Element> elems = domHandler.getParsedElements();
+			if (elems == null || elems.size() != 1) {
+				throw new IOException("Invalid XML embedded in cluster frame");
+			}
+			return elems.poll();
+		}
+
+		private String readString() throws IOException {
+			int value = readVarInt();
+			int kind = value & 3;
+			int len = value >>> 2;
+			if (kind == STRING_REF) {
+				if (len >= dictionary.size()) {
+					throw new IOException("Unknown cluster frame dictionary entry: " + len);
+				}
+				return dictionary.get(len);
+			}
+			checkAvailable(len);
+			String result = new String(buf, pos, len, StandardCharsets.UTF_8);
+			pos += len;
+			if (kind == STRING_NEW) {
+				if (dictionary.size() >= MAX_DICTIONARY_SIZE) {
+					throw new IOException("Cluster frame dictionary size exceeded");
+				}
+				// names and namespaces are compared by identity
+				result = result.intern();
+				dictionary.add(result);
+			} else if (kind != STRING_LITERAL) {
+				throw new IOException("Unknown cluster frame string type: " + kind);
+			}
+			return result;
+		}
+
+		private int readVarInt() throws IOException {
+			int result = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = readByte();
+				result |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("Invalid variable length integer in cluster frame");
+		}
+
+		private int readByte() throws IOException {
+			checkAvailable(1);
+			return buf[pos++] & 0xff;
+		}
+
+		private void checkAvailable(int len) throws IOException {
+			if (len < 0 || limit - pos < len) {
+				throw new IOException("Truncated cluster frame");
+			}
+		}
+	}
+
+	private static boolean isMixed(Element elem) {
+		List<Element> children = elem.getChildren();
+		return elem.getCData() != null && children != null && !children.isEmpty();
+	}
+
+	private static int utf8Length(String data) {
+		final int len = data.length();
+		int result = len;
+		for (int i = 0; i < len; i++) {
+			char c = data.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					result += 1;
+				} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(data.charAt(i + 1))) {
+					// 2 chars encoded as 4 bytes
+					result += 2;
+					++i;
+				} else if (!Character.isSurrogate(c)) {
+					result += 2;
+				}
+			}
+		}
+		return result;
+	}
+
+	private ClusterFrameCodec() {
+	}
+}
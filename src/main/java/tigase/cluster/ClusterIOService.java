@@ -0,0 +1,400 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPDomBuilderHandler;
+import tigase.xmpp.XMPPIOProcessor;
+import tigase.xmpp.XMPPIOService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cluster connection which may switch from XML stream to binary frames encoded by {@link ClusterFrameCodec}.
+ * <br>
+ * Node opening the connection requests binary framing in the handshake, node accepting it confirms it in the
+ * handshake response and both nodes start sending frames after that. Received data is parsed as XML until the frames
+ * marker byte is found, so there is no need to synchronize switching of both directions. If the other node does not
+ * confirm binary framing, the connection stays with XML.
+ * <br>
+ * In both modes number of bytes and time spent on serialization and parsing of packets is recorded in
+ * {@link Statistics} shared by all cluster connections.
+ */
+public class ClusterIOService<RefObject>
+		extends XMPPIOService<RefObject>
+		implements ClusterFrameCodec.FrameHandler {
+
+	public static final String BINARY_FRAMING = "tigase:cluster:binary:1";
+
+	public static final String FRAMING_ATTR = "framing";
+
+	private static final Logger log = Logger.getLogger(ClusterIOService.class.getName());
+
+	private static final int WRITE_BATCH_SIZE = 16 * 1024;
+
+	private final ClusterFrameCodec.Decoder frameDecoder = new ClusterFrameCodec.Decoder();
+	private final ClusterFrameCodec.Encoder frameEncoder;
+	private final Statistics statistics;
+	private volatile boolean binaryRead = false;
+	private volatile boolean binaryWrite = false;
+	private byte[] input = null;
+	private int inputLength = 0;
+	private long receivedBytes = 0;
+	private long xmlBytesWritten = 0;
+	private long xmlPacketsWritten = 0;
+
+	public ClusterIOService(Statistics statistics, int dictionarySize) {
+		super();
+		this.statistics = statistics;
+		this.frameEncoder = new ClusterFrameCodec.Encoder(dictionarySize);
+	}
+
+	/**
+	 * Starts sending packets as binary frames. Should be called only when the other node confirmed that it supports
+	 * binary framing.
+	 */
+	public void startBinaryFraming() {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "{0}, switching to binary framing", toString());
+		}
+		binaryWrite = true;
+	}
+
+	public boolean isBinaryFraming() {
+		return binaryWrite;
+	}
+
+	@Override
+	public void elementReceived(Element elem) throws IOException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0}, Read packet: {1}", new Object[]{toString(), elem});
+		}
+		try {
+			addReceivedPacket(Packet.packetInstance(elem));
+		} catch (TigaseStringprepException ex) {
+			log.log(Level.INFO, toString() + ", Incorrect to/from JID format for stanza: " + elem.toString(), ex);
+		}
+	}
+
+	@Override
+	public void rawDataReceived(String data) throws IOException {
+		@SuppressWarnings("unchecked") XMPPDomBuilderHandler<RefObject> domHandler = (XMPPDomBuilderHandler<RefObject>) getSessionData()
+				.get(DOM_HANDLER);
+		char[] chars = data.toCharArray();
+
+		parser.parse(domHandler, chars, 0, chars.length);
+		if (domHandler.parseError()) {
+			throw new IOException("Invalid XML data in cluster frame: " + data);
+		}
+		moveParsedPacketsToReceived(false);
+		if (domHandler.isStreamClosed()) {
+			xmppStreamClosed();
+		}
+	}
+
+	@Override
+	public void processWaitingPackets() throws IOException {
+		// packets are removed from the queue after they are written, so only one thread may write them at a time
+		writeInProgress.lock();
+		try {
+			if (!binaryWrite) {
+				long start = System.nanoTime();
+				xmlPacketsWritten = 0;
+				xmlBytesWritten = 0;
+				super.processWaitingPackets();
+				if (xmlPacketsWritten > 0) {
+					statistics.sent(false, xmlPacketsWritten, xmlBytesWritten, System.nanoTime() - start);
+				}
+				return;
+			}
+			synchronized (frameEncoder) {
+				writeWaitingFrames();
+			}
+		} finally {
+			writeInProgress.unlock();
+		}
+
+		// notify io processors that all waiting packets were sent
+		if (processors != null) {
+			for (XMPPIOProcessor processor : processors) {
+				processor.packetsSent(this);
+			}
+		}
+	}
+
+	@Override
+	protected boolean isDirectWriteSupported() {
+		// writeData() is overridden only to write binary frames, data of XML stream is written unchanged
+		return isDirectWriteEnabled();
+	}
+
+	@Override
+	protected void waitingPacketsWritten(int packets, int bytes) {
+		xmlPacketsWritten += packets;
+		xmlBytesWritten += bytes;
+	}
+
+	@Override
+	protected void processSocketData() throws IOException {
+		long start = System.nanoTime();
+		long packets = getTotalPacketsReceived();
+
+		receivedBytes = 0;
+		if (!binaryRead) {
+			super.processSocketData();
+		}
+		if (binaryRead) {
+			if (isConnected()) {
+				readFrames();
+			} else {
+				forceStop();
+			}
+		}
+		packets = getTotalPacketsReceived() - packets;
+		if (packets > 0) {
+			statistics.received(binaryRead, packets, receivedBytes, System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	protected char[] readData() throws IOException {
+		if (binaryRead) {
+			return null;
+		}
+
+		ByteBuffer buf = readBytes();
+		if (buf == null) {
+			return null;
+		}
+		receivedBytes += buf.remaining();
+		for (int i = buf.position(); i < buf.limit(); i++) {
+			if (buf.get(i) == ClusterFrameCodec.MARKER) {
+				// other node switched to binary frames, remaining data will be decoded by frame decoder
+				ByteBuffer frames = buf.duplicate();
+				frames.position(i);
+				appendInput(frames);
+				buf.limit(i);
+				binaryRead = true;
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "{0}, receiving binary frames", toString());
+				}
+				break;
+			}
+		}
+
+		try {
+			return decodeData(buf);
+		} catch (MalformedInputException ex) {
+			log.log(Level.FINE, toString() + ", Incorrect UTF-8 data, stopping connection", ex);
+			forceStop();
+			return null;
+		}
+	}
+
+	@Override
+	protected void writeData(String data) {
+		if (!binaryWrite || data == null || data.isEmpty()) {
+			super.writeData(data);
+			return;
+		}
+		synchronized (frameEncoder) {
+			frameEncoder.writeRawData(data);
+
+			ByteBuffer buf = frameEncoder.flip();
+			try {
+				writeBytes(buf);
+			} finally {
+				frameEncoder.release(buf);
+			}
+		}
+	}
+
+	private void appendInput(ByteBuffer buf) {
+		int len = buf.remaining();
+		if (input == null) {
+			input = new byte[Math.max(4 * 1024, len)];
+		} else if (input.length - inputLength < len) {
+			input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + len));
+		}
+		buf.get(input, inputLength, len);
+		inputLength += len;
+	}
+
+	private void decodeFrames() throws IOException {
+		int consumed = frameDecoder.decode(input, 0, inputLength, this);
+		if (consumed > 0) {
+			inputLength -= consumed;
+			System.arraycopy(input, consumed, input, 0, inputLength);
+		}
+		if (inputLength == 0 && input.length > 64 * 1024) {
+			input = null;
+		}
+	}
+
+	private void readFrames() throws IOException {
+		try {
+			if (inputLength > 0) {
+				decodeFrames();
+			}
+
+			ByteBuffer buf;
+			while (isConnected() && (buf = readBytes()) != null) {
+				receivedBytes += buf.remaining();
+				appendInput(buf);
+				buf.clear();
+				decodeFrames();
+			}
+		} catch (IOException ex) {
+			log.log(Level.INFO, toString() + ", Incorrect cluster frame, stopping connection: " + getConnectionId(),
+					ex);
+			forceStop();
+		}
+	}
+
+	private void writeWaitingFrames() {
+		Queue<Packet> waitingPackets = getWaitingPackets();
+		Iterator<Packet> it = waitingPackets.iterator();
+		List<Packet> batch = new ArrayList<>();
+		long start = System.nanoTime();
+
+		while (it.hasNext()) {
+			Packet packet = it.next();
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, Sending packet: {1}", new Object[]{toString(), packet});
+			}
+			frameEncoder.writeElement(packet.getElement());
+			batch.add(packet);
+			if (frameEncoder.size() >= WRITE_BATCH_SIZE) {
+				writeWaitingFrames(batch, start);
+				batch.clear();
+				start = System.nanoTime();
+			}
+		}
+		if (!batch.isEmpty()) {
+			writeWaitingFrames(batch, start);
+		}
+	}
+
+	private void writeWaitingFrames(List<Packet> batch, long start) {
+		ByteBuffer data = frameEncoder.flip();
+		int bytes = data.remaining();
+
+		try {
+			writeBytes(data);
+		} finally {
+			frameEncoder.release(data);
+		}
+
+		// and after sending them we should remove them to minimalize chances of lost packets
+		Queue<Packet> waitingPackets = getWaitingPackets();
+		for (Packet packet : batch) {
+			// packet could be already removed, ie. when service was stopped and waiting packets were returned
+			if (waitingPackets.peek() != packet) {
+				break;
+			}
+			waitingPackets.poll();
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, SENT: {1}", new Object[]{toString(), packet});
+			}
+		}
+		statistics.sent(true, batch.size(), bytes, System.nanoTime() - start);
+	}
+
+	/**
+	 * Number of packets, bytes and time spent on writing or reading them by cluster connections, separately for XML
+	 * and binary framing.
+	 */
+	public static class Statistics {
+
+		private static final int BINARY = 2;
+		private static final int RECEIVED = 1;
+		private static final int SENT = 0;
+
+		private final LongAdder[] bytes = new LongAdder[4];
+		private final LongAdder[] nanos = new LongAdder[4];
+		private final LongAdder[] packets = new LongAdder[4];
+
+		public Statistics() {
+			for (int i = 0; i < 4; i++) {
+				bytes[i] = new LongAdder();
+				nanos[i] = new LongAdder();
+				packets[i] = new LongAdder();
+			}
+		}
+
+		public void received(boolean binary, long packets, long bytes, long nanos) {
+			add((binary ? BINARY : 0) + RECEIVED, packets, bytes, nanos);
+		}
+
+		public void sent(boolean binary, long packets, long bytes, long nanos) {
+			add((binary ? BINARY : 0) + SENT, packets, bytes, nanos);
+		}
+
+		public long getPackets(boolean binary, boolean received) {
+			return packets[idx(binary, received)].sum();
+		}
+
+		public long getBytesPerPacket(boolean binary, boolean received) {
+			int idx = idx(binary, received);
+			long count = packets[idx].sum();
+			return count == 0 ? 0 : bytes[idx].sum() / count;
+		}
+
+		public long getNanosPerPacket(boolean binary, boolean received) {
+			int idx = idx(binary, received);
+			long count = packets[idx].sum();
+			return count == 0 ? 0 : nanos[idx].sum() / count;
+		}
+
+		public void getStatistics(String compName, StatisticsList list) {
+			if (!list.checkLevel(Level.FINE)) {
+				return;
+			}
+			for (boolean binary : new boolean[]{false, true}) {
+				for (boolean received : new boolean[]{false, true}) {
+					String prefix = (binary ? "Binary" : "XML") + " framing " + (received ? "received" : "sent");
+					list.add(compName, prefix + " packets", getPackets(binary, received), Level.FINE);
+					list.add(compName, prefix + " bytes/packet", getBytesPerPacket(binary, received), Level.FINE);
+					list.add(compName, prefix + " time/packet [ns]", getNanosPerPacket(binary, received),
+							 Level.FINE);
+				}
+			}
+		}
+
+		private void add(int idx, long packets, long bytes, long nanos) {
+			this.packets[idx].add(packets);
+			this.bytes[idx].add(bytes);
+			this.nanos[idx].add(nanos);
+		}
+
+		private int idx(boolean binary, boolean received) {
+			return (binary ? BINARY : 0) + (received ? RECEIVED : SENT);
+		}
+	}
+}
@@ -660,7 +660,7 @@ public class OldConfigHolder {
 		String plugins = (String) props.remove(GEN_SM_PLUGINS);
 		if (plugins != null) {
 			Set<XMPPProcessor> knownProcessors = ClassUtilBean.getInstance()
-					.getAllClasses()
+					.getBeanClasses()
 					.stream()
 					.filter(cls -> XMPPProcessor.class.isAssignableFrom(cls) &&
 							!(Modifier.isAbstract(cls.getModifiers()) || Modifier.isInterface(cls.getModifiers())))
@@ -18,6 +18,8 @@
 package tigase.db;
 
 import tigase.db.jdbc.DataRepositoryImpl;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.LatencyHistogram;
 import tigase.stats.StatisticsList;
 import tigase.stats.StatisticsProviderIfc;
 import tigase.util.Version;
@@ -30,11 +32,26 @@ import java.sql.Statement;
 import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Pool of data repositories (database connections). By default calls are distributed between connections using hash
+ * code of the user JID and connections are shared.
+ * <br>
+ * In borrow mode (<code>pool-borrow</code> set to <code>true</code>) {@link #takeRepoHandle(BareJID)} returns idle
+ * connection for exclusive use until it is returned using {@link #releaseRepoHandle(DataRepository)}, so a slow query
+ * blocks only the connection it is executed on. Borrowed connections are not returned by {@link #takeRepo(BareJID)}
+ * and one connection is never borrowed, so it is always available for shared use. Connections are handed to waiting
+ * threads in FIFO order and if all are in use, new connections are opened up to <code>pool-max-size</code>.
+ * <br>
  * Created: Sep 4, 2010 2:13:22 PM
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -46,12 +63,35 @@ public class DataRepositoryPool
 	private static final Logger log = Logger.getLogger(DataRepositoryPool.class.getName());
 
 	// ~--- fields ---------------------------------------------------------------
+	private final ConcurrentHashMap<DataRepository, LongAdder> borrowCounts = new ConcurrentHashMap<>();
+	@ConfigField(desc = "Exclusive use of connections taken by takeRepoHandle()", alias = "pool-borrow")
+	private boolean borrowMode = false;
+	private final LongAdder borrowTimeouts = new LongAdder();
+	@ConfigField(desc = "Time (in ms) to wait for idle connection in borrow mode", alias = "pool-borrow-timeout")
+	private long borrowTimeout = 10000;
+	private final LatencyHistogram borrowWaitTime = new LatencyHistogram("borrow wait");
+	private final Set<DataRepository> borrowed = ConcurrentHashMap.newKeySet();
+	private final LongAdder connectionsFailed = new LongAdder();
 	private dbTypes database = null;
+	private final LinkedBlockingQueue<DataRepository> idle = new LinkedBlockingQueue<>();
+	@ConfigField(desc = "Maximal number of connections opened in borrow mode", alias = "pool-max-size")
+	private int maxSize = 0;
+	private final PoolPermits permits = new PoolPermits();
+	private volatile int permitsCapacity = 0;
 	private CopyOnWriteArrayList<DataRepository> repoPool = new CopyOnWriteArrayList<DataRepository>();
 	private String resource_uri = null;
 
 	public void addRepo(DataRepository repo) {
-		repoPool.addIfAbsent(repo);
+		if (repoPool.addIfAbsent(repo)) {
+			borrowCounts.put(repo, new LongAdder());
+			idle.offer(repo);
+			updatePermits();
+		}
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		updatePermits();
 	}
 
 	@Override
@@ -69,34 +109,64 @@ public class DataRepositoryPool
 
 	public DataRepository takeRepo(BareJID user_id) {
 		int idx = user_id != null ? Math.abs(user_id.hashCode() % repoPool.size()) : 0;
-		DataRepository result = null;
-		try {
-			result = repoPool.get(idx);
-		} catch (IndexOutOfBoundsException ioobe) {
-			result = repoPool.get(0);
-		}
-		return result;
+		return takeSharedRepo(idx);
 	}
 
 	public DataRepository takeRepo(int hashCode) {
 		int idx = Math.abs(hashCode % repoPool.size());
-		DataRepository result = null;
-		try {
-			result = repoPool.get(idx);
-		} catch (IndexOutOfBoundsException ioobe) {
-			result = repoPool.get(0);
-		}
-		return result;
+		return takeSharedRepo(idx);
 	}
 
 	@Override
 	public DataRepository takeRepoHandle(BareJID user_id) {
-		return takeRepo(user_id);
+		if (!borrowMode || repoPool.isEmpty()) {
+			return takeRepo(user_id);
+		}
+
+		if (permitsCapacity == 0) {
+			// there is only one connection and it is kept for shared use
+			return takeRepo(user_id);
+		}
+
+		long start = System.nanoTime();
+		boolean acquired = false;
+
+		try {
+			acquired = permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		borrowWaitTime.record(System.nanoTime() - start);
+
+		if (!acquired) {
+			borrowTimeouts.increment();
+			log.log(Level.WARNING, "No idle connection to {0} available in {1}ms, using shared connection",
+					new Object[]{getResourceUri(), borrowTimeout});
+			return takeRepo(user_id);
+		}
+
+		DataRepository repo = idle.poll();
+
+		if (repo == null) {
+			repo = openConnection();
+		}
+		if (repo == null) {
+			permits.release();
+			return takeRepo(user_id);
+		}
+
+		borrowed.add(repo);
+		borrowCounts.computeIfAbsent(repo, key -> new LongAdder()).increment();
+		return repo;
 	}
 
 	@Override
 	public void releaseRepoHandle(DataRepository repo) {
-		// addRepo(repo);
+		// shared connections returned by takeRepoHandle() when no connection was available are not borrowed
+		if (repo != null && borrowed.remove(repo)) {
+			idle.offer(repo);
+			permits.release();
+		}
 	}
 
 	@Override
@@ -205,6 +275,26 @@ public class DataRepositoryPool
 	public void getStatistics(String compName, StatisticsList list) {
 		list.add(compName, "uri", getResourceUri(), Level.FINE);
 		list.add(compName, "connections count", repoPool.size(), Level.FINE);
+		if (borrowMode) {
+			list.add(compName, "connections borrowed", borrowed.size(), Level.FINE);
+			list.add(compName, "connections idle", idle.size(), Level.FINE);
+			list.add(compName, "threads waiting for connection", permits.getQueueLength(), Level.FINE);
+			list.add(compName, "borrow timeouts", borrowTimeouts.sum(), Level.FINE);
+			list.add(compName, "failed connection attempts", connectionsFailed.sum(), Level.FINER);
+			borrowWaitTime.getStatistics(compName, "connection", list, Level.FINE);
+			if (list.checkLevel(Level.FINER)) {
+				// fairness of use of connections - with equal load every connection should be borrowed similar number of times
+				long min = Long.MAX_VALUE;
+				long max = 0;
+				for (LongAdder counter : borrowCounts.values()) {
+					long count = counter.sum();
+					min = Math.min(min, count);
+					max = Math.max(max, count);
+				}
+				list.add(compName, "min borrows per connection", min == Long.MAX_VALUE ? 0 : min, Level.FINER);
+				list.add(compName, "max borrows per connection", max, Level.FINER);
+			}
+		}
 		for (DataRepository repo : repoPool) {
 			if (repo instanceof StatisticsProviderIfc) {
 				((StatisticsProviderIfc) repo).getStatistics(compName, list);
@@ -213,14 +303,15 @@ public class DataRepositoryPool
 	}
 
 	@Override
-	public void initPreparedStatement(String stIdKey, String query) throws SQLException {
+	public synchronized void initPreparedStatement(String stIdKey, String query) throws SQLException {
 		for (DataRepository dataRepository : repoPool) {
 			dataRepository.initPreparedStatement(stIdKey, query);
 		}
 	}
 
 	@Override
-	public void initPreparedStatement(String stIdKey, String query, int autoGeneratedKeys) throws SQLException {
+	public synchronized void initPreparedStatement(String stIdKey, String query, int autoGeneratedKeys)
+			throws SQLException {
 		for (DataRepository dataRepository : repoPool) {
 			dataRepository.initPreparedStatement(stIdKey, query, autoGeneratedKeys);
 		}
@@ -289,4 +380,82 @@ public class DataRepositoryPool
 	public int getPoolSize() {
 		return repoPool.size();
 	}
+
+	private DataRepository takeSharedRepo(int idx) {
+		DataRepository result = null;
+		try {
+			result = repoPool.get(idx);
+			if (!borrowed.isEmpty()) {
+				// connections borrowed for exclusive use are skipped
+				int size = repoPool.size();
+				for (int i = 1; i < size && borrowed.contains(result); i++) {
+					result = repoPool.get((idx + i) % size);
+				}
+			}
+		} catch (IndexOutOfBoundsException ioobe) {
+			result = repoPool.get(0);
+		}
+		return result;
+	}
+
+	/**
+	 * Adjusts number of permits to borrow connection to the current size of the pool.
+	 */
+	private void updatePermits() {
+		synchronized (permits) {
+			// one connection is never borrowed, so that takeRepo() always has a connection which is not borrowed
+			int capacity = Math.max(0, Math.max(maxSize, repoPool.size()) - 1);
+			int diff = capacity - permitsCapacity;
+
+			if (diff > 0) {
+				permits.release(diff);
+			} else if (diff < 0) {
+				permits.reducePermits(-diff);
+			}
+			permitsCapacity = capacity;
+		}
+	}
+
+	/**
+	 * Opens new connection using one of existing connections as a template. Called only with a permit acquired, so
+	 * number of connections never exceeds number of permits (and the connection kept for shared use).
+	 */
+	private synchronized DataRepository openConnection() {
+		DataRepository template = repoPool.isEmpty() ? null : repoPool.get(0);
+
+		if (!(template instanceof DataRepositoryImpl)) {
+			return idle.poll();
+		}
+
+		try {
+			DataRepositoryImpl repo = ((DataRepositoryImpl) template).newInstance();
+
+			repo.initialize(getResourceUri());
+			repoPool.add(repo);
+			borrowCounts.put(repo, new LongAdder());
+			log.log(Level.CONFIG, "Opened connection {0} to {1}", new Object[]{repoPool.size(), getResourceUri()});
+			return repo;
+		} catch (ReflectiveOperationException | DBInitException ex) {
+			connectionsFailed.increment();
+			log.log(Level.WARNING, "Could not open new connection to " + getResourceUri(), ex);
+			return idle.poll();
+		}
+	}
+
+	/**
+	 * Fair semaphore, which hands connections to waiting threads in order of arrival, with number of permits
+	 * adjustable when size of the pool changes.
+	 */
+	private static class PoolPermits
+			extends Semaphore {
+
+		private PoolPermits() {
+			super(0, true);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
 }
@@ -20,7 +20,9 @@ package tigase.db;
 import tigase.annotations.TigaseDeprecated;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -203,6 +205,46 @@ public interface UserRepository
 	 */
 	String[] getDataList(BareJID user, String subnode, String key) throws UserNotFoundException, TigaseDBException;
 
+	/**
+	 * <code>getUserData</code> method returns all data stored for the user, including all subnodes. Default
+	 * implementation walks the node tree using other methods of the repository, implementations should override it
+	 * to load data in a single request if possible.
+	 *
+	 * @param user a <code>BareJID</code> value of user ID for which data must be retrieved. User ID consists of user
+	 * name and domain name.
+	 *
+	 * @return a <code>Map</code> of node paths (without leading <code>/</code>, empty string for the default node)
+	 * to maps of keys and lists of values stored under each key. Nodes without any data are included as well.
+	 *
+	 * @throws UserNotFoundException if user id hasn't been found in repository.
+	 * @throws TigaseDBException if database backend error occurs.
+	 */
+	default Map<String, Map<String, String[]>> getUserData(BareJID user)
+			throws UserNotFoundException, TigaseDBException {
+		Map<String, Map<String, String[]>> result = new HashMap<>();
+		Deque<String> nodes = new ArrayDeque<>();
+		nodes.add("");
+		while (!nodes.isEmpty()) {
+			String node = nodes.poll();
+			String subnode = node.isEmpty() ? null : node;
+			Map<String, String[]> data = new HashMap<>();
+			String[] keys = getKeys(user, subnode);
+			if (keys != null) {
+				for (String key : keys) {
+					data.put(key, getDataList(user, subnode, key));
+				}
+			}
+			result.put(node, data);
+			String[] subnodes = getSubnodes(user, subnode);
+			if (subnodes != null) {
+				for (String child : subnodes) {
+					nodes.add(node.isEmpty() ? child : node + "/" + child);
+				}
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * <code>getKeys</code> method returns list of all keys stored in given subnode in user repository. There is a value
 	 * (or list of values) associated with each key. It is up to user (developer) to know what key keeps one value and
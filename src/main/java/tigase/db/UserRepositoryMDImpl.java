@@ -222,6 +222,21 @@ public abstract class UserRepositoryMDImpl
 		return null;
 	}
 
+	@Override
+	public Map<String, Map<String, String[]>> getUserData(BareJID user)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = getRepo(user.getDomain());
+
+		if (repo != null) {
+			return repo.getUserData(user);
+		} else {
+			log.log(Level.WARNING,
+					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
+		}
+
+		return null;
+	}
+
 	@Override
 	public long getUserUID(BareJID user) throws TigaseDBException {
 		UserRepository repo = getRepo(user.getDomain());
@@ -275,6 +275,24 @@ public class UserRepositoryPool
 		return null;
 	}
 
+	@Override
+	public Map<String, Map<String, String[]>> getUserData(BareJID user)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = takeRepo();
+
+		if (repo != null) {
+			try {
+				return repo.getUserData(user);
+			} finally {
+				addRepo(repo);
+			}
+		} else {
+			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		}
+
+		return null;
+	}
+
 	@Override
 	public long getUserUID(BareJID user) throws TigaseDBException {
 		UserRepository repo = takeRepo();
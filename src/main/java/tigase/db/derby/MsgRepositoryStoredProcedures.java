@@ -41,46 +41,25 @@ public class MsgRepositoryStoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			String receiverSha1 = Algorithms.hexDigest(receiver.toString(), "", "SHA");
-			String senderSha1 = Algorithms.hexDigest(sender.toString(), "", "SHA");
-			if (limit != 0) {
-				PreparedStatement stmt = conn.prepareStatement(
-						"select count(1) from tig_offline_messages where receiver_sha1 = ? and sender_sha1 = ?");
-				stmt.setString(1, receiverSha1);
-				stmt.setString(2, senderSha1);
-				ResultSet rs = stmt.executeQuery();
-				if (rs.next()) {
-					long count = rs.getLong(1);
-					if (count >= limit) {
-						rs.close();
-						data[0] = conn.createStatement().executeQuery("select 1 from sysibm.sysdummy1 where 1=0");
-						return;
-					}
-				}
-				rs.close();
-			}
-
-			PreparedStatement stmt = conn.prepareStatement(
-					"insert into tig_offline_messages (receiver, receiver_sha1, sender, sender_sha1, msg_type, ts, message, expired ) " +
-							"values (?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-			stmt.setString(1, receiver.toString());
-			stmt.setString(2, receiverSha1);
-			stmt.setString(3, sender.toString());
-			stmt.setString(4, senderSha1);
-			stmt.setInt(5, type.intValue());
-			stmt.setTimestamp(6, ts);
-			stmt.setString(7, message);
-			if (expired == null) {
-				stmt.setNull(8, Types.TIMESTAMP);
+			PreparedStatement stmt = insertMessage(conn, receiver, sender, type, ts, message, expired, limit);
+			if (stmt == null) {
+				data[0] = conn.createStatement().executeQuery("select 1 from sysibm.sysdummy1 where 1=0");
 			} else {
-				stmt.setTimestamp(8, expired);
+				data[0] = stmt.getGeneratedKeys();
 			}
+		} finally {
+			conn.close();
+		}
+	}
 
-			stmt.execute();
-			data[0] = stmt.getGeneratedKeys();
+	public static void storeMessage(String receiver, String sender, Integer type, Timestamp ts, String message,
+									Timestamp expired, Long limit) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
-		} catch (NoSuchAlgorithmException e) {
-			throw new SQLException(e);
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			insertMessage(conn, receiver, sender, type, ts, message, expired, limit);
 		} finally {
 			conn.close();
 		}
@@ -318,4 +297,49 @@ public class MsgRepositoryStoredProcedures {
 		}
 	}
 
+	private static PreparedStatement insertMessage(Connection conn, String receiver, String sender, Integer type,
+												   Timestamp ts, String message, Timestamp expired, Long limit)
+			throws SQLException {
+		try {
+			String receiverSha1 = Algorithms.hexDigest(receiver.toString(), "", "SHA");
+			String senderSha1 = Algorithms.hexDigest(sender.toString(), "", "SHA");
+			if (limit != 0) {
+				PreparedStatement stmt = conn.prepareStatement(
+						"select count(1) from tig_offline_messages where receiver_sha1 = ? and sender_sha1 = ?");
+				stmt.setString(1, receiverSha1);
+				stmt.setString(2, senderSha1);
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					long count = rs.getLong(1);
+					if (count >= limit) {
+						rs.close();
+						return null;
+					}
+				}
+				rs.close();
+			}
+
+			PreparedStatement stmt = conn.prepareStatement(
+					"insert into tig_offline_messages (receiver, receiver_sha1, sender, sender_sha1, msg_type, ts, message, expired ) " +
+							"values (?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+			stmt.setString(1, receiver.toString());
+			stmt.setString(2, receiverSha1);
+			stmt.setString(3, sender.toString());
+			stmt.setString(4, senderSha1);
+			stmt.setInt(5, type.intValue());
+			stmt.setTimestamp(6, ts);
+			stmt.setString(7, message);
+			if (expired == null) {
+				stmt.setNull(8, Types.TIMESTAMP);
+			} else {
+				stmt.setTimestamp(8, expired);
+			}
+
+			stmt.execute();
+			return stmt;
+		} catch (NoSuchAlgorithmException e) {
+			throw new SQLException(e);
+		}
+	}
+
 }
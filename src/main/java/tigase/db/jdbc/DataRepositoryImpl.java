@@ -406,6 +406,21 @@ public class DataRepositoryImpl
 		return 1;
 	}
 
+	/**
+	 * Creates new instance with the same configuration and prepared statements, which will open its own connection
+	 * when initialized. Used to extend pool of connections at runtime.
+	 *
+	 * @return new instance which needs to be initialized
+	 */
+	public DataRepositoryImpl newInstance() throws ReflectiveOperationException {
+		DataRepositoryImpl repo = getClass().getDeclaredConstructor().newInstance();
+		repo.automaticSchemaManagement = automaticSchemaManagement;
+		repo.db_conn_timeout = db_conn_timeout;
+		repo.query_timeout = query_timeout;
+		repo.db_queries.putAll(db_queries);
+		return repo;
+	}
+
 	protected int getParam(String key, Map<String, String> params, int def) {
 		int result = def;
 		String temp = System.getProperty(key);
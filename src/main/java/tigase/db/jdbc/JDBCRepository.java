@@ -88,6 +88,9 @@ public class JDBCRepository
 	private static final String KEYS_DATA_FOR_NODE_QUERY =
 			"select pkey, pval from " + DEF_PAIRS_TBL + " where (nid = ?)";
 
+	private static final String USER_DATA_QUERY =
+			"select n.nid, n.parent_nid, n.node, p.pkey, p.pval from " + DEF_NODES_TBL + " n left join " +
+					DEF_PAIRS_TBL + " p on p.nid = n.nid where n.uid = ? order by n.nid, p.pid";
 	private static final String UPDATE_LAST_LOGIN_QUERY =
 			"update " + DEF_USERS_TBL + " set last_login=? where user_id=?";
 
@@ -127,8 +130,10 @@ public class JDBCRepository
 	public String getData(BareJID user_id, final String subnode, final String key, final String def)
 			throws UserNotFoundException, TigaseDBException {
 
+		DataRepository repo = data_repo.takeRepoHandle(user_id);
+
 		try {
-			long nid = getNodeNID(null, user_id, subnode);
+			long nid = getNodeNID(repo, user_id, subnode);
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Loading data for key: {0}, user: {1}, node: {2}, def: {3}, found nid: {4}",
@@ -138,7 +143,7 @@ public class JDBCRepository
 			if (nid > 0) {
 				ResultSet rs = null;
 
-				PreparedStatement data_for_node_st = data_repo.getPreparedStatement(user_id, DATA_FOR_NODE_QUERY);
+				PreparedStatement data_for_node_st = repo.getPreparedStatement(user_id, DATA_FOR_NODE_QUERY);
 
 				synchronized (data_for_node_st) {
 					try {
@@ -165,6 +170,8 @@ public class JDBCRepository
 			}    // end of if (nid > 0) else
 		} catch (SQLException e) {
 			throw new TigaseDBException("Error getting user data for: " + user_id + "/" + subnode + "/" + key, e);
+		} finally {
+			data_repo.releaseRepoHandle(repo);
 		}
 	}
 
@@ -369,6 +376,62 @@ public class JDBCRepository
 		return getSubnodes(user_id, null);
 	}
 
+	@Override
+	public Map<String, Map<String, String[]>> getUserData(BareJID user_id)
+			throws UserNotFoundException, TigaseDBException {
+		try {
+			long uid = getUserUID(null, user_id, autoCreateUser);
+			Map<Long, Long> parents = new HashMap<>();
+			Map<Long, String> names = new HashMap<>();
+			Map<Long, Map<String, List<String>>> pairs = new LinkedHashMap<>();
+			ResultSet rs = null;
+			PreparedStatement user_data_st = data_repo.getPreparedStatement(user_id, USER_DATA_QUERY);
+
+			synchronized (user_data_st) {
+				try {
+					user_data_st.setLong(1, uid);
+					rs = user_data_st.executeQuery();
+					while (rs.next()) {
+						long nid = rs.getLong(1);
+						long parent_nid = rs.getLong(2);
+						if (!rs.wasNull()) {
+							parents.put(nid, parent_nid);
+						}
+						names.put(nid, rs.getString(3));
+						Map<String, List<String>> data = pairs.computeIfAbsent(nid, k -> new LinkedHashMap<>());
+						String key = rs.getString(4);
+						if (key != null) {
+							data.computeIfAbsent(key, k -> new ArrayList<>()).add(rs.getString(5));
+						}
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+
+			Map<String, Map<String, String[]>> result = new HashMap<>();
+			for (Map.Entry<Long, Map<String, List<String>>> node : pairs.entrySet()) {
+				String path = getNodePath(node.getKey(), parents, names);
+				if (path == null) {
+					// node not connected to the root node
+					continue;
+				}
+				Map<String, String[]> data = new HashMap<>();
+				for (Map.Entry<String, List<String>> e : node.getValue().entrySet()) {
+					data.put(e.getKey(), e.getValue().toArray(new String[e.getValue().size()]));
+				}
+				result.put(path, data);
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Loaded {0} nodes of user {1} data", new Object[]{result.size(), user_id});
+			}
+
+			return result;
+		} catch (SQLException e) {
+			throw new TigaseDBException("Error getting user data for: " + user_id, e);
+		}
+	}
+
 	@Override
 	public long getUserUID(BareJID user_id) throws TigaseDBException {
 		try {
@@ -502,6 +565,7 @@ public class JDBCRepository
 			data_repo.initPreparedStatement(REMOVE_KEY_DATA_QUERY, REMOVE_KEY_DATA_QUERY);
 			data_repo.initPreparedStatement(UPDATE_PAIRS_QUERY, UPDATE_PAIRS_QUERY);
 			data_repo.initPreparedStatement(UPDATE_LAST_LOGIN_QUERY, UPDATE_LAST_LOGIN_QUERY);
+			data_repo.initPreparedStatement(USER_DATA_QUERY, USER_DATA_QUERY);
 			auth = new AuthRepositoryImpl(this);
 
 			// initRepo();
@@ -687,6 +751,8 @@ public class JDBCRepository
 				log.log(Level.WARNING,
 						"Error setting data , user_id: " + user_id + ", subnode: " + subnode + ", key: " + key +
 								", uid: " + uid + ", nid: " + nid + ", value: " + value, e);
+			} finally {
+				data_repo.releaseRepoHandle(repo);
 			}
 		}
 	}
@@ -1130,6 +1196,22 @@ public class JDBCRepository
 		return result;
 	}
 
+	private String getNodePath(long nid, Map<Long, Long> parents, Map<Long, String> names) {
+		StringBuilder path = new StringBuilder();
+		Long current = nid;
+		int depth = 0;
+		while (parents.containsKey(current)) {
+			String name = names.get(current);
+			if (name == null || ++depth > names.size()) {
+				return null;
+			}
+			path.insert(0, path.length() == 0 ? name : name + "/");
+			current = parents.get(current);
+		}
+		// only the root node has no parent
+		return names.containsKey(current) && DEF_ROOT_NODE.equals(names.get(current)) ? path.toString() : null;
+	}
+
 	private long getUserUID(DataRepository repo, BareJID user_id) throws SQLException {
 		Long cache_res = (Long) cache.get(user_id.toString());
 
@@ -0,0 +1,828 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.logstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of user data. Each change of user data appends a record with all data of the user to the active
+ * segment file of the log, and {@link LogStoreIndex} is updated to point to the new record. Records which are not
+ * pointed to by the index are garbage, and segments with too much garbage are compacted in the background by copying
+ * records which are still used to the active segment and removing the old segment file.
+ * <br>
+ * Readers do not block each other, while changes are applied by one thread at a time. Data of recently used users
+ * is cached, so repeated reads do not have to read and decode the record.
+ * <br>
+ * Each record consists of length and CRC32 checksum of its content, so after crash records which were not written
+ * completely are detected and dropped.
+ */
+class LogStore {
+
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+	private static final String INDEX_FILE = "index.dat";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	// number of records copied by compaction at once, before lock is released to let other threads in
+	private static final int COMPACTION_BATCH = 1000;
+	private static final Logger log = Logger.getLogger(LogStore.class.getName());
+
+	private final Map<String, Map<String, Map<String, String[]>>> cache;
+	private final Config config;
+	private final Path directory;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private Segment active;
+	private long compactedBytes = 0;
+	private long compactions = 0;
+	private LogStoreIndex index;
+	private ScheduledExecutorService scheduler;
+	private Thread shutdownHook;
+	private boolean unflushed = false;
+
+	/**
+	 * Opens store in the directory, creating it if it does not exist. Records written after the last checkpoint of
+	 * the index are applied to the index again.
+	 */
+	static LogStore open(Path directory, Config config) throws IOException {
+		LogStore store = new LogStore(directory, config);
+		store.load();
+		return store;
+	}
+
+	private static String segmentName(int id) {
+		return String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+	}
+
+	private LogStore(Path directory, Config config) {
+		this.directory = directory;
+		this.config = config;
+		int cacheSize = config.cacheSize;
+		this.cache = Collections.synchronizedMap(
+				new LinkedHashMap<String, Map<String, Map<String, String[]>>>(Math.min(cacheSize, 1024), 0.75f, true) {
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, Map<String, Map<String, String[]>>> eldest) {
+						return size() > cacheSize;
+					}
+				});
+	}
+
+	/**
+	 * Writes all changes to the disk and closes files. Store can not be used after it is closed.
+	 */
+	void close() throws IOException {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		lock.writeLock().lock();
+		try {
+			if (index == null) {
+				return;
+			}
+			flushLocked();
+			for (Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+			segments.clear();
+			index = null;
+			cache.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (shutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException ex) {
+				// JVM is already shutting down
+			}
+		}
+	}
+
+	/**
+	 * Compacts segments in which garbage exceeds configured ratio of the segment size.
+	 *
+	 * @return number of compacted segments
+	 */
+	synchronized int compact() throws IOException {
+		int compacted = 0;
+		for (Segment segment : getCompactionCandidates()) {
+			if (compact(segment)) {
+				compacted++;
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * Writes changes to the disk and stores checkpoint in the index.
+	 */
+	void flush() throws IOException {
+		lock.writeLock().lock();
+		try {
+			flushLocked();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns data of the user.
+	 *
+	 * @return map of node paths (empty string for the root node) to data of the node, or <code>null</code> if user
+	 * does not exist. Returned maps must not be modified.
+	 */
+	Map<String, Map<String, String[]>> get(String jid) throws IOException {
+		Map<String, Map<String, String[]>> data = cache.get(jid);
+		if (data != null) {
+			return data;
+		}
+		lock.readLock().lock();
+		try {
+			Record record = findRecord(jid);
+			if (record == null) {
+				return null;
+			}
+			cache.put(jid, record.data);
+			return record.data;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long getCompactedBytes() {
+		return compactedBytes;
+	}
+
+	long getCompactions() {
+		return compactions;
+	}
+
+	Path getDirectory() {
+		return directory;
+	}
+
+	long getGarbageBytes() {
+		lock.readLock().lock();
+		try {
+			long garbage = 0;
+			for (Segment segment : segments.values()) {
+				garbage += segment.size - segment.liveBytes;
+			}
+			return garbage;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	int getSegmentsCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long getUsersCount() {
+		lock.readLock().lock();
+		try {
+			return index.getCount();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns JIDs of all users. It reads header of each record, so it may take a while for a big store.
+	 */
+	List<String> getUsers() throws IOException {
+		lock.readLock().lock();
+		try {
+			List<String> users = new ArrayList<>(index.getCount());
+			index.forEach((slot, location, length) -> users.add(readJid(location, length)));
+			return users;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces all data of the user.
+	 *
+	 * @param data map of node paths to data of the node, it must not be modified after it is passed to the store
+	 */
+	void put(String jid, Map<String, Map<String, String[]>> data) throws IOException {
+		lock.writeLock().lock();
+		try {
+			putLocked(jid, data);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the user.
+	 *
+	 * @return <code>false</code> if user did not exist
+	 */
+	boolean remove(String jid) throws IOException {
+		lock.writeLock().lock();
+		try {
+			long hash = LogStoreIndex.hash(jid);
+			int slot = index.find(hash, (location, length) -> jid.equals(readJid(location, length)));
+			if (slot < 0) {
+				return false;
+			}
+			release(index.getLocation(slot), index.getLength(slot));
+			append(encode(RECORD_REMOVE, jid, null), jid);
+			index.remove(slot);
+			cache.remove(jid);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Changes data of the user. Changes of a single user are applied one by one, so data passed to the function is
+	 * always the latest version.
+	 *
+	 * @param function receiving current data of the user (or <code>null</code> if user does not exist) and returning
+	 * new data, <code>null</code> if data should not be changed. Passed maps must not be modified.
+	 */
+	<E extends Exception> void update(String jid, DataUpdater<E> function) throws IOException, E {
+		lock.writeLock().lock();
+		try {
+			Map<String, Map<String, String[]>> data = cache.get(jid);
+			if (data == null) {
+				Record record = findRecord(jid);
+				data = record == null ? null : record.data;
+			}
+			Map<String, Map<String, String[]>> newData = function.apply(data);
+			if (newData != null) {
+				putLocked(jid, newData);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void append(ByteBuffer record, String jid) throws IOException {
+		int length = record.remaining();
+		if (active.size > 0 && active.size + length > config.maxSegmentSize) {
+			rollSegment();
+		}
+		long offset = active.size;
+		while (record.hasRemaining()) {
+			active.channel.write(record, offset + record.position());
+		}
+		active.size += length;
+		if (config.sync) {
+			active.channel.force(false);
+		} else {
+			unflushed = true;
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Written record of {0}, segment: {1}, offset: {2}, length: {3}",
+					new Object[]{jid, active.id, offset, length});
+		}
+	}
+
+	private boolean compact(Segment segment) throws IOException {
+		boolean older;
+		lock.readLock().lock();
+		try {
+			if (!segments.containsKey(segment.id) || segment == active) {
+				return false;
+			}
+			older = segments.firstKey() < segment.id;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Compacting segment {0}, size: {1}, live data: {2}",
+					new Object[]{segment.path, segment.size, segment.liveBytes});
+		}
+
+		long offset = 0;
+		long copied = 0;
+		while (offset < segment.size) {
+			lock.writeLock().lock();
+			try {
+				for (int i = 0; i < COMPACTION_BATCH && offset < segment.size; i++) {
+					Record record = readRecord(segment, offset, true);
+					if (record == null) {
+						offset = segment.size;
+						break;
+					}
+					long location = LogStoreIndex.location(segment.id, offset);
+					long hash = LogStoreIndex.hash(record.jid);
+					int slot = index.find(hash, (l, length) -> record.jid.equals(readJid(l, length)));
+					if (record.type == RECORD_PUT) {
+						if (slot >= 0 && index.getLocation(slot) == location) {
+							// record is still used, it is moved to the active segment
+							putLocked(record.jid, record.data);
+							copied += record.length;
+						}
+					} else if (slot < 0 && older) {
+						// removal has to be kept as long as older segments may contain data of the user
+						append(encode(RECORD_REMOVE, record.jid, null), record.jid);
+						copied += record.length;
+					}
+					offset += record.length;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		lock.writeLock().lock();
+		try {
+			// records copied to the active segment have to be stored before the old segment is removed
+			flushLocked();
+			segments.remove(segment.id);
+			segment.channel.close();
+			Files.deleteIfExists(segment.path);
+			compactions++;
+			compactedBytes += segment.size - copied;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		log.log(Level.FINE, "Compacted segment {0}, copied {1} bytes", new Object[]{segment.path, copied});
+		return true;
+	}
+
+	private Map<String, Map<String, String[]>> decodeData(ByteBuffer buf) {
+		int nodes = buf.getInt();
+		Map<String, Map<String, String[]>> data = new HashMap<>(nodes * 2);
+		for (int i = 0; i < nodes; i++) {
+			String node = decodeString(buf);
+			int keys = buf.getInt();
+			Map<String, String[]> values = new HashMap<>(Math.max(keys * 2, 2));
+			for (int j = 0; j < keys; j++) {
+				String key = decodeString(buf);
+				String[] list = new String[buf.getInt()];
+				for (int k = 0; k < list.length; k++) {
+					list[k] = decodeString(buf);
+				}
+				values.put(key, list);
+			}
+			data.put(node, values);
+		}
+		return data;
+	}
+
+	private String decodeString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length < 0) {
+			return null;
+		}
+		String result = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return result;
+	}
+
+	private ByteBuffer encode(byte type, String jid, Map<String, Map<String, String[]>> data) {
+		RecordWriter writer = new RecordWriter();
+		writer.writeByte(type);
+		writer.writeString(jid);
+		if (data != null) {
+			writer.writeInt(data.size());
+			for (Map.Entry<String, Map<String, String[]>> node : data.entrySet()) {
+				writer.writeString(node.getKey());
+				writer.writeInt(node.getValue().size());
+				for (Map.Entry<String, String[]> entry : node.getValue().entrySet()) {
+					writer.writeString(entry.getKey());
+					writer.writeInt(entry.getValue().length);
+					for (String value : entry.getValue()) {
+						writer.writeString(value);
+					}
+				}
+			}
+		}
+		return writer.toRecord();
+	}
+
+	private Record findRecord(String jid) throws IOException {
+		Record[] result = new Record[1];
+		index.find(LogStoreIndex.hash(jid), (location, length) -> {
+			Record record = readRecord(segments.get(LogStoreIndex.segment(location)), LogStoreIndex.offset(location),
+									   true);
+			if (record != null && jid.equals(record.jid)) {
+				result[0] = record;
+				return true;
+			}
+			return false;
+		});
+		return result[0];
+	}
+
+	private void flushLocked() throws IOException {
+		if (active == null) {
+			return;
+		}
+		if (unflushed) {
+			active.channel.force(false);
+			unflushed = false;
+		}
+		if (index.getCheckpointSegment() != active.id || index.getCheckpointOffset() != active.size) {
+			index.setCheckpoint(active.id, active.size);
+		}
+	}
+
+	private List<Segment> getCompactionCandidates() {
+		lock.readLock().lock();
+		try {
+			List<Segment> result = new ArrayList<>();
+			for (Segment segment : segments.values()) {
+				if (segment != active && segment.size > 0 &&
+						(segment.size - segment.liveBytes) >= segment.size * config.compactionRatio) {
+					result.add(segment);
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void load() throws IOException {
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+																	 SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path path : stream) {
+				String name = path.getFileName().toString();
+				int id = Integer.parseInt(
+						name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(id, openSegment(id, path));
+			}
+		}
+		if (segments.isEmpty()) {
+			segments.put(1, openSegment(1, directory.resolve(segmentName(1))));
+		}
+		active = segments.lastEntry().getValue();
+
+		index = LogStoreIndex.open(directory.resolve(INDEX_FILE));
+		long start = System.currentTimeMillis();
+		int checkpointSegment = index.getCheckpointSegment();
+		long checkpointOffset = index.getCheckpointOffset();
+		int replayed = replay();
+		recoverSlots(checkpointSegment, checkpointOffset);
+		for (Segment segment : segments.values()) {
+			segment.liveBytes = 0;
+		}
+		index.forEach((slot, location, length) -> {
+			Segment segment = segments.get(LogStoreIndex.segment(location));
+			if (segment != null) {
+				segment.liveBytes += length;
+			}
+		});
+		flushLocked();
+		log.log(Level.CONFIG, "Opened {0}, users: {1}, segments: {2}, replayed records: {3} in {4}ms",
+				new Object[]{directory, index.getCount(), segments.size(), replayed,
+							 System.currentTimeMillis() - start});
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "logstore-" + directory.getFileName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::maintenance, config.flushInterval, config.flushInterval,
+										 TimeUnit.MILLISECONDS);
+		shutdownHook = new Thread(() -> {
+			try {
+				flush();
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not flush " + directory, ex);
+			}
+		}, "logstore-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	private void maintenance() {
+		try {
+			flush();
+			if (config.compactionRatio < 1) {
+				compact();
+			}
+		} catch (Throwable ex) {
+			log.log(Level.WARNING, "Maintenance of " + directory + " failed", ex);
+		}
+	}
+
+	private Segment openSegment(int id, Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+											   StandardOpenOption.WRITE);
+		return new Segment(id, path, channel, channel.size());
+	}
+
+	private void putLocked(String jid, Map<String, Map<String, String[]>> data) throws IOException {
+		long hash = LogStoreIndex.hash(jid);
+		int slot = index.find(hash, (location, length) -> jid.equals(readJid(location, length)));
+		if (slot >= 0) {
+			release(index.getLocation(slot), index.getLength(slot));
+		}
+		ByteBuffer record = encode(RECORD_PUT, jid, data);
+		int length = record.remaining();
+		append(record, jid);
+		index.put(slot, hash, LogStoreIndex.location(active.id, active.size - length), length);
+		active.liveBytes += length;
+		cache.put(jid, data);
+	}
+
+	private String readJid(long location, int length) throws IOException {
+		Segment segment = segments.get(LogStoreIndex.segment(location));
+		Record record = segment == null ? null : readRecord(segment, LogStoreIndex.offset(location), false);
+		return record == null ? null : record.jid;
+	}
+
+	/**
+	 * Reads record from the segment.
+	 *
+	 * @param full if <code>false</code> only type and JID are read
+	 *
+	 * @return record or <code>null</code> if there is no complete and valid record at the offset
+	 */
+	private Record readRecord(Segment segment, long offset, boolean full) throws IOException {
+		if (segment == null || offset + RECORD_HEADER_SIZE > segment.size) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		readFully(segment, header, offset);
+		int length = header.getInt(0);
+		if (length <= 0 || offset + RECORD_HEADER_SIZE + length > segment.size) {
+			return null;
+		}
+		// header with JID is usually much shorter, but it is not worth reading twice
+		ByteBuffer content = ByteBuffer.allocate(full ? length : Math.min(length, 512));
+		readFully(segment, content, offset + RECORD_HEADER_SIZE);
+		if (full) {
+			CRC32 crc = new CRC32();
+			crc.update(content.array(), 0, length);
+			if ((int) crc.getValue() != header.getInt(4)) {
+				return null;
+			}
+		}
+		content.flip();
+		byte type = content.get();
+		int jidLength = content.getInt(content.position());
+		if (jidLength + 5 > content.limit()) {
+			if (full) {
+				return null;
+			}
+			// very long JID, whole record has to be read
+			return readRecord(segment, offset, true);
+		}
+		String jid = decodeString(content);
+		Map<String, Map<String, String[]>> data = null;
+		if (full && type == RECORD_PUT) {
+			data = decodeData(content);
+		}
+		return new Record(type, jid, data, RECORD_HEADER_SIZE + length);
+	}
+
+	private void readFully(Segment segment, ByteBuffer buf, long offset) throws IOException {
+		while (buf.hasRemaining()) {
+			if (segment.channel.read(buf, offset + buf.position()) < 0) {
+				throw new IOException("Unexpected end of " + segment.path);
+			}
+		}
+	}
+
+	private void release(long location, int length) {
+		Segment segment = segments.get(LogStoreIndex.segment(location));
+		if (segment != null) {
+			segment.liveBytes -= length;
+		}
+	}
+
+	/**
+	 * Applies records written after the checkpoint of the index. Incomplete record at the end of the last segment
+	 * (ie. written during crash) is removed.
+	 */
+	private int replay() throws IOException {
+		int replayed = 0;
+		int checkpointSegment = index.getCheckpointSegment();
+		for (Segment segment : segments.tailMap(checkpointSegment, true).values()) {
+			long offset = segment.id == checkpointSegment ? index.getCheckpointOffset() : 0;
+			while (offset < segment.size) {
+				Record record = readRecord(segment, offset, true);
+				if (record == null) {
+					log.log(Level.WARNING, "Invalid record in {0} at offset {1}, dropping {2} bytes",
+							new Object[]{segment.path, offset, segment.size - offset});
+					segment.channel.truncate(offset);
+					segment.size = offset;
+					break;
+				}
+				long hash = LogStoreIndex.hash(record.jid);
+				int slot = index.find(hash, (location, length) -> record.jid.equals(readJid(location, length)));
+				if (record.type == RECORD_PUT) {
+					index.put(slot, hash, LogStoreIndex.location(segment.id, offset), record.length);
+				} else if (slot >= 0) {
+					index.remove(slot);
+				}
+				offset += record.length;
+				replayed++;
+			}
+		}
+		return replayed;
+	}
+
+	/**
+	 * Pages of the index may be written to the disk before records they point to, so after crash slots updated after
+	 * the checkpoint may point to records which were lost. Such slots are removed and users are added again with
+	 * their latest record which is still in the log.
+	 */
+	private void recoverSlots(int checkpointSegment, long checkpointOffset) throws IOException {
+		Set<Long> lost = new HashSet<>();
+		List<Integer> invalid = new ArrayList<>();
+		index.forEach((slot, location, length) -> {
+			int segmentId = LogStoreIndex.segment(location);
+			long offset = LogStoreIndex.offset(location);
+			if (segmentId < checkpointSegment || (segmentId == checkpointSegment && offset < checkpointOffset)) {
+				return;
+			}
+			Record record = readRecord(segments.get(segmentId), offset, true);
+			long hash = index.getHash(slot);
+			if (record == null || record.length != length || LogStoreIndex.hash(record.jid) != hash) {
+				lost.add(hash);
+				invalid.add(slot);
+			}
+		});
+		if (invalid.isEmpty()) {
+			return;
+		}
+		for (int slot : invalid) {
+			index.remove(slot);
+		}
+
+		// latest record of each affected user, null if user was removed
+		Map<String, Long> locations = new HashMap<>();
+		Map<String, Integer> lengths = new HashMap<>();
+		for (Segment segment : segments.values()) {
+			long offset = 0;
+			Record record;
+			while ((record = readRecord(segment, offset, false)) != null) {
+				if (lost.contains(LogStoreIndex.hash(record.jid))) {
+					locations.put(record.jid,
+								  record.type == RECORD_PUT ? LogStoreIndex.location(segment.id, offset) : null);
+					lengths.put(record.jid, record.length);
+				}
+				offset += record.length;
+			}
+		}
+		int recovered = 0;
+		for (Map.Entry<String, Long> e : locations.entrySet()) {
+			String jid = e.getKey();
+			if (e.getValue() == null) {
+				continue;
+			}
+			long hash = LogStoreIndex.hash(jid);
+			if (index.find(hash, (location, length) -> jid.equals(readJid(location, length))) < 0) {
+				index.put(-1, hash, e.getValue(), lengths.get(jid));
+				recovered++;
+			}
+		}
+		log.log(Level.WARNING, "Removed {0} slots of {1} pointing to lost records, recovered {2} users from the log",
+				new Object[]{invalid.size(), directory, recovered});
+	}
+
+	private void rollSegment() throws IOException {
+		active.channel.force(false);
+		int id = active.id + 1;
+		active = openSegment(id, directory.resolve(segmentName(id)));
+		segments.put(id, active);
+		unflushed = false;
+		index.setCheckpoint(active.id, active.size);
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Started new segment {0}", active.path);
+		}
+	}
+
+	interface DataUpdater<E extends Exception> {
+
+		Map<String, Map<String, String[]>> apply(Map<String, Map<String, String[]>> data) throws E;
+
+	}
+
+	static class Config {
+
+		int cacheSize = 10000;
+		double compactionRatio = 0.5;
+		long flushInterval = 1000;
+		long maxSegmentSize = 64 * 1024 * 1024;
+		boolean sync = false;
+
+	}
+
+	private static class Record {
+
+		private final Map<String, Map<String, String[]>> data;
+		private final String jid;
+		private final int length;
+		private final byte type;
+
+		private Record(byte type, String jid, Map<String, Map<String, String[]>> data, int length) {
+			this.type = type;
+			this.jid = jid;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private static class RecordWriter {
+
+		private ByteBuffer buf = ByteBuffer.allocate(256);
+
+		private RecordWriter() {
+			buf.position(RECORD_HEADER_SIZE);
+		}
+
+		ByteBuffer toRecord() {
+			int length = buf.position() - RECORD_HEADER_SIZE;
+			CRC32 crc = new CRC32();
+			crc.update(buf.array(), RECORD_HEADER_SIZE, length);
+			buf.putInt(0, length);
+			buf.putInt(4, (int) crc.getValue());
+			buf.flip();
+			return buf;
+		}
+
+		void writeByte(byte value) {
+			ensure(1);
+			buf.put(value);
+		}
+
+		void writeInt(int value) {
+			ensure(4);
+			buf.putInt(value);
+		}
+
+		void writeString(String value) {
+			if (value == null) {
+				writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeInt(bytes.length);
+			ensure(bytes.length);
+			buf.put(bytes);
+		}
+
+		private void ensure(int size) {
+			if (buf.remaining() < size) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + size));
+				buf.flip();
+				bigger.put(buf);
+				buf = bigger;
+			}
+		}
+	}
+
+	private static class Segment {
+
+		private final FileChannel channel;
+		private final int id;
+		private final Path path;
+		private long liveBytes = 0;
+		private long size;
+
+		private Segment(int id, Path path, FileChannel channel, long size) {
+			this.id = id;
+			this.path = path;
+			this.channel = channel;
+			this.size = size;
+		}
+	}
+}
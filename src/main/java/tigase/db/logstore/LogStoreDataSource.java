@@ -0,0 +1,148 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.logstore;
+
+import tigase.component.exceptions.RepositoryException;
+import tigase.db.DBInitException;
+import tigase.db.DataSource;
+import tigase.db.Repository;
+import tigase.util.Version;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Data source keeping user data in an append-only log stored in a local directory, for single node installations
+ * which do not want to depend on an external database. Resource URI has the following form:
+ * <pre>logstore://path/to/directory?maxSegmentSize=67108864&amp;compactionRatio=0.5&amp;cacheSize=10000&amp;sync=false</pre>
+ * All parameters are optional:
+ * <ul>
+ * <li><code>maxSegmentSize</code> - size in bytes after which new segment file of the log is started,</li>
+ * <li><code>compactionRatio</code> - part of a segment which has to be occupied by outdated records before the
+ * segment is compacted,</li>
+ * <li><code>cacheSize</code> - number of users which data is kept in memory,</li>
+ * <li><code>sync</code> - if <code>true</code> each change is written to the disk before method returns, otherwise
+ * changes are written every second,</li>
+ * <li><code>autoCreateUser</code> - if <code>true</code> users are created on first access, as in
+ * <code>XMLRepository</code>.</li>
+ * </ul>
+ */
+@Repository.Meta(supportedUris = {"logstore://.*"})
+public class LogStoreDataSource
+		implements DataSource {
+
+	public static final String URI_PREFIX = "logstore://";
+
+	private static final Logger log = Logger.getLogger(LogStoreDataSource.class.getCanonicalName());
+
+	private boolean autoCreateUser = false;
+	private String resource_uri;
+	private LogStore store;
+
+	@Override
+	public Optional<Version> getSchemaVersion(String component) {
+		return Optional.empty();
+	}
+
+	@Override
+	public String getResourceUri() {
+		return resource_uri;
+	}
+
+	@Override
+	public void initialize(String resource_uri) throws RepositoryException {
+		initRepository(resource_uri, new HashMap<>());
+	}
+
+	@Override
+	@Deprecated
+	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+		log.log(Level.FINEST, "Initializing repository, uri: {0}, params: {1}", new Object[]{resource_uri, params});
+		if (!resource_uri.startsWith(URI_PREFIX)) {
+			throw new DBInitException("Unsupported resource URI: " + resource_uri);
+		}
+		String path = resource_uri.substring(URI_PREFIX.length());
+		LogStore.Config config = new LogStore.Config();
+		int idx = path.indexOf('?');
+		if (idx >= 0) {
+			try {
+				for (String param : path.substring(idx + 1).split("&")) {
+					String[] parts = param.split("=", 2);
+					String value = parts.length > 1 ? parts[1] : "";
+					switch (parts[0]) {
+						case "maxSegmentSize":
+							config.maxSegmentSize = Long.parseLong(value);
+							break;
+						case "compactionRatio":
+							config.compactionRatio = Double.parseDouble(value);
+							break;
+						case "cacheSize":
+							config.cacheSize = Integer.parseInt(value);
+							break;
+						case "sync":
+							config.sync = Boolean.parseBoolean(value);
+							break;
+						case "autoCreateUser":
+							autoCreateUser = Boolean.parseBoolean(value);
+							break;
+						default:
+							log.log(Level.WARNING, "Unknown parameter {0} in resource URI {1}",
+									new Object[]{parts[0], resource_uri});
+					}
+				}
+			} catch (NumberFormatException ex) {
+				throw new DBInitException("Invalid parameter in resource URI: " + resource_uri, ex);
+			}
+			path = path.substring(0, idx);
+		}
+		Path directory = Paths.get(path);
+		try {
+			LogStore store = LogStore.open(directory, config);
+			if (this.store != null) {
+				this.store.close();
+			}
+			this.store = store;
+			this.resource_uri = resource_uri;
+		} catch (IOException ex) {
+			throw new DBInitException("Could not open log store in " + directory.toAbsolutePath(), ex);
+		}
+	}
+
+	/**
+	 * Writes all changes to the disk and closes files of the store.
+	 */
+	public void close() throws IOException {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	boolean isAutoCreateUser() {
+		return autoCreateUser;
+	}
+
+	LogStore getStore() {
+		return store;
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.logstore;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hash table stored in a memory mapped file, mapping hash of a user JID to location of the latest record of the user
+ * in the log. Table uses open addressing with linear probing, and as different JIDs may have the same hash, caller
+ * verifies each matching slot by reading the record.
+ * <br>
+ * Header of the file keeps position in the log up to which all records are reflected in the table (checkpoint), so
+ * only records written after it have to be applied again after restart.
+ * <br>
+ * Instances are not thread safe, {@link LogStore} guards access with its lock.
+ */
+class LogStoreIndex {
+
+	static final int INITIAL_CAPACITY = 1024;
+
+	private static final int HEADER_SIZE = 64;
+	private static final float LOAD_FACTOR = 0.7f;
+	private static final int MAGIC = 0x54534958;
+	private static final int SLOT_SIZE = 24;
+	private static final int STATE_EMPTY = 0;
+	private static final int STATE_USED = 1;
+	private static final int STATE_REMOVED = 2;
+	private static final int VERSION = 1;
+	private static final Logger log = Logger.getLogger(LogStoreIndex.class.getName());
+
+	private final Path file;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int count;
+	private int removed;
+
+	/**
+	 * Opens existing index file or creates new empty index if the file does not exist or is not valid.
+	 */
+	static LogStoreIndex open(Path file) throws IOException {
+		if (Files.exists(file)) {
+			try {
+				LogStoreIndex index = new LogStoreIndex(file, map(file, -1));
+				if (index.isValid()) {
+					return index;
+				}
+				log.log(Level.WARNING, "Index {0} is not valid, it will be rebuilt", file);
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not open index " + file + ", it will be rebuilt", ex);
+			}
+			Files.delete(file);
+		}
+		return create(file, INITIAL_CAPACITY);
+	}
+
+	static long hash(String jid) {
+		long h = 1125899906842597L;
+		for (int i = 0; i < jid.length(); i++) {
+			h = 31 * h + jid.charAt(i);
+		}
+		// finalizer of MurmurHash3, spreads bits of the hash
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	static long location(int segment, long offset) {
+		return ((long) segment << 40) | offset;
+	}
+
+	static long offset(long location) {
+		return location & 0xFFFFFFFFFFL;
+	}
+
+	static int segment(long location) {
+		return (int) (location >>> 40);
+	}
+
+	private static LogStoreIndex create(Path file, int capacity) throws IOException {
+		LogStoreIndex index = new LogStoreIndex(file, map(file, HEADER_SIZE + (long) capacity * SLOT_SIZE));
+		index.capacity = capacity;
+		index.buffer.putInt(0, MAGIC);
+		index.buffer.putInt(4, VERSION);
+		index.buffer.putInt(8, capacity);
+		index.writeCounters();
+		index.setCheckpoint(0, 0);
+		return index;
+	}
+
+	private static MappedByteBuffer map(Path file, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+													StandardOpenOption.WRITE)) {
+			if (size < 0) {
+				size = channel.size();
+			} else {
+				channel.truncate(0);
+			}
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Index " + file + " is too big: " + size);
+			}
+			// mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	private LogStoreIndex(Path file, MappedByteBuffer buffer) {
+		this.file = file;
+		this.buffer = buffer;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	int getCheckpointSegment() {
+		return buffer.getInt(20);
+	}
+
+	long getCheckpointOffset() {
+		return buffer.getLong(24);
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * Finds slot of the user.
+	 *
+	 * @param hash of the user JID
+	 * @param matcher checking if record at location from the slot belongs to the user
+	 *
+	 * @return number of the slot or <code>-1</code> if user is not in the index
+	 */
+	int find(long hash, SlotMatcher matcher) throws IOException {
+		int mask = capacity - 1;
+		for (int slot = (int) hash & mask, i = 0; i < capacity; slot = (slot + 1) & mask, i++) {
+			int pos = position(slot);
+			int state = buffer.getInt(pos + 20);
+			if (state == STATE_EMPTY) {
+				return -1;
+			}
+			if (state == STATE_USED && buffer.getLong(pos) == hash &&
+					matcher.matches(buffer.getLong(pos + 8), buffer.getInt(pos + 16))) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	void forEach(SlotConsumer consumer) throws IOException {
+		for (int slot = 0; slot < capacity; slot++) {
+			int pos = position(slot);
+			if (buffer.getInt(pos + 20) == STATE_USED) {
+				consumer.accept(slot, buffer.getLong(pos + 8), buffer.getInt(pos + 16));
+			}
+		}
+	}
+
+	/**
+	 * Writes content of the memory mapped file to the disk.
+	 */
+	void force() {
+		buffer.force();
+	}
+
+	long getHash(int slot) {
+		return buffer.getLong(position(slot));
+	}
+
+	long getLocation(int slot) {
+		return buffer.getLong(position(slot) + 8);
+	}
+
+	int getLength(int slot) {
+		return buffer.getInt(position(slot) + 16);
+	}
+
+	/**
+	 * Sets location of the user record, adding user to the index if needed.
+	 *
+	 * @param slot of the user returned by {@link #find(long, SlotMatcher)} or <code>-1</code> for a new user
+	 */
+	void put(int slot, long hash, long location, int length) throws IOException {
+		if (slot < 0) {
+			if ((count + removed + 1) > capacity * LOAD_FACTOR) {
+				resize(count + 1 > capacity * LOAD_FACTOR / 2 ? capacity * 2 : capacity);
+			}
+			slot = freeSlot(hash);
+			if (buffer.getInt(position(slot) + 20) == STATE_REMOVED) {
+				removed--;
+			}
+			count++;
+			writeCounters();
+		}
+		int pos = position(slot);
+		buffer.putLong(pos, hash);
+		buffer.putLong(pos + 8, location);
+		buffer.putInt(pos + 16, length);
+		buffer.putInt(pos + 20, STATE_USED);
+	}
+
+	void remove(int slot) {
+		buffer.putInt(position(slot) + 20, STATE_REMOVED);
+		count--;
+		removed++;
+		writeCounters();
+	}
+
+	/**
+	 * Stores position in the log up to which all records are reflected in the index. Content of the index is written
+	 * to the disk before the position is stored, so after crash the position is never ahead of the stored slots.
+	 */
+	void setCheckpoint(int segment, long offset) {
+		buffer.force();
+		buffer.putInt(20, segment);
+		buffer.putLong(24, offset);
+		buffer.force();
+	}
+
+	private int freeSlot(long hash) {
+		int mask = capacity - 1;
+		int slot = (int) hash & mask;
+		while (buffer.getInt(position(slot) + 20) == STATE_USED) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private boolean isValid() {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			return false;
+		}
+		capacity = buffer.getInt(8);
+		count = buffer.getInt(12);
+		removed = buffer.getInt(16);
+		return Integer.bitCount(capacity) == 1 && buffer.capacity() == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+	}
+
+	private int position(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	/**
+	 * Copies all used slots to a new file, which replaces current one. Removed slots are dropped.
+	 */
+	private void resize(int newCapacity) throws IOException {
+		if ((long) HEADER_SIZE + (long) newCapacity * SLOT_SIZE > Integer.MAX_VALUE) {
+			throw new IOException("Index " + file + " can not grow above " + capacity + " slots");
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Resizing index {0} from {1} to {2} slots",
+					new Object[]{file, capacity, newCapacity});
+		}
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		LogStoreIndex resized = create(tmp, newCapacity);
+		forEach((slot, location, length) -> {
+			long hash = buffer.getLong(position(slot));
+			int newSlot = resized.freeSlot(hash);
+			int pos = resized.position(newSlot);
+			resized.buffer.putLong(pos, hash);
+			resized.buffer.putLong(pos + 8, location);
+			resized.buffer.putInt(pos + 16, length);
+			resized.buffer.putInt(pos + 20, STATE_USED);
+			resized.count++;
+		});
+		resized.writeCounters();
+		resized.setCheckpoint(getCheckpointSegment(), getCheckpointOffset());
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		buffer = resized.buffer;
+		capacity = resized.capacity;
+		count = resized.count;
+		removed = 0;
+	}
+
+	private void writeCounters() {
+		buffer.putInt(12, count);
+		buffer.putInt(16, removed);
+	}
+
+	interface SlotConsumer {
+
+		void accept(int slot, long location, int length) throws IOException;
+
+	}
+
+	interface SlotMatcher {
+
+		boolean matches(long location, int length) throws IOException;
+
+	}
+}
@@ -0,0 +1,475 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.logstore;
+
+import tigase.db.*;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of <code>UserRepository</code> and <code>AuthRepository</code> keeping data in {@link LogStore}. It
+ * provides the same behaviour as <code>XMLRepository</code>, but data of each user is stored separately in an
+ * append-only log, so changes do not require writing the whole database, and it may keep millions of users without
+ * loading all of them to memory.
+ * <br>
+ * Reads of user data do not block each other, while changes are serialized and appended to the log.
+ */
+@Repository.Meta(supportedUris = {"logstore://.*"})
+public class LogStoreRepository
+		implements Repository, DataSourceAware<LogStoreDataSource>, AuthRepository, UserRepository {
+
+	private static final String USER_STR = "User: ";
+	private static final String NOT_FOUND_STR = " has not been found in repository.";
+	private static final Logger log = Logger.getLogger(LogStoreRepository.class.getName());
+
+	private AuthRepository auth = null;
+	private boolean autoCreateUser = false;
+	private LogStoreDataSource dataSource;
+	private LogStore store;
+
+	private static Map<String, Map<String, String[]>> copyOf(Map<String, Map<String, String[]>> data) {
+		Map<String, Map<String, String[]>> copy = new HashMap<>(data.size() * 2);
+		copy.putAll(data);
+		return copy;
+	}
+
+	/**
+	 * Converts node path to the form used as key in the store, without leading and trailing <code>/</code> and
+	 * empty string for the root node.
+	 */
+	private static String nodePath(String subnode) {
+		if (subnode == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder(subnode.length());
+		for (String part : subnode.split("/")) {
+			if (!part.isEmpty()) {
+				if (sb.length() > 0) {
+					sb.append('/');
+				}
+				sb.append(part);
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void addDataList(BareJID user, final String subnode, final String key, final String[] list)
+			throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Adding data list, user: {0}, subnode: {1}, key: {2}, list: {3}",
+				new Object[]{user, subnode, key, Arrays.asList(list)});
+		String path = nodePath(subnode);
+		update(user, true, data -> {
+			Map<String, String[]> node = data.get(path);
+			String[] old_data = node == null ? null : node.get(key);
+			String[] all = list.clone();
+			if (old_data != null) {
+				all = new String[old_data.length + list.length];
+				System.arraycopy(old_data, 0, all, 0, old_data.length);
+				System.arraycopy(list, 0, all, old_data.length, list.length);
+			}
+			return withValue(data, path, key, all);
+		});
+	}
+
+	@Override
+	public void addUser(BareJID user) throws UserExistsException, TigaseDBException {
+		log.log(Level.FINEST, "adding new user, user: {0}", new Object[]{user});
+		try {
+			store.update(user.toString(), data -> {
+				if (data != null) {
+					throw new UserExistsException(USER_STR + user + " already exists.");
+				}
+				return Collections.singletonMap("", Collections.emptyMap());
+			});
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not add user " + user, ex);
+		}
+	}
+
+	@Override
+	public void addUser(BareJID user, final String password) throws UserExistsException, TigaseDBException {
+		auth.addUser(user, password);
+	}
+
+	@Override
+	public String getData(BareJID user, final String subnode, final String key, final String def)
+			throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Getting data, user: {0}, subnode: {1}, key: {2}", new Object[]{user, subnode, key});
+		String[] values = getValues(user, subnode, key);
+		return values != null && values.length > 0 ? values[0] : def;
+	}
+
+	@Override
+	public String getData(BareJID user, final String subnode, final String key)
+			throws UserNotFoundException, TigaseDBException {
+		return getData(user, subnode, key, null);
+	}
+
+	@Override
+	public String getData(BareJID user, final String key) throws UserNotFoundException, TigaseDBException {
+		return getData(user, null, key, null);
+	}
+
+	@Override
+	public String[] getDataList(BareJID user, final String subnode, final String key)
+			throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Getting data list, user: {0}, subnode: {1}, key: {2}", new Object[]{user, subnode, key});
+		String[] values = getValues(user, subnode, key);
+		return values == null ? null : values.clone();
+	}
+
+	@Override
+	public String[] getKeys(BareJID user, final String subnode) throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Getting keys, user: {0}, subnode: {1}", new Object[]{user, subnode});
+		Map<String, String[]> node = load(user).get(nodePath(subnode));
+		if (node == null || node.isEmpty()) {
+			return null;
+		}
+		return node.keySet().toArray(new String[node.size()]);
+	}
+
+	@Override
+	public String[] getKeys(BareJID user) throws UserNotFoundException, TigaseDBException {
+		return getKeys(user, null);
+	}
+
+	@Override
+	public String getResourceUri() {
+		return dataSource.getResourceUri();
+	}
+
+	@Override
+	public String[] getSubnodes(BareJID user, final String subnode) throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Getting subnodes, user: {0}, subnode: {1}", new Object[]{user, subnode});
+		String path = nodePath(subnode);
+		String prefix = path.isEmpty() ? "" : path + "/";
+		Set<String> result = new LinkedHashSet<>();
+		for (String node : load(user).keySet()) {
+			if (node.length() > prefix.length() && node.startsWith(prefix)) {
+				int idx = node.indexOf('/', prefix.length());
+				result.add(idx < 0 ? node.substring(prefix.length()) : node.substring(prefix.length(), idx));
+			}
+		}
+		return result.isEmpty() ? null : result.toArray(new String[result.size()]);
+	}
+
+	@Override
+	public String[] getSubnodes(BareJID user) throws UserNotFoundException, TigaseDBException {
+		return getSubnodes(user, null);
+	}
+
+	@Override
+	public Map<String, Map<String, String[]>> getUserData(BareJID user)
+			throws UserNotFoundException, TigaseDBException {
+		Map<String, Map<String, String[]>> data = load(user);
+		Map<String, Map<String, String[]>> result = new HashMap<>(data.size() * 2);
+		for (Map.Entry<String, Map<String, String[]>> node : data.entrySet()) {
+			Map<String, String[]> values = new HashMap<>(Math.max(node.getValue().size() * 2, 2));
+			for (Map.Entry<String, String[]> entry : node.getValue().entrySet()) {
+				values.put(entry.getKey(), entry.getValue().clone());
+			}
+			result.put(node.getKey(), values);
+		}
+		// nodes containing only subnodes are not stored, but they are visible in the node tree
+		for (String node : data.keySet()) {
+			for (int idx = node.lastIndexOf('/'); idx > 0; idx = node.lastIndexOf('/', idx - 1)) {
+				result.putIfAbsent(node.substring(0, idx), new HashMap<>());
+			}
+		}
+		result.putIfAbsent("", new HashMap<>());
+		return result;
+	}
+
+	@Override
+	public long getUserUID(BareJID user) throws TigaseDBException {
+		return Math.abs(user.hashCode());
+	}
+
+	@Override
+	public List<BareJID> getUsers() throws TigaseDBException {
+		try {
+			List<String> users = store.getUsers();
+			List<BareJID> result = new ArrayList<>(users.size());
+			for (String usr : users) {
+				result.add(BareJID.bareJIDInstanceNS(usr));
+			}
+			return result;
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not read list of users", ex);
+		}
+	}
+
+	@Override
+	public long getUsersCount(String domain) {
+		try {
+			long res = 0;
+			for (BareJID jid : getUsers()) {
+				if (jid.getDomain().equals(domain)) {
+					++res;
+				}
+			}
+			return res;
+		} catch (TigaseDBException ex) {
+			log.log(Level.WARNING, "Could not count users of " + domain, ex);
+			return -1;
+		}
+	}
+
+	@Override
+	public long getUsersCount() {
+		return store.getUsersCount();
+	}
+
+	@Override
+	@Deprecated
+	public synchronized void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+		if (store == null) {
+			log.log(Level.FINEST, "Initializing repository, uri: {0}, params: {1}", new Object[]{resource_uri, params});
+			LogStoreDataSource dataSource = new LogStoreDataSource();
+			dataSource.initRepository(resource_uri, params);
+			setDataSource(dataSource);
+		}
+	}
+
+	@Override
+	public void logout(BareJID user) throws UserNotFoundException, TigaseDBException {
+		auth.logout(user);
+	}
+
+	@Override
+	public void loggedIn(BareJID user) throws TigaseDBException {
+		auth.loggedIn(user);
+	}
+
+	@Override
+	public boolean otherAuth(final Map<String, Object> props)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		return auth.otherAuth(props);
+	}
+
+	@Override
+	public void queryAuth(Map<String, Object> authProps) {
+		auth.queryAuth(authProps);
+	}
+
+	@Override
+	public void removeData(BareJID user, final String subnode, final String key)
+			throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Removing data, user: {0}, subnode: {1}, key: {2}", new Object[]{user, subnode, key});
+		String path = nodePath(subnode);
+		update(user, false, data -> {
+			Map<String, String[]> node = data.get(path);
+			if (node == null || !node.containsKey(key)) {
+				return null;
+			}
+			Map<String, String[]> newNode = new HashMap<>(node);
+			newNode.remove(key);
+			Map<String, Map<String, String[]>> newData = copyOf(data);
+			newData.put(path, newNode);
+			return newData;
+		});
+	}
+
+	@Override
+	public void removeData(BareJID user, final String key) throws UserNotFoundException, TigaseDBException {
+		removeData(user, null, key);
+	}
+
+	@Override
+	public void removeSubnode(BareJID user, final String subnode) throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Removing subnode, user: {0}, subnode: {1}", new Object[]{user, subnode});
+		String path = nodePath(subnode);
+		String prefix = path.isEmpty() ? "" : path + "/";
+		update(user, false, data -> {
+			Map<String, Map<String, String[]>> newData = copyOf(data);
+			if (!newData.keySet().removeIf(node -> node.equals(path) || node.startsWith(prefix))) {
+				return null;
+			}
+			return newData;
+		});
+	}
+
+	@Override
+	public void removeUser(BareJID user) throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Removing user: {0}", new Object[]{user});
+		try {
+			if (!store.remove(user.toString())) {
+				throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+			}
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not remove user " + user, ex);
+		}
+	}
+
+	@Override
+	public void setData(BareJID user, final String subnode, final String key, final String value)
+			throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Setting data, user: {0}, subnode: {1}, key: {2}, value: {3}",
+				new Object[]{user, subnode, key, value});
+		String path = nodePath(subnode);
+		update(user, true, data -> withValue(data, path, key, new String[]{value}));
+	}
+
+	@Override
+	public void setData(BareJID user, final String key, final String value)
+			throws UserNotFoundException, TigaseDBException {
+		setData(user, null, key, value);
+	}
+
+	@Override
+	public void setDataList(BareJID user, final String subnode, final String key, final String[] list)
+			throws UserNotFoundException, TigaseDBException {
+		log.log(Level.FINEST, "Setting data list, user: {0}, subnode: {1}, key: {2}, value: {3}",
+				new Object[]{user, subnode, key, Arrays.asList(list)});
+		String path = nodePath(subnode);
+		update(user, true, data -> withValue(data, path, key, list.clone()));
+	}
+
+	@Override
+	public void updatePassword(BareJID user, final String password) throws UserExistsException, TigaseDBException {
+		auth.updatePassword(user, password);
+	}
+
+	@Override
+	public boolean userExists(BareJID user) {
+		try {
+			return store.get(user.toString()) != null;
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Could not check if user " + user + " exists", ex);
+			return false;
+		}
+	}
+
+	@Override
+	public String getPassword(BareJID user) throws UserNotFoundException, TigaseDBException {
+		return auth.getPassword(user);
+	}
+
+	@Override
+	public boolean isUserDisabled(BareJID user) throws UserNotFoundException, TigaseDBException {
+		final String disabled = getData(user, "disabled");
+		return disabled != null && Boolean.parseBoolean(disabled);
+	}
+
+	@Override
+	public void setUserDisabled(BareJID user, Boolean value) throws UserNotFoundException, TigaseDBException {
+		setData(user, "disabled", value.toString());
+	}
+
+	@Override
+	public void setAccountStatus(BareJID user, AccountStatus status) throws TigaseDBException {
+		setData(user, "accountStatus", status.toString());
+	}
+
+	@Override
+	public AccountStatus getAccountStatus(BareJID user) throws TigaseDBException {
+		final String accountStatus = getData(user, "accountStatus");
+		return accountStatus != null ? AccountStatus.valueOf(accountStatus) : AccountStatus.active;
+	}
+
+	@Override
+	public void setDataSource(LogStoreDataSource dataSource) {
+		this.dataSource = dataSource;
+		autoCreateUser = dataSource.isAutoCreateUser();
+		store = dataSource.getStore();
+		auth = new AuthRepositoryImpl(this);
+	}
+
+	/**
+	 * Stores all data of the user, replacing existing data. It is used to import users from other repositories.
+	 *
+	 * @param data map of node paths to data of the node, in the form returned by {@link #getUserData(BareJID)}
+	 */
+	void importUserData(BareJID user, Map<String, Map<String, String[]>> data) throws TigaseDBException {
+		Map<String, Map<String, String[]>> copy = new HashMap<>(data.size() * 2);
+		for (Map.Entry<String, Map<String, String[]>> node : data.entrySet()) {
+			if (node.getValue() != null && !node.getValue().isEmpty()) {
+				copy.put(nodePath(node.getKey()), new HashMap<>(node.getValue()));
+			}
+		}
+		copy.putIfAbsent("", Collections.emptyMap());
+		try {
+			store.put(user.toString(), copy);
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not import user " + user, ex);
+		}
+	}
+
+	private String[] getValues(BareJID user, String subnode, String key)
+			throws UserNotFoundException, TigaseDBException {
+		Map<String, String[]> node = load(user).get(nodePath(subnode));
+		return node == null ? null : node.get(key);
+	}
+
+	private Map<String, Map<String, String[]>> load(BareJID user) throws UserNotFoundException, TigaseDBException {
+		try {
+			Map<String, Map<String, String[]>> data = store.get(user.toString());
+			if (data == null) {
+				if (!autoCreateUser) {
+					throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+				}
+				return Collections.emptyMap();
+			}
+			return data;
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not read data of user " + user, ex);
+		}
+	}
+
+	/**
+	 * Applies change to the data of the user.
+	 *
+	 * @param create if <code>true</code> and <code>autoCreateUser</code> is enabled, user is created if it does not
+	 * exist
+	 * @param function returning new data or <code>null</code> if nothing was changed
+	 */
+	private void update(BareJID user, boolean create, LogStore.DataUpdater<TigaseDBException> function)
+			throws UserNotFoundException, TigaseDBException {
+		try {
+			store.update(user.toString(), data -> {
+				if (data == null) {
+					if (!autoCreateUser) {
+						throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+					}
+					if (!create) {
+						return null;
+					}
+					data = Collections.singletonMap("", Collections.emptyMap());
+				}
+				return function.apply(data);
+			});
+		} catch (IOException ex) {
+			throw new TigaseDBException("Could not store data of user " + user, ex);
+		}
+	}
+
+	private Map<String, Map<String, String[]>> withValue(Map<String, Map<String, String[]>> data, String path,
+														 String key, String[] values) {
+		Map<String, String[]> node = data.get(path);
+		Map<String, String[]> newNode = node == null ? new HashMap<>() : new HashMap<>(node);
+		newNode.put(key, values);
+		Map<String, Map<String, String[]>> newData = copyOf(data);
+		newData.put(path, newNode);
+		return newData;
+	}
+}
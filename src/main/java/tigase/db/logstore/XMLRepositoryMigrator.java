@@ -0,0 +1,68 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.logstore;
+
+import tigase.db.xml.XMLDataSource;
+import tigase.db.xml.XMLRepository;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.List;
+
+/**
+ * Copies all users with their data from the database file of <code>XMLRepository</code> to {@link
+ * LogStoreRepository}. Users already present in the target store are overwritten.
+ * <br>
+ * Usage:
+ * <pre>java -cp "jars/*" tigase.db.logstore.XMLRepositoryMigrator etc/tigase-xmldb.xml /var/lib/tigase/users</pre>
+ */
+public class XMLRepositoryMigrator {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.out.println("Usage: XMLRepositoryMigrator <xml database file> <target directory>");
+			System.exit(1);
+		}
+
+		XMLDataSource source = new XMLDataSource();
+		source.initialize(args[0]);
+		XMLRepository xmlRepository = new XMLRepository();
+		xmlRepository.setDataSource(source);
+
+		LogStoreDataSource target = new LogStoreDataSource();
+		target.initialize(LogStoreDataSource.URI_PREFIX + args[1]);
+		LogStoreRepository logRepository = new LogStoreRepository();
+		logRepository.setDataSource(target);
+
+		try {
+			List<BareJID> users = xmlRepository.getUsers();
+			System.out.println("Found " + users.size() + " users in " + args[0]);
+			long start = System.currentTimeMillis();
+			int copied = 0;
+			for (BareJID user : users) {
+				logRepository.importUserData(user, xmlRepository.getUserData(user));
+				if (++copied % 10000 == 0) {
+					System.out.println("Copied " + copied + " users");
+				}
+			}
+			System.out.println("Copied " + copied + " users to " + args[1] + " in " +
+									   (System.currentTimeMillis() - start) + "ms");
+		} finally {
+			target.close();
+		}
+	}
+}
@@ -164,7 +164,7 @@ public class SchemaManager {
 
 	public static List<Class<?>> getRepositoryClasses() {
 		return ClassUtilBean.getInstance()
-				.getAllClasses()
+				.getBeanClasses()
 				.stream()
 				.filter(clazz -> Arrays.stream(SUPPORTED_CLASSES)
 						.anyMatch(supClazz -> supClazz.isAssignableFrom(clazz)))
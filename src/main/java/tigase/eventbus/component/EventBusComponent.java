@@ -27,7 +27,9 @@ import tigase.component.modules.impl.XmppPingModule;
 import tigase.eventbus.EventBusFactory;
 import tigase.eventbus.component.stores.Affiliation;
 import tigase.eventbus.component.stores.AffiliationStore;
+import tigase.eventbus.impl.EventBusImplementation;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.kernel.beans.selector.ConfigType;
 import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.core.Kernel;
@@ -44,6 +46,15 @@ public class EventBusComponent
 		extends AbstractKernelBasedComponent
 		implements ClusteredComponentIfc {
 
+	@ConfigField(desc = "Maximal number of events waiting for a single listener", alias = "lane-capacity")
+	private int laneCapacity = localEventBus().getLaneCapacity();
+	@ConfigField(desc = "Policy used when too many events are waiting for a listener", alias = "lane-overflow-policy")
+	private EventBusImplementation.OverflowPolicy laneOverflowPolicy = localEventBus().getLaneOverflowPolicy();
+
+	private static EventBusImplementation localEventBus() {
+		return (EventBusImplementation) EventBusFactory.getInstance();
+	}
+
 	public EventBusComponent() {
 	}
 
@@ -65,6 +76,17 @@ public class EventBusComponent
 	@Override
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
+		localEventBus().getStatistics(getName(), list);
+	}
+
+	public void setLaneCapacity(int laneCapacity) {
+		this.laneCapacity = laneCapacity;
+		localEventBus().setLaneCapacity(laneCapacity);
+	}
+
+	public void setLaneOverflowPolicy(EventBusImplementation.OverflowPolicy laneOverflowPolicy) {
+		this.laneOverflowPolicy = laneOverflowPolicy;
+		localEventBus().setLaneOverflowPolicy(laneOverflowPolicy);
 	}
 
 	@Override
@@ -50,6 +50,13 @@ public abstract class AbstractHandler {
 		return eventName;
 	}
 
+	/**
+	 * Returns name of the listener used in logs and statistics.
+	 */
+	public String getListenerName() {
+		return getClass().getSimpleName() + "(" + eventName + ")";
+	}
+
 	public String getPackageName() {
 		return packageName;
 	}
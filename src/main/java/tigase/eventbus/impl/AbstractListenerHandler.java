@@ -46,6 +46,11 @@ public abstract class AbstractListenerHandler<T>
 		return listener;
 	}
 
+	@Override
+	public String getListenerName() {
+		return listener.getClass().getName() + "(" + getEventName() + ")";
+	}
+
 	@Override
 	public int hashCode() {
 		return listener.hashCode();
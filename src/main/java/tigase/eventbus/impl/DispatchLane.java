@@ -0,0 +1,218 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.eventbus.impl;
+
+import tigase.stats.LatencyHistogram;
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of events waiting for a single listener. Events are passed to the listener one by one, in the order in which
+ * they were fired, by a task submitted to the shared executor only when there are events waiting. Number of waiting
+ * events is limited, and {@link EventBusImplementation.OverflowPolicy} decides what happens with the next event when
+ * the queue is full.
+ * <br>
+ * Events fired by a listener to its own queue are always added, and a listener firing events never waits for space in
+ * other queues, as all threads of the executor could end up waiting for queues which no thread is left to empty.
+ */
+class DispatchLane
+		implements Runnable {
+
+	// number of events processed before the task is submitted to the executor again, so other lanes are not starved
+	private static final int BATCH_SIZE = 100;
+	private static final ThreadLocal<DispatchLane> currentLane = new ThreadLocal<>();
+	private static final Logger log = Logger.getLogger(DispatchLane.class.getName());
+
+	private final EventBusImplementation eventBus;
+	private final LongAdder dispatched = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram("latency");
+	private final ReentrantLock lock = new ReentrantLock();
+	private final String name;
+	private final Condition notFull = lock.newCondition();
+	private final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private volatile int maxSize = 0;
+
+	/**
+	 * Creates lane which uses executor, capacity and overflow policy currently set in the event bus.
+	 */
+	DispatchLane(String name, EventBusImplementation eventBus) {
+		this.name = name;
+		this.eventBus = eventBus;
+	}
+
+	/**
+	 * Adds event to the queue.
+	 *
+	 * @param task passing event to the listener
+	 *
+	 * @return <code>false</code> if event was dropped
+	 */
+	boolean add(Runnable task) {
+		final int capacity = eventBus.getLaneCapacity();
+		if (size.get() >= capacity && currentLane.get() != this) {
+			switch (eventBus.getLaneOverflowPolicy()) {
+				case dropNewest:
+					dropped.increment();
+					return false;
+				case dropOldest:
+					if (queue.poll() != null) {
+						size.decrementAndGet();
+						dropped.increment();
+					}
+					break;
+				case block:
+					if (currentLane.get() == null) {
+						awaitSpace(capacity);
+					}
+					break;
+			}
+		}
+
+		queue.offer(new Task(task));
+		int size = this.size.incrementAndGet();
+		if (size > maxSize) {
+			maxSize = size;
+		}
+		schedule();
+		return true;
+	}
+
+	long getDispatched() {
+		return dispatched.sum();
+	}
+
+	long getDropped() {
+		return dropped.sum();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int getSize() {
+		return size.get();
+	}
+
+	void getStatistics(String compName, StatisticsList list) {
+		String prefix = "Lane " + name;
+		list.add(compName, prefix + " queue size", size.get(), Level.FINEST);
+		list.add(compName, prefix + " max queue size", maxSize, Level.FINEST);
+		list.add(compName, prefix + " dispatched", dispatched.sum(), Level.FINEST);
+		list.add(compName, prefix + " dropped", dropped.sum(), Level.FINEST);
+		latency.getStatistics(compName, prefix, list, Level.FINEST);
+	}
+
+	@Override
+	public void run() {
+		final DispatchLane previous = currentLane.get();
+		currentLane.set(this);
+		try {
+			Task task;
+			int processed = 0;
+			while (processed < BATCH_SIZE && (task = queue.poll()) != null) {
+				size.decrementAndGet();
+				if (waiting.get() > 0) {
+					signalNotFull();
+				}
+				try {
+					task.task.run();
+				} catch (Throwable e) {
+					log.log(Level.WARNING, "Exception during dispatching event to " + name, e);
+				}
+				latency.record(System.nanoTime() - task.added);
+				dispatched.increment();
+				processed++;
+			}
+		} finally {
+			currentLane.set(previous);
+			scheduled.set(false);
+			// event might be added after the last poll() but before the flag was cleared
+			if (!queue.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+
+	/**
+	 * Wakes up threads waiting for space in the queue, ie. after capacity or overflow policy was changed.
+	 */
+	void signalNotFull() {
+		lock.lock();
+		try {
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DispatchLane[" + name + ", size=" + size.get() + "]";
+	}
+
+	private void awaitSpace(int capacity) {
+		lock.lock();
+		try {
+			waiting.incrementAndGet();
+			while (size.get() >= capacity && eventBus.getLaneOverflowPolicy() == EventBusImplementation.OverflowPolicy.block) {
+				// timeout is only a safety net, lane signals after taking each event
+				notFull.await(100, TimeUnit.MILLISECONDS);
+				capacity = eventBus.getLaneCapacity();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			waiting.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				eventBus.getExecutor().execute(this);
+			} catch (RuntimeException e) {
+				scheduled.set(false);
+				throw e;
+			}
+		}
+	}
+
+	private static final class Task {
+
+		private final long added = System.nanoTime();
+		private final Runnable task;
+
+		Task(Runnable task) {
+			this.task = task;
+		}
+	}
+}
@@ -18,6 +18,7 @@
 package tigase.eventbus.impl;
 
 import tigase.eventbus.*;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 
 import java.util.*;
@@ -28,7 +29,36 @@ import java.util.logging.Logger;
 public class EventBusImplementation
 		implements EventBus {
 
+	/**
+	 * Name of the system property with maximal number of events waiting for a single listener.
+	 */
+	public static final String LANE_CAPACITY_PROP_KEY = "eventbus-lane-capacity";
+	/**
+	 * Name of the system property with {@link OverflowPolicy} used when too many events are waiting for a listener.
+	 */
+	public static final String LANE_OVERFLOW_POLICY_PROP_KEY = "eventbus-lane-overflow-policy";
+
+	/**
+	 * What to do with an event fired when queue of the listener is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Thread firing the event waits until there is space in the queue. Any thread firing events (including I/O
+		 * threads) may be stopped by a single slow listener, so this policy has to be enabled explicitly.
+		 */
+		block,
+		/**
+		 * The oldest waiting event is dropped.
+		 */
+		dropOldest,
+		/**
+		 * Fired event is dropped.
+		 */
+		dropNewest
+	}
+
 	private static final Logger log = Logger.getLogger(EventBusImplementation.class.getName());
+	private final ConcurrentHashMap<AbstractHandler, DispatchLane> lanes = new ConcurrentHashMap<>();
 	private final EventsNameMap<AbstractHandler> listeners = new EventsNameMap<>();
 	private final ReflectEventListenerHandlerFactory reflectEventListenerFactory = new ReflectEventListenerHandlerFactory();
 	private final ReflectEventRoutedTransientFillerFactory reflectEventRoutedTransientFillerFactory = new ReflectEventRoutedTransientFillerFactory();
@@ -39,6 +69,9 @@ public class EventBusImplementation
 	private final Serializer serializer = new EventBusSerializer();
 	private boolean acceptOnlyRegisteredEvents = false;
 	private Executor executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4);
+	private volatile int laneCapacity = Integer.getInteger(LANE_CAPACITY_PROP_KEY, 10000);
+	private volatile OverflowPolicy laneOverflowPolicy = OverflowPolicy.valueOf(
+			System.getProperty(LANE_OVERFLOW_POLICY_PROP_KEY, OverflowPolicy.dropOldest.name()));
 	private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
 	public EventBusImplementation() {
@@ -158,6 +191,24 @@ public class EventBusImplementation
 		this.executor = executor;
 	}
 
+	public int getLaneCapacity() {
+		return laneCapacity;
+	}
+
+	public void setLaneCapacity(int laneCapacity) {
+		this.laneCapacity = laneCapacity;
+		lanes.values().forEach(DispatchLane::signalNotFull);
+	}
+
+	public OverflowPolicy getLaneOverflowPolicy() {
+		return laneOverflowPolicy;
+	}
+
+	public void setLaneOverflowPolicy(OverflowPolicy laneOverflowPolicy) {
+		this.laneOverflowPolicy = laneOverflowPolicy;
+		lanes.values().forEach(DispatchLane::signalNotFull);
+	}
+
 	public EventsRegistrar getRegistrar() {
 		return registrar;
 	}
@@ -166,6 +217,28 @@ public class EventBusImplementation
 		return serializer;
 	}
 
+	public void getStatistics(String compName, StatisticsList list) {
+		long queued = 0;
+		long dispatched = 0;
+		long dropped = 0;
+		int maxQueued = 0;
+		for (DispatchLane lane : lanes.values()) {
+			int size = lane.getSize();
+			queued += size;
+			maxQueued = Math.max(maxQueued, size);
+			dispatched += lane.getDispatched();
+			dropped += lane.getDropped();
+			if (list.checkLevel(Level.FINEST)) {
+				lane.getStatistics(compName, list);
+			}
+		}
+		list.add(compName, "Dispatch lanes", lanes.size(), Level.FINE);
+		list.add(compName, "Queued events", queued, Level.FINE);
+		list.add(compName, "Max lane queue size", maxQueued, Level.FINE);
+		list.add(compName, "Dispatched events", dispatched, Level.FINE);
+		list.add(compName, "Dropped events", dropped, Level.FINE);
+	}
+
 	public boolean isAcceptOnlyRegisteredEvents() {
 		return acceptOnlyRegisteredEvents;
 	}
@@ -207,6 +280,8 @@ public class EventBusImplementation
 
 	public void removeHandler(AbstractHandler listenerHandler) {
 		listeners.delete(listenerHandler);
+		// events already waiting in the lane are still dispatched
+		lanes.remove(listenerHandler);
 	}
 
 	public <T> void removeListener(EventSourceListener<T> listener) {
@@ -310,8 +385,24 @@ public class EventBusImplementation
 				}
 			};
 
-			executor.execute(task);
+			if (!getLane(listenerHandler).add(task) && log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Queue of listener " + listenerHandler.getListenerName() + " is full, event " +
+						event.getClass().getCanonicalName() + " dropped");
+			}
+		}
+	}
+
+	DispatchLane getLane(AbstractHandler listenerHandler) {
+		DispatchLane lane = lanes.get(listenerHandler);
+		if (lane == null) {
+			lane = lanes.computeIfAbsent(listenerHandler,
+										 handler -> new DispatchLane(handler.getListenerName(), this));
+			// handler removed after the event was matched to it, removeHandler() could miss the lane created for it
+			if (!listeners.getAllData().contains(listenerHandler)) {
+				lanes.remove(listenerHandler, lane);
+			}
 		}
+		return lane;
 	}
 
 	private void checkIfEventIsRegistered(final String eventName) throws EventBusException {
@@ -23,91 +23,100 @@ import tigase.kernel.TypesConverter;
 import tigase.xml.Element;
 import tigase.xml.XMLUtils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Converts events to elements and back. List of serialized fields of each event class and method handles to their
+ * accessors are prepared once, when the class is serialized or deserialized for the first time, so serialization of
+ * the next events of the same class does not use reflection.
+ * <br>
+ * Prepared data is attached to the event class itself and classes are referenced by name only weakly, so the cache
+ * does not prevent unloading of classes (and their class loaders) of events from modules which were removed.
+ */
 public class EventBusSerializer
 		implements Serializer {
 
 	private static final Logger log = Logger.getLogger(EventBusSerializer.class.getName());
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	private final ClassValue<EventClassSerializer> classSerializers = new ClassValue<EventClassSerializer>() {
+		@Override
+		protected EventClassSerializer computeValue(Class<?> type) {
+			return new EventClassSerializer(type);
+		}
+	};
+	private final ConcurrentHashMap<String, WeakReference<EventClassSerializer>> namedClassSerializers =
+			new ConcurrentHashMap<>();
 	private TypesConverter typesConverter = new DefaultTypesConverter();
 
 	public <T> T deserialize(final Element element) {
+		final EventClassSerializer classSerializer;
 		try {
-			final Class<?> cls = Class.forName(element.getName());
-			final Object result = cls.newInstance();
+			classSerializer = getClassSerializer(element.getName());
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
 
-			Field[] fields = BeanUtils.getAllFields(cls);
-			for (final Field f : fields) {
-				if (Modifier.isTransient(f.getModifiers())) {
-					continue;
-				}
-				if (Modifier.isFinal(f.getModifiers())) {
-					continue;
-				}
-				if (Modifier.isStatic(f.getModifiers())) {
+		final Object result;
+		try {
+			result = classSerializer.newInstance();
+		} catch (ReflectiveOperationException e) {
+			log.log(Level.WARNING, "Error while deserializing", e);
+			return null;
+		}
+
+		for (final FieldAccessor f : classSerializer.fields) {
+			try {
+				Object value;
+				Element v = element.getChild(f.name);
+				if (v == null) {
 					continue;
 				}
 
-				try {
-					Object value;
-					Element v = element.getChild(f.getName());
-					if (v == null) {
-						continue;
-					}
-
-					if (Element.class.isAssignableFrom(f.getType())) {
-						if (v.getChildren().size() > 0) {
-							value = v.getChildren().get(0);
-						} else {
-							value = null;
-						}
+				if (f.element) {
+					if (v.getChildren().size() > 0) {
+						value = v.getChildren().get(0);
 					} else {
-						value = typesConverter.convert(XMLUtils.unescape(v.getCData()), f.getType(),
-													   f.getGenericType());
+						value = null;
 					}
-					BeanUtils.setValue(result, f, value);
-				} catch (IllegalAccessException | InvocationTargetException caught) {
-					log.log(Level.WARNING, "Error while deserializing", caught);
+				} else {
+					value = typesConverter.convert(XMLUtils.unescape(v.getCData()), f.type, f.genericType);
 				}
+				f.set(result, value);
+			} catch (IllegalAccessException | InvocationTargetException caught) {
+				log.log(Level.WARNING, "Error while deserializing", caught);
 			}
-			return (T) result;
-		} catch (ClassNotFoundException e) {
-			return null;
-		} catch (InstantiationException | IllegalAccessException e) {
-			log.log(Level.WARNING, "Error while deserializing", e);
-			return null;
 		}
+		return (T) result;
 	}
 
 	public Element serialize(final Object object) {
-		final Class<?> cls = object.getClass();
-		Element e = new Element(cls.getName());
-
-		Field[] fields = BeanUtils.getAllFields(cls);
-		for (final Field f : fields) {
-			if (Modifier.isTransient(f.getModifiers())) {
-				continue;
-			}
-			if (Modifier.isFinal(f.getModifiers())) {
-				continue;
-			}
-			if (Modifier.isStatic(f.getModifiers())) {
-				continue;
-			}
+		final EventClassSerializer classSerializer = getClassSerializer(object.getClass());
+		Element e = new Element(classSerializer.className);
 
+		for (final FieldAccessor f : classSerializer.fields) {
 			try {
-				final Object value = BeanUtils.getValue(object, f);
+				final Object value = f.get(object);
 
 				if (value == null) {
 					continue;
 				}
 
-				Element v = new Element(f.getName());
-				if (Element.class.isAssignableFrom(f.getType())) {
+				Element v = new Element(f.name);
+				if (f.element) {
 					v.addChild((Element) value);
 				} else {
 					String x = typesConverter.toString(value);
@@ -115,11 +124,169 @@ public class EventBusSerializer
 				}
 				e.addChild(v);
 			} catch (IllegalAccessException | InvocationTargetException caught) {
-				log.log(Level.WARNING, "Error while serializing", e);
+				log.log(Level.WARNING, "Error while serializing", caught);
 			}
 		}
 
 		return e;
 	}
 
+	private EventClassSerializer getClassSerializer(Class<?> cls) {
+		return classSerializers.get(cls);
+	}
+
+	private EventClassSerializer getClassSerializer(String className) throws ClassNotFoundException {
+		WeakReference<EventClassSerializer> ref = namedClassSerializers.get(className);
+		EventClassSerializer serializer = ref == null ? null : ref.get();
+		if (serializer == null) {
+			serializer = getClassSerializer(Class.forName(className));
+			namedClassSerializers.put(className, new WeakReference<>(serializer));
+		}
+		return serializer;
+	}
+
+	private static final class EventClassSerializer {
+
+		private final String className;
+		private final MethodHandle constructor;
+		private final Class<?> eventClass;
+		private final FieldAccessor[] fields;
+
+		EventClassSerializer(Class<?> cls) {
+			this.eventClass = cls;
+			this.className = cls.getName();
+
+			List<FieldAccessor> accessors = new ArrayList<>();
+			for (final Field f : BeanUtils.getAllFields(cls)) {
+				if (Modifier.isTransient(f.getModifiers())) {
+					continue;
+				}
+				if (Modifier.isFinal(f.getModifiers())) {
+					continue;
+				}
+				if (Modifier.isStatic(f.getModifiers())) {
+					continue;
+				}
+				accessors.add(new FieldAccessor(f));
+			}
+			this.fields = accessors.toArray(new FieldAccessor[accessors.size()]);
+
+			MethodHandle constructor = null;
+			try {
+				Constructor<?> c = cls.getDeclaredConstructor();
+				constructor = lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+			} catch (NoSuchMethodException | IllegalAccessException | SecurityException e) {
+				// instance will be created with getDeclaredConstructor().newInstance() which reports the problem
+			}
+			this.constructor = constructor;
+		}
+
+		Object newInstance() throws ReflectiveOperationException {
+			if (constructor == null) {
+				return eventClass.getDeclaredConstructor().newInstance();
+			}
+			try {
+				return (Object) constructor.invokeExact();
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				// only checked exceptions thrown by the constructor are left
+				throw new InvocationTargetException(e);
+			}
+		}
+
+	}
+
+	/**
+	 * Access to a single field of the event, through its getter and setter if they exist (the same way as {@link
+	 * BeanUtils#getValue(Object, Field)} and {@link BeanUtils#setValue(Object, Field, Object)} do). If the only
+	 * setter accepts other type than the type of the field, value is set by {@link BeanUtils#setValue(Object, Field,
+	 * Object)}, which finds the setter for the type of the value.
+	 */
+	private static final class FieldAccessor {
+
+		private final boolean element;
+		private final Field field;
+		private final Type genericType;
+		private final MethodHandle getter;
+		private final String name;
+		private final MethodHandle setter;
+		private final Class<?> type;
+
+		FieldAccessor(Field field) {
+			this.field = field;
+			this.name = field.getName();
+			this.type = field.getType();
+			this.genericType = field.getGenericType();
+			this.element = Element.class.isAssignableFrom(type);
+			this.getter = prepareGetter(field);
+			this.setter = prepareSetter(field);
+		}
+
+		private static MethodHandle prepareGetter(Field field) {
+			try {
+				Method getter = BeanUtils.prepareGetterMethod(field);
+				if (getter != null) {
+					getter.setAccessible(true);
+					return lookup.unreflect(getter).asType(MethodType.methodType(Object.class, Object.class));
+				}
+				field.setAccessible(true);
+				return lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+			} catch (IllegalAccessException | RuntimeException e) {
+				log.log(Level.FINEST, "Cannot prepare handle for getting value of " + field, e);
+				return null;
+			}
+		}
+
+		private static MethodHandle prepareSetter(Field field) {
+			try {
+				Method setter = BeanUtils.prepareSetterMethod(field);
+				if (setter != null) {
+					setter.setAccessible(true);
+					return lookup.unreflect(setter).asType(MethodType.methodType(void.class, Object.class, Object.class));
+				}
+				List<Method> setters = BeanUtils.prepareSetterMethods(field.getDeclaringClass(), field.getName());
+				if (setters == null || !setters.isEmpty()) {
+					// setter accepts other type than type of the field, it depends on the value
+					return null;
+				}
+				field.setAccessible(true);
+				return lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
+			} catch (IllegalAccessException | RuntimeException e) {
+				log.log(Level.FINEST, "Cannot prepare handle for setting value of " + field, e);
+				return null;
+			}
+		}
+
+		Object get(Object object) throws IllegalAccessException, InvocationTargetException {
+			if (getter == null) {
+				return BeanUtils.getValue(object, field);
+			}
+			try {
+				return (Object) getter.invokeExact(object);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				// only checked exceptions thrown by the getter are left
+				throw new InvocationTargetException(e);
+			}
+		}
+
+		void set(Object object, Object value) throws IllegalAccessException, InvocationTargetException {
+			if (setter == null) {
+				BeanUtils.setValue(object, field, value);
+				return;
+			}
+			try {
+				setter.invokeExact(object, value);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				// only checked exceptions thrown by the setter are left
+				throw new InvocationTargetException(e);
+			}
+		}
+
+	}
+
 }
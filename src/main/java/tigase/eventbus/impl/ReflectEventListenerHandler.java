@@ -19,7 +19,11 @@ package tigase.eventbus.impl;
 
 import tigase.eventbus.HandleEvent;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 
 public class ReflectEventListenerHandler
 		extends AbstractHandler {
@@ -27,6 +31,9 @@ public class ReflectEventListenerHandler
 	protected final Object consumerObject;
 	protected final HandleEvent.Type filter;
 	protected final Method handlerMethod;
+	// handler method bound to the consumer object, accepting and returning Object types, so it may be invoked
+	// with invokeExact() without reflection
+	protected final MethodHandle handlerMethodHandle;
 
 	public ReflectEventListenerHandler(HandleEvent.Type filter, final String packageName, final String eventName,
 									   Object consumerObject, Method handlerMethod) {
@@ -34,6 +41,21 @@ public class ReflectEventListenerHandler
 		this.filter = filter;
 		this.consumerObject = consumerObject;
 		this.handlerMethod = handlerMethod;
+		this.handlerMethodHandle = prepareHandle(consumerObject, handlerMethod);
+	}
+
+	private static MethodHandle prepareHandle(Object consumerObject, Method handlerMethod) {
+		try {
+			MethodHandle handle = MethodHandles.lookup().unreflect(handlerMethod);
+			if (!Modifier.isStatic(handlerMethod.getModifiers())) {
+				handle = handle.bindTo(consumerObject);
+			}
+			return handle.asType(
+					MethodType.genericMethodType(handlerMethod.getParameterCount()).changeReturnType(void.class));
+		} catch (IllegalAccessException | RuntimeException e) {
+			// method will be called through reflection
+			return null;
+		}
 	}
 
 	@Override
@@ -43,8 +65,12 @@ public class ReflectEventListenerHandler
 			return;
 		}
 		try {
-			handlerMethod.invoke(consumerObject, event);
-		} catch (Exception e) {
+			if (handlerMethodHandle != null) {
+				handlerMethodHandle.invokeExact(event);
+			} else {
+				handlerMethod.invoke(consumerObject, event);
+			}
+		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		}
 
@@ -68,6 +94,11 @@ public class ReflectEventListenerHandler
 
 	}
 
+	@Override
+	public String getListenerName() {
+		return consumerObject.getClass().getName() + "." + handlerMethod.getName() + "(" + getEventName() + ")";
+	}
+
 	@Override
 	public Type getRequiredEventType() {
 		return Type.object;
@@ -36,8 +36,12 @@ public class ReflectEventSourceListenerHandler
 			return;
 		}
 		try {
-			handlerMethod.invoke(consumerObject, event, source);
-		} catch (Exception e) {
+			if (handlerMethodHandle != null) {
+				handlerMethodHandle.invokeExact(event, source);
+			} else {
+				handlerMethod.invoke(consumerObject, event, source);
+			}
+		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		}
 
@@ -23,21 +23,84 @@ import tigase.eventbus.HandleEvent;
 import tigase.eventbus.impl.EventName;
 import tigase.kernel.DefaultTypesConverter;
 import tigase.kernel.TypesConverter;
+import tigase.stats.LatencyHistogram;
+import tigase.stats.StatisticsList;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClusterMapFactory {
 
+	/**
+	 * Name of the system property with time in milliseconds for which changes of maps with
+	 * {@link Replication#coalesced} replication are collected before they are sent to other nodes.
+	 */
+	public static final String COALESCE_WINDOW_PROP_KEY = "cluster-map-coalesce-window";
+
+	/**
+	 * Ways of sending changes of the map to other cluster nodes.
+	 */
+	public enum Replication {
+		/**
+		 * Each change is sent as a separate event right away.
+		 */
+		immediate,
+		/**
+		 * Changes are collected for a short time and current values of changed keys are sent in a single event with
+		 * version of each key. Newer version of the key wins, and whole state of the map is sent to a node which
+		 * creates the map after it was created on this node.
+		 */
+		coalesced
+	}
+
 	private final static EventName NEWMAP_EVENT_NAME = new EventName(NewMapCreatedEvent.class);
+	private static final int FULL_STATE_BATCH_SIZE = 1000;
+	private static final int NODE_BITS = 12;
+	private static final int COUNTER_BITS = 8;
+	private static final int TIME_SHIFT = NODE_BITS + COUNTER_BITS;
+	private static final long TOMBSTONE_TTL = 10 * 60 * 1000;
 	private static ClusterMapFactory instance;
+	private final AtomicLong clock = new AtomicLong();
+	private final LongAdder fullStateEventsReceived = new LongAdder();
+	private final LongAdder fullStateEventsSent = new LongAdder();
+	private final LongAdder localChanges = new LongAdder();
 	private final Logger log = Logger.getLogger(this.getClass().getName());
 	private final ConcurrentHashMap<String, DMap> maps = new ConcurrentHashMap<>();
+	// low bits of versions make versions of changes done on different nodes at the same time distinct
+	private final long nodeBits = ThreadLocalRandom.current().nextInt(1 << NODE_BITS);
+	private final LatencyHistogram replicationLag = new LatencyHistogram("replication lag");
+	private final LongAdder staleChanges = new LongAdder();
 	private final TypesConverter typesConverter = new DefaultTypesConverter();
+	private final LongAdder changesEventsReceived = new LongAdder();
+	private final LongAdder changesEventsSent = new LongAdder();
+	private long coalesceWindow = Long.getLong(COALESCE_WINDOW_PROP_KEY, 100);
 	private EventBus eventBus;
+	private ScheduledExecutorService executor = null;
+	private long lastTombstonesPurge = System.currentTimeMillis();
+	private final VersionedDMap.Replicator replicator = new VersionedDMap.Replicator() {
+		@Override
+		public void changed(VersionedDMap<?, ?> map) {
+			localChanges.increment();
+			if (map.flushScheduled.compareAndSet(false, true)) {
+				getExecutor().schedule(() -> flush(map), coalesceWindow, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public long nextVersion() {
+			final long now = System.currentTimeMillis() << TIME_SHIFT;
+			long version = clock.updateAndGet(
+					current -> Math.max(now, (current & ~((1L << NODE_BITS) - 1)) + (1L << NODE_BITS)));
+			return version | nodeBits;
+		}
+	};
 	private final DMap.DMapListener mapListener = new DMap.DMapListener() {
 		@Override
 		public void onClear(DMap map) {
@@ -89,15 +152,21 @@ public class ClusterMapFactory {
 
 	public <K, V> Map<K, V> createMap(final String uid, final Class<K> keyClass, final Class<V> valueClass,
 									  final String... params) {
+		return createMap(uid, keyClass, valueClass, Replication.immediate, params);
+	}
+
+	public <K, V> Map<K, V> createMap(final String uid, final Class<K> keyClass, final Class<V> valueClass,
+									  final Replication replication, final String... params) {
 
 		NewMapCreatedEvent event = new NewMapCreatedEvent();
 		event.setUid(uid);
 		event.setKeyClass(keyClass);
 		event.setValueClass(valueClass);
 		event.setParams(params);
+		event.setReplication(replication.name());
 		eventBus.fire(event);
 
-		DMap<K, V> map = maps.computeIfAbsent(uid, (u) -> new DMap<K, V>(uid, this.mapListener, keyClass, valueClass));
+		DMap<K, V> map = maps.computeIfAbsent(uid, (u) -> newMap(uid, keyClass, valueClass, replication));
 
 		return map;
 	}
@@ -134,6 +203,65 @@ public class ClusterMapFactory {
 		return this.maps.get(uid);
 	}
 
+	public long getCoalesceWindow() {
+		return coalesceWindow;
+	}
+
+	public void setCoalesceWindow(long coalesceWindow) {
+		this.coalesceWindow = coalesceWindow;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		long changes = localChanges.sum();
+		long sent = changesEventsSent.sum();
+		list.add(compName, "Map replication local changes", changes, Level.FINE);
+		list.add(compName, "Map replication events sent", sent, Level.FINE);
+		list.add(compName, "Map replication events saved", changes - sent, Level.FINE);
+		list.add(compName, "Map replication events received", changesEventsReceived.sum(), Level.FINE);
+		list.add(compName, "Map replication stale changes", staleChanges.sum(), Level.FINE);
+		list.add(compName, "Map replication full state events sent", fullStateEventsSent.sum(), Level.FINE);
+		list.add(compName, "Map replication full state events received", fullStateEventsReceived.sum(), Level.FINE);
+		replicationLag.getStatistics(compName, "Map", list, Level.FINE);
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onMapChanges(MapChangesEvent event) {
+		final String uid = event.getUid();
+		final DMap map = this.maps.get(uid);
+
+		if (map == null) {
+			log.log(Level.FINE, "No map '" + uid + "' created on this node! Ignoring MapChanges event.");
+			return;
+		}
+
+		if (event.isFullState()) {
+			fullStateEventsReceived.increment();
+		} else {
+			changesEventsReceived.increment();
+			if (event.getTimestamp() > 0) {
+				replicationLag.record(
+						TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - event.getTimestamp()));
+			}
+		}
+
+		String[] keys = event.getKeys();
+		if (keys != null) {
+			String[] values = event.getValues();
+			long[] versions = event.getVersions();
+			for (int i = 0; i < keys.length; i++) {
+				applyChange(map, typesConverter.convert(keys[i], map.keyClass),
+							typesConverter.convert(values[i], map.valueClass), versions[i]);
+			}
+		}
+		String[] removedKeys = event.getRemovedKeys();
+		if (removedKeys != null) {
+			long[] versions = event.getRemovedVersions();
+			for (int i = 0; i < removedKeys.length; i++) {
+				applyChange(map, typesConverter.convert(removedKeys[i], map.keyClass), null, versions[i]);
+			}
+		}
+	}
+
 	@HandleEvent(filter = HandleEvent.Type.remote)
 	void onMapClear(MapClearEvent event) {
 		final String uid = event.getUid();
@@ -196,13 +324,122 @@ public class ClusterMapFactory {
 			final Class valueClass = event.getValueClass();
 
 			String[] parameters = event.getParams();
+			Replication replication = Replication.coalesced.name().equals(event.getReplication())
+									  ? Replication.coalesced
+									  : Replication.immediate;
 
-			DMap map = new DMap(uid, mapListener, keyClass, valueClass);
+			DMap map = newMap(uid, keyClass, valueClass, replication);
 			maps.put(uid, map);
 			fireOnMapCreated(map, uid, parameters);
 		} else {
 			DMap map = this.maps.get(uid);
-			mapListener.onPutAll(map, map);
+			if (map instanceof VersionedDMap) {
+				sendFullState((VersionedDMap) map);
+			} else {
+				mapListener.onPutAll(map, map);
+			}
+		}
+	}
+
+	private void applyChange(DMap map, Object key, Object value, long version) {
+		clock.accumulateAndGet(version, Math::max);
+		if (map instanceof VersionedDMap) {
+			if (!((VersionedDMap) map).apply(key, value, version)) {
+				staleChanges.increment();
+			}
+		} else if (value == null) {
+			map.removeNoEvent(key);
+		} else {
+			map.putNoEvent(key, value);
+		}
+	}
+
+	private MapChangesEvent createChangesEvent(VersionedDMap<?, ?> map, List<?> keys, boolean fullState) {
+		final List<String> putKeys = new ArrayList<>();
+		final List<String> putValues = new ArrayList<>();
+		final List<Long> putVersions = new ArrayList<>();
+		final List<String> removedKeys = new ArrayList<>();
+		final List<Long> removedVersions = new ArrayList<>();
+
+		for (Object key : keys) {
+			((VersionedDMap<Object, Object>) map).read(key, (k, value, version) -> {
+				if (value == null) {
+					removedKeys.add(typesConverter.toString(k));
+					removedVersions.add(version);
+				} else {
+					putKeys.add(typesConverter.toString(k));
+					putValues.add(typesConverter.toString(value));
+					putVersions.add(version);
+				}
+			});
+		}
+
+		MapChangesEvent event = new MapChangesEvent();
+		event.setUid(map.getUid());
+		event.setFullState(fullState);
+		// empty arrays are not sent at all
+		if (!putKeys.isEmpty()) {
+			event.setKeys(putKeys.toArray(new String[putKeys.size()]));
+			event.setValues(putValues.toArray(new String[putValues.size()]));
+			event.setVersions(putVersions.stream().mapToLong(Long::longValue).toArray());
+		}
+		if (!removedKeys.isEmpty()) {
+			event.setRemovedKeys(removedKeys.toArray(new String[removedKeys.size()]));
+			event.setRemovedVersions(removedVersions.stream().mapToLong(Long::longValue).toArray());
+		}
+		return event;
+	}
+
+	void flush(VersionedDMap<?, ?> map) {
+		map.flushScheduled.set(false);
+		long firstChange = map.getFirstPendingChange();
+		List<?> keys = map.drainPending();
+		if (keys.isEmpty()) {
+			return;
+		}
+
+		MapChangesEvent event = createChangesEvent(map, keys, false);
+		event.setTimestamp(firstChange);
+		changesEventsSent.increment();
+		eventBus.fire(event);
+
+		long now = System.currentTimeMillis();
+		if (now - lastTombstonesPurge > TOMBSTONE_TTL) {
+			lastTombstonesPurge = now;
+			for (DMap m : maps.values()) {
+				if (m instanceof VersionedDMap) {
+					((VersionedDMap) m).purgeTombstones((now - TOMBSTONE_TTL) << TIME_SHIFT);
+				}
+			}
+		}
+	}
+
+	private synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "cluster-map-replication");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	private <K, V> DMap<K, V> newMap(String uid, Class<K> keyClass, Class<V> valueClass, Replication replication) {
+		if (replication == Replication.coalesced) {
+			return new VersionedDMap<>(uid, replicator, keyClass, valueClass);
+		}
+		return new DMap<>(uid, this.mapListener, keyClass, valueClass);
+	}
+
+	private void sendFullState(VersionedDMap<?, ?> map) {
+		List<?> keys = map.getVersionedKeys();
+		for (int i = 0; i < keys.size(); i += FULL_STATE_BATCH_SIZE) {
+			MapChangesEvent event = createChangesEvent(map, keys.subList(i, Math.min(keys.size(),
+																					  i + FULL_STATE_BATCH_SIZE)),
+													   true);
+			fullStateEventsSent.increment();
+			eventBus.fire(event);
 		}
 	}
 
@@ -261,6 +498,89 @@ public class ClusterMapFactory {
 		}
 	}
 
+	/**
+	 * Changes of a map with {@link Replication#coalesced} replication. Values and versions are aligned with keys.
+	 */
+	public static class MapChangesEvent
+			implements Serializable {
+
+		private boolean fullState;
+		private String[] keys;
+		private String[] removedKeys;
+		private long[] removedVersions;
+		private long timestamp;
+		private String uid;
+		private String[] values;
+		private long[] versions;
+
+		public boolean isFullState() {
+			return fullState;
+		}
+
+		public void setFullState(boolean fullState) {
+			this.fullState = fullState;
+		}
+
+		public String[] getKeys() {
+			return keys;
+		}
+
+		public void setKeys(String[] keys) {
+			this.keys = keys;
+		}
+
+		public String[] getRemovedKeys() {
+			return removedKeys;
+		}
+
+		public void setRemovedKeys(String[] removedKeys) {
+			this.removedKeys = removedKeys;
+		}
+
+		public long[] getRemovedVersions() {
+			return removedVersions;
+		}
+
+		public void setRemovedVersions(long[] removedVersions) {
+			this.removedVersions = removedVersions;
+		}
+
+		/**
+		 * Returns time of the oldest change included in this event.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public void setTimestamp(long timestamp) {
+			this.timestamp = timestamp;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+
+		public String[] getValues() {
+			return values;
+		}
+
+		public void setValues(String[] values) {
+			this.values = values;
+		}
+
+		public long[] getVersions() {
+			return versions;
+		}
+
+		public void setVersions(long[] versions) {
+			this.versions = versions;
+		}
+	}
+
 	public static class MapClearEvent
 			implements Serializable {
 
@@ -294,6 +614,7 @@ public class ClusterMapFactory {
 
 		private Class keyClass;
 		private String[] params;
+		private String replication;
 		private String uid;
 		private Class valueClass;
 
@@ -313,6 +634,14 @@ public class ClusterMapFactory {
 			this.params = params;
 		}
 
+		public String getReplication() {
+			return replication;
+		}
+
+		public void setReplication(String replication) {
+			this.replication = replication;
+		}
+
 		public String getUid() {
 			return uid;
 		}
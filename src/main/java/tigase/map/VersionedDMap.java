@@ -0,0 +1,217 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Distributed map which keeps version of the last change of each key. Local changes are not sent to other nodes
+ * one by one, instead changed keys are collected and {@link Replicator} sends current values of all of them at once.
+ * Changes received from other nodes are applied only if they are newer than the local change of the same key (last
+ * writer wins), so changes may be delivered in any order and more than once.
+ * <br>
+ * Removed keys are kept as tombstones with version of the removal, so an older value received later (ie. during full
+ * synchronization with a joining node) does not bring them back.
+ */
+class VersionedDMap<K, V>
+		extends DMap<K, V> {
+
+	final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final Set<K> pending = ConcurrentHashMap.newKeySet();
+	private final Replicator replicator;
+	private final ConcurrentHashMap<K, Long> versions = new ConcurrentHashMap<>();
+	private volatile long firstPendingChange = 0;
+
+	VersionedDMap(String uid, Replicator replicator, Class<K> keyClass, Class<V> valueClass) {
+		super(uid, null, keyClass, valueClass);
+		this.replicator = replicator;
+	}
+
+	/**
+	 * Applies change received from other node.
+	 *
+	 * @param key changed key
+	 * @param value new value or <code>null</code> if key was removed
+	 * @param version of the change
+	 *
+	 * @return <code>false</code> if local version of the key is newer and change was ignored
+	 */
+	boolean apply(K key, V value, long version) {
+		boolean[] applied = new boolean[]{false};
+		versions.compute(key, (k, current) -> {
+			if (current != null && current >= version) {
+				return current;
+			}
+			if (value == null) {
+				map.remove(k);
+			} else {
+				map.put(k, value);
+			}
+			applied[0] = true;
+			return version;
+		});
+		return applied[0];
+	}
+
+	@Override
+	public void clear() {
+		for (K key : new ArrayList<>(map.keySet())) {
+			remove(key);
+		}
+	}
+
+	@Override
+	public void clearNoEvent() {
+		super.clearNoEvent();
+		versions.clear();
+	}
+
+	/**
+	 * Returns keys changed locally since last call and clears the list of changes.
+	 *
+	 * @return list of changed keys
+	 */
+	List<K> drainPending() {
+		firstPendingChange = 0;
+		List<K> result = new ArrayList<>(pending.size());
+		for (K key : pending) {
+			if (pending.remove(key)) {
+				result.add(key);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns time of the oldest change which was not sent to other nodes yet.
+	 *
+	 * @return time in milliseconds or <code>0</code> if there is no such change
+	 */
+	long getFirstPendingChange() {
+		return firstPendingChange;
+	}
+
+	/**
+	 * Returns all keys with known versions, including removed keys.
+	 */
+	List<K> getVersionedKeys() {
+		return new ArrayList<>(versions.keySet());
+	}
+
+	@Override
+	public V put(K key, V value) {
+		long version = replicator.nextVersion();
+		List<V> old = new ArrayList<>(1);
+		versions.compute(key, (k, current) -> {
+			old.add(map.put(k, value));
+			return version;
+		});
+		changed(key);
+		return old.get(0);
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	@Override
+	public void putNoEvent(K key, V value) {
+		apply(key, value, replicator.nextVersion());
+	}
+
+	/**
+	 * Passes current value and version of the key to the consumer. Value is <code>null</code> if the key was removed.
+	 *
+	 * @return <code>false</code> if version of the key is not known
+	 */
+	boolean read(K key, EntryConsumer<K, V> consumer) {
+		return versions.computeIfPresent(key, (k, version) -> {
+			consumer.accept(k, map.get(k), version);
+			return version;
+		}) != null;
+	}
+
+	/**
+	 * Forgets removed keys which versions are older than passed version.
+	 *
+	 * @param version of the oldest tombstone to keep
+	 */
+	void purgeTombstones(long version) {
+		versions.forEach((key, v) -> {
+			if (v < version && !map.containsKey(key)) {
+				versions.remove(key, v);
+			}
+		});
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		long version = replicator.nextVersion();
+		List<V> old = new ArrayList<>(1);
+		versions.compute((K) key, (k, current) -> {
+			old.add(map.remove(k));
+			return version;
+		});
+		changed((K) key);
+		return old.get(0);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V removeNoEvent(Object key) {
+		V old = map.get(key);
+		apply((K) key, null, replicator.nextVersion());
+		return old;
+	}
+
+	private void changed(K key) {
+		if (pending.add(key) && firstPendingChange == 0) {
+			firstPendingChange = System.currentTimeMillis();
+		}
+		replicator.changed(this);
+	}
+
+	interface EntryConsumer<K, V> {
+
+		void accept(K key, V value, long version);
+
+	}
+
+	interface Replicator {
+
+		/**
+		 * Called after key of the map was changed locally.
+		 */
+		void changed(VersionedDMap<?, ?> map);
+
+		/**
+		 * Returns version for a local change, greater than versions of all changes seen by this node.
+		 */
+		long nextVersion();
+
+	}
+}
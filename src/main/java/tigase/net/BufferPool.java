@@ -0,0 +1,193 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import tigase.stats.StatisticsList;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared pool of buffers divided into size classes being powers of 2. Connections borrow buffers only while reading
+ * or writing data and return them when they are idle, so memory is not kept by idle connections.
+ * <br>
+ * Buffer returned by {@link #borrow(int)} has capacity equal to the size class, which may be bigger than requested.
+ * Buffers bigger than the biggest size class are not pooled.
+ */
+public class BufferPool<T extends Buffer> {
+
+	private static final Logger log = Logger.getLogger(BufferPool.class.getCanonicalName());
+
+	private static final String MAX_CLASS_SIZE_PROP_KEY = "buffer-pool-max-class-size";
+	private static final String MAX_CLASS_BYTES_PROP_KEY = "buffer-pool-max-class-bytes";
+	private static final String MIN_CLASS_SIZE_PROP_KEY = "buffer-pool-min-class-size";
+
+	private static final int minClassSize = Integer.getInteger(MIN_CLASS_SIZE_PROP_KEY, 1024);
+	private static final int maxClassSize = Integer.getInteger(MAX_CLASS_SIZE_PROP_KEY, 1024 * 1024);
+	private static final long maxClassBytes = Long.getLong(MAX_CLASS_BYTES_PROP_KEY, 16L * 1024 * 1024);
+
+	public static final BufferPool<ByteBuffer> HEAP = new BufferPool<>("heap", ByteBuffer::allocate, 1);
+	public static final BufferPool<ByteBuffer> DIRECT = new BufferPool<>("direct", ByteBuffer::allocateDirect, 1);
+	public static final BufferPool<CharBuffer> CHARS = new BufferPool<>("chars", CharBuffer::allocate, 2);
+
+	private final IntFunction<T> allocator;
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong borrowed = new AtomicLong();
+	private final SizeClass<T>[] classes;
+	private final AtomicLong dropped = new AtomicLong();
+	private final int minShift;
+	private final String name;
+	private final AtomicLong returned = new AtomicLong();
+	private final int unitSize;
+
+	public static void getStatistics(String compName, StatisticsList list) {
+		HEAP.getPoolStatistics(compName, list);
+		DIRECT.getPoolStatistics(compName, list);
+		CHARS.getPoolStatistics(compName, list);
+	}
+
+	private static int sizeClassShift(int size) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	public BufferPool(String name, IntFunction<T> allocator, int unitSize) {
+		this.name = name;
+		this.allocator = allocator;
+		this.unitSize = unitSize;
+		this.minShift = sizeClassShift(minClassSize);
+		int maxShift = sizeClassShift(maxClassSize);
+		classes = new SizeClass[Math.max(0, maxShift - minShift + 1)];
+		for (int i = 0; i < classes.length; i++) {
+			int size = 1 << (minShift + i);
+			int count = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxClassBytes / ((long) size * unitSize)));
+			classes[i] = new SizeClass<>(size, count);
+		}
+	}
+
+	/**
+	 * Returns capacity of a buffer which will be returned by {@link #borrow(int)} for the requested size.
+	 *
+	 * @param size minimal required capacity
+	 *
+	 * @return capacity of the borrowed buffer
+	 */
+	public int capacityFor(int size) {
+		SizeClass<T> sizeClass = getSizeClass(size);
+		return sizeClass == null ? size : sizeClass.size;
+	}
+
+	/**
+	 * Method returns cleared buffer with capacity at least equal to <code>size</code>.
+	 *
+	 * @param size minimal required capacity
+	 *
+	 * @return buffer from the pool or newly allocated buffer
+	 */
+	public T borrow(int size) {
+		borrowed.incrementAndGet();
+		SizeClass<T> sizeClass = getSizeClass(size);
+		if (sizeClass == null) {
+			allocated.incrementAndGet();
+			return allocator.apply(size);
+		}
+		T buffer = sizeClass.free.poll();
+		if (buffer == null) {
+			allocated.incrementAndGet();
+			sizeClass.allocated.incrementAndGet();
+			buffer = allocator.apply(sizeClass.size);
+		}
+		sizeClass.inUse.incrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Method returns buffer to the pool. Buffer must not be used by the caller after it was returned.
+	 *
+	 * @param buffer to return, may be null
+	 */
+	public void release(T buffer) {
+		if (buffer == null) {
+			return;
+		}
+		returned.incrementAndGet();
+		SizeClass<T> sizeClass = getSizeClass(buffer.capacity());
+		if (sizeClass == null || sizeClass.size != buffer.capacity()) {
+			dropped.incrementAndGet();
+			return;
+		}
+		sizeClass.inUse.decrementAndGet();
+		buffer.clear();
+		if (!sizeClass.free.offer(buffer)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	public void getPoolStatistics(String compName, StatisticsList list) {
+		String prefix = "Buffer pool " + name;
+		list.add(compName, prefix + " borrowed", borrowed.get(), Level.FINE);
+		list.add(compName, prefix + " allocated", allocated.get(), Level.FINE);
+		list.add(compName, prefix + " returned", returned.get(), Level.FINER);
+		list.add(compName, prefix + " dropped", dropped.get(), Level.FINER);
+		if (list.checkLevel(Level.FINE)) {
+			long pooledBytes = 0;
+			long inUseBytes = 0;
+			for (SizeClass<T> sizeClass : classes) {
+				pooledBytes += (long) sizeClass.free.size() * sizeClass.size * unitSize;
+				inUseBytes += Math.max(0, sizeClass.inUse.get()) * sizeClass.size * unitSize;
+				if (list.checkLevel(Level.FINEST) && sizeClass.allocated.get() > 0) {
+					list.add(compName, prefix + " class " + sizeClass.size,
+							 "free: " + sizeClass.free.size() + ", in use: " + sizeClass.inUse.get() +
+									 ", allocated: " + sizeClass.allocated.get(), Level.FINEST);
+				}
+			}
+			list.add(compName, prefix + " pooled bytes", pooledBytes, Level.FINE);
+			list.add(compName, prefix + " in use bytes", inUseBytes, Level.FINE);
+		}
+	}
+
+	private SizeClass<T> getSizeClass(int size) {
+		int idx = Math.max(0, sizeClassShift(size) - minShift);
+		if (idx >= classes.length) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0} buffer of size {1} is too big to be pooled", new Object[]{name, size});
+			}
+			return null;
+		}
+		return classes[idx];
+	}
+
+	private static class SizeClass<T extends Buffer> {
+
+		private final AtomicLong allocated = new AtomicLong();
+		private final ArrayBlockingQueue<T> free;
+		private final AtomicLong inUse = new AtomicLong();
+		private final int size;
+
+		private SizeClass(int size, int count) {
+			this.size = size;
+			this.free = new ArrayBlockingQueue<>(count);
+		}
+	}
+}
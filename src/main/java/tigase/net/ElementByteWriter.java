@@ -0,0 +1,279 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import tigase.xml.Element;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serializes XML elements directly to UTF-8 encoded bytes stored in a reusable output buffer, without creating
+ * intermediate <code>String</code> and <code>CharBuffer</code> instances for each stanza.
+ * <br>
+ * Instances are cached per thread, use {@link #getInstance()} to get one. Output buffer returned by {@link #flip()}
+ * has to be passed to {@link #release(ByteBuffer)} after it was written to the socket. If the buffer was not written
+ * completely it is still referenced by the socket queue and it is not reused.
+ */
+public class ElementByteWriter {
+
+	private static final Logger log = Logger.getLogger(ElementByteWriter.class.getCanonicalName());
+
+	private static final String BUFFER_MAX_CACHED_SIZE = "element-writer-max-cached-size";
+	private static final String BUFFER_INITIAL_SIZE = "element-writer-initial-size";
+
+	private static final ThreadLocal<ElementByteWriter> writers = new ThreadLocal<ElementByteWriter>();
+
+	private static final int initialSize = Integer.getInteger(BUFFER_INITIAL_SIZE, 4 * 1024);
+	private static final int maxCachedSize = Integer.getInteger(BUFFER_MAX_CACHED_SIZE, 64 * 1024);
+
+	private ByteBuffer buffer;
+
+	public static ElementByteWriter getInstance() {
+		ElementByteWriter writer = writers.get();
+		if (writer == null) {
+			writer = new ElementByteWriter(initialSize);
+			writers.set(writer);
+		}
+		return writer;
+	}
+
+	public ElementByteWriter(int size) {
+		buffer = ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Returns number of bytes serialized since last call to {@link #release(ByteBuffer)}
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * Method serializes element with its attributes and children.
+	 *
+	 * @param elem element to serialize
+	 *
+	 * @return this instance
+	 */
+	public ElementByteWriter write(Element elem) {
+		String cdata = elem.getCData();
+		List<Element> children = elem.getChildren();
+		boolean hasChildren = children != null && !children.isEmpty();
+
+		if (cdata != null && hasChildren) {
+			// mixed content - order of text and child nodes is known only to
+			// the element itself
+			return write(elem.toString());
+		}
+
+		writeTagStart(elem);
+		if (cdata == null && !hasChildren) {
+			put('/');
+			put('>');
+			return this;
+		}
+		put('>');
+		if (cdata != null) {
+			write(cdata);
+		} else {
+			for (Element child : children) {
+				write(child);
+			}
+		}
+		return writeEndTag(elem.getName());
+	}
+
+	/**
+	 * Method serializes opening tag of the element with its attributes, without children. It is used with {@link
+	 * #write(byte[])} when children of the element are already serialized.
+	 *
+	 * @param elem element which opening tag should be written
+	 *
+	 * @return this instance
+	 */
+	public ElementByteWriter writeStartTag(Element elem) {
+		writeTagStart(elem);
+		put('>');
+		return this;
+	}
+
+	/**
+	 * Method serializes closing tag of the element.
+	 *
+	 * @param name name of the element
+	 *
+	 * @return this instance
+	 */
+	public ElementByteWriter writeEndTag(String name) {
+		put('<');
+		put('/');
+		write(name);
+		put('>');
+		return this;
+	}
+
+	/**
+	 * Method appends already serialized and UTF-8 encoded XML data.
+	 *
+	 * @param data encoded XML data
+	 *
+	 * @return this instance
+	 */
+	public ElementByteWriter write(byte[] data) {
+		ensureCapacity(data.length);
+		buffer.put(data);
+		return this;
+	}
+
+	/**
+	 * Method appends already serialized XML data.
+	 *
+	 * @param data XML data
+	 *
+	 * @return this instance
+	 */
+	public ElementByteWriter write(String data) {
+		final int len = data.length();
+
+		ensureCapacity(len);
+		for (int i = 0; i < len; i++) {
+			char c = data.charAt(i);
+			if (c < 0x80) {
+				put((byte) c);
+			} else {
+				i = encode(data, i, c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Returns buffer with serialized data ready to be written to the socket.
+	 */
+	public ByteBuffer flip() {
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Method needs to be called after buffer returned by {@link #flip()} was passed to the socket.
+	 *
+	 * @param written buffer returned by {@link #flip()}
+	 */
+	public void release(ByteBuffer written) {
+		if (written != buffer) {
+			return;
+		}
+		if (written.hasRemaining()) {
+			// socket keeps reference to this buffer in its output queue
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "buffer with {0} bytes queued for write, allocating new one",
+						written.remaining());
+			}
+			buffer = ByteBuffer.allocate(initialSize);
+		} else if (buffer.capacity() > maxCachedSize) {
+			buffer = ByteBuffer.allocate(initialSize);
+		} else {
+			buffer.clear();
+		}
+	}
+
+	private int encode(String data, int i, char c) {
+		// capacity for remaining ASCII characters is already reserved
+		final int left = data.length() - i - 1;
+		if (c < 0x800) {
+			ensureCapacity(2 + left);
+			put((byte) (0xc0 | (c >> 6)));
+			put((byte) (0x80 | (c & 0x3f)));
+		} else if (Character.isHighSurrogate(c) && i + 1 < data.length() &&
+				Character.isLowSurrogate(data.charAt(i + 1))) {
+			int cp = Character.toCodePoint(c, data.charAt(++i));
+			ensureCapacity(4 + left - 1);
+			put((byte) (0xf0 | (cp >> 18)));
+			put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+			put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+			put((byte) (0x80 | (cp & 0x3f)));
+		} else if (Character.isSurrogate(c)) {
+			// unpaired surrogate is not valid in UTF-8
+			ensureCapacity(1 + left);
+			put((byte) '?');
+		} else {
+			ensureCapacity(3 + left);
+			put((byte) (0xe0 | (c >> 12)));
+			put((byte) (0x80 | ((c >> 6) & 0x3f)));
+			put((byte) (0x80 | (c & 0x3f)));
+		}
+		return i;
+	}
+
+	private void ensureCapacity(int len) {
+		if (buffer.remaining() < len) {
+			int size = Math.max(buffer.capacity() * 2, buffer.position() + len);
+			ByteBuffer tmp = ByteBuffer.allocate(size);
+			buffer.flip();
+			tmp.put(buffer);
+			buffer = tmp;
+		}
+	}
+
+	private void put(char c) {
+		ensureCapacity(1);
+		buffer.put((byte) c);
+	}
+
+	private void put(byte b) {
+		buffer.put(b);
+	}
+
+	private void writeTagStart(Element elem) {
+		put('<');
+		write(elem.getName());
+		Map<String, String> attributes = elem.getAttributes();
+		if (attributes != null) {
+			for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+				put(' ');
+				write(attribute.getKey());
+				put('=');
+				put('"');
+				writeAttributeValue(attribute.getValue());
+				put('"');
+			}
+		}
+	}
+
+	private void writeAttributeValue(String value) {
+		if (value.indexOf('"') < 0) {
+			write(value);
+			return;
+		}
+		final int len = value.length();
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			if (value.charAt(i) == '"') {
+				write(value.substring(start, i));
+				write("&quot;");
+				start = i + 1;
+			}
+		}
+		write(value.substring(start));
+	}
+}
@@ -87,7 +87,11 @@ public abstract class IOService<RefObject>
 
 	private final ReentrantLock readInProgress = new ReentrantLock();
 	private final ReentrantLock writeInProgress = new ReentrantLock();
-	protected CharBuffer cb = CharBuffer.allocate(2048);
+	/**
+	 * Character buffer borrowed from {@link BufferPool#CHARS} for decoding of data, use {@link #charBuffer(int)} to
+	 * obtain it.
+	 */
+	protected CharBuffer cb = null;
 	protected CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
 	protected CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
 	/**
@@ -118,7 +122,8 @@ public abstract class IOService<RefObject>
 	private ConcurrentMap<String, Object> sessionData = new ConcurrentHashMap<String, Object>(4, 0.75f, 4);
 	private IOInterface socketIO = null;
 	/**
-	 * <code>socketInput</code> buffer keeps data read from socket.
+	 * <code>socketInput</code> buffer keeps data read from socket. It is borrowed from {@link BufferPool#HEAP} when
+	 * data is read and returned when it holds no unprocessed data.
 	 */
 	private ByteBuffer socketInput = null;
 	private int socketInputSize = 2048;
@@ -169,8 +174,6 @@ public abstract class IOService<RefObject>
 			throw e;
 		}
 		socketInputSize = socketIO.getSocketChannel().socket().getReceiveBufferSize();
-		socketInput = ByteBuffer.allocate(socketInputSize);
-		socketInput.order(byteOrder());
 
 		Socket sock = socketIO.getSocketChannel().socket();
 
@@ -197,6 +200,7 @@ public abstract class IOService<RefObject>
 						serviceListener.packetsReady(this);
 					}    // end of if (receivedPackets.size() > 0)
 				} finally {
+					releaseBuffers();
 					readInProgress.unlock();
 					if (!isConnected()) {
 						// added to sooner detect disconnection of peer - ie. client
@@ -649,7 +653,9 @@ public abstract class IOService<RefObject>
 			log.log(Level.FINEST, "Socket: " + socketIO, thr);
 		}
 		try {
-			ByteBuffer tmpBuffer = socketIO.read(socketInput);
+			shrinkInputBuffer();
+
+			ByteBuffer tmpBuffer = socketIO.read(inputBuffer());
 
 			if (socketIO.bytesRead() > 0) {
 				empty_read_call_count = 0;
@@ -702,18 +708,7 @@ public abstract class IOService<RefObject>
 		try {
 
 			// resizeInputBuffer();
-			// Maybe we can shrink the input buffer??
-			if ((socketInput.capacity() > socketInputSize) && (socketInput.remaining() == socketInput.capacity())) {
-
-				// Yes, looks like we can
-				if (log.isLoggable(Level.FINE)) {
-					log.log(Level.FINE, "Socket: {0}, Resizing socketInput down to {1} bytes.",
-							new Object[]{socketIO, socketInputSize});
-				}
-				socketInput = ByteBuffer.allocate(socketInputSize);
-				socketInput.order(byteOrder());
-				cb = CharBuffer.allocate(socketInputSize * 4);
-			}
+			shrinkInputBuffer();
 
 			// if (log.isLoggable(Level.FINEST)) {
 			// log.finer("Before read from socket.");
@@ -722,13 +717,11 @@ public abstract class IOService<RefObject>
 			// log.finer("socketInput.limit()=" + socketInput.limit());
 			// log.finer("socketInput.position()=" + socketInput.position());
 			// }
-			ByteBuffer tmpBuffer = socketIO.read(socketInput);
+			ByteBuffer tmpBuffer = socketIO.read(inputBuffer());
 
 			if (socketIO.bytesRead() > 0) {
 				empty_read_call_count = 0;
 
-				char[] result = null;
-
 				// There might be some characters read from the network
 				// but the buffer may still be null or empty because there might
 				// be not enough data to decode TLS or compressed buffer.
@@ -738,101 +731,7 @@ public abstract class IOService<RefObject>
 								new Object[]{socketIO, socketIO.bytesRead()});
 					}
 
-					// Restore the partial bytes for multibyte UTF8 characters
-					if (partialCharacterBytes != null) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.finest("Reloading partial bytes " + partialCharacterBytes.length);
-						}
-
-						ByteBuffer oldTmpBuffer = tmpBuffer;
-
-						tmpBuffer = ByteBuffer.allocate(partialCharacterBytes.length + oldTmpBuffer.remaining() + 2);
-						tmpBuffer.order(byteOrder());
-						tmpBuffer.put(partialCharacterBytes);
-						tmpBuffer.put(oldTmpBuffer);
-						tmpBuffer.flip();
-						oldTmpBuffer.clear();
-						partialCharacterBytes = null;
-					}
-
-					// if (log.isLoggable(Level.FINEST)) {
-					// log.finer("Before decoding data");
-					// log.finer("socketInput.capacity()=" + socketInput.capacity());
-					// log.finer("socketInput.remaining()=" + socketInput.remaining());
-					// log.finer("socketInput.limit()=" + socketInput.limit());
-					// log.finer("socketInput.position()=" + socketInput.position());
-					// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
-					// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
-					// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
-					// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
-					// log.finer("cb.capacity()=" + cb.capacity());
-					// log.finer("cb.remaining()=" + cb.remaining());
-					// log.finer("cb.limit()=" + cb.limit());
-					// log.finer("cb.position()=" + cb.position());
-					// }
-					// tmpBuffer.flip();
-					if (cb.capacity() < tmpBuffer.remaining() * 4) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Socket: {0}, resizing character buffer to: {1}",
-									new Object[]{socketIO, tmpBuffer.remaining()});
-						}
-						cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
-					}
-
-					CoderResult cr = decoder.decode(tmpBuffer, cb, false);
-
-					if (cr.isMalformed()) {
-						if (!handleMalformedInput(tmpBuffer, cb)) {
-							throw new MalformedInputException(tmpBuffer.remaining());
-						}
-					}
-					if (cb.remaining() > 0) {
-						cb.flip();
-						result = new char[cb.remaining()];
-						cb.get(result);
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Socket: {0}, Decoded character data: {1}",
-									new Object[]{socketIO, new String(result)});
-						}
-
-						// if (log.isLoggable(Level.FINEST)) {
-						// log.finer("Just after decoding.");
-						// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
-						// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
-						// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
-						// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
-						// log.finer("cb.capacity()=" + cb.capacity());
-						// log.finer("cb.remaining()=" + cb.remaining());
-						// log.finer("cb.limit()=" + cb.limit());
-						// log.finer("cb.position()=" + cb.position());
-						// }
-					}
-					if (cr.isUnderflow() && (tmpBuffer.remaining() > 0)) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Socket: {0}, UTF-8 decoder data underflow: {1}",
-									new Object[]{socketIO, tmpBuffer.remaining()});
-						}
-
-						// Save the partial bytes of a multibyte character such that they
-						// can be restored on the next read.
-						partialCharacterBytes = new byte[tmpBuffer.remaining()];
-						tmpBuffer.get(partialCharacterBytes);
-					}
-					tmpBuffer.clear();
-					cb.clear();
-
-					// if (log.isLoggable(Level.FINEST)) {
-					// log.finer("Before return from method.");
-					// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
-					// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
-					// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
-					// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
-					// log.finer("cb.capacity()=" + cb.capacity());
-					// log.finer("cb.remaining()=" + cb.remaining());
-					// log.finer("cb.limit()=" + cb.limit());
-					// log.finer("cb.position()=" + cb.position());
-					// }
-					return result;
+					return decodeData(tmpBuffer);
 				}
 			} else {
 
@@ -1011,6 +910,108 @@ public abstract class IOService<RefObject>
 		return socketServiceReady;
 	}
 
+	/**
+	 * Decodes UTF-8 data read from the socket to characters. Bytes of a multibyte character which is not complete are
+	 * kept and decoded with data of the next read. Buffer is cleared after decoding.
+	 *
+	 * @param tmpBuffer buffer with data read from the socket
+	 *
+	 * @return decoded characters or <code>null</code> if there was not enough data to decode any character
+	 */
+	protected char[] decodeData(ByteBuffer tmpBuffer) throws MalformedInputException {
+		char[] result = null;
+
+		// Restore the partial bytes for multibyte UTF8 characters
+		if (partialCharacterBytes != null) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Reloading partial bytes " + partialCharacterBytes.length);
+			}
+
+			ByteBuffer oldTmpBuffer = tmpBuffer;
+
+			tmpBuffer = ByteBuffer.allocate(partialCharacterBytes.length + oldTmpBuffer.remaining() + 2);
+			tmpBuffer.order(byteOrder());
+			tmpBuffer.put(partialCharacterBytes);
+			tmpBuffer.put(oldTmpBuffer);
+			tmpBuffer.flip();
+			oldTmpBuffer.clear();
+			partialCharacterBytes = null;
+		}
+
+		// if (log.isLoggable(Level.FINEST)) {
+		// log.finer("Before decoding data");
+		// log.finer("socketInput.capacity()=" + socketInput.capacity());
+		// log.finer("socketInput.remaining()=" + socketInput.remaining());
+		// log.finer("socketInput.limit()=" + socketInput.limit());
+		// log.finer("socketInput.position()=" + socketInput.position());
+		// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
+		// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
+		// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
+		// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
+		// log.finer("cb.capacity()=" + cb.capacity());
+		// log.finer("cb.remaining()=" + cb.remaining());
+		// log.finer("cb.limit()=" + cb.limit());
+		// log.finer("cb.position()=" + cb.position());
+		// }
+		// tmpBuffer.flip();
+		CharBuffer cb = charBuffer(tmpBuffer.remaining() * 4);
+
+		CoderResult cr = decoder.decode(tmpBuffer, cb, false);
+
+		if (cr.isMalformed()) {
+			if (!handleMalformedInput(tmpBuffer, cb)) {
+				throw new MalformedInputException(tmpBuffer.remaining());
+			}
+		}
+		if (cb.remaining() > 0) {
+			cb.flip();
+			result = new char[cb.remaining()];
+			cb.get(result);
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, Decoded character data: {1}",
+						new Object[]{socketIO, new String(result)});
+			}
+
+			// if (log.isLoggable(Level.FINEST)) {
+			// log.finer("Just after decoding.");
+			// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
+			// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
+			// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
+			// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
+			// log.finer("cb.capacity()=" + cb.capacity());
+			// log.finer("cb.remaining()=" + cb.remaining());
+			// log.finer("cb.limit()=" + cb.limit());
+			// log.finer("cb.position()=" + cb.position());
+			// }
+		}
+		if (cr.isUnderflow() && (tmpBuffer.remaining() > 0)) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, UTF-8 decoder data underflow: {1}",
+						new Object[]{socketIO, tmpBuffer.remaining()});
+			}
+
+			// Save the partial bytes of a multibyte character such that they
+			// can be restored on the next read.
+			partialCharacterBytes = new byte[tmpBuffer.remaining()];
+			tmpBuffer.get(partialCharacterBytes);
+		}
+		tmpBuffer.clear();
+		cb.clear();
+
+		// if (log.isLoggable(Level.FINEST)) {
+		// log.finer("Before return from method.");
+		// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
+		// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
+		// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
+		// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
+		// log.finer("cb.capacity()=" + cb.capacity());
+		// log.finer("cb.remaining()=" + cb.remaining());
+		// log.finer("cb.limit()=" + cb.limit());
+		// log.finer("cb.position()=" + cb.position());
+		// }
+		return result;
+	}
+
 	protected void setSocketServiceReady(boolean value) {
 		this.socketServiceReady = value;
 	}
@@ -1020,15 +1021,60 @@ public abstract class IOService<RefObject>
 	}
 
 	protected boolean isInputBufferEmpty() {
-		return (socketInput != null) && (socketInput.remaining() == socketInput.capacity());
+		return (socketInput == null) || (socketInput.remaining() == socketInput.capacity());
+	}
+
+	/**
+	 * Method returns character buffer with capacity at least equal to <code>size</code>. Buffer is borrowed from the
+	 * pool and it is returned to the pool after data read from the socket is processed.
+	 *
+	 * @param size minimal required capacity
+	 *
+	 * @return cleared character buffer
+	 */
+	protected CharBuffer charBuffer(int size) {
+		if (cb == null || cb.capacity() < size) {
+			if (cb != null && log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, resizing character buffer to: {1}", new Object[]{socketIO, size});
+			}
+			BufferPool.CHARS.release(cb);
+			cb = BufferPool.CHARS.borrow(size);
+		}
+		return cb;
 	}
 
 	protected IOInterface getIO() {
 		return socketIO;
 	}
 
+	private ByteBuffer inputBuffer() {
+		if (socketInput == null) {
+			socketInput = BufferPool.HEAP.borrow(socketInputSize);
+			socketInput.order(byteOrder());
+		}
+		return socketInput;
+	}
+
+	/**
+	 * Returns buffers used for reading to the pool if they do not keep any data, so idle connections do not hold
+	 * memory. Needs to be called while holding <code>readInProgress</code> lock.
+	 */
+	private void releaseBuffers() {
+		if (cb != null) {
+			BufferPool.CHARS.release(cb);
+			cb = null;
+		}
+		// buffer with position or limit moved keeps incomplete data (ie. TLS
+		// record) which will be processed after next read
+		if (socketInput != null && socketInput.position() == 0 && socketInput.limit() == socketInput.capacity()) {
+			BufferPool.HEAP.release(socketInput);
+			socketInput = null;
+		}
+	}
+
 	private void resizeInputBuffer() throws IOException {
 		int netSize = socketIO.getInputPacketSize();
+		ByteBuffer socketInput = inputBuffer();
 
 		// Resize buffer if needed.
 		// if (netSize > socketInput.remaining()) {
@@ -1051,11 +1097,12 @@ public abstract class IOService<RefObject>
 				log.log(Level.FINE, "Socket: {0}, Resizing socketInput to {1} bytes.", new Object[]{socketIO, newSize});
 			}
 
-			ByteBuffer b = ByteBuffer.allocate(newSize);
+			ByteBuffer b = BufferPool.HEAP.borrow(newSize);
 
 			b.order(byteOrder());
 			b.put(socketInput);
-			socketInput = b;
+			BufferPool.HEAP.release(socketInput);
+			this.socketInput = b;
 		} else {
 
 			// if (log.isLoggable(Level.FINEST)) {
@@ -1088,6 +1135,21 @@ public abstract class IOService<RefObject>
 		}
 	}
 
+	private void shrinkInputBuffer() {
+		// Maybe we can shrink the input buffer??
+		if ((socketInput != null) && (socketInput.capacity() > BufferPool.HEAP.capacityFor(socketInputSize)) &&
+				(socketInput.remaining() == socketInput.capacity())) {
+
+			// Yes, looks like we can
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Socket: {0}, Resizing socketInput down to {1} bytes.",
+						new Object[]{socketIO, socketInputSize});
+			}
+			BufferPool.HEAP.release(socketInput);
+			socketInput = null;
+		}
+	}
+
 	private void setLastTransferTime() {
 		lastTransferTime = System.currentTimeMillis();
 	}
@@ -89,9 +89,11 @@ public class IOUtil {
 				return buffer;
 			} else {
 				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "allocating buffer with size = {0}", size);
+					log.log(Level.FINEST, "borrowing buffer with size = {0}", size);
 				}
-				return ByteBuffer.allocateDirect(size);
+				ByteBuffer buf = BufferPool.DIRECT.borrow(size);
+				buf.limit(size);
+				return buf;
 			}
 		}
 
@@ -99,6 +101,8 @@ public class IOUtil {
 			if (this.buffer == buffer) {
 				count = 1;
 				buffer.rewind();
+			} else {
+				BufferPool.DIRECT.release(buffer);
 			}
 			// API no longer accessible on JDK9 (it may be removed very soon!)
 //			else {
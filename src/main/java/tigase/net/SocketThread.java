@@ -18,6 +18,7 @@
 package tigase.net;
 
 import tigase.annotations.TODO;
+import tigase.stats.StatisticsList;
 
 import java.io.IOException;
 import java.nio.channels.CancelledKeyException;
@@ -27,6 +28,7 @@ import java.nio.channels.SocketChannel;
 import java.util.Comparator;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +43,17 @@ public class SocketThread
 		implements Runnable {
 
 	public static final int DEF_MAX_THREADS_PER_CPU = 8;
+	/**
+	 * Name of the I/O engine using separate read and write selector threads and a shared thread pool for processing.
+	 */
+	public static final String LEGACY_ENGINE = "legacy";
+	/**
+	 * Name of the I/O engine using one event loop per CPU core which reads, writes and processes data of its
+	 * connections.
+	 */
+	public static final String EVENT_LOOP_ENGINE = "event-loop";
+	public static final String NET_IO_ENGINE_PROP_KEY = "net-io-engine";
+	public static final String NET_IO_EVENT_LOOPS_PROP_KEY = "net-io-event-loops";
 	private static final Logger log = Logger.getLogger(SocketThread.class.getName());
 	private static final int MAX_EMPTY_SELECTIONS = 10;
 	/**
@@ -53,11 +66,38 @@ public class SocketThread
 	private static ThreadPoolExecutor executor = null;
 	private static SocketThread[] socketReadThread = null;
 	private static SocketThread[] socketWriteThread = null;
+	private static boolean eventLoopEngine = false;
+	private static final LongAdder selections = new LongAdder();
+	private static final LongAdder tasksCompleted = new LongAdder();
+	private static final LongAdder tasksProcessingTime = new LongAdder();
+	private static final LongAdder tasksWaitTime = new LongAdder();
 
 	//private static int threadNo = 0;
 //private static final int READ_ONLY = SelectionKey.OP_READ;
 //private static final int READ_WRITE = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
 	static {
+		eventLoopEngine = EVENT_LOOP_ENGINE.equals(System.getProperty(NET_IO_ENGINE_PROP_KEY, LEGACY_ENGINE));
+		if (eventLoopEngine) {
+			int nLoops = Math.max(1, Integer.getInteger(NET_IO_EVENT_LOOPS_PROP_KEY, cpus));
+
+			// Each loop handles reading and writing for its connections, so the
+			// same threads are used for both directions.
+			socketReadThread = new SocketThread[nLoops];
+			socketWriteThread = socketReadThread;
+
+			for (int i = 0; i < socketReadThread.length; i++) {
+				socketReadThread[i] = new SocketThread("socketEventLoop-" + i);
+				socketReadThread[i].reading = true;
+				socketReadThread[i].writing = true;
+
+				Thread thrd = new Thread(socketReadThread[i]);
+
+				thrd.setName("socketEventLoop-" + i);
+				thrd.start();
+			}
+
+			log.log(Level.WARNING, "{0} socketEventLoops started.", socketReadThread.length);
+		}
 		if (socketReadThread == null) {
 			int nThreads = (cpus * DEF_MAX_THREADS_PER_CPU) / 2 + 1;
 
@@ -105,12 +145,20 @@ public class SocketThread
 			new IOServiceComparator());
 	private boolean reading = false;
 	private boolean stopping = false;
+	private Thread thread = null;
 	private ConcurrentSkipListSet<IOService<?>> waiting = new ConcurrentSkipListSet<IOService<?>>(
 			new IOServiceComparator());
 	private boolean writing = false;
 
 	public static void addSocketService(IOService<?> s) {
 		s.setSocketServiceReady(true);
+		if (eventLoopEngine) {
+			// single selector is used for reading and writing
+			if (s.waitingToRead() || s.waitingToSend()) {
+				socketReadThread[s.hashCode() % socketReadThread.length].addSocketServicePriv(s);
+			}
+			return;
+		}
 		// Due to a delayed SelectionKey cancelling deregistering
 		// nature this distribution doesn't work well, it leads to
 		// dead-lock. Let's make sure the service is always processed
@@ -129,7 +177,27 @@ public class SocketThread
 	public static void removeSocketService(IOService<Object> s) {
 		s.setSocketServiceReady(false);
 		socketReadThread[s.hashCode() % socketReadThread.length].removeSocketServicePriv(s);
-		socketWriteThread[s.hashCode() % socketWriteThread.length].removeSocketServicePriv(s);
+		if (!eventLoopEngine) {
+			socketWriteThread[s.hashCode() % socketWriteThread.length].removeSocketServicePriv(s);
+		}
+	}
+
+	public static void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Socket I/O engine", eventLoopEngine ? EVENT_LOOP_ENGINE : LEGACY_ENGINE, Level.FINE);
+		list.add(compName, "Socket selector threads",
+				 eventLoopEngine ? socketReadThread.length : socketReadThread.length + socketWriteThread.length,
+				 Level.FINE);
+		list.add(compName, "Socket executor threads", executor == null ? 0 : executor.getPoolSize(), Level.FINE);
+		list.add(compName, "Socket executor queue", executor == null ? 0 : executor.getQueue().size(), Level.FINE);
+		long completed = tasksCompleted.sum();
+		list.add(compName, "Socket selections", selections.sum(), Level.FINE);
+		list.add(compName, "Socket tasks completed", completed, Level.FINE);
+		if (completed > 0) {
+			list.add(compName, "Socket tasks average wait time [us]",
+					 (float) (tasksWaitTime.sum() / completed) / 1000, Level.FINE);
+			list.add(compName, "Socket tasks average processing time [us]",
+					 (float) (tasksProcessingTime.sum() / completed) / 1000, Level.FINE);
+		}
 	}
 
 	/**
@@ -143,7 +211,9 @@ public class SocketThread
 			stopping = true;
 		}    // end of try-catch
 
-		new ResultsListener("ResultsListener-" + name).start();
+		if (!eventLoopEngine) {
+			new ResultsListener("ResultsListener-" + name).start();
+		}
 	}
 
 	@SuppressWarnings("unchecked")
@@ -154,6 +224,11 @@ public class SocketThread
 
 		waiting.add((IOService<Object>) s);
 
+		// event loop registers services processed by itself before next select
+		if (thread == Thread.currentThread()) {
+			return;
+		}
+
 		// Calling lazy wakeup to avoid multiple wakeup calls
 		// when lots of new services are added....
 		clientsSel.wakeup();
@@ -173,6 +248,7 @@ public class SocketThread
 	@SuppressWarnings({"unchecked"})
 	@Override
 	public void run() {
+		thread = Thread.currentThread();
 		while (!stopping) {
 			try {
 				clientsSel.select();
@@ -184,6 +260,8 @@ public class SocketThread
 				Set<SelectionKey> selected = clientsSel.selectedKeys();
 				int selectedKeys = selected.size();
 
+				selections.increment();
+
 				if ((selectedKeys == 0) && (waiting.size() == 0)) {
 					if (log.isLoggable(Level.FINEST)) {
 						log.finest("Selected keys = 0!!! a bug again?");
@@ -266,8 +344,17 @@ public class SocketThread
 
 				IOService serv = null;
 
-				while ((serv = forCompletion.pollFirst()) != null) {
-					completionService.submit(serv);
+				if (eventLoopEngine) {
+					while ((serv = forCompletion.pollFirst()) != null) {
+						processTask(new ServiceTask(serv));
+					}
+					// services which are ready for next events are registered
+					// with the selector before it is used again
+					addAllWaiting();
+				} else {
+					while ((serv = forCompletion.pollFirst()) != null) {
+						completionService.submit(new ServiceTask(serv));
+					}
 				}
 
 				// clientsSel.selectNow();
@@ -316,6 +403,10 @@ public class SocketThread
 	}
 
 	public void setMaxThread(int threads) {
+		if (executor == null) {
+			// there is no thread pool used by event loops
+			return;
+		}
 		executor.setCorePoolSize(threads);
 		executor.setMaximumPoolSize(threads);
 	}
@@ -324,6 +415,30 @@ public class SocketThread
 		setMaxThread(threads * cpus);
 	}
 
+	private static void serviceCompleted(IOService<?> service) {
+		if (service != null) {
+			if (service.isConnected()) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "COMPLETED: {0}", service.getUniqueId());
+				}
+
+				addSocketService(service);
+			} else {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "REMOVED: {0}", service.getUniqueId());
+				}
+			}    // end of else
+		}
+	}
+
+	private void processTask(ServiceTask task) {
+		try {
+			serviceCompleted(task.call());
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Protocol execution unknown exception.", e);
+		}
+	}
+
 	private void addAllWaiting() throws IOException {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "waiting.size(): {0}", waiting.size());
@@ -337,15 +452,24 @@ public class SocketThread
 
 			try {
 				if (sc.isConnected()) {
-					if (reading) {
+					if (reading && writing) {
+						int ops = SelectionKey.OP_READ;
+
+						if (s.waitingToSend()) {
+							ops |= SelectionKey.OP_WRITE;
+						}
+						sc.register(clientsSel, ops, s);
+
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "ADDED ops {0}: {1}", new Object[]{ops, s.getUniqueId()});
+						}
+					} else if (reading) {
 						sc.register(clientsSel, SelectionKey.OP_READ, s);
 
 						if (log.isLoggable(Level.FINEST)) {
 							log.log(Level.FINEST, "ADDED OP_READ: {0}", s.getUniqueId());
 						}
-					}
-
-					if (writing) {
+					} else if (writing) {
 						sc.register(clientsSel, SelectionKey.OP_WRITE, s);
 
 						if (log.isLoggable(Level.FINEST)) {
@@ -460,6 +584,33 @@ public class SocketThread
 		}
 	}
 
+	/**
+	 * Wraps processing of the service to measure time spent waiting for processing after selection and time of the
+	 * processing itself.
+	 */
+	private static class ServiceTask
+			implements Callable<IOService<?>> {
+
+		private final long created = System.nanoTime();
+		private final IOService<?> service;
+
+		private ServiceTask(IOService<?> service) {
+			this.service = service;
+		}
+
+		@Override
+		public IOService<?> call() throws Exception {
+			long start = System.nanoTime();
+			tasksWaitTime.add(start - created);
+			try {
+				return service.call();
+			} finally {
+				tasksProcessingTime.add(System.nanoTime() - start);
+				tasksCompleted.increment();
+			}
+		}
+	}
+
 	@TODO(note = "ExecutionException is poorly implemented.")
 	protected class ResultsListener
 			extends Thread {
@@ -475,19 +626,7 @@ public class SocketThread
 				try {
 					IOService<?> service = completionService.take().get();
 
-					if (service != null) {
-						if (service.isConnected()) {
-							if (log.isLoggable(Level.FINEST)) {
-								log.log(Level.FINEST, "COMPLETED: {0}", service.getUniqueId());
-							}
-
-							addSocketService(service);
-						} else {
-							if (log.isLoggable(Level.FINEST)) {
-								log.log(Level.FINEST, "REMOVED: {0}", service.getUniqueId());
-							}
-						}    // end of else
-					}
+					serviceCompleted(service);
 				} catch (ExecutionException e) {
 					log.log(Level.WARNING, "Protocol execution exception.", e.getCause());
 
@@ -40,4 +40,12 @@ public class ClassUtilBean
 		classes.addAll(modulesManager.getClasses());
 		return classes;
 	}
+
+	@Override
+	public Set<Class<?>> getBeanClasses() {
+		ModulesManagerImpl modulesManager = ModulesManagerImpl.getInstance();
+		Set<Class<?>> classes = new HashSet<>(super.getBeanClasses());
+		classes.addAll(modulesManager.getClasses());
+		return classes;
+	}
 }
@@ -407,6 +407,7 @@ public abstract class AbstractMessageReceiver
 			log.log(Level.FINE, "{0} - attempt to add regex routing: {1}", new Object[]{getName(), address});
 		}
 		regexRoutings.add(Pattern.compile(address, Pattern.CASE_INSENSITIVE));
+		regexRoutingsChanged();
 		if (log.isLoggable(Level.FINE)) {
 			log.log(Level.FINE, "{0} - success adding regex routing: {1}", new Object[]{getName(), address});
 		}
@@ -514,6 +515,7 @@ public abstract class AbstractMessageReceiver
 	 */
 	public void clearRegexRoutings() {
 		regexRoutings.clear();
+		regexRoutingsChanged();
 	}
 
 	/**
@@ -660,7 +662,11 @@ public abstract class AbstractMessageReceiver
 	}
 
 	public boolean removeRegexRouting(String address) {
-		return regexRoutings.remove(Pattern.compile(address, Pattern.CASE_INSENSITIVE));
+		boolean removed = regexRoutings.remove(Pattern.compile(address, Pattern.CASE_INSENSITIVE));
+		if (removed) {
+			regexRoutingsChanged();
+		}
+		return removed;
 	}
 
 	/**
@@ -1016,6 +1022,13 @@ public abstract class AbstractMessageReceiver
 		return def;
 	}
 
+	private void regexRoutingsChanged() {
+		// routing decisions cached by the router depend on regex routings
+		if (parent instanceof MessageRouter) {
+			((MessageRouter) parent).routingsChanged();
+		}
+	}
+
 	private void recreateProcessingQueues(int maxQueueSize) {
 		// Processing threads number is split to incoming and outgoing queues...
 		// So real processing threads number of in_queues is processingThreads()/2
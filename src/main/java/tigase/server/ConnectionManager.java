@@ -30,6 +30,7 @@ import tigase.server.script.CommandIfc;
 import tigase.server.xmppclient.XMPPIOProcessor;
 import tigase.stats.StatisticsList;
 import tigase.util.common.TimerTask;
+import tigase.util.common.TimingWheel;
 import tigase.util.repository.DataTypes;
 import tigase.xml.Element;
 import tigase.xmpp.StreamError;
@@ -46,6 +47,7 @@ import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -81,6 +83,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	 * Key name of the system property for configuration protection from system overload and DOS attack.
 	 */
 	public static final String ELEMENTS_NUMBER_LIMIT_PROP_KEY = "elements-number-limit";
+	public static final String XML_BYTE_PARSER_PROP_KEY = "xml-byte-parser";
 	public static final long LAST_MINUTE_BIN_LIMIT_PROP_VAL = 20000000L;
 	public static final long LAST_MINUTE_PACKETS_LIMIT_PROP_VAL = 2500L;
 	public static final String MAX_INACTIVITY_TIME = "max-inactivity-time";
@@ -146,6 +149,8 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	 */
 	@ConfigField(desc = "Limit of elements for single XMPP stanza", alias = ELEMENTS_NUMBER_LIMIT_PROP_KEY)
 	protected int elements_number_limit = ELEMENTS_NUMBER_LIMIT_PROP_VAL;
+	@ConfigField(desc = "Parse XML directly from UTF-8 bytes", alias = XML_BYTE_PARSER_PROP_KEY)
+	protected boolean xmlByteParser = false;
 	protected Kernel kernel;
 	@ConfigField(desc = "Default size of a network buffer", alias = "net-buffer")
 	protected int net_buffer = NET_BUFFER_ST_PROP_VAL;
@@ -159,6 +164,8 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	protected WATCHDOG_PING_TYPE watchdogPingType = WATCHDOG_PING_TYPE.WHITESPACE;
 	@ConfigField(desc = "Watchdog timeout", alias = "watchdog-timeout")
 	protected long watchdogTimeout = 29 * MINUTE; // 1 740 000
+	@ConfigField(desc = "Watchdog checks only connections which are due", alias = "watchdog-timing-wheel")
+	protected boolean watchdogTimingWheel = true;
 	private long bytesReceived = 0;
 	private long bytesSent = 0;
 	@Inject
@@ -444,6 +451,9 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		}
 		services.put(id, service);
 		++services_size;
+		if (watchdog != null) {
+			watchdog.serviceStarted(service);
+		}
 
 		if (enableServiceConnectedTimeout(service)) {
 			ServiceConnectedTimer startTimer = new ServiceConnectedTimer(service);
@@ -480,6 +490,9 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 
 			if (result) {
 				--services_size;
+				if (watchdog != null) {
+					watchdog.serviceStopped(service);
+				}
 
 				Queue<Packet> undeliveredPackets = service.getWaitingPackets();
 				Packet p = null;
@@ -556,17 +569,22 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 					}
 					serv.addPacketToSend(p);
 				}      // end of for ()
-				try {
-					serv.processWaitingPackets();
-					SocketThread.addSocketService(serv);
-				} catch (Exception e) {
-					log.log(Level.WARNING, serv + "Exception during writing packets: ", e);
+				// if lock is held by other thread, packets will be written by that thread or on next call() of the service
+				if (serv.writeInProgress.tryLock()) {
 					try {
-						serv.stop();
-					} catch (Exception e1) {
-						log.log(Level.WARNING, serv + "Exception stopping XMPPIOService: ", e1);
-					}    // end of try-catch
-				}      // end of try-catch
+						serv.processWaitingPackets();
+						SocketThread.addSocketService(serv);
+					} catch (Exception e) {
+						log.log(Level.WARNING, serv + "Exception during writing packets: ", e);
+						try {
+							serv.stop();
+						} catch (Exception e1) {
+							log.log(Level.WARNING, serv + "Exception stopping XMPPIOService: ", e1);
+						}    // end of try-catch
+					} finally {
+						serv.writeInProgress.unlock();
+					}
+				}
 			}
 
 			// }
@@ -652,6 +670,9 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		list.add(getName(), "Watchdog runs", watchdogRuns, Level.FINER);
 		list.add(getName(), "Watchdog tests", watchdogTests, Level.FINE);
 		list.add(getName(), "Watchdog stopped", watchdogStopped, Level.FINE);
+		if (watchdog != null) {
+			watchdog.getStatistics(list);
+		}
 		for (XMPPIOProcessor proc : processors) {
 			proc.getStatistics(list);
 		}
@@ -1203,6 +1224,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			serv.setCertificateContainer(certificateContainer);
 
 			((XMPPDomBuilderHandler) serv.getSessionData().get(DOM_HANDLER)).setElementsLimit(elements_number_limit);
+			serv.setByteParserEnabled(xmlByteParser);
 
 			serv.setIOServiceListener(ConnectionManager.this);
 			serv.setSessionData(port_props);
@@ -1355,25 +1377,55 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	}
 
 	/**
-	 * Class looks in all established connections and checks whether any of them is dead by performing either whitspace
-	 * or XMPP ping. If client fails to respond within defined time then the service is stopped.
+	 * Thread checking whether connections are still alive. Depending on the configuration it sends either whitespace or
+	 * XMPP ping if the connection is inactive for the configured period of time and stops connections inactive for
+	 * longer than maximal inactivity time.
+	 * <br>
+	 * By default connections are kept in a {@link TimingWheel} with the time when each of them should be checked
+	 * next, so only connections which are due are touched. Activity on a connection does not move it in the wheel,
+	 * instead when a connection becomes due and was active in the meantime, it is placed in the wheel again at the time
+	 * calculated from its last activity. If <code>watchdog-timing-wheel</code> is disabled all connections are checked
+	 * every <code>watchdog-delay</code>.
 	 */
 	protected class Watchdog
 			extends Thread {
 
 		Packet pingPacket;
+		private long checked = 0;
+		private long minuteStart = System.currentTimeMillis();
+		private long pingsInLastMinute = 0;
+		private long pingsInMinute = 0;
 		private boolean shutdown = false;
+		private final TimingWheel<IO> wheel;
+
+		public Watchdog() {
+			wheel = watchdogTimingWheel ? new TimingWheel<>(Math.max(10, Math.min(SECOND, watchdogDelay)),
+															System.currentTimeMillis()) : null;
+		}
 
 		@Override
 		public void run() {
+			if (wheel != null) {
+				// connections started before the watchdog was created
+				doForAllServices(service -> {
+					if (!wheel.contains(service)) {
+						serviceStarted(service);
+					}
+				});
+			}
 			while (!shutdown) {
 				try {
 
 					// Sleep...
-					Thread.sleep(watchdogDelay);
+					Thread.sleep(wheel != null ? wheel.getTickMillis() : watchdogDelay);
 					++watchdogRuns;
 
-					executeWatchdog();
+					if (wheel != null) {
+						executeTimingWheel();
+					} else {
+						executeWatchdog();
+					}
+					updatePingRate();
 				} catch (InterruptedException e) {    /* Do nothing here */
 				}
 			}
@@ -1384,6 +1436,40 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			shutdown = true;
 		}
 
+		/**
+		 * Schedules first check of the started connection. Checks of connections started at the same time are spread
+		 * over <code>watchdog-delay</code> period.
+		 *
+		 * @param service started connection
+		 */
+		public void serviceStarted(IO service) {
+			if (wheel != null) {
+				long delay = Math.max(0, Math.min(watchdogTimeout, maxInactivityTime));
+				if (watchdogDelay > 0) {
+					delay += ThreadLocalRandom.current().nextLong(watchdogDelay);
+				}
+				wheel.schedule(service, System.currentTimeMillis() + delay);
+			}
+		}
+
+		public void serviceStopped(IO service) {
+			if (wheel != null) {
+				wheel.remove(service);
+			}
+		}
+
+		public void getStatistics(StatisticsList list) {
+			list.add(getName(), "Watchdog pings last minute", pingsInLastMinute, Level.FINE);
+			if (wheel != null) {
+				list.add(getName(), "Watchdog checked", checked, Level.FINE);
+				list.add(getName(), "Watchdog wheel size", wheel.size(), Level.FINE);
+				if (list.checkLevel(Level.FINEST)) {
+					list.add(getName(), "Watchdog wheel occupancy", Arrays.toString(wheel.getOccupancy()),
+							 Level.FINEST);
+				}
+			}
+		}
+
 		protected long getDurationSinceLastTransfer(final XMPPIOService service) {
 			long curr_time = System.currentTimeMillis();
 			long lastTransfer;
@@ -1399,86 +1485,128 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			return curr_time - lastTransfer;
 		}
 
+		/**
+		 * Checks connection and sends ping or stops connection if needed.
+		 *
+		 * @param service connection to check
+		 *
+		 * @return <code>false</code> if connection was stopped
+		 */
+		protected boolean checkService(final IO service) {
+			boolean alive = true;
+			try {
+				if (null != service) {
+					long sinceLastTransfer = getDurationSinceLastTransfer(service);
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST,
+								"Testing service: {0}, sinceLastTransfer: {1}, maxInactivityTime: {2}, watchdogTimeout: {3}, watchdogDelay: {4}, watchdogPingType: {5} ",
+								new Object[]{service, sinceLastTransfer, maxInactivityTime,
+											 watchdogTimeout, watchdogDelay, watchdogPingType});
+					}
+					if (sinceLastTransfer >= maxInactivityTime) {
+
+						// Stop the service if max keep-alive time is exceeded
+						// for non-active connections.
+						if (log.isLoggable(Level.INFO)) {
+							log.log(Level.INFO,
+									"{0}: Max inactive time exceeded, stopping: {1} ( sinceLastTransfer: {2}, maxInactivityTime: {3}, watchdogTimeout: {4}, watchdogDelay: {5}, watchdogPingType: {6} )",
+									new Object[]{getName(), service, sinceLastTransfer,
+												 maxInactivityTime, watchdogTimeout, watchdogDelay,
+												 watchdogPingType});
+						}
+						++watchdogStopped;
+						service.forceStop();
+						alive = false;
+					} else {
+						if (sinceLastTransfer >= (watchdogTimeout)) {
+
+							/** At least once every configured timings check if the
+							 * connection is still alive with the use of configured
+							 * ping type. */
+							switch (watchdogPingType) {
+								case XMPP:
+									pingPacket = Iq.packetInstance(pingElement.clone(), JID.jidInstanceNS(
+											(String) service.getSessionData().get(XMPPIOService.HOSTNAME_KEY)),
+																   JID.jidInstanceNS(service.getUserJid()));
+									if (log.isLoggable(Level.FINEST)) {
+										log.log(Level.FINEST, "{0}, sending XMPP ping {1}",
+												new Object[]{service, pingPacket});
+									}
+									if (!writePacketToSocket((IO) service, pingPacket)) {
+										// writing failed, stopp service
+										++watchdogStopped;
+										service.forceStop();
+										alive = false;
+									}
+									break;
+
+								case WHITESPACE:
+									if (log.isLoggable(Level.FINEST)) {
+										log.log(Level.FINEST, "Sending whitespace ping for service {0}",
+												new Object[]{service});
+									}
+									service.writeRawData(" ");
+									break;
+							}
+							++watchdogTests;
+							++pingsInMinute;
+						}
+					}
+				}
+			} catch (IOException e) {
+
+				// Close the service
+				try {
+					if (service != null) {
+						log.info(getName() + "Found dead connection, stopping: " + service);
+						++watchdogStopped;
+						service.forceStop();
+						alive = false;
+					}
+				} catch (Exception ignore) {
+					// Do nothing here as we expect Exception to be thrown here...
+				}
+			}
+			return alive;
+		}
+
+		private void executeTimingWheel() {
+			long now = System.currentTimeMillis();
+			for (IO service : wheel.advance(now)) {
+				++checked;
+				if (!checkService(service) || !service.isConnected()) {
+					continue;
+				}
+
+				long sinceLastTransfer = getDurationSinceLastTransfer(service);
+				long delay = sinceLastTransfer >= watchdogTimeout
+							 ? watchdogDelay
+							 : watchdogTimeout - sinceLastTransfer;
+				delay = Math.max(wheel.getTickMillis(), Math.min(delay, maxInactivityTime - sinceLastTransfer));
+				wheel.schedule(service, now + delay);
+				if (!service.isConnected()) {
+					// service could be stopped concurrently
+					wheel.remove(service);
+				}
+			}
+		}
+
 		private void executeWatchdog() {
 			/** Walk through all connections and check whether they are really
 			 * alive. Depending on the configuration send either whitespace or
 			 * XMPP ping if the service is inactive for the configured period of
 			 * time
 			 */
-			doForAllServices(new ServiceChecker<IO>() {
-				@Override
-				public void check(final XMPPIOService service) {
-					try {
-						if (null != service) {
-							long sinceLastTransfer = getDurationSinceLastTransfer(service);
-							if (log.isLoggable(Level.FINEST)) {
-								log.log(Level.FINEST,
-										"Testing service: {0}, sinceLastTransfer: {1}, maxInactivityTime: {2}, watchdogTimeout: {3}, watchdogDelay: {4}, watchdogPingType: {5} ",
-										new Object[]{service, sinceLastTransfer, maxInactivityTime,
-													 watchdogTimeout, watchdogDelay, watchdogPingType});
-							}
-							if (sinceLastTransfer >= maxInactivityTime) {
-
-								// Stop the service if max keep-alive time is exceeded
-								// for non-active connections.
-								if (log.isLoggable(Level.INFO)) {
-									log.log(Level.INFO,
-											"{0}: Max inactive time exceeded, stopping: {1} ( sinceLastTransfer: {2}, maxInactivityTime: {3}, watchdogTimeout: {4}, watchdogDelay: {5}, watchdogPingType: {6} )",
-											new Object[]{getName(), service, sinceLastTransfer,
-														 maxInactivityTime, watchdogTimeout, watchdogDelay,
-														 watchdogPingType});
-								}
-								++watchdogStopped;
-								service.forceStop();
-							} else {
-								if (sinceLastTransfer >= (watchdogTimeout)) {
-
-									/** At least once every configured timings check if the
-									 * connection is still alive with the use of configured
-									 * ping type. */
-									switch (watchdogPingType) {
-										case XMPP:
-											pingPacket = Iq.packetInstance(pingElement.clone(), JID.jidInstanceNS(
-													(String) service.getSessionData().get(XMPPIOService.HOSTNAME_KEY)),
-																		   JID.jidInstanceNS(service.getUserJid()));
-											if (log.isLoggable(Level.FINEST)) {
-												log.log(Level.FINEST, "{0}, sending XMPP ping {1}",
-														new Object[]{service, pingPacket});
-											}
-											if (!writePacketToSocket((IO) service, pingPacket)) {
-												// writing failed, stopp service
-												++watchdogStopped;
-												service.forceStop();
-											}
-											break;
-
-										case WHITESPACE:
-											if (log.isLoggable(Level.FINEST)) {
-												log.log(Level.FINEST, "Sending whitespace ping for service {0}",
-														new Object[]{service});
-											}
-											service.writeRawData(" ");
-											break;
-									}
-									++watchdogTests;
-								}
-							}
-						}
-					} catch (IOException e) {
+			doForAllServices(this::checkService);
+		}
 
-						// Close the service
-						try {
-							if (service != null) {
-								log.info(getName() + "Found dead connection, stopping: " + service);
-								++watchdogStopped;
-								service.forceStop();
-							}
-						} catch (Exception ignore) {
-							// Do nothing here as we expect Exception to be thrown here...
-						}
-					}
-				}
-			});
+		private void updatePingRate() {
+			long now = System.currentTimeMillis();
+			if (now - minuteStart >= MINUTE) {
+				pingsInLastMinute = pingsInMinute;
+				pingsInMinute = 0;
+				minuteStart = now;
+			}
 		}
 	}
 
@@ -27,12 +27,16 @@ import tigase.kernel.beans.RegistrarBean;
 import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.kernel.core.Kernel;
+import tigase.net.BufferPool;
+import tigase.net.SocketThread;
 import tigase.stats.StatisticsList;
 import tigase.sys.NMTScope;
 import tigase.sys.NativeMemoryTracking;
 import tigase.sys.TigaseRuntime;
+import tigase.util.reflection.ClassUtilBean;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.util.updater.UpdatesChecker;
+import tigase.vhosts.VHostItem;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
@@ -50,6 +54,8 @@ import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -100,6 +106,13 @@ public class MessageRouter
 	private MonitoringBeanIfc monitoringBean;
 	private Map<String, MessageReceiver> receivers = new ConcurrentHashMap<>();
 	private ConcurrentHashMap<String, ComponentRegistrator> registrators = new ConcurrentHashMap<>();
+	private final ThreadLocal<ArrayDeque<Packet>> results = ThreadLocal.withInitial(ArrayDeque::new);
+	private final ConcurrentHashMap<String, Route> routingCache = new ConcurrentHashMap<>();
+	private final LongAdder routingCacheHits = new LongAdder();
+	private final LongAdder routingCacheMisses = new LongAdder();
+	@ConfigField(desc = "Maximal number of cached routing decisions", alias = "routing-cache-size")
+	private int routingCacheSize = 10000;
+	private final AtomicLong routingsVersion = new AtomicLong();
 	@Inject
 	private UpdatesChecker updates_checker = null;
 	private Map<String, XMPPService> xmppServices = new ConcurrentHashMap<>();
@@ -180,6 +193,7 @@ public class MessageRouter
 				registr.addComponent(component);
 			}    // end of if (reg != component)
 		}      // end of for ()
+		routingsChanged();
 	}
 
 	public void addRegistrator(ComponentRegistrator registr) throws ConfigurationException {
@@ -199,11 +213,13 @@ public class MessageRouter
 		log.info("Adding receiver: " + receiver.getClass().getSimpleName());
 		addComponent(receiver);
 		receivers.put(receiver.getName(), receiver);
+		routingsChanged();
 	}
 
 	@Override
 	public void beanConfigurationChanged(Collection<String> changedFields) {
 		super.beanConfigurationChanged(changedFields);
+		routingsChanged();
 		if (getServiceEntity() != null &&
 				(changedFields.contains("disco_name") || changedFields.contains("disco_show_version"))) {
 			updateServiceDiscoveryItem(getName(), null, getDiscoDescription(), "server", "im", false);
@@ -325,17 +341,11 @@ public class MessageRouter
 
 			return;
 		}
-		if (isLocalDiscoRequest(packet)) {
-			Queue<Packet> results = new ArrayDeque<>();
+		Queue<Packet> results = this.results.get();
 
+		if (isLocalDiscoRequest(packet)) {
 			processDiscoQuery(packet, results);
-			if (results.size() > 0) {
-				for (Packet res : results) {
-
-					// No more recurrential calls!!
-					addOutPacketNB(res);
-				}    // end of for ()
-			}
+			addOutPacketsNB(results);
 
 			return;
 		}
@@ -352,7 +362,20 @@ public class MessageRouter
 		// 3. component name + "." + default domain name
 		// 4. component name + "." + any virtual host name
 		// TODO: check the efficiency for packets addressed to c2s component
-		ServerComponent comp = getLocalComponent(packet.getTo());
+		// Exact match of the component ID is checked before the cached routing
+		// decision as it is the cheapest lookup
+		ServerComponent comp = components_byId.get(packet.getTo());
+		ServerComponent[] comps = null;
+
+		if (comp == null) {
+			comp = getComponentByName(packet.getTo());
+		}
+		if (comp == null) {
+			Route route = getRoute(packet.getTo().getDomain());
+
+			comp = route.component;
+			comps = route.getComponents(packet.getTo());
+		}
 
 		if (comp != null) {
 			if (log.isLoggable(Level.FINEST)) {
@@ -360,8 +383,6 @@ public class MessageRouter
 						new Object[]{comp.getComponentId(), packet});
 			}
 
-			Queue<Packet> results = new ArrayDeque<Packet>();
-
 			if (comp == this) {
 
 				// This is addressed to the MessageRouter itself. Has to be processed
@@ -373,65 +394,23 @@ public class MessageRouter
 				// All other components process the packet the same way.
 				comp.processPacket(packet, results);
 			}
-			if (results.size() > 0) {
-				for (Packet res : results) {
-
-					// No more recurrential calls!!
-					addOutPacketNB(res);
-
-					// processPacket(res);
-				}    // end of for ()
-			}
+			addOutPacketsNB(results);
 
 			// If the component is found the processing ends here as there can be
 			// only one component with specific ID.
 			return;
 		}
 
-		// This packet is not processed yet
-		// The packet can be addressed to just a domain, one of the virtual hosts
-		// The code below finds all components which handle packets addressed
-		// to a virtual domains (implement VHostListener and return 'true' from
-		// handlesLocalDomains() method call)
-		String host = packet.getTo().getDomain();
-		ServerComponent[] comps = getComponentsForLocalDomain(host);
-
-		if (comps == null) {
-
-			// Still no component found, now the most expensive lookup.
-			// Checking regex routings provided by the component.
-			comps = getServerComponentsForRegex(packet.getTo().getBareJID().toString());
-		}
-		if ((comps == null) && !isLocalDomain(host)) {
-
-			// None of the component want to process the packet.
-			// If the packet is addressed to non-local domain then it is processed by
-			// all components dealing with external world, like s2s
-			comps = getComponentsForNonLocalDomain(host);
-		}
-
 		// Ok, if any component has been found then process the packet in a standard
 		// way
 		if (comps != null) {
-
-			// Processing packet and handling results out
-			Queue<Packet> results = new ArrayDeque<Packet>();
-
 			for (ServerComponent serverComponent : comps) {
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "2. Packet will be processed by: {0}, {1}",
 							new Object[]{serverComponent.getComponentId(), packet});
 				}
 				serverComponent.processPacket(packet, results);
-				if (results.size() > 0) {
-					for (Packet res : results) {
-
-						// No more recurrential calls!!
-						addOutPacketNB(res);
-
-						// processPacket(res);
-					}    // end of for ()
-				}
+				addOutPacketsNB(results);
 			}
 		} else {
 
@@ -499,6 +478,7 @@ public class MessageRouter
 		if (component instanceof XMPPService) {
 			xmppServices.remove(component.getName());
 		}
+		routingsChanged();
 	}
 
 	public void removeRegistrator(ComponentRegistrator registr) {
@@ -563,6 +543,12 @@ public class MessageRouter
 
 		list.add(getName(), "Version", XMPPServer.getImplementationVersion(), Level.INFO);
 
+		ClassUtilBean classUtil = ClassUtilBean.getInstance();
+		list.add(getName(), "Classes discovery time [ms]", classUtil.getDiscoveryTime(), Level.FINE);
+		list.add(getName(), "Classes loaded", classUtil.getBeanClasses().size(), Level.FINEST);
+		list.add(getName(), "Classes indexed entries", classUtil.getIndexedEntries(), Level.FINEST);
+		list.add(getName(), "Classes scanned entries", classUtil.getScannedEntries(), Level.FINEST);
+
 		format.setMaximumFractionDigits(4);
 		list.add(getName(), "Load average", format.format(runtime.getLoadAverage()), Level.FINE);
 		list.add(getName(), "CPUs no", runtime.getCPUsNumber(), Level.FINEST);
@@ -598,6 +584,15 @@ public class MessageRouter
 														  : (runtime.getNonHeapMemMax() - runtime.getNonHeapMemUsed()) /
 																  1024), Level.FINE);
 
+		list.add(getName(), "Routing cache size", routingCache.size(), Level.FINE);
+		list.add(getName(), "Routing cache hits", routingCacheHits.sum(), Level.FINE);
+		list.add(getName(), "Routing cache misses", routingCacheMisses.sum(), Level.FINE);
+		list.add(getName(), "Routing changes", routingsVersion.get(), Level.FINER);
+
+		// shared network buffers and socket threads
+		BufferPool.getStatistics(getName(), list);
+		SocketThread.getStatistics(getName(), list);
+
 		// general JVM/GC info
 		list.add(getName(), "Heap region name", runtime.getOldGenName(), Level.FINE);
 		list.add(getName(), JVM_STATS_GC_STATISTICS, runtime.getGcStatistics(), Level.FINER);
@@ -821,6 +816,95 @@ public class MessageRouter
 		return items;
 	}
 
+	/**
+	 * Method invalidates all cached routing decisions. It has to be called whenever components or their routings
+	 * change.
+	 */
+	protected void routingsChanged() {
+		routingsVersion.incrementAndGet();
+		routingCache.clear();
+	}
+
+	private void addOutPacketsNB(Queue<Packet> results) {
+		Packet res;
+
+		while ((res = results.poll()) != null) {
+
+			// No more recurrential calls!!
+			addOutPacketNB(res);
+		}
+	}
+
+	private Route getRoute(String domain) {
+		if (routingCacheSize <= 0) {
+			return resolveRoute(domain);
+		}
+
+		Route route = routingCache.get(domain);
+
+		if (route != null && route.isValid()) {
+			routingCacheHits.increment();
+			return route;
+		}
+		routingCacheMisses.increment();
+
+		route = resolveRoute(domain);
+		if (routingCache.size() >= routingCacheSize && !routingCache.containsKey(domain)) {
+			// evicting single entry is enough to keep the size bounded, other cached decisions are still valid
+			Iterator<String> it = routingCache.keySet().iterator();
+			if (it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		routingCache.put(domain, route);
+
+		return route;
+	}
+
+	private Route resolveRoute(String host) {
+		long version = routingsVersion.get();
+		int idx = host.indexOf('.');
+		String baseDomain = (idx > 0) ? host.substring(idx + 1) : null;
+		VHostItem vhost = vHostManager.getVHostItem(host);
+		VHostItem baseVhost = (baseDomain != null) ? vHostManager.getVHostItem(baseDomain) : null;
+
+		ServerComponent comp = getComponentBySubdomain(host);
+
+		if (comp != null) {
+			return new Route(version, host, vhost, baseDomain, baseVhost, comp, null, false, null);
+		}
+
+		// This packet is not processed yet
+		// The packet can be addressed to just a domain, one of the virtual hosts
+		// The code below finds all components which handle packets addressed
+		// to a virtual domains (implement VHostListener and return 'true' from
+		// handlesLocalDomains() method call)
+		ServerComponent[] comps = getComponentsForLocalDomain(host);
+
+		if (comps != null) {
+			return new Route(version, host, vhost, baseDomain, baseVhost, null, comps, false, null);
+		}
+
+		// Regex routings are matched against the bare JID, so they are checked for each packet,
+		// if any of the components has them.
+		// If the packet is addressed to non-local domain and none of the components want to process
+		// the packet then it is processed by all components dealing with external world, like s2s
+		ServerComponent[] nonLocalComps = isLocalDomain(host) ? null : getComponentsForNonLocalDomain(host);
+
+		return new Route(version, host, vhost, baseDomain, baseVhost, null, null, hasRegexRoutings(), nonLocalComps);
+	}
+
+	private boolean hasRegexRoutings() {
+		for (MessageReceiver mr : receivers.values()) {
+			if (!(mr instanceof AbstractMessageReceiver) ||
+					!((AbstractMessageReceiver) mr).getRegexRoutings().isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private ServerComponent[] getComponentsForLocalDomain(String domain) {
 		return vHostManager.getComponentsForLocalDomain(domain);
 	}
@@ -855,12 +939,9 @@ public class MessageRouter
 		// the component name + virtual host name
 		// Code below, tries to find a destination by the component name + any
 		// active virtual hostname.
-		if (jid.getLocalpart() != null) {
-			comp = components.get(jid.getLocalpart());
-			if ((comp != null) &&
-					(isLocalDomain(jid.getDomain()) || jid.getDomain().equals(getDefHostName().getDomain()))) {
-				return comp;
-			}
+		comp = getComponentByName(jid);
+		if (comp != null) {
+			return comp;
 		}
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "No component name matches (VHost lookup against component name): " +
@@ -869,27 +950,48 @@ public class MessageRouter
 							vHostManager.getAllVHosts().size() + "]" : String.valueOf(vHostManager.getAllVHosts())});
 		}
 
+		return getComponentBySubdomain(jid.getDomain());
+	}
+
+	/**
+	 * Finds component addressed by the component name + "@" + local domain name.
+	 */
+	private ServerComponent getComponentByName(JID jid) {
+		if (jid.getLocalpart() != null) {
+			ServerComponent comp = components.get(jid.getLocalpart());
+			if ((comp != null) &&
+					(isLocalDomain(jid.getDomain()) || jid.getDomain().equals(getDefHostName().getDomain()))) {
+				return comp;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds component addressed by the component name + "." + local domain name.
+	 */
+	private ServerComponent getComponentBySubdomain(String domain) {
 		// Instead of a component ID built of: component name + "@" domain name
 		// Some components have an ID of: component name + "." domain name
 		// Code below tries to find a packet receiver if the address have the other
 		// type of form.
-		int idx = jid.getDomain().indexOf('.');
+		int idx = domain.indexOf('.');
 
 		if (idx > 0) {
-			String cmpName = jid.getDomain().substring(0, idx);
-			String basename = jid.getDomain().substring(idx + 1);
+			String cmpName = domain.substring(0, idx);
+			String basename = domain.substring(idx + 1);
 
-			comp = components.get(cmpName);
+			ServerComponent comp = components.get(cmpName);
 			if ((comp != null) && (isLocalDomain(basename) || basename.equals(getDefHostName().getDomain()))) {
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "Component matched: {0}, for comp: {1}, basename: {3}",
-							new Object[]{jid, components.keySet(), comp, basename});
+							new Object[]{domain, components.keySet(), comp, basename});
 				}
 				return comp;
 			}
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Component match failed: {0}, for comp: {1}, basename: {3}",
-						new Object[]{jid, components.keySet(), comp, basename});
+						new Object[]{domain, components.keySet(), comp, basename});
 			}
 		}
 
@@ -947,5 +1049,55 @@ public class MessageRouter
 //  .toString()))) {
 		return result;
 	}
-}
 
+	/**
+	 * Cached routing decision for a destination bare JID. Decision is valid as long as no component or routing was
+	 * changed and virtual hosts items for the destination domain and its base domain were not replaced.
+	 */
+	private final class Route {
+
+		private final String baseDomain;
+		private final VHostItem baseVhost;
+		private final ServerComponent component;
+		private final ServerComponent[] components;
+		private final String domain;
+		private final ServerComponent[] nonLocalComponents;
+		private final boolean regexRoutings;
+		private final long version;
+		private final VHostItem vhost;
+
+		private Route(long version, String domain, VHostItem vhost, String baseDomain, VHostItem baseVhost,
+					  ServerComponent component, ServerComponent[] components, boolean regexRoutings,
+					  ServerComponent[] nonLocalComponents) {
+			this.version = version;
+			this.domain = domain;
+			this.vhost = vhost;
+			this.baseDomain = baseDomain;
+			this.baseVhost = baseVhost;
+			this.component = component;
+			this.components = components;
+			this.regexRoutings = regexRoutings;
+			this.nonLocalComponents = nonLocalComponents;
+		}
+
+		private ServerComponent[] getComponents(JID to) {
+			if (components != null) {
+				return components;
+			}
+			if (regexRoutings) {
+				// Still no component found, now the most expensive lookup.
+				// Checking regex routings provided by the component.
+				ServerComponent[] comps = getServerComponentsForRegex(to.getBareJID().toString());
+				if (comps != null) {
+					return comps;
+				}
+			}
+			return nonLocalComponents;
+		}
+
+		private boolean isValid() {
+			return version == routingsVersion.get() && vhost == vHostManager.getVHostItem(domain) &&
+					(baseDomain == null || baseVhost == vHostManager.getVHostItem(baseDomain));
+		}
+	}
+}
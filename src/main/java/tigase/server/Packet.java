@@ -23,6 +23,7 @@ import tigase.xml.Element;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.jid.JID;
 
+import java.util.BitSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -100,9 +101,13 @@ public class Packet {
 	private String packetToStringSecure = null;
 	private Permissions permissions = Permissions.NONE;
 	private Priority priority = Priority.NORMAL;
-	private Set<String> processorsIds = new LinkedHashSet<String>(4, 0.9f);
+	// indexes of processors from ProcessorIdRegistry, ids above 63 are kept in lazily created BitSets
+	private long processedMask = 0;
+	private BitSet processedOverflow = null;
 	private boolean routed;
-	private LinkedHashSet<String> skippedProcessorsIds = new LinkedHashSet<String>(4, 0.9f);
+	private SharedPayload sharedPayload = null;
+	private long skippedMask = 0;
+	private BitSet skippedOverflow = null;
 	private JID stanzaFrom = null;
 	private String stanzaId = null;
 	private JID stanzaTo = null;
@@ -575,6 +580,16 @@ public class Packet {
 		return priority;
 	}
 
+	/**
+	 * Method returns payload shared with other packets if the packet was created by {@link
+	 * SharedPayload#packetInstance(JID)}. Child elements of such packet are shared and must not be modified.
+	 *
+	 * @return shared payload of the packet or <code>null</code>.
+	 */
+	public SharedPayload getSharedPayload() {
+		return sharedPayload;
+	}
+
 	/**
 	 * The method sets the packet priority. Depending on the priority the packet is put to a queue with corresponding
 	 * priority. This matter only on system which experience overload and some packets may be delivered with a delay if
@@ -586,16 +601,23 @@ public class Packet {
 		this.priority = priority;
 	}
 
+	void setSharedPayload(SharedPayload sharedPayload) {
+		this.sharedPayload = sharedPayload;
+	}
+
 	/**
 	 * Method returns a set of all processor IDs which processed the packet. Each session manager processor which
 	 * handles the packet can mark the packet as processed. This is used internally by the session manager to detect
 	 * packets which hasn't been processed by any processor, hence a default action is applied to the packet if
 	 * possible.
+	 * <br>
+	 * Returned set is a copy created on each call, ordered by registration of processor IDs in
+	 * {@link ProcessorIdRegistry}, so it should be used for diagnostic purposes only.
 	 *
 	 * @return a <code>Set</code> of stanza processor IDs which handled the packet.
 	 */
 	public Set<String> getProcessorsIds() {
-		return processorsIds;
+		return toProcessorsIds(processedMask, processedOverflow);
 	}
 
 	/**
@@ -604,7 +626,7 @@ public class Packet {
 	 * @return a <code>Set</code> of stanza processor IDs which skipped the packet.
 	 */
 	public Set<String> getSkippedProcessorsIds() {
-		return skippedProcessorsIds;
+		return toProcessorsIds(skippedMask, skippedOverflow);
 	}
 
 	/**
@@ -837,7 +859,15 @@ public class Packet {
 	 * @param id is a <code>String</code> instance of the packet processer identifier.
 	 */
 	public void notProcessedBy(String id) {
-		skippedProcessorsIds.add(id);
+		int idx = ProcessorIdRegistry.register(id);
+		if (idx < 64) {
+			skippedMask |= 1L << idx;
+		} else {
+			if (skippedOverflow == null) {
+				skippedOverflow = new BitSet();
+			}
+			skippedOverflow.set(idx - 64);
+		}
 	}
 
 	/**
@@ -964,7 +994,15 @@ public class Packet {
 	 * @param id is a <code>String</code> instance of the packet processer identifier.
 	 */
 	public void processedBy(String id) {
-		processorsIds.add(id);
+		int idx = ProcessorIdRegistry.register(id);
+		if (idx < 64) {
+			processedMask |= 1L << idx;
+		} else {
+			if (processedOverflow == null) {
+				processedOverflow = new BitSet();
+			}
+			processedOverflow.set(idx - 64);
+		}
 	}
 
 	/**
@@ -1144,7 +1182,7 @@ public class Packet {
 	 * <code>false</code> otherwise.
 	 */
 	public boolean wasProcessed() {
-		return processorsIds.size() > 0;
+		return processedMask != 0 || (processedOverflow != null && !processedOverflow.isEmpty());
 	}
 
 	/**
@@ -1154,7 +1192,7 @@ public class Packet {
 	 * @return <code>true</code> if packet was skipped by any processor.
 	 */
 	public boolean wasSkipped() {
-		return skippedProcessorsIds.size() > 0;
+		return skippedMask != 0 || (skippedOverflow != null && !skippedOverflow.isEmpty());
 	}
 
 	/**
@@ -1166,7 +1204,14 @@ public class Packet {
 	 * specified ID and <code>false</code> otherwise.
 	 */
 	public boolean wasProcessedBy(String id) {
-		return processorsIds.contains(id);
+		int idx = ProcessorIdRegistry.indexOf(id);
+		if (idx < 0) {
+			return false;
+		}
+		if (idx < 64) {
+			return (processedMask & (1L << idx)) != 0;
+		}
+		return processedOverflow != null && processedOverflow.get(idx - 64);
 	}
 
 	/**
@@ -1218,4 +1263,19 @@ public class Packet {
 			}
 		}
 	}
+
+	private Set<String> toProcessorsIds(long mask, BitSet overflow) {
+		Set<String> result = new LinkedHashSet<String>(4, 0.9f);
+		while (mask != 0) {
+			int idx = Long.numberOfTrailingZeros(mask);
+			result.add(ProcessorIdRegistry.getId(idx));
+			mask &= mask - 1;
+		}
+		if (overflow != null) {
+			for (int idx = overflow.nextSetBit(0); idx >= 0; idx = overflow.nextSetBit(idx + 1)) {
+				result.add(ProcessorIdRegistry.getId(idx + 64));
+			}
+		}
+		return result;
+	}
 }
@@ -0,0 +1,91 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry assigning small, stable indexes to packet processor identifiers, so {@link Packet} can keep track of
+ * processors which handled or skipped it using bit masks instead of sets of strings.
+ * <br>
+ * Session manager registers identifiers of processors when plugins are loaded. Identifiers passed to
+ * {@link Packet#processedBy(String)} which were not registered earlier are registered on first use. Indexes are never
+ * reused, as the number of distinct processor identifiers is small.
+ */
+public final class ProcessorIdRegistry {
+
+	private static final ConcurrentHashMap<String, Integer> indexes = new ConcurrentHashMap<>();
+	private static volatile String[] ids = new String[64];
+	private static int size = 0;
+
+	/**
+	 * Returns index assigned to the processor identifier.
+	 *
+	 * @param id of the processor
+	 *
+	 * @return index of the processor or <code>-1</code> if identifier was not registered
+	 */
+	public static int indexOf(String id) {
+		Integer idx = indexes.get(id);
+		return idx == null ? -1 : idx;
+	}
+
+	/**
+	 * Returns index assigned to the processor identifier, assigning a new index if identifier was not registered.
+	 *
+	 * @param id of the processor
+	 *
+	 * @return index of the processor
+	 */
+	public static int register(String id) {
+		Integer idx = indexes.get(id);
+		if (idx != null) {
+			return idx;
+		}
+		synchronized (ProcessorIdRegistry.class) {
+			idx = indexes.get(id);
+			if (idx == null) {
+				String[] tmp = ids;
+				if (size == tmp.length) {
+					tmp = Arrays.copyOf(tmp, tmp.length * 2);
+				}
+				tmp[size] = id;
+				ids = tmp;
+				idx = size++;
+				indexes.put(id, idx);
+			}
+			return idx;
+		}
+	}
+
+	/**
+	 * Returns processor identifier for the index.
+	 *
+	 * @param idx of the processor
+	 *
+	 * @return identifier of the processor or <code>null</code> if index is not assigned
+	 */
+	public static String getId(int idx) {
+		String[] tmp = ids;
+		return idx >= 0 && idx < tmp.length ? tmp[idx] : null;
+	}
+
+	private ProcessorIdRegistry() {
+	}
+}
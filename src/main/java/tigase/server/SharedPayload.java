@@ -0,0 +1,146 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import tigase.net.ElementByteWriter;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stanza content sent to many recipients, ie. presence broadcast to all contacts from the roster. Instead of cloning
+ * the whole stanza and parsing its addresses for each recipient, packets created by {@link #packetInstance(JID)}
+ * contain only a new top level element with attributes of the stanza and already parsed addresses, while child
+ * elements are shared by all of them.
+ * <br>
+ * Child elements are serialized to bytes only once, when the first of the packets is written to a connection, and
+ * the result is reused for all other recipients.
+ * <br>
+ * <strong>Child elements of the packets must not be modified</strong>, code which needs to change them has to
+ * replace them with a modified copy. Changes of the top level element, like adding or removing a child, are allowed,
+ * and such packet is serialized as any other.
+ */
+public final class SharedPayload {
+
+	private final List<Element> children;
+	private final JID stanzaFrom;
+	private final Element template;
+	private volatile byte[] serializedChildren = null;
+
+	/**
+	 * Creates payload from the stanza. The stanza is copied, so it may be changed later by the caller.
+	 *
+	 * @param stanza element to be sent to many recipients, its <code>to</code> attribute is ignored.
+	 * @param stanzaFrom is a pre-parsed <code>JID</code> instance from the <code>from</code> attribute of the stanza.
+	 */
+	public SharedPayload(Element stanza, JID stanzaFrom) {
+		this.template = stanza.clone();
+		this.template.removeAttribute(Packet.TO_ATT);
+		this.stanzaFrom = stanzaFrom;
+		List<Element> children = template.getChildren();
+		this.children = children == null ? Collections.emptyList() : children;
+	}
+
+	public JID getStanzaFrom() {
+		return stanzaFrom;
+	}
+
+	/**
+	 * Creates packet with the payload addressed to the recipient. No stringprep processing is performed.
+	 *
+	 * @param stanzaTo is a pre-parsed destination address of the packet.
+	 *
+	 * @return a <code>Packet</code> instance, more specifically instance of one of the following classes:
+	 * <code>Iq</code>, <code>Message</code> or <code>Presence</code>.
+	 */
+	public Packet packetInstance(JID stanzaTo) {
+		Element elem = new Element(template.getName());
+
+		elem.setAttributes(template.getAttributes());
+		if (template.getXMLNS() != null) {
+			elem.setXMLNS(template.getXMLNS());
+		}
+		if (!children.isEmpty()) {
+			elem.addChildren(children);
+		} else if (template.getCData() != null) {
+			elem.setCData(template.getCData());
+		}
+
+		Packet result = Packet.packetInstance(elem, stanzaFrom, stanzaTo);
+
+		result.setSharedPayload(this);
+
+		return result;
+	}
+
+	/**
+	 * Method serializes element of the packet created from this payload, reusing already serialized child elements if
+	 * the element still contains them.
+	 *
+	 * @param writer to which element should be written.
+	 * @param elem element of the packet created by {@link #packetInstance(JID)}.
+	 */
+	public void write(ElementByteWriter writer, Element elem) {
+		List<Element> elemChildren = elem.getChildren();
+
+		if (children.isEmpty() || elem.getCData() != null || !startsWithSharedChildren(elemChildren)) {
+			writer.write(elem);
+			return;
+		}
+		writer.writeStartTag(elem);
+		writer.write(getSerializedChildren());
+		for (int i = children.size(); i < elemChildren.size(); i++) {
+			writer.write(elemChildren.get(i));
+		}
+		writer.writeEndTag(elem.getName());
+	}
+
+	private byte[] getSerializedChildren() {
+		byte[] result = serializedChildren;
+
+		if (result == null) {
+			ElementByteWriter writer = new ElementByteWriter(512);
+			for (Element child : children) {
+				writer.write(child);
+			}
+
+			ByteBuffer buf = writer.flip();
+
+			result = new byte[buf.remaining()];
+			buf.get(result);
+			serializedChildren = result;
+		}
+
+		return result;
+	}
+
+	private boolean startsWithSharedChildren(List<Element> elemChildren) {
+		if (elemChildren == null || elemChildren.size() < children.size()) {
+			return false;
+		}
+		for (int i = 0; i < children.size(); i++) {
+			if (elemChildren.get(i) != children.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
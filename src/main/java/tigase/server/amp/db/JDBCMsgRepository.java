@@ -19,8 +19,10 @@ package tigase.server.amp.db;
 
 import tigase.db.*;
 import tigase.db.util.RepositoryVersionAware;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.util.ExceptionUtilities;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
@@ -32,6 +34,11 @@ import tigase.xmpp.jid.JID;
 import java.sql.*;
 import java.util.Date;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,9 +51,10 @@ import java.util.logging.Logger;
 @Repository.SchemaId(id = Schema.SERVER_SCHEMA_ID, name = Schema.SERVER_SCHEMA_NAME)
 public class JDBCMsgRepository
 		extends MsgRepository<Long, DataRepository>
-		implements RepositoryVersionAware {
+		implements RepositoryVersionAware, UnregisterAware {
 
 	private static final Logger log = Logger.getLogger(JDBCMsgRepository.class.getName());
+	private static final long PENDING_WAIT_TIMEOUT = 1000;
 	protected DataRepository data_repo = null;
 	@ConfigField(desc = "Query to add message", alias = "add-message-query")
 	private String MSGS_ADD_MESSAGE = "{ call Tig_OfflineMessages_AddMessage(?,?,?,?,?,?,?) }";
@@ -66,6 +74,8 @@ public class JDBCMsgRepository
 	private String MSGS_GET_MESSAGES = "{ call Tig_OfflineMessages_GetMessages(?) }";
 	@ConfigField(desc = "Query to load messages by ids", alias = "get-messages-by-ids-query")
 	private String MSGS_GET_MESSAGES_BY_IDS = "{ call Tig_OfflineMessages_GetMessagesByIds(?,?,?,?,?) }";
+	@ConfigField(desc = "Query to store message in a batch", alias = "store-message-query")
+	private String MSGS_STORE_MESSAGE = "{ call Tig_OfflineMessages_StoreMessage(?,?,?,?,?,?,?) }";
 
 //	private static final Map<String, JDBCMsgRepository> repos =
 //			new ConcurrentSkipListMap<String, JDBCMsgRepository>();
@@ -74,6 +84,17 @@ public class JDBCMsgRepository
 	@ConfigField(desc = "Query to list messages", alias = "list-messages-query")
 	private String MSGS_LIST_MESSAGES = "{ call Tig_OfflineMessages_ListMessages(?) }";
 	private boolean initialized = false;
+	@ConfigField(desc = "Store offline messages asynchronously in batches", alias = "write-behind")
+	private boolean writeBehind = false;
+	@ConfigField(desc = "Maximal number of messages stored in a single batch", alias = "write-behind-batch-size")
+	private int writeBehindBatchSize = 100;
+	@ConfigField(desc = "Maximal time (in ms) for which message waits for batch to fill", alias = "write-behind-max-delay")
+	private long writeBehindMaxDelay = 50;
+	@ConfigField(desc = "Time (in ms) to wait for free space in full write-behind queue", alias = "write-behind-offer-timeout")
+	private long writeBehindOfferTimeout = 100;
+	@ConfigField(desc = "Maximal number of messages waiting to be stored", alias = "write-behind-queue-size")
+	private int writeBehindQueueSize = 10000;
+	private volatile WriteBehind writeBehindQueue = null;
 
 	@Override
 	public void setDataSource(DataRepository data_repo) {
@@ -88,6 +109,7 @@ public class JDBCMsgRepository
 			data_repo.initPreparedStatement(MSGS_DELETE_MESSAGES_BY_IDS, MSGS_DELETE_MESSAGES_BY_IDS);
 			data_repo.initPreparedStatement(MSGS_GET_EXPIRED_MESSAGES, MSGS_GET_EXPIRED_MESSAGES);
 			data_repo.initPreparedStatement(MSGS_GET_EXPIRED_MESSAGES_BEFORE, MSGS_GET_EXPIRED_MESSAGES_BEFORE);
+			data_repo.initPreparedStatement(MSGS_STORE_MESSAGE, MSGS_STORE_MESSAGE);
 		} catch (SQLException ex) {
 			log.log(Level.WARNING, "MsgRepository not initialized due to exception",
 					ExceptionUtilities.getExceptionRootCause(ex, true));
@@ -121,11 +143,22 @@ public class JDBCMsgRepository
 		}
 	}
 
+	@Override
+	public void beforeUnregister() {
+		WriteBehind writeBehind = this.writeBehindQueue;
+
+		if (writeBehind != null) {
+			writeBehind.stop();
+		}
+	}
+
 	@Override
 	public Map<Enum, Long> getMessagesCount(JID to) {
 
 		Map<Enum, Long> result = new HashMap<>(MSG_TYPES.values().length);
 
+		waitForPendingMessages(to.getBareJID());
+
 		try {
 
 			ResultSet rs = null;
@@ -156,6 +189,8 @@ public class JDBCMsgRepository
 		List<Element> result = new LinkedList<Element>();
 		ResultSet rs = null;
 
+		waitForPendingMessages(to.getBareJID());
+
 		try {
 			PreparedStatement select_messages_list = data_repo.getPreparedStatement(to.getBareJID(),
 																					MSGS_LIST_MESSAGES);
@@ -200,6 +235,7 @@ public class JDBCMsgRepository
 
 		try {
 			to = session.getBareJID();
+			waitForPendingMessages(to);
 
 			if (db_ids == null || db_ids.size() == 0) {
 				// fetch
@@ -249,6 +285,7 @@ public class JDBCMsgRepository
 
 		try {
 			to = session.getBareJID();
+			waitForPendingMessages(to);
 
 			if (db_ids == null || db_ids.size() == 0) {
 				// purge
@@ -312,6 +349,7 @@ public class JDBCMsgRepository
 
 		try {
 			to = session.getBareJID();
+			waitForPendingMessages(to);
 
 			ResultSet rs = null;
 			PreparedStatement select_to_jid_st = data_repo.getPreparedStatement(to, MSGS_GET_MESSAGES);
@@ -361,62 +399,40 @@ public class JDBCMsgRepository
 
 		try {
 			long msgs_store_limit = getMsgsStoreLimit(to.getBareJID(), userRepo);
+			PendingMessage pending = new PendingMessage(from.getBareJID(), to.getBareJID(), getMsgType(msg),
+														new Timestamp(System.currentTimeMillis()), msg.toString(),
+														expired, msgs_store_limit);
+
+			// queued message is reported as stored, as the store limit is checked only when it is written to the
+			// database, while message which cannot be queued is stored by the calling thread
+			if (writeBehind && getWriteBehind().offer(pending)) {
+				return true;
+			}
 
 			PreparedStatement insert_msg_st = data_repo.getPreparedStatement(to.getBareJID(), MSGS_ADD_MESSAGE);
 
 			synchronized (insert_msg_st) {
-				insert_msg_st.setString(1, to.getBareJID().toString());
-				insert_msg_st.setString(2, from.getBareJID().toString());
-				int msg_type;
-				try {
-					final String name = msg.getName();
-					final MSG_TYPES valueOf = MSG_TYPES.valueOf(name);
-					msg_type = valueOf.ordinal();
-				} catch (IllegalArgumentException e) {
-					msg_type = Integer.MAX_VALUE;
-				}
-
-				insert_msg_st.setInt(3, msg_type);
-				data_repo.setTimestamp(insert_msg_st, 4, new Timestamp(System.currentTimeMillis()));
-				insert_msg_st.setString(5, msg.toString());
-
-				if (expired == null) {
-					insert_msg_st.setNull(6, Types.TIMESTAMP);
-				} else {
-					Timestamp time = new Timestamp(expired.getTime());
-
-					data_repo.setTimestamp(insert_msg_st, 6, time);
-				}
-				insert_msg_st.setLong(7, msgs_store_limit);
-
-				try (ResultSet rs = insert_msg_st.executeQuery()) {
-					if (rs.next()) {
-						result = rs.getLong(1) != 0;
-					}
-				}
+				result = insertMessage(insert_msg_st, pending);
 			}
 
-			if (expired != null) {
-				if (expired.getTime() < earliestOffline) {
-					earliestOffline = expired.getTime();
-				}
-
-				if (expiredQueue.size() == 0) {
-					loadExpiredQueue(1);
-				}
-			}
+			messageStored(expired);
 		} catch (DataTruncation dte) {
 			log.log(Level.FINE, "Data truncated for message from {0} to {1}", new Object[]{from, to});
 		} catch (SQLException e) {
-			if (e.getErrorCode() == 1366 || e.getMessage() != null && e.getMessage().startsWith("Incorrect string value")) {
-				log.log(Level.WARNING, "Your MySQL configuration can't handle extended Unicode (for example emoji) correctly. Please refer to <Support for emoji and other icons> section of the server documentation");
-			} else {
-				log.log(Level.WARNING, "Problem adding new entry to DB: ", e);
-			}
+			logStoreException(e);
 		}
 		return result;
 	}
 
+	@Override
+	public void getStatistics(String compName, String prefix, StatisticsList list) {
+		WriteBehind writeBehind = this.writeBehindQueue;
+
+		if (writeBehind != null) {
+			writeBehind.getStatistics(compName, prefix + "/Write-behind", list);
+		}
+	}
+
 	protected Queue<Element> parseLoadedMessages(OfflineMessagesProcessor proc, ResultSet rs) throws SQLException {
 		StringBuilder sb = new StringBuilder(1000);
 		Queue<Element> result = new LinkedList<Element>();
@@ -455,6 +471,37 @@ public class JDBCMsgRepository
 		return result;
 	}
 
+	protected boolean insertMessage(PreparedStatement insert_msg_st, PendingMessage pending) throws SQLException {
+		boolean result = false;
+
+		setMessageParameters(insert_msg_st, pending);
+
+		try (ResultSet rs = insert_msg_st.executeQuery()) {
+			if (rs.next()) {
+				result = rs.getLong(1) != 0;
+			}
+		}
+
+		return result;
+	}
+
+	protected void setMessageParameters(PreparedStatement insert_msg_st, PendingMessage pending) throws SQLException {
+		insert_msg_st.setString(1, pending.to.toString());
+		insert_msg_st.setString(2, pending.from.toString());
+		insert_msg_st.setInt(3, pending.msgType);
+		data_repo.setTimestamp(insert_msg_st, 4, pending.timestamp);
+		insert_msg_st.setString(5, pending.msg);
+
+		if (pending.expired == null) {
+			insert_msg_st.setNull(6, Types.TIMESTAMP);
+		} else {
+			Timestamp time = new Timestamp(pending.expired.getTime());
+
+			data_repo.setTimestamp(insert_msg_st, 6, time);
+		}
+		insert_msg_st.setLong(7, pending.storeLimit);
+	}
+
 	@Override
 	protected void deleteMessage(Long msg_id) {
 		try {
@@ -536,6 +583,50 @@ public class JDBCMsgRepository
 		earliestOffline = Long.MAX_VALUE;
 	}
 
+	private int getMsgType(Element msg) {
+		try {
+			return MSG_TYPES.valueOf(msg.getName()).ordinal();
+		} catch (IllegalArgumentException e) {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	private synchronized WriteBehind getWriteBehind() {
+		if (writeBehindQueue == null) {
+			writeBehindQueue = new WriteBehind();
+			writeBehindQueue.start();
+		}
+		return writeBehindQueue;
+	}
+
+	private void logStoreException(SQLException e) {
+		if (e.getErrorCode() == 1366 || e.getMessage() != null && e.getMessage().startsWith("Incorrect string value")) {
+			log.log(Level.WARNING, "Your MySQL configuration can't handle extended Unicode (for example emoji) correctly. Please refer to <Support for emoji and other icons> section of the server documentation");
+		} else {
+			log.log(Level.WARNING, "Problem adding new entry to DB: ", e);
+		}
+	}
+
+	private void messageStored(Date expired) {
+		if (expired != null) {
+			if (expired.getTime() < earliestOffline) {
+				earliestOffline = expired.getTime();
+			}
+
+			if (expiredQueue.size() == 0) {
+				loadExpiredQueue(1);
+			}
+		}
+	}
+
+	private void waitForPendingMessages(BareJID to) {
+		WriteBehind writeBehind = this.writeBehindQueue;
+
+		if (writeBehind != null) {
+			writeBehind.awaitStored(to);
+		}
+	}
+
 	protected MsgDBItem parseExpiredMessage(DomBuilderHandler domHandler, ResultSet rs) throws SQLException {
 		String msg_str = rs.getString(3);
 
@@ -554,4 +645,300 @@ public class JDBCMsgRepository
 		}
 	}
 
+	protected static class PendingMessage {
+
+		private final Date expired;
+		private final BareJID from;
+		private final String msg;
+		private final int msgType;
+		private final long storeLimit;
+		private final Timestamp timestamp;
+		private final BareJID to;
+
+		protected PendingMessage(BareJID from, BareJID to, int msgType, Timestamp timestamp, String msg, Date expired,
+								 long storeLimit) {
+			this.from = from;
+			this.to = to;
+			this.msgType = msgType;
+			this.timestamp = timestamp;
+			this.msg = msg;
+			this.expired = expired;
+			this.storeLimit = storeLimit;
+		}
+	}
+
+	/**
+	 * Queue of messages waiting to be stored with a single thread writing them to the database in batches. Batch is
+	 * written when it reaches <code>write-behind-batch-size</code> messages or when its oldest message waited for
+	 * <code>write-behind-max-delay</code> ms.
+	 */
+	private class WriteBehind
+			implements Runnable {
+
+		private final LongAdder batches = new LongAdder();
+		private final LongAdder dropped = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final LongAdder flushTime = new LongAdder();
+		private final AtomicLong flushTimeMax = new AtomicLong();
+		private final LongAdder messages = new LongAdder();
+		private final ConcurrentHashMap<BareJID, Integer> pending = new ConcurrentHashMap<>();
+		private final LinkedBlockingQueue<PendingMessage> queue = new LinkedBlockingQueue<>(writeBehindQueueSize);
+		private final LongAdder rejected = new LongAdder();
+		private final LongAdder stored = new LongAdder();
+		private final Thread thread = new Thread(this, "offline-msgs-write-behind");
+		private volatile boolean stopped = false;
+
+		@Override
+		public void run() {
+			List<PendingMessage> batch = new ArrayList<>(writeBehindBatchSize);
+
+			while (true) {
+				try {
+					batch.add(queue.take());
+
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeBehindMaxDelay);
+
+					while (batch.size() < writeBehindBatchSize) {
+						if (queue.drainTo(batch, writeBehindBatchSize - batch.size()) > 0) {
+							continue;
+						}
+
+						long remaining = deadline - System.nanoTime();
+						PendingMessage next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+
+						if (next == null) {
+							break;
+						}
+						batch.add(next);
+					}
+
+					flush(batch);
+				} catch (InterruptedException ex) {
+					// repository is being unregistered, store what is already queued
+					queue.drainTo(batch);
+					if (!batch.isEmpty()) {
+						flush(batch);
+					}
+					return;
+				} catch (Throwable ex) {
+					log.log(Level.WARNING, "Problem storing batch of offline messages", ex);
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+
+		protected void awaitStored(BareJID jid) {
+			if (!pending.containsKey(jid)) {
+				return;
+			}
+
+			long deadline = System.currentTimeMillis() + PENDING_WAIT_TIMEOUT;
+
+			synchronized (this) {
+				long remaining;
+
+				while (pending.containsKey(jid) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+					try {
+						wait(remaining);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+
+			if (pending.containsKey(jid)) {
+				log.log(Level.FINE, "Offline messages for {0} are still waiting to be stored", jid);
+			}
+		}
+
+		protected void getStatistics(String compName, String prefix, StatisticsList list) {
+			long batches = this.batches.sum();
+			long messages = this.messages.sum();
+
+			list.add(compName, prefix + " queue size", queue.size(), Level.FINE);
+			list.add(compName, prefix + " batches", batches, Level.FINE);
+			list.add(compName, prefix + " stored messages", stored.sum(), Level.FINE);
+			list.add(compName, prefix + " rejected messages", rejected.sum(), Level.FINE);
+			list.add(compName, prefix + " failed messages", failed.sum(), Level.FINE);
+			list.add(compName, prefix + " messages over limit", dropped.sum(), Level.FINER);
+			if (batches > 0) {
+				list.add(compName, prefix + " average batch size", (float) messages / batches, Level.FINE);
+				list.add(compName, prefix + " average flush latency [ms]",
+						 (float) flushTime.sum() / batches / 1000000, Level.FINE);
+			}
+			list.add(compName, prefix + " max flush latency [ms]", flushTimeMax.get() / 1000000f, Level.FINE);
+		}
+
+		protected boolean offer(PendingMessage msg) {
+			if (stopped) {
+				return false;
+			}
+
+			pending.merge(msg.to, 1, Integer::sum);
+
+			boolean added = false;
+
+			try {
+				added = queue.offer(msg, writeBehindOfferTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (added && stopped && queue.remove(msg)) {
+				// queue was already drained by stop(), so message would not be stored
+				added = false;
+			}
+
+			if (!added) {
+				rejected.increment();
+				completed(msg.to);
+				log.log(Level.FINE, "Write-behind queue is full, offline message to {0} will be stored synchronously",
+						msg.to);
+			}
+			return added;
+		}
+
+		protected void start() {
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		protected void stop() {
+			stopped = true;
+			thread.interrupt();
+			try {
+				thread.join(PENDING_WAIT_TIMEOUT);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			// messages queued while the thread was stopping
+			List<PendingMessage> batch = new ArrayList<>();
+
+			queue.drainTo(batch);
+			if (!batch.isEmpty()) {
+				flush(batch);
+			}
+		}
+
+		private void completed(BareJID jid) {
+			pending.computeIfPresent(jid, (key, count) -> count > 1 ? count - 1 : null);
+		}
+
+		private List<PendingMessage> executeBatch(PreparedStatement store_msg_st, List<PendingMessage> msgs) {
+			synchronized (store_msg_st) {
+				try {
+					for (PendingMessage msg : msgs) {
+						setMessageParameters(store_msg_st, msg);
+						store_msg_st.addBatch();
+					}
+					store_msg_st.executeBatch();
+					stored.add(msgs.size());
+					return Collections.emptyList();
+				} catch (BatchUpdateException ex) {
+					// depending on the driver, execution stops at the failed message or continues with the next ones
+					int[] counts = ex.getUpdateCounts();
+					List<PendingMessage> result = new ArrayList<>();
+
+					for (int i = 0; i < msgs.size(); i++) {
+						if (counts != null && i < counts.length && counts[i] != Statement.EXECUTE_FAILED) {
+							stored.increment();
+						} else {
+							result.add(msgs.get(i));
+						}
+					}
+					log.log(Level.FINE, "Problem storing batch of offline messages, " + result.size() +
+							" messages will be stored one by one", ex);
+					return result;
+				} catch (SQLException ex) {
+					log.log(Level.FINE, "Problem storing batch of offline messages, messages will be stored one by one",
+							ex);
+					return msgs;
+				} finally {
+					try {
+						store_msg_st.clearBatch();
+					} catch (SQLException ex) {
+						log.log(Level.FINEST, "Problem clearing batch", ex);
+					}
+				}
+			}
+		}
+
+		private void flush(List<PendingMessage> batch) {
+			long start = System.nanoTime();
+
+			try {
+				// messages for the same statement (connection) are stored in a single batch in the order of arrival
+				Map<PreparedStatement, List<PendingMessage>> statements = new LinkedHashMap<>();
+				List<PendingMessage> unstored = new ArrayList<>();
+
+				for (PendingMessage msg : batch) {
+					try {
+						statements.computeIfAbsent(data_repo.getPreparedStatement(msg.to, MSGS_STORE_MESSAGE),
+												   st -> new ArrayList<>()).add(msg);
+					} catch (SQLException ex) {
+						log.log(Level.FINE, "Problem preparing statement to store batch of offline messages", ex);
+						unstored.add(msg);
+					}
+				}
+
+				for (Map.Entry<PreparedStatement, List<PendingMessage>> e : statements.entrySet()) {
+					unstored.addAll(executeBatch(e.getKey(), e.getValue()));
+				}
+
+				// messages which could not be stored in a batch are retried one by one
+				for (PendingMessage msg : unstored) {
+					storeSingle(msg);
+				}
+
+				for (PendingMessage msg : batch) {
+					messageStored(msg.expired);
+				}
+			} finally {
+				for (PendingMessage msg : batch) {
+					completed(msg.to);
+				}
+				synchronized (this) {
+					notifyAll();
+				}
+
+				long time = System.nanoTime() - start;
+
+				batches.increment();
+				messages.add(batch.size());
+				flushTime.add(time);
+				flushTimeMax.accumulateAndGet(time, Math::max);
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Stored batch of {0} offline messages in {1}ms",
+							new Object[]{batch.size(), TimeUnit.NANOSECONDS.toMillis(time)});
+				}
+			}
+		}
+
+		private void storeSingle(PendingMessage msg) {
+			try {
+				PreparedStatement insert_msg_st = data_repo.getPreparedStatement(msg.to, MSGS_ADD_MESSAGE);
+
+				boolean inserted;
+
+				synchronized (insert_msg_st) {
+					inserted = insertMessage(insert_msg_st, msg);
+				}
+				if (inserted) {
+					stored.increment();
+				} else {
+					dropped.increment();
+				}
+			} catch (DataTruncation dte) {
+				failed.increment();
+				log.log(Level.FINE, "Data truncated for message from {0} to {1}", new Object[]{msg.from, msg.to});
+			} catch (SQLException ex) {
+				failed.increment();
+				logStoreException(ex);
+			}
+		}
+	}
+
 }
@@ -28,6 +28,7 @@ import tigase.kernel.core.Kernel;
 import tigase.osgi.ModulesManagerImpl;
 import tigase.server.BasicComponent;
 import tigase.server.xmppsession.SessionManager;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
@@ -40,6 +41,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
@@ -207,6 +209,16 @@ public abstract class MsgRepository<T, S extends DataSource>
 		this.expiredMessagesCondition = condition;
 	}
 
+	/**
+	 * Method adds statistics specific to this repository instance to the list.
+	 *
+	 * @param compName name of the component collecting statistics
+	 * @param prefix prefix for names of statistics
+	 * @param list of statistics
+	 */
+	public void getStatistics(String compName, String prefix, StatisticsList list) {
+	}
+
 	protected abstract void loadExpiredQueue(int max);
 
 	protected abstract void loadExpiredQueue(Date expired);
@@ -276,6 +288,7 @@ public abstract class MsgRepository<T, S extends DataSource>
 
 		private final transient ReentrantLock lock = new ReentrantLock();
 		private final Condition expiredMessagesCondition = lock.newCondition();
+		private final ConcurrentHashMap<String, MsgRepositoryIfc> msgRepositories = new ConcurrentHashMap<>();
 
 		public MsgRepositoryMDBean() {
 			super(MsgRepositoryIfc.class, OfflineMsgRepositoryIfc.class);
@@ -306,6 +319,16 @@ public abstract class MsgRepository<T, S extends DataSource>
 			return null;
 		}
 
+		@Override
+		public void getStatistics(String compName, StatisticsList list) {
+			super.getStatistics(compName, list);
+			msgRepositories.forEach((domain, repo) -> {
+				if (repo instanceof MsgRepository) {
+					((MsgRepository) repo).getStatistics(compName, getName() + "/" + domain, list);
+				}
+			});
+		}
+
 		@Override
 		public Queue<Element> loadMessagesToJID(XMPPResourceConnection session, boolean delete)
 				throws UserNotFoundException {
@@ -380,6 +403,16 @@ public abstract class MsgRepository<T, S extends DataSource>
 			repo.setCondition(lock, expiredMessagesCondition);
 		}
 
+		@Override
+		protected void updateDataSourceAware(String domain, MsgRepositoryIfc newRepo, MsgRepositoryIfc oldRepo) {
+			if (newRepo != null) {
+				msgRepositories.put(domain, newRepo);
+			} else {
+				msgRepositories.remove(domain, oldRepo);
+			}
+			super.updateDataSourceAware(domain, newRepo, oldRepo);
+		}
+
 		protected <T> T getValueForDomain(Map<String, T> map, String domain) {
 			T value = map.get(domain);
 			if (value == null) {
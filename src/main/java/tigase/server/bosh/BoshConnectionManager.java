@@ -29,6 +29,7 @@ import tigase.server.Packet;
 import tigase.server.ReceiverTimeoutHandler;
 import tigase.server.xmppclient.ClientConnectionManager;
 import tigase.server.xmppclient.SeeOtherHostIfc.Phase;
+import tigase.stats.LatencyHistogram;
 import tigase.stats.StatisticsList;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
@@ -41,7 +42,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 
@@ -70,7 +71,7 @@ public class BoshConnectionManager
 	private static final int DEF_PORT_NO = 5280;
 
 	private static java.util.logging.Handler sidFilehandler;
-	protected final Map<UUID, BoshSession> sessions = new ConcurrentSkipListMap<UUID, BoshSession>();
+	protected final Map<UUID, BoshSession> sessions = new ConcurrentHashMap<UUID, BoshSession>();
 	private int[] PORTS = {DEF_PORT_NO};
 	@ConfigField(desc = "Batch queue timeout", alias = BATCH_QUEUE_TIMEOUT_KEY)
 	private long batch_queue_timeout = BATCH_QUEUE_TIMEOUT_VAL;
@@ -104,6 +105,13 @@ public class BoshConnectionManager
 	private boolean sendNodeHostname = SEND_NODE_HOSTNAME_VAL;
 	@ConfigField(desc = "SID logger level", alias = SID_LOGGER_KEY)
 	private String sidLoggerLevel = SID_LOGGER_VAL;
+	@ConfigField(desc = "Tick of BOSH timers wheel in ms, 0 to use scheduler", alias = BOSH_TIMER_WHEEL_TICK_KEY)
+	private long timerWheelTick = BOSH_TIMER_WHEEL_TICK_VAL;
+	private final LatencyHistogram requestLatency = new LatencyHistogram("latency");
+	private final LatencyHistogram sessionLockWait = new LatencyHistogram("session lock wait");
+	private final LatencyHistogram timerCancelTime = new LatencyHistogram("cancel");
+	private final LatencyHistogram timerScheduleTime = new LatencyHistogram("schedule");
+	private volatile BoshTimerWheel timerWheel = null;
 	private ReceiverTimeoutHandler startedHandler = newStartedHandler();
 
 	;
@@ -176,7 +184,14 @@ public class BoshConnectionManager
 
 	@Override
 	public void cancelTask(BoshTask tt) {
+		long start = System.nanoTime();
+		BoshTimerWheel wheel = timerWheel;
+
 		tt.cancel();
+		if (wheel != null) {
+			wheel.remove(tt);
+		}
+		timerCancelTime.record(System.nanoTime() - start);
 	}
 
 	@Override
@@ -202,68 +217,72 @@ public class BoshConnectionManager
 			BoshSession bs = null;
 			String sid_str = null;
 
-			synchronized (sessions) {
-				if (log.isLoggable(Level.FINER)) {
-					log.log(Level.FINER, "Processing packet: {0}, type: {1}",
-							new Object[]{p.getElemName(), p.getType()});
-				}
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Processing socket data: {0}", p);
-				}
-				sid_str = p.getAttributeStaticStr(SID_ATTR);
+			long start = System.nanoTime();
 
-				UUID sid = null;
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Processing packet: {0}, type: {1}",
+						new Object[]{p.getElemName(), p.getType()});
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Processing socket data: {0}", p);
+			}
+			sid_str = p.getAttributeStaticStr(SID_ATTR);
 
-				if (sid_str == null) {
-					String hostname = p.getAttributeStaticStr(Packet.TO_ATT);
+			UUID sid = null;
 
-					if ((hostname != null) && isLocalDomain(hostname)) {
-						if (!isAllowed(srv, hostname)) {
-							if (log.isLoggable(Level.FINE)) {
-								log.log(Level.FINE, "Policy violation. Closing connection: {0}", p);
-							}
-							try {
-								serv.sendErrorAndStop(Authorization.NOT_ALLOWED, StreamError.PolicyViolation, p,
-													  "Policy violation.");
-							} catch (IOException e) {
-								log.log(Level.WARNING, "Problem sending invalid hostname error for sid =  " + sid, e);
-							}
-						} else {
-							bs = new BoshSession(getDefVHostItem().getDomain(),
-												 JID.jidInstanceNS(routings.computeRouting(hostname)), this,
-												 sendNodeHostname ? getDefHostName().getDomain() : null,
-												 maxSessionWaitingPackets);
-							sid = bs.getSid();
-							sessions.put(sid, bs);
-
-							if (log.isLoggable(Level.FINE)) {
-								log.log(Level.FINE, "{0} : {1} ({2})",
-										new Object[]{BOSH_OPERATION_TYPE.CREATE, sid, "Socket bosh session"});
-							}
+			if (sid_str == null) {
+				String hostname = p.getAttributeStaticStr(Packet.TO_ATT);
+
+				if ((hostname != null) && isLocalDomain(hostname)) {
+					if (!isAllowed(srv, hostname)) {
+						if (log.isLoggable(Level.FINE)) {
+							log.log(Level.FINE, "Policy violation. Closing connection: {0}", p);
 						}
-					} else {
 						try {
-							serv.sendErrorAndStop(Authorization.NOT_ALLOWED, hostname == null
-																			 ? StreamError.ImproperAddressing
-																			 : StreamError.HostUnknown, p,
-												  "Invalid hostname.");
+							serv.sendErrorAndStop(Authorization.NOT_ALLOWED, StreamError.PolicyViolation, p,
+												  "Policy violation.");
 						} catch (IOException e) {
 							log.log(Level.WARNING, "Problem sending invalid hostname error for sid =  " + sid, e);
 						}
+					} else {
+						bs = new BoshSession(getDefVHostItem().getDomain(),
+											 JID.jidInstanceNS(routings.computeRouting(hostname)), this,
+											 sendNodeHostname ? getDefHostName().getDomain() : null,
+											 maxSessionWaitingPackets);
+						sid = bs.getSid();
+						sessions.put(sid, bs);
+
+						if (log.isLoggable(Level.FINE)) {
+							log.log(Level.FINE, "{0} : {1} ({2})",
+									new Object[]{BOSH_OPERATION_TYPE.CREATE, sid, "Socket bosh session"});
+						}
 					}
 				} else {
 					try {
-						sid = UUID.fromString(sid_str);
-						bs = sessions.get(sid);
-					} catch (IllegalArgumentException e) {
-						log.log(Level.WARNING, "Problem processing socket data, sid =  " + sid_str +
-								" does not conform to the UUID string representation.", e);
+						serv.sendErrorAndStop(Authorization.NOT_ALLOWED, hostname == null
+																		 ? StreamError.ImproperAddressing
+																		 : StreamError.HostUnknown, p,
+											  "Invalid hostname.");
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Problem sending invalid hostname error for sid =  " + sid, e);
 					}
 				}
+			} else {
+				try {
+					sid = UUID.fromString(sid_str);
+					bs = sessions.get(sid);
+				} catch (IllegalArgumentException e) {
+					log.log(Level.WARNING, "Problem processing socket data, sid =  " + sid_str +
+							" does not conform to the UUID string representation.", e);
+				}
 			}
 			try {
 				if (bs != null) {
+					long lockStart = System.nanoTime();
+
+					// requests are serialized only for the same session
 					synchronized (bs) {
+						sessionLockWait.record(System.nanoTime() - lockStart);
 						if (sid_str == null) {
 							bs.init(p, serv, max_wait, min_polling, max_inactivity, concurrent_requests, hold_requests,
 									max_pause, max_batch_size, batch_queue_timeout, out_results);
@@ -282,6 +301,7 @@ public class BoshConnectionManager
 			} catch (IOException e) {
 				log.log(Level.WARNING, "Problem processing socket data for sid =  " + sid_str, e);
 			}
+			requestLatency.record(System.nanoTime() - start);
 
 			// addOutPackets(out_results);
 		}    // end of while ()
@@ -301,9 +321,16 @@ public class BoshConnectionManager
 
 	@Override
 	public BoshTask scheduleTask(BoshSession bs, long delay) {
+		long start = System.nanoTime();
 		BoshTask bt = new BoshTask(bs, this);
+		BoshTimerWheel wheel = timerWheel;
 
-		addTimerTask(bt, delay);
+		if (wheel != null) {
+			wheel.schedule(bt, delay);
+		} else {
+			addTimerTask(bt, delay);
+		}
+		timerScheduleTime.record(System.nanoTime() - start);
 
 		// boshTasks.schedule(bt, delay);
 		return bt;
@@ -439,10 +466,16 @@ public class BoshConnectionManager
 	@Override
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
-		if (list.checkLevel(Level.FINEST)) {
+		list.add(getName(), "Bosh sessions", sessions.size(), Level.FINE);
+		requestLatency.getStatistics(getName(), "Bosh request", list, Level.FINE);
+		sessionLockWait.getStatistics(getName(), "Bosh request", list, Level.FINER);
+		timerScheduleTime.getStatistics(getName(), "Bosh timer", list, Level.FINER);
+		timerCancelTime.getStatistics(getName(), "Bosh timer", list, Level.FINER);
+
+		BoshTimerWheel wheel = timerWheel;
 
-			// Be careful here, the size() for this map is expensive to count
-			list.add(getName(), "Bosh sessions", sessions.size(), Level.FINEST);
+		if (wheel != null) {
+			wheel.getStatistics(getName(), list);
 		}
 	}
 
@@ -472,6 +505,28 @@ public class BoshConnectionManager
 		super.initialize();
 	}
 
+	@Override
+	public void start() {
+		super.start();
+		if (timerWheelTick > 0) {
+			BoshTimerWheel wheel = new BoshTimerWheel(timerWheelTick);
+
+			addTimerTask(wheel, wheel.getTickMillis(), wheel.getTickMillis());
+			timerWheel = wheel;
+		}
+	}
+
+	@Override
+	public void stop() {
+		BoshTimerWheel wheel = timerWheel;
+
+		if (wheel != null) {
+			timerWheel = null;
+			wheel.cancel();
+		}
+		super.stop();
+	}
+
 	@Override
 	public boolean isCloseConnections() {
 		return closeConnections;
@@ -0,0 +1,108 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.bosh;
+
+import tigase.stats.StatisticsList;
+import tigase.util.common.TimerTask;
+import tigase.util.common.TimingWheel;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timers of BOSH sessions kept in a {@link TimingWheel}. Scheduling and cancelling a timer only links or unlinks it in
+ * a slot of the wheel. This task has to be executed periodically, every tick of the wheel, and it runs all timers which
+ * are due in a single batch, so timers fire up to one tick later than requested.
+ */
+class BoshTimerWheel
+		extends TimerTask {
+
+	private static final Logger log = Logger.getLogger(BoshTimerWheel.class.getName());
+
+	private final TimingWheel<TimerTask> wheel;
+	private long batches = 0;
+	private long expired = 0;
+	private int maxBatchSize = 0;
+
+	BoshTimerWheel(long tickMillis) {
+		wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+	}
+
+	long getTickMillis() {
+		return wheel.getTickMillis();
+	}
+
+	void schedule(TimerTask task, long delay) {
+		wheel.schedule(task, System.currentTimeMillis() + delay);
+	}
+
+	boolean remove(TimerTask task) {
+		return wheel.remove(task);
+	}
+
+	int size() {
+		return wheel.size();
+	}
+
+	@Override
+	public void run() {
+		expire(System.currentTimeMillis());
+	}
+
+	/**
+	 * Runs all timers which are due.
+	 *
+	 * @param now current time in milliseconds
+	 *
+	 * @return number of timers which were run
+	 */
+	int expire(long now) {
+		List<TimerTask> tasks = wheel.advance(now);
+		int executed = 0;
+
+		for (TimerTask task : tasks) {
+			if (task.isCancelled()) {
+				continue;
+			}
+			try {
+				task.run();
+				++executed;
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "Exception during execution of BOSH timer: " + task, ex);
+			}
+		}
+		if (!tasks.isEmpty()) {
+			++batches;
+			expired += executed;
+			maxBatchSize = Math.max(maxBatchSize, tasks.size());
+		}
+		return executed;
+	}
+
+	void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Bosh timers scheduled", wheel.size(), Level.FINE);
+		list.add(compName, "Bosh timers expired", expired, Level.FINE);
+		list.add(compName, "Bosh timer batches", batches, Level.FINER);
+		list.add(compName, "Bosh timer max batch size", maxBatchSize, Level.FINER);
+		if (list.checkLevel(Level.FINEST)) {
+			list.add(compName, "Bosh timer wheel occupancy", Arrays.toString(wheel.getOccupancy()), Level.FINEST);
+		}
+	}
+}
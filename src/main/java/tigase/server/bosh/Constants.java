@@ -48,6 +48,10 @@ public abstract class Constants {
 
 	protected static final String BOSH_SESSION_CLOSE_DELAY_PROP_KEY = "bosh-session-close-delay";
 
+	protected static final String BOSH_TIMER_WHEEL_TICK_KEY = "bosh-timer-wheel-tick";
+
+	protected static final long BOSH_TIMER_WHEEL_TICK_VAL = 100;
+
 	protected static final String BOSH_XMLNS = "http://jabber.org/protocol/httpbind";
 
 	protected static final String CACHE_ATTR = "cache";
@@ -0,0 +1,499 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression context of a single WebSocket connection using <code>permessage-deflate</code> extension.
+ * <br>
+ * If context takeover is used in a direction, deflater or inflater for this direction is kept by the connection until
+ * it is closed, as the compression state is shared by all messages. Otherwise it is taken from the {@link Pool} for a
+ * single message and returned to the pool right after it, so idle connections do not keep any compression buffers.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7692">RFC 7692: Compression Extensions for WebSocket</a>
+ */
+public final class PerMessageDeflate {
+
+	public static final String EXTENSION_NAME = "permessage-deflate";
+
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	// limit of decompressed size of a single message protecting from decompression bombs
+	private static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+	private static final int MAX_WINDOW_BITS = 15;
+	private static final int MIN_WINDOW_BITS = 8;
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final byte[] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+
+	private final boolean clientNoContextTakeover;
+	private final Object deflateLock = new Object();
+	private final Object inflateLock = new Object();
+	private final Pool pool;
+	private final String responseHeader;
+	private final boolean serverNoContextTakeover;
+	private final int serverMaxWindowBits;
+	private boolean closed = false;
+	private long compressedIn = 0;
+	private long compressedOut = 0;
+	private Deflater deflater = null;
+	private int inflatedMessageSize = 0;
+	private boolean inflatingMessage = false;
+	private Inflater inflater = null;
+	private long uncompressedIn = 0;
+	private long uncompressedOut = 0;
+
+	/**
+	 * Selects the first acceptable <code>permessage-deflate</code> offer from the value of
+	 * <code>Sec-WebSocket-Extensions</code> header sent by the client.
+	 *
+	 * @param extensions value of the header
+	 * @param serverContextTakeover if <code>false</code> server resets compression after each message
+	 * @param clientContextTakeover if <code>false</code> client is asked to reset compression after each message
+	 * @param clientMaxWindowBits maximal size of LZ77 window requested from the client, if client supports it
+	 * @param pool pool of deflaters and inflaters
+	 *
+	 * @return compression context or <code>null</code> if there is no acceptable offer
+	 */
+	public static PerMessageDeflate negotiate(String extensions, boolean serverContextTakeover,
+											  boolean clientContextTakeover, int clientMaxWindowBits, Pool pool) {
+		if (extensions == null) {
+			return null;
+		}
+		for (String offer : extensions.split(",")) {
+			String[] parts = offer.split(";");
+			if (!EXTENSION_NAME.equalsIgnoreCase(parts[0].trim())) {
+				continue;
+			}
+
+			boolean serverNoContextTakeover = false;
+			boolean clientNoContextTakeover = false;
+			int serverMaxWindowBits = -1;
+			int offeredClientMaxWindowBits = -1;
+			boolean valid = true;
+
+			for (int i = 1; i < parts.length && valid; i++) {
+				String param = parts[i].trim();
+				String value = null;
+				int idx = param.indexOf('=');
+				if (idx > 0) {
+					value = param.substring(idx + 1).trim();
+					if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+						value = value.substring(1, value.length() - 1);
+					}
+					param = param.substring(0, idx).trim();
+				}
+				switch (param.toLowerCase()) {
+					case SERVER_NO_CONTEXT_TAKEOVER:
+						valid = value == null && !serverNoContextTakeover;
+						serverNoContextTakeover = true;
+						break;
+					case CLIENT_NO_CONTEXT_TAKEOVER:
+						valid = value == null && !clientNoContextTakeover;
+						clientNoContextTakeover = true;
+						break;
+					case SERVER_MAX_WINDOW_BITS:
+						valid = serverMaxWindowBits == -1;
+						serverMaxWindowBits = parseWindowBits(value);
+						valid &= serverMaxWindowBits > 0;
+						break;
+					case CLIENT_MAX_WINDOW_BITS:
+						valid = offeredClientMaxWindowBits == -1;
+						offeredClientMaxWindowBits = value == null ? MAX_WINDOW_BITS : parseWindowBits(value);
+						valid &= offeredClientMaxWindowBits > 0;
+						break;
+					default:
+						valid = false;
+				}
+			}
+			if (!valid) {
+				continue;
+			}
+
+			StringBuilder response = new StringBuilder(EXTENSION_NAME);
+			if (serverMaxWindowBits == -1) {
+				serverMaxWindowBits = MAX_WINDOW_BITS;
+			} else {
+				response.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(serverMaxWindowBits);
+			}
+			// Deflater always uses the largest window, so compressed messages may refer only to data of the same
+			// message if client requested smaller window
+			serverNoContextTakeover |= !serverContextTakeover || serverMaxWindowBits < MAX_WINDOW_BITS;
+			if (serverNoContextTakeover) {
+				response.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+			}
+			clientNoContextTakeover |= !clientContextTakeover;
+			if (clientNoContextTakeover) {
+				response.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+			}
+			if (offeredClientMaxWindowBits != -1 && clientMaxWindowBits < offeredClientMaxWindowBits) {
+				response.append("; ")
+						.append(CLIENT_MAX_WINDOW_BITS)
+						.append('=')
+						.append(Math.max(MIN_WINDOW_BITS, clientMaxWindowBits));
+			}
+			return new PerMessageDeflate(serverNoContextTakeover, clientNoContextTakeover, serverMaxWindowBits,
+										 response.toString(), pool);
+		}
+		return null;
+	}
+
+	private static int parseWindowBits(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			int bits = Integer.parseInt(value);
+			return bits >= MIN_WINDOW_BITS && bits <= MAX_WINDOW_BITS ? bits : -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover, int serverMaxWindowBits,
+					  String responseHeader, Pool pool) {
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.clientNoContextTakeover = clientNoContextTakeover;
+		this.serverMaxWindowBits = serverMaxWindowBits;
+		this.responseHeader = responseHeader;
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns negotiated parameters to send in <code>Sec-WebSocket-Extensions</code> header of the response.
+	 */
+	public String getResponseHeader() {
+		return responseHeader;
+	}
+
+	public boolean isServerNoContextTakeover() {
+		return serverNoContextTakeover;
+	}
+
+	public boolean isClientNoContextTakeover() {
+		return clientNoContextTakeover;
+	}
+
+	/**
+	 * Checks if the last received data frame started a compressed message which is not finished yet.
+	 */
+	public boolean isInflatingMessage() {
+		synchronized (inflateLock) {
+			return inflatingMessage;
+		}
+	}
+
+	/**
+	 * Compresses the whole message.
+	 *
+	 * @param data message to compress
+	 *
+	 * @return compressed message or <code>null</code> if message should be sent uncompressed
+	 */
+	public ByteBuffer compress(ByteBuffer data) {
+		int size = data.remaining();
+
+		synchronized (deflateLock) {
+			// deflater always uses the maximal window, so with a smaller window negotiated only messages fitting in it
+			// may be compressed without a shared context
+			if (closed || (serverNoContextTakeover && serverMaxWindowBits < MAX_WINDOW_BITS &&
+					size > (1 << serverMaxWindowBits))) {
+				countOut(size, size);
+				return null;
+			}
+
+			byte[] input;
+			int offset;
+			if (data.hasArray()) {
+				input = data.array();
+				offset = data.arrayOffset() + data.position();
+			} else {
+				input = new byte[size];
+				data.duplicate().get(input);
+				offset = 0;
+			}
+
+			Deflater def = deflater != null ? deflater : pool.borrowDeflater();
+			def.setInput(input, offset, size);
+
+			byte[] output = new byte[Math.max(64, size / 2 + 16)];
+			int length = 0;
+			while (true) {
+				length += def.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+				if (length < output.length) {
+					break;
+				}
+				output = Arrays.copyOf(output, output.length * 2);
+			}
+			// sync flush always ends with empty block which has to be removed
+			length -= TAIL.length;
+
+			if (serverNoContextTakeover) {
+				deflater = null;
+				pool.releaseDeflater(def);
+			} else {
+				deflater = def;
+			}
+
+			if (serverNoContextTakeover && length >= size) {
+				// compression context is not shared, so it is fine to send this message as it is
+				countOut(size, size);
+				return null;
+			}
+			countOut(length, size);
+			data.position(data.limit());
+
+			return ByteBuffer.wrap(output, 0, length);
+		}
+	}
+
+	/**
+	 * Decompresses data of a frame of compressed message.
+	 *
+	 * @param data payload of the frame
+	 * @param fin <code>true</code> if this is the last frame of the message
+	 *
+	 * @return decompressed data or <code>null</code> if the connection was closed
+	 *
+	 * @throws DataFormatException if data is not valid compressed data or message is too big
+	 */
+	public ByteBuffer decompress(byte[] data, boolean fin) throws DataFormatException {
+		synchronized (inflateLock) {
+			if (closed) {
+				return null;
+			}
+
+			Inflater inf = inflater != null ? inflater : pool.borrowInflater();
+			inflater = inf;
+			inflatingMessage = !fin;
+
+			byte[] input = data;
+			if (fin) {
+				input = Arrays.copyOf(data, data.length + TAIL.length);
+				System.arraycopy(TAIL, 0, input, data.length, TAIL.length);
+			}
+			inf.setInput(input);
+
+			// limit applies to the whole message, not to each of its fragments
+			int limit = MAX_INFLATED_SIZE - inflatedMessageSize;
+			byte[] output = new byte[Math.max(1, Math.min(limit, Math.max(64, input.length * 4)))];
+			int length = 0;
+			try {
+				while (true) {
+					length += inf.inflate(output, length, output.length - length);
+					if (length < output.length) {
+						if (inf.needsInput() || inf.finished() || inf.needsDictionary()) {
+							break;
+						}
+						continue;
+					}
+					if (output.length >= limit) {
+						throw new DataFormatException("Decompressed message is too big");
+					}
+					output = Arrays.copyOf(output, Math.min(limit, output.length * 2));
+				}
+				if (inf.needsDictionary()) {
+					throw new DataFormatException("Dictionary is not supported");
+				}
+			} catch (DataFormatException ex) {
+				inflater = null;
+				inflatedMessageSize = 0;
+				inflatingMessage = false;
+				pool.releaseInflater(inf);
+				throw ex;
+			}
+			inflatedMessageSize = fin ? 0 : inflatedMessageSize + length;
+
+			if (fin && clientNoContextTakeover) {
+				inflater = null;
+				pool.releaseInflater(inf);
+			} else if (inf.finished()) {
+				// client ended the stream with a final block, next message starts a new one
+				inf.reset();
+			}
+
+			compressedIn += data.length;
+			uncompressedIn += length;
+			pool.compressedIn.add(data.length);
+			pool.uncompressedIn.add(length);
+
+			return ByteBuffer.wrap(output, 0, length);
+		}
+	}
+
+	/**
+	 * Returns ratio of size of data sent after compression to size of data before compression.
+	 */
+	public float getCompressionRatio() {
+		synchronized (deflateLock) {
+			return uncompressedOut == 0 ? 0f : ((float) compressedOut) / uncompressedOut;
+		}
+	}
+
+	/**
+	 * Returns ratio of size of received compressed data to size of data after decompression.
+	 */
+	public float getDecompressionRatio() {
+		synchronized (inflateLock) {
+			return uncompressedIn == 0 ? 0f : ((float) compressedIn) / uncompressedIn;
+		}
+	}
+
+	/**
+	 * Returns deflater and inflater kept by the connection to the pool. Called when the connection is closed.
+	 */
+	public void release() {
+		synchronized (deflateLock) {
+			closed = true;
+			if (deflater != null) {
+				pool.releaseDeflater(deflater);
+				deflater = null;
+			}
+		}
+		synchronized (inflateLock) {
+			if (inflater != null) {
+				pool.releaseInflater(inflater);
+				inflater = null;
+			}
+			inflatedMessageSize = 0;
+			inflatingMessage = false;
+		}
+	}
+
+	private void countOut(int compressed, int uncompressed) {
+		compressedOut += compressed;
+		uncompressedOut += uncompressed;
+		pool.compressedOut.add(compressed);
+		pool.uncompressedOut.add(uncompressed);
+	}
+
+	/**
+	 * Pool of idle deflaters and inflaters shared by all connections. Number of idle instances kept by the pool is
+	 * limited, instances released above this limit are freed.
+	 */
+	public static class Pool {
+
+		private final LongAdder compressedIn = new LongAdder();
+		private final LongAdder compressedOut = new LongAdder();
+		private final AtomicInteger instances = new AtomicInteger();
+		private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger idleDeflaters = new AtomicInteger();
+		private final AtomicInteger idleInflaters = new AtomicInteger();
+		private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+		private final LongAdder uncompressedIn = new LongAdder();
+		private final LongAdder uncompressedOut = new LongAdder();
+		private volatile int level = Deflater.DEFAULT_COMPRESSION;
+		private volatile int maxIdle;
+
+		public Pool(int maxIdle) {
+			this.maxIdle = maxIdle;
+		}
+
+		public void setMaxIdle(int maxIdle) {
+			this.maxIdle = maxIdle;
+		}
+
+		public void setLevel(int level) {
+			this.level = level;
+		}
+
+		/**
+		 * Returns number of deflaters and inflaters which are used by connections or idle.
+		 */
+		public int getInstances() {
+			return instances.get();
+		}
+
+		public int getIdleDeflaters() {
+			return idleDeflaters.get();
+		}
+
+		public int getIdleInflaters() {
+			return idleInflaters.get();
+		}
+
+		/**
+		 * Returns ratio of size of data sent after compression to size of data before compression by all
+		 * connections.
+		 */
+		public float getCompressionRatio() {
+			long uncompressed = uncompressedOut.sum();
+			return uncompressed == 0 ? 0f : ((float) compressedOut.sum()) / uncompressed;
+		}
+
+		/**
+		 * Returns ratio of size of received compressed data to size of data after decompression by all connections.
+		 */
+		public float getDecompressionRatio() {
+			long uncompressed = uncompressedIn.sum();
+			return uncompressed == 0 ? 0f : ((float) compressedIn.sum()) / uncompressed;
+		}
+
+		Deflater borrowDeflater() {
+			Deflater deflater = deflaters.poll();
+			if (deflater != null) {
+				idleDeflaters.decrementAndGet();
+				deflater.setLevel(level);
+				return deflater;
+			}
+			instances.incrementAndGet();
+			return new Deflater(level, true);
+		}
+
+		Inflater borrowInflater() {
+			Inflater inflater = inflaters.poll();
+			if (inflater != null) {
+				idleInflaters.decrementAndGet();
+				return inflater;
+			}
+			instances.incrementAndGet();
+			return new Inflater(true);
+		}
+
+		void releaseDeflater(Deflater deflater) {
+			deflater.reset();
+			if (idleDeflaters.incrementAndGet() <= maxIdle) {
+				deflaters.offer(deflater);
+			} else {
+				idleDeflaters.decrementAndGet();
+				instances.decrementAndGet();
+				deflater.end();
+			}
+		}
+
+		void releaseInflater(Inflater inflater) {
+			inflater.reset();
+			if (idleInflaters.incrementAndGet() <= maxIdle) {
+				inflaters.offer(inflater);
+			} else {
+				idleInflaters.decrementAndGet();
+				instances.decrementAndGet();
+				inflater.end();
+			}
+		}
+	}
+}
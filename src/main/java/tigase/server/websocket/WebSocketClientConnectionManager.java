@@ -25,6 +25,7 @@ import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.core.Kernel;
 import tigase.net.SocketType;
 import tigase.server.xmppclient.XMPPIOProcessor;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.StreamError;
 import tigase.xmpp.XMPPIOService;
@@ -55,6 +56,14 @@ public class WebSocketClientConnectionManager
 		return "Websocket connection manager";
 	}
 
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		for (WebSocketProtocolIfc protocol : enabledProtocolVersions) {
+			protocol.getStatistics(getName(), list);
+		}
+	}
+
 	@Override
 	protected int[] getDefPlainPorts() {
 		return new int[]{5290};
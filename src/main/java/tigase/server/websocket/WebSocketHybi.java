@@ -19,6 +19,7 @@ package tigase.server.websocket;
 
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticsList;
 import tigase.util.Base64;
 
 import java.io.IOException;
@@ -29,6 +30,8 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 
 import static tigase.server.websocket.WebSocketXMPPIOService.State.closing;
 
@@ -54,6 +57,7 @@ public class WebSocketHybi
 					"Access-Control-Allow-Headers: Content-Type\r\n" + "Access-Control-Max-Age: 86400\r\n";
 
 	private static final String WS_ACCEPT_KEY = "Sec-WebSocket-Accept";
+	private static final String WS_EXTENSIONS_KEY = "Sec-WebSocket-Extensions";
 	private static final String WS_KEY_KEY = "Sec-WebSocket-Key";
 
 	private static final String CLOSE_CODE = "close-code";
@@ -61,12 +65,39 @@ public class WebSocketHybi
 	private static byte[] EMPTY = new byte[0];
 	@ConfigField(desc = "Allow for unmasked frames send from client", alias = "ws-allow-unmasked-frames")
 	private boolean allowUnmaskedFromClient = false;
+	@ConfigField(desc = "Client may keep compression context", alias = "ws-deflate-client-context-takeover")
+	private boolean deflateClientContextTakeover = true;
+	@ConfigField(desc = "Maximal LZ77 window size requested from client", alias = "ws-deflate-client-max-window-bits")
+	private int deflateClientMaxWindowBits = 15;
+	@ConfigField(desc = "Compression level", alias = "ws-deflate-level")
+	private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+	@ConfigField(desc = "Number of idle deflaters and inflaters kept for reuse", alias = "ws-deflate-pool-size")
+	private int deflatePoolSize = 64;
+	@ConfigField(desc = "Server keeps compression context", alias = "ws-deflate-server-context-takeover")
+	private boolean deflateServerContextTakeover = true;
+	@ConfigField(desc = "Enable permessage-deflate compression", alias = "ws-permessage-deflate")
+	private boolean permessageDeflate = false;
+	private final PerMessageDeflate.Pool deflatePool = new PerMessageDeflate.Pool(deflatePoolSize);
 
 	@Override
 	public String getId() {
 		return ID;
 	}
 
+	public void setDeflateLevel(int deflateLevel) {
+		this.deflateLevel = deflateLevel;
+		deflatePool.setLevel(deflateLevel);
+	}
+
+	public void setDeflatePoolSize(int deflatePoolSize) {
+		this.deflatePoolSize = deflatePoolSize;
+		deflatePool.setMaxIdle(deflatePoolSize);
+	}
+
+	public void setPermessageDeflate(boolean permessageDeflate) {
+		this.permessageDeflate = permessageDeflate;
+	}
+
 	static String calculateWsAcceptKey(final String webSocketKey) throws NoSuchAlgorithmException {
 		final MessageDigest md = MessageDigest.getInstance("SHA1");
 		if (webSocketKey != null) {
@@ -99,6 +130,16 @@ public class WebSocketHybi
 		response.append(WS_ACCEPT_KEY + ": ");
 		response.append(wsAccept);
 		response.append("\r\n");
+		if (permessageDeflate) {
+			PerMessageDeflate deflate = PerMessageDeflate.negotiate(headers.get(WS_EXTENSIONS_KEY.toUpperCase()),
+																	deflateServerContextTakeover,
+																	deflateClientContextTakeover,
+																	deflateClientMaxWindowBits, deflatePool);
+			if (deflate != null) {
+				response.append(WS_EXTENSIONS_KEY).append(": ").append(deflate.getResponseHeader()).append("\r\n");
+				service.deflate = deflate;
+			}
+		}
 		response.append("\r\n");
 		service.maskingKey = new byte[4];
 		service.writeRawData(response.toString());
@@ -182,6 +223,33 @@ public class WebSocketHybi
 				}
 				unmasked = ByteBuffer.wrap(data);
 				service.frameLength = -1;
+
+				// data frame (not a control frame) of a compressed message
+				if ((type & 0x08) == 0 && ((type & 0x40) == 0x40 || ((type & 0x0F) == 0x00 && service.deflate != null &&
+						service.deflate.isInflatingMessage()))) {
+					if (service.deflate == null) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST,
+									"Socket: {0}, closing connection due to protocol error - compressed frame without negotiated compression {1}",
+									new Object[]{service, String.format("%02X ", type)});
+						}
+						closeConnection(service, PROTOCOL_ERROR);
+						return null;
+					}
+					try {
+						unmasked = service.deflate.decompress(data, (type & 0x80) == 0x80);
+					} catch (DataFormatException ex) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Socket: {0}, closing connection due to invalid compressed data: {1}",
+									new Object[]{service, ex.getMessage()});
+						}
+						closeConnection(service, PROTOCOL_ERROR);
+						return null;
+					}
+					if (unmasked == null) {
+						return null;
+					}
+				}
 			} else {
 				// not enought data so reset buffer position
 				buf.position(position);
@@ -230,14 +298,25 @@ public class WebSocketHybi
 
 	@Override
 	public void encodeFrameAndWrite(WebSocketXMPPIOService service, ByteBuffer buf) throws IOException {
+		// set type as finally part (0x80) of message of type text (0x01)
+		byte type = (byte) 0x81;
+
+		if (service.deflate != null) {
+			ByteBuffer compressed = service.deflate.compress(buf);
+			if (compressed != null) {
+				// compressed message (0x40)
+				type = (byte) 0xC1;
+				buf = compressed;
+			}
+		}
+
 		int size = buf.remaining();
 
-		// set type as finally part (0x80) of message of type text (0x01)
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Socket: {0}, sending encoded data size = {1}", new Object[]{service, size});
 		}
 
-		ByteBuffer bbuf = createFrameHeader((byte) 0x81, size);
+		ByteBuffer bbuf = createFrameHeader(type, size);
 
 		// send frame header
 		service.writeBytes(bbuf);
@@ -271,6 +350,18 @@ public class WebSocketHybi
 		}
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		if (!permessageDeflate) {
+			return;
+		}
+		list.add(compName, "permessage-deflate compression ratio", deflatePool.getCompressionRatio(), Level.FINE);
+		list.add(compName, "permessage-deflate decompression ratio", deflatePool.getDecompressionRatio(), Level.FINE);
+		list.add(compName, "permessage-deflate deflaters and inflaters", deflatePool.getInstances(), Level.FINE);
+		list.add(compName, "permessage-deflate idle deflaters", deflatePool.getIdleDeflaters(), Level.FINER);
+		list.add(compName, "permessage-deflate idle inflaters", deflatePool.getIdleInflaters(), Level.FINER);
+	}
+
 	private void closeConnection(WebSocketXMPPIOService service, Integer code) {
 		if (code != null) {
 			service.getSessionData().put(CLOSE_CODE, code);
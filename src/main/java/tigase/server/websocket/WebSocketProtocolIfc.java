@@ -17,6 +17,8 @@
  */
 package tigase.server.websocket;
 
+import tigase.stats.StatisticsList;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
@@ -74,4 +76,10 @@ public interface WebSocketProtocolIfc {
 	 */
 	void closeConnection(WebSocketXMPPIOService service);
 
+	/**
+	 * Method adds statistics of the protocol implementation to the list
+	 */
+	default void getStatistics(String compName, StatisticsList list) {
+	}
+
 }
@@ -72,6 +72,8 @@ public class WebSocketXMPPIOService<RefObject>
 	private final WebSocketProtocolIfc[] protocols;
 	protected long frameLength = -1;
 	protected byte[] maskingKey = null;
+	// compression context if permessage-deflate was negotiated
+	protected PerMessageDeflate deflate = null;
 	private byte[] partialData = null;
 	private WebSocketProtocolIfc protocol = null;
 	private boolean started = false;
@@ -90,6 +92,19 @@ public class WebSocketXMPPIOService<RefObject>
 		super.stop(); //To change body of generated methods, choose Tools | Templates.
 	}
 
+	@Override
+	public void forceStop() {
+		try {
+			super.forceStop();
+		} finally {
+			// every way of stopping the connection ends here, so compression buffers are always returned to the pool
+			PerMessageDeflate deflate = this.deflate;
+			if (deflate != null) {
+				deflate.release();
+			}
+		}
+	}
+
 	public void dumpHeaders(Map<String, String> headers) {
 		if (log.isLoggable(Level.FINEST)) {
 			StringBuilder builder = new StringBuilder(1000);
@@ -431,9 +446,7 @@ public class WebSocketXMPPIOService<RefObject>
 			oldTmpBuffer.clear();
 			partialCharacterBytes = null;
 		}
-		if (cb.capacity() < tmpBuffer.remaining() * 4) {
-			cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
-		}
+		CharBuffer cb = charBuffer(tmpBuffer.remaining() * 4);
 
 		CoderResult cr = decoder.decode(tmpBuffer, cb, false);
 
@@ -0,0 +1,179 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppclient;
+
+import tigase.kernel.beans.config.ConfigField;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of SeeOtherHostIfc for cluster environment selecting redirect host with rendezvous (highest random
+ * weight) hashing of the user's JID.
+ * <br>
+ * Each node gets a score computed from hash of the user's JID and the node name and the node with the highest score is
+ * selected. Unlike {@link SeeOtherHostHashed}, which selects node by hash modulo number of nodes, adding or removing a
+ * node changes the host only for users which are moved to or from this node (about 1/N of users), so a change of the
+ * cluster does not cause redirection of almost all users. Optionally, nodes may have weights, so that a node receives
+ * users in proportion to its weight; node with weight <code>0</code> does not receive new users.
+ * <br>
+ * As with {@link SeeOtherHostHashed}, if default hosts are configured, only those which are connected are selected.
+ */
+public class SeeOtherHostRendezvous
+		extends SeeOtherHostHashed {
+
+	private static final Logger log = Logger.getLogger(SeeOtherHostRendezvous.class.getName());
+
+	private volatile Candidates candidates = null;
+	@ConfigField(desc = "Weights of cluster nodes", alias = "node-weights")
+	private Map<String, Integer> nodeWeights = new HashMap<>();
+
+	/**
+	 * Calculates 64-bit FNV-1a hash of the string, which is stable between JVMs and cluster nodes.
+	 */
+	static long hash(String str) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < str.length(); i++) {
+			hash ^= str.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Finalizer of MurmurHash3 spreading bits of both hashes over the whole result.
+	 */
+	static long mix(long jidHash, long nodeHash) {
+		long h = jidHash ^ nodeHash;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public BareJID findHostForJID(BareJID jid, BareJID host) {
+		Candidates candidates = getCandidates();
+		if (candidates.nodes.length == 0) {
+			return host;
+		}
+
+		long jidHash = hash(jid.toString());
+		BareJID selected = null;
+		double bestScore = 0;
+		for (int i = 0; i < candidates.nodes.length; i++) {
+			int weight = candidates.weights[i];
+			if (weight <= 0) {
+				continue;
+			}
+			// value in range (0, 1) built from the highest 53 bits of the hash
+			double u = ((mix(jidHash, candidates.hashes[i]) >>> 11) + 0.5) / (1L << 53);
+			// with weights score is scaled, so that node wins for a share of users proportional to its weight
+			double score = candidates.weighted ? -weight / Math.log(u) : u;
+			if (selected == null || score > bestScore) {
+				selected = candidates.nodes[i];
+				bestScore = score;
+			}
+		}
+		return selected == null ? host : selected;
+	}
+
+	public void setNodeWeights(Map<String, Integer> nodeWeights) {
+		this.nodeWeights = nodeWeights == null ? new HashMap<>() : nodeWeights;
+		this.candidates = null;
+	}
+
+	@Override
+	public void setDefaultHost(List<BareJID> defaultHost) {
+		super.setDefaultHost(defaultHost);
+		this.candidates = null;
+	}
+
+	private Candidates getCandidates() {
+		List<BareJID> connectedNodes = this.connectedNodes;
+		List<BareJID> defaultHost = this.defaultHost;
+		Candidates candidates = this.candidates;
+		if (candidates == null || candidates.connectedNodes != connectedNodes ||
+				candidates.defaultHost != defaultHost) {
+			candidates = new Candidates(connectedNodes, defaultHost, nodeWeights);
+			this.candidates = candidates;
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "selecting redirection hosts from: {0}", candidates);
+			}
+		}
+		return candidates;
+	}
+
+	private static class Candidates {
+
+		private final List<BareJID> connectedNodes;
+		private final List<BareJID> defaultHost;
+		private final long[] hashes;
+		private final BareJID[] nodes;
+		private final boolean weighted;
+		private final int[] weights;
+
+		private Candidates(List<BareJID> connectedNodes, List<BareJID> defaultHost, Map<String, Integer> nodeWeights) {
+			this.connectedNodes = connectedNodes;
+			this.defaultHost = defaultHost;
+
+			List<BareJID> nodes = new ArrayList<>();
+			if (defaultHost != null) {
+				for (BareJID node : defaultHost) {
+					if (connectedNodes.contains(node)) {
+						nodes.add(node);
+					}
+				}
+			}
+			if (nodes.isEmpty()) {
+				nodes.addAll(connectedNodes);
+			}
+
+			this.nodes = nodes.toArray(new BareJID[nodes.size()]);
+			this.hashes = new long[this.nodes.length];
+			this.weights = new int[this.nodes.length];
+			boolean weighted = false;
+			for (int i = 0; i < this.nodes.length; i++) {
+				hashes[i] = hash(this.nodes[i].toString());
+				Integer weight = nodeWeights.get(this.nodes[i].toString());
+				weights[i] = weight == null ? 1 : weight;
+				weighted |= weights[i] != 1;
+			}
+			this.weighted = weighted;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < nodes.length; i++) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(nodes[i]).append('=').append(weights[i]);
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.Authorization;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPProcessor;
+import tigase.xmpp.XMPPProcessorIfc;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Precompiled dispatch index of {@link XMPPProcessorIfc} instances used by {@link SessionManager} to find processors
+ * which are able to handle a packet without asking every loaded processor.
+ * <br>
+ * Processors relying on default {@link XMPPProcessor#canHandle(Packet, XMPPResourceConnection)} implementation are
+ * indexed by the stanza element name and the name of the first child in the element path declared by
+ * {@link XMPPProcessor#supElementNamePaths()}, so only entries which may match the packet have their XMLNS and stanza
+ * type checked. Processors with custom <code>canHandle()</code> implementation are kept on a fallback list and are
+ * asked for every packet, as before.
+ * <br>
+ * Instances are immutable, a new index has to be built whenever a processor is added or removed.
+ */
+public class ProcessorsDispatchIndex {
+
+	private static final Logger log = Logger.getLogger(ProcessorsDispatchIndex.class.getName());
+
+	private static final Entry[] EMPTY_ENTRIES = new Entry[0];
+	private static final XMPPProcessorIfc[] EMPTY_PROCESSORS = new XMPPProcessorIfc[0];
+
+	private final LongAdder candidates = new LongAdder();
+	private final XMPPProcessorIfc[] fallback;
+	private final LongAdder packets = new LongAdder();
+	private final Map<String, RootNode> roots;
+	private final Entry[] wildcards;
+
+	public static ProcessorsDispatchIndex build(Collection<XMPPProcessorIfc> processors) {
+		Map<String, List<Entry>> direct = new HashMap<>();
+		Map<String, Map<String, List<Entry>>> children = new HashMap<>();
+		List<Entry> wildcards = new ArrayList<>();
+		List<XMPPProcessorIfc> fallback = new ArrayList<>();
+
+		for (XMPPProcessorIfc proc : processors) {
+			if (!isIndexable(proc)) {
+				fallback.add(proc);
+				continue;
+			}
+
+			String[][] paths = proc.supElementNamePaths();
+			if (paths == null) {
+				// default canHandle() would never authorize such processor
+				continue;
+			}
+
+			Set<StanzaType> types = proc.supTypes();
+			if (isAllPaths(paths)) {
+				wildcards.add(new Entry(proc, null, null, types));
+				continue;
+			}
+
+			String[] xmlnss = proc.supNamespaces();
+			if (xmlnss == null || xmlnss.length < paths.length || hasWildcards(paths)) {
+				fallback.add(proc);
+				continue;
+			}
+
+			for (int i = 0; i < paths.length; i++) {
+				String[] path = paths[i];
+				Entry entry = new Entry(proc, path, xmlnss[i], types);
+				if (path.length == 1) {
+					direct.computeIfAbsent(path[0], k -> new ArrayList<>()).add(entry);
+				} else {
+					children.computeIfAbsent(path[0], k -> new HashMap<>())
+							.computeIfAbsent(path[1], k -> new ArrayList<>())
+							.add(entry);
+				}
+			}
+		}
+
+		Map<String, RootNode> roots = new HashMap<>();
+		Set<String> rootNames = new HashSet<>(direct.keySet());
+		rootNames.addAll(children.keySet());
+		for (String name : rootNames) {
+			List<Entry> directEntries = direct.get(name);
+			Map<String, List<Entry>> childEntries = children.get(name);
+			Map<String, Entry[]> childIndex = null;
+			if (childEntries != null) {
+				childIndex = new HashMap<>();
+				for (Map.Entry<String, List<Entry>> e : childEntries.entrySet()) {
+					childIndex.put(e.getKey(), e.getValue().toArray(EMPTY_ENTRIES));
+				}
+			}
+			roots.put(name,
+					  new RootNode(directEntries == null ? EMPTY_ENTRIES : directEntries.toArray(EMPTY_ENTRIES),
+								   childIndex));
+		}
+
+		ProcessorsDispatchIndex index = new ProcessorsDispatchIndex(roots, wildcards.toArray(EMPTY_ENTRIES),
+																	fallback.toArray(EMPTY_PROCESSORS));
+		if (log.isLoggable(Level.CONFIG)) {
+			log.log(Level.CONFIG, "Built processors dispatch index, stanza names: {0}, wildcards: {1}, fallback: {2}",
+					new Object[]{roots.keySet(), wildcards.size(), fallback});
+		}
+		return index;
+	}
+
+	private static boolean isIndexable(XMPPProcessorIfc proc) {
+		if (!(proc instanceof XMPPProcessor)) {
+			return false;
+		}
+		try {
+			return proc.getClass()
+					.getMethod("canHandle", Packet.class, XMPPResourceConnection.class)
+					.getDeclaringClass() == XMPPProcessor.class;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+	private static boolean isAllPaths(String[][] paths) {
+		return paths.length == 1 && paths[0].length == 1 && "*".equals(paths[0][0]);
+	}
+
+	private static boolean hasWildcards(String[][] paths) {
+		for (String[] path : paths) {
+			if (path == null || path.length == 0) {
+				return true;
+			}
+			for (String name : path) {
+				if ("*".equals(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private ProcessorsDispatchIndex(Map<String, RootNode> roots, Entry[] wildcards, XMPPProcessorIfc[] fallback) {
+		this.roots = roots;
+		this.wildcards = wildcards;
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Method adds to the <code>result</code> list all processors which are authorized to process the packet. Each
+	 * processor is added only once, even if more than one of its element paths matches the packet.
+	 *
+	 * @param packet to dispatch
+	 * @param conn connection for which packet is processed
+	 * @param result list to which matching processors will be added
+	 */
+	public void findProcessors(final Packet packet, final XMPPResourceConnection conn,
+							   final List<XMPPProcessorIfc> result) {
+		int checked = 0;
+
+		for (Entry entry : wildcards) {
+			checked++;
+			entry.matchType(packet, result);
+		}
+
+		RootNode node = roots.get(packet.getElemName());
+		if (node != null) {
+			for (Entry entry : node.direct) {
+				checked++;
+				entry.match(packet, result);
+			}
+			if (node.children != null) {
+				List<Element> elemChildren = packet.getElement().getChildren();
+				if (elemChildren != null) {
+					for (Element child : elemChildren) {
+						Entry[] entries = node.children.get(child.getName());
+						if (entries != null) {
+							for (Entry entry : entries) {
+								checked++;
+								entry.match(packet, result);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		for (XMPPProcessorIfc proc : fallback) {
+			checked++;
+			if (proc.canHandle(packet, conn) == Authorization.AUTHORIZED && !result.contains(proc)) {
+				result.add(proc);
+			}
+		}
+
+		packets.increment();
+		candidates.add(checked);
+	}
+
+	/**
+	 * Returns average number of processors which were checked to find processors for a single packet.
+	 */
+	public float getAverageCandidatesPerPacket() {
+		long packetsNo = packets.sum();
+		return packetsNo == 0 ? 0 : ((float) candidates.sum()) / packetsNo;
+	}
+
+	public int getFallbackSize() {
+		return fallback.length;
+	}
+
+	public long getPacketsCount() {
+		return packets.sum();
+	}
+
+	private static class Entry {
+
+		private final String[] path;
+		private final XMPPProcessorIfc processor;
+		private final Set<StanzaType> types;
+		private final String xmlns;
+
+		private Entry(XMPPProcessorIfc processor, String[] path, String xmlns, Set<StanzaType> types) {
+			this.processor = processor;
+			this.path = path;
+			this.xmlns = xmlns;
+			this.types = types;
+		}
+
+		private void match(Packet packet, List<XMPPProcessorIfc> result) {
+			if (packet.isXMLNSStaticStr(path, xmlns)) {
+				matchType(packet, result);
+			}
+		}
+
+		private void matchType(Packet packet, List<XMPPProcessorIfc> result) {
+			if ((types == null || types.contains(packet.getType())) && !result.contains(processor)) {
+				result.add(processor);
+			}
+		}
+	}
+
+	private static class RootNode {
+
+		private final Map<String, Entry[]> children;
+		private final Entry[] direct;
+
+		private RootNode(Entry[] direct, Map<String, Entry[]> children) {
+			this.direct = direct;
+			this.children = children;
+		}
+	}
+}
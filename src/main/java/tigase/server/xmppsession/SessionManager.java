@@ -166,6 +166,10 @@ public class SessionManager
 	private Map<String, long[]> postTimes = new ConcurrentSkipListMap<String, long[]>();
 	private Map<String, XMPPPreprocessorIfc> preProcessors = new ConcurrentHashMap<String, XMPPPreprocessorIfc>(10);
 	private Map<String, XMPPProcessorIfc> processors = new ConcurrentHashMap<String, XMPPProcessorIfc>(32);
+	@ConfigField(desc = "Use precompiled index to find processors for a packet")
+	private boolean processorsDispatchIndex = true;
+	private volatile ProcessorsDispatchIndex processorsIndex = ProcessorsDispatchIndex.build(
+			Collections.<XMPPProcessorIfc>emptyList());
 	@Inject(nullAllowed = true)
 	private MessageRouter router;
 	@Inject
@@ -186,6 +190,10 @@ public class SessionManager
 	private long totalUserSessions = 0;
 	@Inject
 	private UserRepository user_repository = null;
+	@ConfigField(desc = "Time (in ms) after which user data cached in session is loaded again", alias = "user-data-cache-ttl")
+	private long userDataCacheTtl = 60000;
+	@ConfigField(desc = "Prefetch user data to session cache on login", alias = "user-data-prefetch")
+	private boolean userDataPrefetch = false;
 
 	private Map<String, ProcessingThreads<ProcessorWorkerThread>> workerThreads = new ConcurrentHashMap<String, ProcessingThreads<ProcessorWorkerThread>>(
 			32);
@@ -254,6 +262,8 @@ public class SessionManager
 				}
 			}
 			processors.put(proc.id(), (XMPPProcessorIfc) proc);
+			ProcessorIdRegistry.register(proc.id());
+			rebuildProcessorsIndex();
 			log.log(Level.CONFIG, "Added processor: {0} for plugin id: {1}",
 					new Object[]{proc.getClass().getSimpleName(), proc.id()});
 			loaded = true;
@@ -477,6 +487,7 @@ public class SessionManager
 
 		if (pt != null) {
 			p = processors.remove(plug_id);
+			rebuildProcessorsIndex();
 			pt.shutdown();
 			if (p != null) {
 				allPlugins.remove(p);
@@ -658,6 +669,12 @@ public class SessionManager
 		list.add(getName(), "Total user sessions", totalUserSessions, Level.FINER);
 		list.add(getName(), "Active user connections", activeUserNumber, Level.FINER);
 		list.add(getName(), "Authentication timouts", authTimeouts, Level.INFO);
+		if (processorsDispatchIndex) {
+			ProcessorsDispatchIndex index = processorsIndex;
+			list.add(getName(), "Average processors candidates per packet", index.getAverageCandidatesPerPacket(),
+					 Level.FINE);
+			list.add(getName(), "Processors not indexed", index.getFallbackSize(), Level.FINER);
+		}
 		if (list.checkLevel(Level.INFO)) {
 			int totalQueuesWait = list.getValue(getName(), "Total queues wait", 0);
 			long totalQueuesOverflow = list.getValue(getName(), "Total queues overflow", 0l);
@@ -857,6 +874,17 @@ public class SessionManager
 		}
 	}
 
+	/**
+	 * Sends packets generated for the session outside of packet processing, ie. by a processor from a timer task.
+	 * Packets are passed through output filters, as packets generated during processing.
+	 *
+	 * @param conn session for which packets were generated.
+	 * @param results packets to send.
+	 */
+	public void addOutPackets(XMPPResourceConnection conn, Queue<Packet> results) {
+		addOutPackets(null, conn, results);
+	}
+
 	protected void addOutPackets(Packet packet, XMPPResourceConnection conn, Queue<Packet> results) {
 		for (XMPPPacketFilterIfc outfilter : outFilters.values()) {
 			outfilter.filter(packet, conn, naUserRepository, results);
@@ -1965,6 +1993,9 @@ public class SessionManager
 
 			if (session == null) {
 				session = new XMPPSession(userId.getLocalpart());
+				if (userDataPrefetch && !conn.isAnonymous() && !conn.isServerSession() && !conn.isTmpSession()) {
+					session.setUserDataCache(createUserDataCache(userId, session));
+				}
 				sessionsByNodeId.put(userId, session);
 
 				int currSize = sessionsByNodeId.size();
@@ -2031,6 +2062,33 @@ public class SessionManager
 		}
 	}
 
+	protected UserDataCache createUserDataCache(BareJID userId, XMPPSession session) {
+		UserDataCache cache = new UserDataCache(user_repository, userId, (user, node) -> eventBus.fire(
+				new UserDataChangedEvent(getComponentId(), JID.jidInstance(user), session, node)), userDataCacheTtl);
+		cache.load();
+		return cache;
+	}
+
+	@HandleEvent
+	protected void onUserDataChanged(UserDataChangedEvent event) {
+		// data was already updated in the cache of the session on this node
+		if (getComponentId().equals(event.getSender())) {
+			return;
+		}
+		XMPPSession session = event.getSession();
+		if (session == null) {
+			session = getSession(event.getUserJid().getBareJID());
+		}
+		UserDataCache cache = session == null ? null : session.getUserDataCache();
+		if (cache != null) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Node {0} of {1} data changed, invalidating {2}",
+						new Object[]{event.getNode(), event.getUserJid(), cache});
+			}
+			cache.invalidate();
+		}
+	}
+
 	protected void sendToAdmins(Packet packet) {
 		for (BareJID admin : admins) {
 			if (log.isLoggable(Level.FINER)) {
@@ -2240,7 +2298,20 @@ public class SessionManager
 		return processingTime;
 	}
 
+	private void rebuildProcessorsIndex() {
+		processorsIndex = ProcessorsDispatchIndex.build(processors.values());
+	}
+
 	private void walk(final Packet packet, final XMPPResourceConnection connection) {
+		if (processorsDispatchIndex) {
+			List<XMPPProcessorIfc> authorized = new ArrayList<XMPPProcessorIfc>(4);
+
+			processorsIndex.findProcessors(packet, connection, authorized);
+			for (XMPPProcessorIfc processor : authorized) {
+				dispatch(processor, packet, connection);
+			}
+			return;
+		}
 
 		// final Element elem, final Queue<Packet> results) {
 		for (XMPPProcessorIfc proc_t : processors.values()) {
@@ -2248,26 +2319,7 @@ public class SessionManager
 			Authorization result = processor.canHandle(packet, connection);
 
 			if (result == Authorization.AUTHORIZED) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "XMPPProcessorIfc: {0} ({1}" + ")" + "Request: " + "{2}, conn: {3}",
-							new Object[]{processor.getClass().getSimpleName(), processor.id(), packet, connection});
-				}
-
-				ProcessingThreads<ProcessorWorkerThread> pt = workerThreads.get(processor.id());
-
-				if (pt == null) {
-					pt = workerThreads.get(defPluginsThreadsPool);
-				}
-				if (pt.addItem(processor, packet, connection)) {
-					packet.processedBy(processor.id());
-				} else {
-					packet.notProcessedBy(processor.id());
-					// proc_t.debugQueue();
-					if (log.isLoggable(Level.FINE)) {
-						log.log(Level.FINE, "Can not add packet: {0} to processor: {1} internal queue full.",
-								new Object[]{packet.toStringSecure(), pt.getName()});
-					}
-				}
+				dispatch(processor, packet, connection);
 			} else {
 				if (result != null) {
 
@@ -2278,6 +2330,30 @@ public class SessionManager
 		}    // end of for ()
 	}
 
+	private void dispatch(final XMPPProcessorIfc processor, final Packet packet,
+						  final XMPPResourceConnection connection) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "XMPPProcessorIfc: {0} ({1}" + ")" + "Request: " + "{2}, conn: {3}",
+					new Object[]{processor.getClass().getSimpleName(), processor.id(), packet, connection});
+		}
+
+		ProcessingThreads<ProcessorWorkerThread> pt = workerThreads.get(processor.id());
+
+		if (pt == null) {
+			pt = workerThreads.get(defPluginsThreadsPool);
+		}
+		if (pt.addItem(processor, packet, connection)) {
+			packet.processedBy(processor.id());
+		} else {
+			packet.notProcessedBy(processor.id());
+			// proc_t.debugQueue();
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Can not add packet: {0} to processor: {1} internal queue full.",
+						new Object[]{packet.toStringSecure(), pt.getName()});
+			}
+		}
+	}
+
 	private List<Element> getFeatures(XMPPResourceConnection session) {
 		List<Element> results = new LinkedList<Element>();
 
@@ -0,0 +1,56 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import tigase.xmpp.XMPPSession;
+import tigase.xmpp.jid.JID;
+
+/**
+ * Event fired when data of the user stored in the user repository was changed, so cached copies of this data kept by
+ * {@link tigase.xmpp.UserDataCache} of user sessions on other cluster nodes have to be dropped.
+ * <br>
+ * Code modifying user data directly in the user repository (ie. admin scripts) should fire this event with
+ * <code>null</code> as a sender.
+ */
+public class UserDataChangedEvent
+		extends UserSessionEvent {
+
+	private String node;
+
+	/**
+	 * Empty constructor to be able to serialize/deserialize event
+	 */
+	public UserDataChangedEvent() {
+		super();
+	}
+
+	public UserDataChangedEvent(JID sender, JID userJid, XMPPSession session, String node) {
+		super(sender, userJid, session);
+		this.node = node;
+	}
+
+	/**
+	 * Returns node of the user data which was changed.
+	 *
+	 * @return name of the node or <code>null</code> if node is not known
+	 */
+	public String getNode() {
+		return node;
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Lock-free histogram of durations with buckets which upper bounds are powers of 2 microseconds (from 1us up to
+ * about 35 minutes). Percentiles returned by this class are upper bounds of buckets, so they are accurate to a factor
+ * of 2, which is enough to notice changes in latency distribution without keeping recorded values.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 32;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final AtomicLong max = new AtomicLong();
+	private final String name;
+	private final LongAdder sum = new LongAdder();
+
+	private static int bucketFor(long micros) {
+		if (micros <= 1) {
+			return 0;
+		}
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+	}
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Records duration.
+	 *
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+
+		buckets[bucketFor(micros)].increment();
+		sum.add(micros);
+		max.accumulateAndGet(micros, Math::max);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns average of recorded durations.
+	 *
+	 * @return average in microseconds
+	 */
+	public long getAverage() {
+		long count = getCount();
+		return count == 0 ? 0 : sum.sum() / count;
+	}
+
+	/**
+	 * Returns maximal recorded duration.
+	 *
+	 * @return maximal duration in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns upper bound of the bucket containing requested percentile of recorded durations.
+	 *
+	 * @param percentile value from 0 to 100
+	 *
+	 * @return upper bound of duration in microseconds or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long threshold = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(1, threshold)) {
+				return Math.min(1L << i, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Adds summary of this histogram to the statistics list.
+	 *
+	 * @param compName name of the component
+	 * @param prefix prefix for names of statistics
+	 * @param list of statistics
+	 * @param level level of statistics
+	 */
+	public void getStatistics(String compName, String prefix, StatisticsList list, Level level) {
+		if (!list.checkLevel(level)) {
+			return;
+		}
+		String fullName = prefix + " " + name;
+		list.add(compName, fullName + " count", getCount(), level);
+		list.add(compName, fullName + " avg [us]", getAverage(), level);
+		list.add(compName, fullName + " p50 [us]", getPercentile(50), level);
+		list.add(compName, fullName + " p99 [us]", getPercentile(99), level);
+		list.add(compName, fullName + " max [us]", getMax(), level);
+		if (list.checkLevel(Level.FINEST)) {
+			list.add(compName, fullName + " histogram", toString(), Level.FINEST);
+		}
+	}
+
+	/**
+	 * Returns non-empty buckets as <code>&lt;=upper-bound-us:count</code> pairs.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = buckets[i].sum();
+			if (count > 0) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append("<=").append(1L << i).append("us:").append(count);
+			}
+		}
+		return sb.toString();
+	}
+}
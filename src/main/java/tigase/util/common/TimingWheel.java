@@ -0,0 +1,212 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel holding items until their deadlines. Each level has 64 slots, slot of the first level
+ * spans a single tick and slot of each next level spans a whole rotation of the previous level, so 4 levels cover
+ * 64<sup>4</sup> ticks. Items are moved to lower levels when time reaches their slot, so scheduling, rescheduling
+ * and removal of an item have constant cost and {@link #advance(long)} touches only items which are due.
+ * <br>
+ * Items are compared by identity and each item may be scheduled only once, scheduling it again changes its deadline.
+ * All methods are synchronized.
+ */
+public class TimingWheel<T> {
+
+	private static final int LEVELS = 4;
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	private final Map<T, Node<T>> nodes = new IdentityHashMap<>();
+	private final int[] occupancy = new int[LEVELS];
+	private final Node<T>[][] slots;
+	private final long tickMillis;
+	private long currentTick;
+
+	/**
+	 * Creates timing wheel.
+	 *
+	 * @param tickMillis duration of a single tick in milliseconds
+	 * @param now current time in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long tickMillis, long now) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("Tick duration must be positive: " + tickMillis);
+		}
+		this.tickMillis = tickMillis;
+		this.currentTick = now / tickMillis;
+		this.slots = new Node[LEVELS][SLOTS];
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Schedules item to be returned by {@link #advance(long)} when the deadline is reached. If item is already
+	 * scheduled its deadline is changed.
+	 *
+	 * @param item to schedule
+	 * @param deadline time in milliseconds
+	 */
+	public synchronized void schedule(T item, long deadline) {
+		Node<T> node = nodes.get(item);
+		if (node == null) {
+			node = new Node<>(item);
+			nodes.put(item, node);
+		} else {
+			unlink(node);
+		}
+		node.deadlineTick = (deadline + tickMillis - 1) / tickMillis;
+		place(node, currentTick + 1);
+	}
+
+	/**
+	 * Removes item from the wheel.
+	 *
+	 * @param item to remove
+	 *
+	 * @return <code>true</code> if item was scheduled
+	 */
+	public synchronized boolean remove(T item) {
+		Node<T> node = nodes.remove(item);
+		if (node == null) {
+			return false;
+		}
+		unlink(node);
+		return true;
+	}
+
+	public synchronized boolean contains(T item) {
+		return nodes.containsKey(item);
+	}
+
+	/**
+	 * Moves wheel to the passed time and removes all items which deadlines passed.
+	 *
+	 * @param now current time in milliseconds
+	 *
+	 * @return list of items which are due, in order of their deadlines
+	 */
+	public synchronized List<T> advance(long now) {
+		List<T> result = new ArrayList<>();
+		long targetTick = now / tickMillis;
+		while (currentTick < targetTick) {
+			++currentTick;
+			for (int level = LEVELS - 1; level > 0; level--) {
+				if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+					cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK));
+				}
+			}
+			int idx = (int) (currentTick & SLOT_MASK);
+			Node<T> node = slots[0][idx];
+			slots[0][idx] = null;
+			while (node != null) {
+				Node<T> next = node.next;
+				--occupancy[0];
+				node.prev = node.next = null;
+				nodes.remove(node.item);
+				result.add(node.item);
+				node = next;
+			}
+		}
+		return result;
+	}
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Returns number of items at each level of the wheel.
+	 *
+	 * @return array with number of items per level, starting from the lowest level
+	 */
+	public synchronized int[] getOccupancy() {
+		return occupancy.clone();
+	}
+
+	private void cascade(int level, int idx) {
+		Node<T> node = slots[level][idx];
+		slots[level][idx] = null;
+		while (node != null) {
+			Node<T> next = node.next;
+			--occupancy[level];
+			node.prev = node.next = null;
+			// slot of the current tick at the lowest level is processed right after cascading
+			place(node, currentTick);
+			node = next;
+		}
+	}
+
+	private void place(Node<T> node, long minTick) {
+		long tick = Math.max(node.deadlineTick, minTick);
+		long delta = tick - currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+			++level;
+		}
+		if (level == LEVELS - 1 && delta >= (1L << (SLOT_BITS * LEVELS))) {
+			// beyond range of the wheel, item will be placed again when this slot is cascaded
+			tick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+		}
+		int idx = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+		node.level = level;
+		node.slot = idx;
+		node.next = slots[level][idx];
+		if (node.next != null) {
+			node.next.prev = node;
+		}
+		slots[level][idx] = node;
+		++occupancy[level];
+	}
+
+	private void unlink(Node<T> node) {
+		if (node.prev != null) {
+			node.prev.next = node.next;
+		} else {
+			slots[node.level][node.slot] = node.next;
+		}
+		if (node.next != null) {
+			node.next.prev = node.prev;
+		}
+		node.prev = node.next = null;
+		--occupancy[node.level];
+	}
+
+	private static class Node<T> {
+
+		private final T item;
+		private long deadlineTick;
+		private int level;
+		private Node<T> next;
+		private Node<T> prev;
+		private int slot;
+
+		private Node(T item) {
+			this.item = item;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.reflection;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Annotation processor generating index of classes compiled into the jar, used by {@link ClassUtilBean} instead of
+ * scanning (and loading) all classes on the classpath during startup.
+ * <br>
+ * Two files are generated:
+ * <ul>
+ * <li>{@link #CLASSES_INDEX} with names of all classes, used to check if class is known without loading it,</li>
+ * <li>{@link #BEANS_INDEX} with names of classes which kernel needs to inspect: classes annotated with
+ * <code>@Bean</code>, <code>@ConfigType</code> or <code>@Repository.Meta</code> and implementations of
+ * <code>XMPPProcessor</code>.</li>
+ * </ul>
+ * Index files are always rewritten with classes of the current compilation, so removed or renamed classes are not
+ * listed. Maven recompiles all sources of the module if any of them changed, so index is complete.
+ */
+@SupportedAnnotationTypes("*")
+public class ClassIndexProcessor
+		extends AbstractProcessor {
+
+	public static final String BEANS_INDEX = "META-INF/tigase/beans.idx";
+	public static final String CLASSES_INDEX = "META-INF/tigase/classes.idx";
+
+	private static final String BEAN_ANNOTATION = "tigase.kernel.beans.Bean";
+	private static final String CONFIG_TYPE_ANNOTATION = "tigase.kernel.beans.selector.ConfigType";
+	private static final String REPOSITORY_META_ANNOTATION = "tigase.db.Repository.Meta";
+	private static final String XMPP_PROCESSOR = "tigase.xmpp.XMPPProcessor";
+
+	private final Set<String> beans = new TreeSet<>();
+	private final Set<String> classes = new TreeSet<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			write(CLASSES_INDEX, classes);
+			write(BEANS_INDEX, beans);
+			return false;
+		}
+
+		TypeElement processorElement = processingEnv.getElementUtils().getTypeElement(XMPP_PROCESSOR);
+		TypeMirror processorType =
+				processorElement == null ? null : processingEnv.getTypeUtils().erasure(processorElement.asType());
+		for (Element element : roundEnv.getRootElements()) {
+			if (element instanceof TypeElement) {
+				addType((TypeElement) element, processorType);
+			}
+		}
+		return false;
+	}
+
+	private void addType(TypeElement type, TypeMirror processorType) {
+		String name = processingEnv.getElementUtils().getBinaryName(type).toString();
+		classes.add(name);
+		if (hasAnnotation(type, BEAN_ANNOTATION) || hasAnnotation(type, CONFIG_TYPE_ANNOTATION) ||
+				hasAnnotation(type, REPOSITORY_META_ANNOTATION) || isProcessorImplementation(type, processorType)) {
+			beans.add(name);
+		}
+		for (Element enclosed : type.getEnclosedElements()) {
+			if (enclosed instanceof TypeElement) {
+				addType((TypeElement) enclosed, processorType);
+			}
+		}
+	}
+
+	private boolean hasAnnotation(TypeElement type, String annotation) {
+		for (AnnotationMirror mirror : type.getAnnotationMirrors()) {
+			Element annotationElement = mirror.getAnnotationType().asElement();
+			if (annotationElement instanceof TypeElement &&
+					((TypeElement) annotationElement).getQualifiedName().contentEquals(annotation)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isProcessorImplementation(TypeElement type, TypeMirror processorType) {
+		if (processorType == null || type.getKind() != ElementKind.CLASS ||
+				type.getModifiers().contains(Modifier.ABSTRACT)) {
+			return false;
+		}
+		return processingEnv.getTypeUtils()
+				.isSubtype(processingEnv.getTypeUtils().erasure(type.asType()), processorType);
+	}
+
+	private void write(String resource, Set<String> names) {
+		try {
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", resource);
+			try (Writer writer = new BufferedWriter(
+					new OutputStreamWriter(file.openOutputStream(), StandardCharsets.UTF_8))) {
+				for (String name : names) {
+					writer.write(name);
+					writer.write('\n');
+				}
+			}
+		} catch (IOException ex) {
+			processingEnv.getMessager()
+					.printMessage(Diagnostic.Kind.WARNING, "Could not write " + resource + ": " + ex.getMessage());
+		}
+	}
+}
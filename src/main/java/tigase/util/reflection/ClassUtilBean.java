@@ -20,20 +20,28 @@ package tigase.util.reflection;
 import tigase.util.ClassComparator;
 import tigase.util.ClassUtil;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Created by andrzej on 08.09.2016.
  */
 public class ClassUtilBean {
 
+	/**
+	 * Name of the system property which disables use of class indexes generated by {@link ClassIndexProcessor} if
+	 * set to <code>false</code>.
+	 */
+	public static final String CLASS_INDEX_PROP_KEY = "tigase-class-index";
+
 	private static final String[] DEFAULT_PACKAGES_TO_SKIP = {"com.fasterxml.jackson", "com.mongodb", "org.bson",
 															  "com.mysql", "com.notnoop", "javax.jmdns", "javax.mail",
 															  "javax.servlet", "org.apache.commons", "org.apache.derby",
@@ -46,7 +54,12 @@ public class ClassUtilBean {
 
 	private static ClassUtilBean instance;
 	private static Logger log = Logger.getLogger(ClassUtilBean.class.getCanonicalName());
-	protected HashSet<Class<?>> classes = new HashSet<>();
+	protected volatile HashSet<Class<?>> classes = new HashSet<>();
+	private boolean allIndexedClassesLoaded = true;
+	private long discoveryTime = 0;
+	private Set<String> indexedClassNames = new HashSet<>();
+	private int indexedEntries = 0;
+	private int scannedEntries = 0;
 
 	public static List<String> getPackagesToSkip(String[] packagesToSkip) {
 		if (packagesToSkip == null) {
@@ -72,6 +85,7 @@ public class ClassUtilBean {
 	}
 
 	public void initialize(Collection<String> skipPackages) {
+		long start = System.currentTimeMillis();
 		try {
 			Predicate<String> filter = null;
 			if (skipPackages == null) {
@@ -87,22 +101,197 @@ public class ClassUtilBean {
 					return true;
 				};
 			}
-			classes.addAll(ClassUtil.getClassesFromClassPath(filter));
-			// support for handling debugging test cases started by Maven Surefire Plugin
-			// as without it Tigase Kernel is not able to see annotated beans
-			classes.addAll(getClassesFromSurefireClassLoader());
+			if (!Boolean.parseBoolean(System.getProperty(CLASS_INDEX_PROP_KEY, "true")) ||
+					!initializeFromIndexes(filter)) {
+				classes.addAll(ClassUtil.getClassesFromClassPath(filter));
+				// support for handling debugging test cases started by Maven Surefire Plugin
+				// as without it Tigase Kernel is not able to see annotated beans
+				classes.addAll(getClassesFromSurefireClassLoader());
+			}
 		} catch (IOException | ClassNotFoundException e) {
 			log.log(Level.SEVERE, "Could not initialize list of classes", e);
 		}
+		discoveryTime = System.currentTimeMillis() - start;
+		log.log(Level.CONFIG, "Found {0} classes in {1}ms, indexed classpath entries: {2}, scanned entries: {3}",
+				new Object[]{classes.size(), discoveryTime, indexedEntries, scannedEntries});
 		synchronized (ClassUtilBean.class) {
 			instance = this;
 		}
 	}
 
+	/**
+	 * Returns all classes found on the classpath. If classes were found using indexes, classes listed in indexes which
+	 * were not loaded during startup are loaded on the first call.
+	 */
 	public Set<Class<?>> getAllClasses() {
+		loadAllIndexedClasses();
 		return Collections.unmodifiableSet(classes);
 	}
 
+	/**
+	 * Returns classes which kernel needs to inspect: classes annotated with <code>@Bean</code> or
+	 * <code>@ConfigType</code> and implementations of <code>XMPPProcessor</code>. If classes were found using indexes,
+	 * only classes listed in bean indexes (and classes from entries without indexes) are returned without loading
+	 * other classes, so returned set may contain other classes as well.
+	 */
+	public Set<Class<?>> getBeanClasses() {
+		return Collections.unmodifiableSet(classes);
+	}
+
+	/**
+	 * Checks if class was found on the classpath (or in indexes of classes).
+	 *
+	 * @param cls class to check
+	 *
+	 * @return <code>true</code> if class is known
+	 */
+	public boolean isKnownClass(Class<?> cls) {
+		return getBeanClasses().contains(cls) || indexedClassNames.contains(cls.getName());
+	}
+
+	/**
+	 * Returns time spent on finding classes during startup.
+	 *
+	 * @return time in milliseconds
+	 */
+	public long getDiscoveryTime() {
+		return discoveryTime;
+	}
+
+	public int getIndexedEntries() {
+		return indexedEntries;
+	}
+
+	public int getScannedEntries() {
+		return scannedEntries;
+	}
+
+	/**
+	 * Loads classes listed in indexes generated by {@link ClassIndexProcessor} and scans only classpath entries
+	 * without indexes.
+	 *
+	 * @return <code>false</code> if none of classpath entries has an index
+	 */
+	private boolean initializeFromIndexes(Predicate<String> filter) throws IOException, ClassNotFoundException {
+		// Maven Surefire Plugin starts tests with classpath passed in this property
+		String classpath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+		if (classpath == null) {
+			return false;
+		}
+
+		Set<String> beanNames = new TreeSet<>();
+		Set<String> classNames = new HashSet<>();
+		Set<String> namesToScan = new TreeSet<>();
+		List<File> entriesToScan = new ArrayList<>();
+		StringTokenizer stok = new StringTokenizer(classpath, File.pathSeparator, false);
+		while (stok.hasMoreTokens()) {
+			File file = new File(stok.nextToken());
+			if (!file.exists()) {
+				continue;
+			}
+			List<String> beansIndex = readIndex(file, ClassIndexProcessor.BEANS_INDEX);
+			List<String> classesIndex = beansIndex == null ? null : readIndex(file, ClassIndexProcessor.CLASSES_INDEX);
+			if (classesIndex != null) {
+				beansIndex.stream().filter(filter).forEach(beanNames::add);
+				classesIndex.stream().filter(filter).forEach(classNames::add);
+				++indexedEntries;
+			} else {
+				entriesToScan.add(file);
+			}
+		}
+		if (indexedEntries == 0) {
+			return false;
+		}
+
+		for (File file : entriesToScan) {
+			try {
+				Set<String> names = file.isDirectory()
+									? ClassUtil.getClassNamesFromDir(file)
+									: ClassUtil.getClassNamesFromJar(file);
+				names.stream().filter(filter).forEach(namesToScan::add);
+				++scannedEntries;
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not load classes for " + file.getAbsolutePath());
+			}
+		}
+
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		loadClasses(loader, beanNames, classes);
+		tigase.osgi.util.ClassUtil.getClassesFromNames(loader, namesToScan).forEach(classes::add);
+		indexedClassNames = classNames;
+		allIndexedClassesLoaded = false;
+		return true;
+	}
+
+	private void loadAllIndexedClasses() {
+		synchronized (this) {
+			if (allIndexedClassesLoaded) {
+				return;
+			}
+			long start = System.currentTimeMillis();
+			// loaded into a copy, as set of bean classes may be iterated by other threads
+			HashSet<Class<?>> all = new HashSet<>(classes);
+			Set<String> loaded = all.stream().map(Class::getName).collect(Collectors.toSet());
+			List<String> names = indexedClassNames.stream()
+					.filter(name -> !loaded.contains(name))
+					.sorted()
+					.collect(Collectors.toList());
+			loadClasses(Thread.currentThread().getContextClassLoader(), names, all);
+			classes = all;
+			allIndexedClassesLoaded = true;
+			log.log(Level.CONFIG, "Loaded {0} indexed classes in {1}ms",
+					new Object[]{names.size(), System.currentTimeMillis() - start});
+		}
+	}
+
+	private void loadClasses(ClassLoader loader, Collection<String> names, Set<Class<?>> result) {
+		for (String name : names) {
+			try {
+				result.add(loader.loadClass(name));
+			} catch (ClassNotFoundException | LinkageError ex) {
+				// index may contain classes which were removed since index was generated
+				log.log(Level.FINE, "Could not load indexed class " + name, ex);
+			}
+		}
+	}
+
+	private List<String> readIndex(File file, String resource) throws IOException {
+		if (file.isDirectory()) {
+			File index = new File(file, resource);
+			if (!index.exists()) {
+				return null;
+			}
+			try (InputStream in = new FileInputStream(index)) {
+				return readIndex(in);
+			}
+		}
+		try (ZipFile zip = new ZipFile(file)) {
+			ZipEntry entry = zip.getEntry(resource);
+			if (entry == null) {
+				return null;
+			}
+			try (InputStream in = zip.getInputStream(entry)) {
+				return readIndex(in);
+			}
+		} catch (IOException ex) {
+			log.log(Level.FINEST, "Could not read " + resource + " from " + file, ex);
+			return null;
+		}
+	}
+
+	private List<String> readIndex(InputStream in) throws IOException {
+		List<String> names = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (!line.isEmpty()) {
+				names.add(line);
+			}
+		}
+		return names;
+	}
+
 	private Set<Class<?>> getClassesFromSurefireClassLoader() {
 		Set<Class<?>> classes_set = new TreeSet<Class<?>>(new ClassComparator());
 		String classpath = System.getProperty("surefire.test.class.path");
@@ -0,0 +1,282 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Priority queue which does not use any monitor for producers and consumers. Each priority is backed by a lock-free
+ * multi-producer/multi-consumer queue built from linked array segments, so memory used by the queue grows with the
+ * number of waiting elements instead of being preallocated for the maximum size.
+ * <br>
+ * Waiting consumers spin for a short while, then yield and finally park until a producer wakes them up. Like
+ * {@link PriorityQueueRelaxed} elements which do not fit into a full queue are placed in the queue of the next lower
+ * priority.
+ */
+public class PriorityQueueLockFree<E>
+		extends PriorityQueueAbstract<E> {
+
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final int SPINS = 100;
+	private static final int YIELDS = 10;
+
+	private final AtomicInteger parked = new AtomicInteger();
+	private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+	private volatile int maxSize = 0;
+	private SegmentedQueue<E>[] qs = null;
+
+	public PriorityQueueLockFree() {
+	}
+
+	protected PriorityQueueLockFree(int maxPriority, int maxSize) {
+		init(maxPriority, maxSize);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public final void init(int maxPriority, int maxSize) {
+		qs = new SegmentedQueue[maxPriority];
+		for (int i = 0; i < qs.length; i++) {
+			qs[i] = new SegmentedQueue<E>();
+		}
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public boolean offer(E element, int priority) {
+		checkPriority(priority);
+		for (int i = priority; i < qs.length; i++) {
+			if (qs[i].offer(element, maxSize)) {
+				signalNotEmpty();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void put(E element, int priority) throws InterruptedException {
+		int idle = 0;
+
+		while (!offer(element, priority)) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			idle = idle(idle, false);
+		}
+	}
+
+	@Override
+	public void setMaxSize(int maxSize) {
+		// Segments are allocated on demand so we only need to change the limit,
+		// already queued elements are kept even if they exceed the new limit.
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public int[] size() {
+		int[] result = new int[qs.length];
+
+		for (int i = 0; i < result.length; i++) {
+			result[i] = qs[i].size();
+		}
+
+		return result;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		int idle = 0;
+
+		while (true) {
+			E e = poll();
+			if (e != null) {
+				return e;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			idle = idle(idle, true);
+		}
+	}
+
+	@Override
+	public int totalSize() {
+		int result = 0;
+
+		for (int i = 0; i < qs.length; i++) {
+			result += qs[i].size();
+		}
+
+		return result;
+	}
+
+	private void checkPriority(int priority) {
+		if ((priority < 0) || (qs.length <= priority)) {
+			throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (qs.length - 1));
+		}
+	}
+
+	private E poll() {
+		for (int i = 0; i < qs.length; i++) {
+			E e = qs[i].poll();
+			if (e != null) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private int idle(int idle, boolean consumer) {
+		if (idle < SPINS) {
+			// busy spin
+		} else if (idle < SPINS + YIELDS) {
+			Thread.yield();
+		} else if (consumer) {
+			Thread current = Thread.currentThread();
+			parked.incrementAndGet();
+			waiters.add(current);
+			try {
+				// re-check after registration, producers check "parked" after
+				// the element is published so a wake-up can not be lost
+				if (totalSize() == 0) {
+					LockSupport.parkNanos(this, PARK_NANOS);
+				}
+			} finally {
+				waiters.remove(current);
+				parked.decrementAndGet();
+			}
+			return idle;
+		} else {
+			LockSupport.parkNanos(this, PARK_NANOS);
+			return idle;
+		}
+		return idle + 1;
+	}
+
+	private void signalNotEmpty() {
+		if (parked.get() > 0) {
+			Thread waiter = waiters.poll();
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+		}
+	}
+
+	/**
+	 * Unbounded lock-free MPMC queue made of linked array segments. Producers and consumers reserve slots in the
+	 * current segment with a single fetch-and-add, a consumer which reaches a slot before the producer marks it as
+	 * taken and the producer retries with next slot.
+	 */
+	private static final class SegmentedQueue<E> {
+
+		private static final int SEGMENT_SIZE = 1024;
+		private static final Object TAKEN = new Object();
+
+		private final AtomicReference<Segment> head;
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicReference<Segment> tail;
+
+		private SegmentedQueue() {
+			Segment segment = new Segment(null);
+			head = new AtomicReference<>(segment);
+			tail = new AtomicReference<>(segment);
+		}
+
+		private boolean offer(E element, int maxSize) {
+			if (size.incrementAndGet() > maxSize) {
+				size.decrementAndGet();
+				return false;
+			}
+			while (true) {
+				Segment last = tail.get();
+				int idx = last.enqIdx.getAndIncrement();
+				if (idx >= SEGMENT_SIZE) {
+					if (last != tail.get()) {
+						continue;
+					}
+					Segment next = last.next.get();
+					if (next == null) {
+						Segment segment = new Segment(element);
+						if (last.next.compareAndSet(null, segment)) {
+							tail.compareAndSet(last, segment);
+							return true;
+						}
+					} else {
+						tail.compareAndSet(last, next);
+					}
+					continue;
+				}
+				if (last.items.compareAndSet(idx, null, element)) {
+					return true;
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private E poll() {
+			while (true) {
+				Segment first = head.get();
+				if (first.deqIdx.get() >= first.enqIdx.get() && first.next.get() == null) {
+					return null;
+				}
+				int idx = first.deqIdx.getAndIncrement();
+				if (idx >= SEGMENT_SIZE) {
+					Segment next = first.next.get();
+					if (next == null) {
+						return null;
+					}
+					head.compareAndSet(first, next);
+					continue;
+				}
+				Object item = first.items.getAndSet(idx, TAKEN);
+				if (item == null) {
+					continue;
+				}
+				size.decrementAndGet();
+				return (E) item;
+			}
+		}
+
+		private int size() {
+			return size.get();
+		}
+
+		private static final class Segment {
+
+			private final AtomicInteger deqIdx = new AtomicInteger();
+			private final AtomicInteger enqIdx;
+			private final AtomicReferenceArray<Object> items = new AtomicReferenceArray<>(SEGMENT_SIZE);
+			private final AtomicReference<Segment> next = new AtomicReference<>();
+
+			private Segment(Object first) {
+				if (first != null) {
+					items.lazySet(0, first);
+					enqIdx = new AtomicInteger(1);
+				} else {
+					enqIdx = new AtomicInteger(0);
+				}
+			}
+		}
+	}
+}
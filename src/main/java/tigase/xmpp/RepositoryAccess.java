@@ -82,7 +82,12 @@ public abstract class RepositoryAccess {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
 		try {
-			repo.addDataList(getBareJID(), subnode, key, list);
+			UserDataCache cache = getUserDataCache();
+			if (cache != null) {
+				cache.addDataList(subnode, key, list);
+			} else {
+				repo.addDataList(getBareJID(), subnode, key, list);
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -147,7 +152,12 @@ public abstract class RepositoryAccess {
 
 	public void removeData(String subnode, String key) throws NotAuthorizedException, TigaseDBException {
 		try {
-			repo.removeData(getBareJID(), subnode, key);
+			UserDataCache cache = getUserDataCache();
+			if (cache != null) {
+				cache.removeData(subnode, key);
+			} else {
+				repo.removeData(getBareJID(), subnode, key);
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -177,7 +187,12 @@ public abstract class RepositoryAccess {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
 		try {
-			repo.removeSubnode(getBareJID(), subnode);
+			UserDataCache cache = getUserDataCache();
+			if (cache != null) {
+				cache.removeSubnode(subnode);
+			} else {
+				repo.removeSubnode(getBareJID(), subnode);
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -262,7 +277,8 @@ public abstract class RepositoryAccess {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
 		try {
-			return repo.getData(getBareJID(), subnode, key, def);
+			UserDataCache cache = getUserDataCache();
+			return cache != null ? cache.getData(subnode, key, def) : repo.getData(getBareJID(), subnode, key, def);
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -296,7 +312,8 @@ public abstract class RepositoryAccess {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
 		try {
-			return repo.getSubnodes(getBareJID(), subnode);
+			UserDataCache cache = getUserDataCache();
+			return cache != null ? cache.getSubnodes(subnode) : repo.getSubnodes(getBareJID(), subnode);
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -331,7 +348,8 @@ public abstract class RepositoryAccess {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
 		try {
-			return repo.getKeys(getBareJID(), subnode);
+			UserDataCache cache = getUserDataCache();
+			return cache != null ? cache.getKeys(subnode) : repo.getKeys(getBareJID(), subnode);
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -344,6 +362,36 @@ public abstract class RepositoryAccess {
 		// return null;
 	}
 
+	/**
+	 * This method returns all data stored in given node with a single repository call, which is more efficient than
+	 * retrieving each key separately.
+	 *
+	 * @param subnode a <code>String</code> value pointing to specific subnode in user reposiotry where data is
+	 * stored.
+	 *
+	 * @return a <code>Map</code> of all keys and values found in given subnode.
+	 *
+	 * @throws NotAuthorizedException is thrown when session has not been authorized yet and there is no access to
+	 * permanent storage.
+	 * @see #setData(String, String, String)
+	 */
+	public Map<String, String> getDataMap(final String subnode) throws NotAuthorizedException, TigaseDBException {
+		if (is_anonymous) {
+			return null;
+		}
+		if (!isAuthorized()) {
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
+		}
+		try {
+			UserDataCache cache = getUserDataCache();
+			return cache != null ? cache.getDataMap(subnode) : repo.getDataMap(getBareJID(), subnode);
+		} catch (UserNotFoundException e) {
+			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
+
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG, e);
+		}    // end of try-catch
+	}
+
 	/**
 	 * This method allows to retrieve list of values associated with one key. As it is possible to store many values
 	 * with one key there are a few methods which provides this functionality. If given key does not exists in given
@@ -367,7 +415,8 @@ public abstract class RepositoryAccess {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
 		try {
-			return repo.getDataList(getBareJID(), subnode, key);
+			UserDataCache cache = getUserDataCache();
+			return cache != null ? cache.getDataList(subnode, key) : repo.getDataList(getBareJID(), subnode, key);
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -467,7 +516,12 @@ public abstract class RepositoryAccess {
 	 */
 	public void setData(String subnode, String key, String value) throws NotAuthorizedException, TigaseDBException {
 		try {
-			repo.setData(getBareJID(), subnode, key, value);
+			UserDataCache cache = getUserDataCache();
+			if (cache != null) {
+				cache.setData(subnode, key, value);
+			} else {
+				repo.setData(getBareJID(), subnode, key, value);
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -501,7 +555,12 @@ public abstract class RepositoryAccess {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
 		try {
-			repo.setDataList(getBareJID(), subnode, key, list);
+			UserDataCache cache = getUserDataCache();
+			if (cache != null) {
+				cache.setDataList(subnode, key, list);
+			} else {
+				repo.setDataList(getBareJID(), subnode, key, list);
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -603,6 +662,15 @@ public abstract class RepositoryAccess {
 
 	protected abstract void login();
 
+	/**
+	 * Returns cache of the user data if data of the user is kept in memory.
+	 *
+	 * @return cache of the user data or <code>null</code> if all calls should be passed to the user repository
+	 */
+	protected UserDataCache getUserDataCache() {
+		return null;
+	}
+
 	private String calcNode(String base, String subnode) {
 		if (subnode == null) {
 			return base;
@@ -0,0 +1,312 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import tigase.db.TigaseDBException;
+import tigase.db.UserNotFoundException;
+import tigase.db.UserRepository;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copy of all data stored in the user repository for a single user, shared by all connections of the user through
+ * {@link XMPPSession}. All data of the user is loaded with a single call to {@link UserRepository#getUserData(BareJID)}
+ * and reads are served from memory, while writes are passed to the repository before the copy is updated.
+ * <br>
+ * When data is changed outside of this session (by other cluster node or by an admin command) the copy has to be
+ * dropped with {@link #invalidate()}, it will be loaded again on the next read. Changes made directly in the
+ * repository by other writers are not announced, so the copy is also dropped when it is older than the time to live
+ * passed to the constructor. If the data cannot be loaded, reads are passed to the repository.
+ */
+public class UserDataCache {
+
+	private static final Logger log = Logger.getLogger(UserDataCache.class.getName());
+
+	private final BiConsumer<BareJID, String> changeListener;
+	private final UserRepository repo;
+	private final long ttl;
+	private final BareJID user;
+	private volatile long loadTime = 0;
+	private volatile Map<String, Map<String, String[]>> nodes = null;
+	private long version = 0;
+
+	static String normalizeNode(String subnode) {
+		if (subnode == null || subnode.isEmpty()) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder(subnode.length());
+		StringTokenizer strtok = new StringTokenizer(subnode, "/", false);
+		while (strtok.hasMoreTokens()) {
+			if (sb.length() > 0) {
+				sb.append('/');
+			}
+			sb.append(strtok.nextToken());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Creates cache of the user data, which is kept until it is invalidated.
+	 *
+	 * @param repo user repository
+	 * @param user bare JID of the user
+	 * @param changeListener called with the changed node after data was modified through this cache, may be
+	 * <code>null</code>
+	 */
+	public UserDataCache(UserRepository repo, BareJID user, BiConsumer<BareJID, String> changeListener) {
+		this(repo, user, changeListener, 0);
+	}
+
+	/**
+	 * Creates cache of the user data.
+	 *
+	 * @param repo user repository
+	 * @param user bare JID of the user
+	 * @param changeListener called with the changed node after data was modified through this cache, may be
+	 * <code>null</code>
+	 * @param ttl time (in ms) after which loaded data is dropped and loaded again, <code>0</code> to keep it until it
+	 * is invalidated
+	 */
+	public UserDataCache(UserRepository repo, BareJID user, BiConsumer<BareJID, String> changeListener, long ttl) {
+		this.repo = repo;
+		this.user = user;
+		this.changeListener = changeListener;
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+	}
+
+	public BareJID getUser() {
+		return user;
+	}
+
+	/**
+	 * Drops loaded data, so it will be loaded again from the repository on the next read.
+	 */
+	public synchronized void invalidate() {
+		++version;
+		nodes = null;
+	}
+
+	public boolean isLoaded() {
+		return nodes != null && !isExpired();
+	}
+
+	/**
+	 * Loads data of the user from the repository if it is not loaded yet.
+	 *
+	 * @return <code>true</code> if data is loaded
+	 */
+	public boolean load() {
+		return getNodes() != null;
+	}
+
+	public void addDataList(String subnode, String key, String[] list) throws TigaseDBException {
+		repo.addDataList(user, subnode, key, list);
+		// appending is not idempotent, so it is safer to load data again
+		invalidate();
+		changed(subnode);
+	}
+
+	public String getData(String subnode, String key, String def) throws TigaseDBException {
+		Map<String, Map<String, String[]>> nodes = getNodes();
+		if (nodes == null) {
+			return repo.getData(user, subnode, key, def);
+		}
+		Map<String, String[]> data = nodes.get(normalizeNode(subnode));
+		String[] values = data == null ? null : data.get(key);
+		return values == null || values.length == 0 ? def : values[0];
+	}
+
+	public String[] getDataList(String subnode, String key) throws TigaseDBException {
+		Map<String, Map<String, String[]>> nodes = getNodes();
+		if (nodes == null) {
+			return repo.getDataList(user, subnode, key);
+		}
+		Map<String, String[]> data = nodes.get(normalizeNode(subnode));
+		String[] values = data == null ? null : data.get(key);
+		return values == null ? null : values.clone();
+	}
+
+	public Map<String, String> getDataMap(String subnode) throws TigaseDBException {
+		Map<String, Map<String, String[]>> nodes = getNodes();
+		if (nodes == null) {
+			return repo.getDataMap(user, subnode);
+		}
+		Map<String, String[]> data = nodes.get(normalizeNode(subnode));
+		if (data == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> result = new HashMap<>();
+		for (Map.Entry<String, String[]> e : data.entrySet()) {
+			result.put(e.getKey(), e.getValue().length == 0 ? null : e.getValue()[0]);
+		}
+		return result;
+	}
+
+	public String[] getKeys(String subnode) throws TigaseDBException {
+		Map<String, Map<String, String[]>> nodes = getNodes();
+		if (nodes == null) {
+			return repo.getKeys(user, subnode);
+		}
+		Map<String, String[]> data = nodes.get(normalizeNode(subnode));
+		return data == null || data.isEmpty() ? null : data.keySet().toArray(new String[data.size()]);
+	}
+
+	public String[] getSubnodes(String subnode) throws TigaseDBException {
+		Map<String, Map<String, String[]>> nodes = getNodes();
+		if (nodes == null) {
+			return repo.getSubnodes(user, subnode);
+		}
+		String node = normalizeNode(subnode);
+		String prefix = node.isEmpty() ? "" : node + "/";
+		Set<String> result = new LinkedHashSet<>();
+		for (String path : nodes.keySet()) {
+			if (path.length() > prefix.length() && path.startsWith(prefix)) {
+				int idx = path.indexOf('/', prefix.length());
+				result.add(idx < 0 ? path.substring(prefix.length()) : path.substring(prefix.length(), idx));
+			}
+		}
+		return result.isEmpty() ? null : result.toArray(new String[result.size()]);
+	}
+
+	public void removeData(String subnode, String key) throws TigaseDBException {
+		repo.removeData(user, subnode, key);
+		update(nodes -> {
+			Map<String, String[]> data = nodes.get(normalizeNode(subnode));
+			if (data != null) {
+				data.remove(key);
+			}
+		});
+		changed(subnode);
+	}
+
+	public void removeSubnode(String subnode) throws TigaseDBException {
+		repo.removeSubnode(user, subnode);
+		if (subnode != null) {
+			String node = normalizeNode(subnode);
+			update(nodes -> nodes.keySet().removeIf(path -> path.equals(node) || path.startsWith(node + "/")));
+		}
+		changed(subnode);
+	}
+
+	public void setData(String subnode, String key, String value) throws TigaseDBException {
+		repo.setData(user, subnode, key, value);
+		update(nodes -> getOrCreateNode(nodes, subnode).put(key, new String[]{value}));
+		changed(subnode);
+	}
+
+	public void setDataList(String subnode, String key, String[] list) throws TigaseDBException {
+		repo.setDataList(user, subnode, key, list);
+		update(nodes -> getOrCreateNode(nodes, subnode).put(key, list.clone()));
+		changed(subnode);
+	}
+
+	@Override
+	public String toString() {
+		Map<String, Map<String, String[]>> nodes = this.nodes;
+		return "UserDataCache[user=" + user + ", nodes=" + (nodes == null ? "not loaded" : nodes.size()) + "]";
+	}
+
+	private void changed(String subnode) {
+		if (changeListener != null) {
+			changeListener.accept(user, subnode);
+		}
+	}
+
+	private Map<String, Map<String, String[]>> getNodes() {
+		Map<String, Map<String, String[]>> nodes = this.nodes;
+		if (nodes != null && !isExpired()) {
+			return nodes;
+		}
+
+		long loadVersion;
+		synchronized (this) {
+			if (this.nodes != null) {
+				if (!isExpired()) {
+					return this.nodes;
+				}
+				// data could be changed directly in the repository, so it has to be loaded again
+				++version;
+				this.nodes = null;
+			}
+			loadVersion = version;
+		}
+		try {
+			Map<String, Map<String, String[]>> data = repo.getUserData(user);
+			if (data == null) {
+				return null;
+			}
+			Map<String, Map<String, String[]>> loaded = new ConcurrentHashMap<>();
+			for (Map.Entry<String, Map<String, String[]>> e : data.entrySet()) {
+				loaded.put(normalizeNode(e.getKey()), new ConcurrentHashMap<>(e.getValue()));
+			}
+			synchronized (this) {
+				// data changed while loading, it will be loaded again on next read
+				if (version != loadVersion) {
+					return null;
+				}
+				this.nodes = loaded;
+				this.loadTime = System.nanoTime();
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Loaded {0} nodes of user {1} data", new Object[]{loaded.size(), user});
+			}
+			return loaded;
+		} catch (UserNotFoundException ex) {
+			log.log(Level.FINEST, "User {0} not found, data not loaded", user);
+			return null;
+		} catch (TigaseDBException ex) {
+			log.log(Level.WARNING, "Could not load data of user " + user, ex);
+			return null;
+		}
+	}
+
+	private Map<String, String[]> getOrCreateNode(Map<String, Map<String, String[]>> nodes, String subnode) {
+		String node = normalizeNode(subnode);
+		Map<String, String[]> data = nodes.get(node);
+		if (data == null) {
+			// parent nodes are created by repository as well
+			int idx = 0;
+			while ((idx = node.indexOf('/', idx)) > 0) {
+				nodes.computeIfAbsent(node.substring(0, idx), k -> new ConcurrentHashMap<>());
+				++idx;
+			}
+			nodes.computeIfAbsent("", k -> new ConcurrentHashMap<>());
+			data = nodes.computeIfAbsent(node, k -> new ConcurrentHashMap<>());
+		}
+		return data;
+	}
+
+	private boolean isExpired() {
+		return ttl > 0 && System.nanoTime() - loadTime >= ttl;
+	}
+
+	private synchronized void update(Consumer<Map<String, Map<String, String[]>>> change) {
+		++version;
+		Map<String, Map<String, String[]>> nodes = this.nodes;
+		if (nodes != null) {
+			change.accept(nodes);
+		}
+	}
+}
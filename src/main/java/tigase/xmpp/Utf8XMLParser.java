@@ -0,0 +1,618 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import tigase.xml.SimpleHandler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parser of <em>XML</em> stream reading UTF-8 encoded bytes directly, without decoding whole network data to
+ * characters first. Markup is recognized on bytes, and only names, attribute values and character data are decoded to
+ * <code>StringBuilder</code> instances passed to <code>SimpleHandler</code>, the same way as they are passed by
+ * <code>SimpleParser</code>. Entities are validated but kept as they are, as <code>Element</code> keeps escaped
+ * values, and content of <code>CDATA</code> sections is escaped.
+ * <br>
+ * Parser does not keep any state on its own, state of parsing (including incomplete multibyte characters at the end
+ * of data) is stored in the handler, so a single instance may be shared by all connections.
+ * <br>
+ * Builders with element names, character data and other <em>XML</em> are reused by the parser, so handler has to
+ * copy their content if it is needed later. Builders with attribute names and values are not reused.
+ */
+public class Utf8XMLParser {
+
+	public static final int MAX_ATTRIBS_NUMBER = 50;
+	public static final int MAX_ATTRIBUTE_NAME_SIZE = 1024;
+	public static final int MAX_ATTRIBUTE_VALUE_SIZE = 10 * 1024;
+	public static final int MAX_CDATA_SIZE = 1024 * 1024;
+	public static final int MAX_ELEMENT_NAME_SIZE = 1024;
+	// longest entity is "&#x10FFFF;"
+	private static final int MAX_ENTITY_SIZE = 10;
+	private static final String CDATA_START = "<![CDATA[";
+	private static final String COMMENT_START = "<!--";
+	private static final int SCRATCH_SIZE = 1024;
+
+	private static final int CONTENT = 0;
+	private static final int OPEN_BRACKET = 1;
+	private static final int ELEMENT_NAME = 2;
+	private static final int ATTRIBS = 3;
+	private static final int ATTR_NAME = 4;
+	private static final int AFTER_ATTR_NAME = 5;
+	private static final int ATTR_VALUE_START = 6;
+	private static final int ATTR_VALUE = 7;
+	private static final int AFTER_ATTR_VALUE = 8;
+	private static final int EMPTY_ELEMENT_END = 9;
+	private static final int END_ELEMENT_NAME = 10;
+	private static final int END_ELEMENT_WS = 11;
+	private static final int PROCESSING_INSTRUCTION = 12;
+	private static final int MARKUP = 13;
+	private static final int COMMENT = 14;
+	private static final int CDATA_SECTION = 15;
+	private static final int ERROR = 16;
+
+	private static final Utf8XMLParser instance = new Utf8XMLParser();
+
+	public static Utf8XMLParser getInstance() {
+		return instance;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private static boolean isNameChar(int c) {
+		return c > ' ' && c != '<' && c != '>' && c != '/' && c != '=' && c != '&' && c != '"' && c != '\'' &&
+				c != '?' && c != '!';
+	}
+
+	private static boolean isValidEntity(StringBuilder sb, int start) {
+		// content of the entity without '&' and ';'
+		int from = start + 1;
+		int to = sb.length() - 1;
+		int len = to - from;
+		if (len <= 0) {
+			return false;
+		}
+		if (sb.charAt(from) == '#') {
+			int radix = 10;
+			from++;
+			if (from < to && sb.charAt(from) == 'x') {
+				radix = 16;
+				from++;
+			}
+			if (from == to) {
+				return false;
+			}
+			int cp = 0;
+			for (int i = from; i < to; i++) {
+				int digit = Character.digit(sb.charAt(i), radix);
+				if (digit < 0) {
+					return false;
+				}
+				cp = cp * radix + digit;
+				if (cp > Character.MAX_CODE_POINT) {
+					return false;
+				}
+			}
+			return isXMLChar(cp);
+		}
+		switch (len) {
+			case 2:
+				return (sb.charAt(from) == 'l' || sb.charAt(from) == 'g') && sb.charAt(from + 1) == 't';
+			case 3:
+				return sb.charAt(from) == 'a' && sb.charAt(from + 1) == 'm' && sb.charAt(from + 2) == 'p';
+			case 4:
+				return (sb.charAt(from) == 'q' && sb.charAt(from + 1) == 'u' && sb.charAt(from + 2) == 'o' &&
+						sb.charAt(from + 3) == 't') ||
+						(sb.charAt(from) == 'a' && sb.charAt(from + 1) == 'p' && sb.charAt(from + 2) == 'o' &&
+								sb.charAt(from + 3) == 's');
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isXMLChar(int cp) {
+		if (cp < 0x20) {
+			return cp == '\t' || cp == '\n' || cp == '\r';
+		}
+		return (cp <= 0xD7FF) || (cp >= 0xE000 && cp <= 0xFFFD) || (cp >= 0x10000 && cp <= Character.MAX_CODE_POINT);
+	}
+
+	private static boolean startsWith(String prefix, StringBuilder sb) {
+		int len = sb.length();
+		if (len > prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (prefix.charAt(i) != sb.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean endsWith(StringBuilder sb, String suffix) {
+		int off = sb.length() - suffix.length();
+		if (off < 0) {
+			return false;
+		}
+		for (int i = 0; i < suffix.length(); i++) {
+			if (sb.charAt(off + i) != suffix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses data remaining in the buffer. Position of the buffer is moved to its limit.
+	 *
+	 * @param handler receiving parsed elements and keeping state of parsing
+	 * @param data UTF-8 encoded data
+	 */
+	public void parse(SimpleHandler handler, ByteBuffer data) {
+		if (data.hasArray()) {
+			parse(handler, data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.limit());
+		} else {
+			ParserState state = getState(handler);
+			if (state.scratch == null) {
+				state.scratch = new byte[SCRATCH_SIZE];
+			}
+			while (data.hasRemaining()) {
+				int len = Math.min(data.remaining(), state.scratch.length);
+				data.get(state.scratch, 0, len);
+				parse(handler, state.scratch, 0, len);
+			}
+		}
+	}
+
+	/**
+	 * Parses <code>len</code> bytes of the array starting at <code>off</code>. Incomplete data at the end (ie. part
+	 * of an element or of a multibyte character) is kept in the handler and parsing continues with next call.
+	 *
+	 * @param handler receiving parsed elements and keeping state of parsing
+	 * @param data UTF-8 encoded data
+	 * @param off offset of the first byte to parse
+	 * @param len number of bytes to parse
+	 */
+	public void parse(SimpleHandler handler, byte[] data, int off, int len) {
+		ParserState state = getState(handler);
+		final int end = off + len;
+		int i = off;
+		while (i < end && state.state != ERROR) {
+			int b = data[i++];
+			if (state.pending > 0) {
+				if ((b & 0xC0) != 0x80) {
+					error(handler, state, "Invalid UTF-8 sequence");
+					break;
+				}
+				state.codePoint = (state.codePoint << 6) | (b & 0x3F);
+				if (--state.pending > 0) {
+					continue;
+				}
+				int cp = state.codePoint;
+				if (cp < state.minCodePoint || !isXMLChar(cp)) {
+					error(handler, state, "Invalid character: " + Integer.toHexString(cp));
+					break;
+				}
+				if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+					process(handler, state, Character.highSurrogate(cp));
+					process(handler, state, Character.lowSurrogate(cp));
+				} else {
+					process(handler, state, (char) cp);
+				}
+				continue;
+			}
+			if (b >= 0) {
+				if (b < 0x20 && b != '\n' && b != '\t' && b != '\r') {
+					// null bytes are sent by some (ie. Flash) clients between stanzas
+					if (b == 0 && state.state == CONTENT) {
+						continue;
+					}
+					error(handler, state, "Invalid character: " + Integer.toHexString(b));
+					break;
+				}
+				process(handler, state, (char) b);
+				// most of the data are ASCII characters of text, so they are copied without going through whole
+				// state machine
+				if (state.entityStart < 0) {
+					if (state.state == CONTENT) {
+						i = copyText(state.cdata, data, i, end, '<');
+						if (state.cdata.length() > MAX_CDATA_SIZE) {
+							error(handler, state, "Max cdata size exceeded: " + MAX_CDATA_SIZE);
+						}
+					} else if (state.state == ATTR_VALUE) {
+						i = copyText(state.attrValue, data, i, end, state.quote);
+						if (state.attrValue.length() > MAX_ATTRIBUTE_VALUE_SIZE) {
+							error(handler, state, "Max attribute value size exceeded: " + MAX_ATTRIBUTE_VALUE_SIZE);
+						}
+					}
+				}
+				continue;
+			}
+			if ((b & 0xE0) == 0xC0) {
+				state.codePoint = b & 0x1F;
+				state.pending = 1;
+				state.minCodePoint = 0x80;
+			} else if ((b & 0xF0) == 0xE0) {
+				state.codePoint = b & 0x0F;
+				state.pending = 2;
+				state.minCodePoint = 0x800;
+			} else if ((b & 0xF8) == 0xF0) {
+				state.codePoint = b & 0x07;
+				state.pending = 3;
+				state.minCodePoint = 0x10000;
+			} else {
+				error(handler, state, "Invalid UTF-8 sequence");
+			}
+		}
+		handler.saveParserState(state);
+	}
+
+	private int copyText(StringBuilder sb, byte[] data, int i, int end, int stop) {
+		while (i < end) {
+			int b = data[i];
+			if (b < 0x20 || b == stop || b == '<' || b == '&') {
+				if (b != '\n' && b != '\t' && b != '\r') {
+					break;
+				}
+			}
+			sb.append((char) b);
+			i++;
+		}
+		return i;
+	}
+
+	private void error(SimpleHandler handler, ParserState state, String message) {
+		state.state = ERROR;
+		handler.error(message);
+	}
+
+	private ParserState getState(SimpleHandler handler) {
+		ParserState state = (ParserState) handler.restoreParserState();
+		if (state == null) {
+			state = new ParserState();
+			handler.saveParserState(state);
+		}
+		return state;
+	}
+
+	private void process(SimpleHandler handler, ParserState state, char c) {
+		switch (state.state) {
+			case CONTENT:
+				if (c == '<') {
+					if (state.entityStart >= 0) {
+						error(handler, state, "Unterminated entity");
+						return;
+					}
+					if (state.cdata.length() > 0) {
+						handler.elementCData(state.cdata);
+						state.cdata.setLength(0);
+					}
+					state.state = OPEN_BRACKET;
+					return;
+				}
+				appendText(handler, state, state.cdata, c, MAX_CDATA_SIZE);
+				return;
+			case OPEN_BRACKET:
+				switch (c) {
+					case '/':
+						state.name.setLength(0);
+						state.state = END_ELEMENT_NAME;
+						return;
+					case '?':
+						state.other.setLength(0);
+						state.other.append("<?");
+						state.state = PROCESSING_INSTRUCTION;
+						return;
+					case '!':
+						state.other.setLength(0);
+						state.other.append("<!");
+						state.state = MARKUP;
+						return;
+					default:
+						if (!isNameChar(c)) {
+							error(handler, state, "Invalid element name character: " + c);
+							return;
+						}
+						state.name.setLength(0);
+						state.name.append(c);
+						state.attrCount = 0;
+						state.state = ELEMENT_NAME;
+						return;
+				}
+			case ELEMENT_NAME:
+				if (isWhitespace(c)) {
+					state.state = ATTRIBS;
+				} else if (c == '/') {
+					state.state = EMPTY_ELEMENT_END;
+				} else if (c == '>') {
+					startElement(handler, state);
+				} else if (isNameChar(c)) {
+					appendName(handler, state, state.name, c, MAX_ELEMENT_NAME_SIZE);
+				} else {
+					error(handler, state, "Invalid element name character: " + c);
+				}
+				return;
+			case ATTRIBS:
+				if (isWhitespace(c)) {
+					return;
+				}
+				if (c == '/') {
+					state.state = EMPTY_ELEMENT_END;
+				} else if (c == '>') {
+					startElement(handler, state);
+				} else if (isNameChar(c)) {
+					if (state.attrCount >= MAX_ATTRIBS_NUMBER) {
+						error(handler, state, "Max attributes number exceeded: " + MAX_ATTRIBS_NUMBER);
+						return;
+					}
+					state.attrName = new StringBuilder(8);
+					state.attrName.append(c);
+					state.state = ATTR_NAME;
+				} else {
+					error(handler, state, "Invalid attribute name character: " + c);
+				}
+				return;
+			case ATTR_NAME:
+				if (c == '=') {
+					state.state = ATTR_VALUE_START;
+				} else if (isWhitespace(c)) {
+					state.state = AFTER_ATTR_NAME;
+				} else if (isNameChar(c)) {
+					appendName(handler, state, state.attrName, c, MAX_ATTRIBUTE_NAME_SIZE);
+				} else {
+					error(handler, state, "Invalid attribute name character: " + c);
+				}
+				return;
+			case AFTER_ATTR_NAME:
+				if (c == '=') {
+					state.state = ATTR_VALUE_START;
+				} else if (!isWhitespace(c)) {
+					error(handler, state, "Missing value of attribute: " + state.attrName);
+				}
+				return;
+			case ATTR_VALUE_START:
+				if (c == '"' || c == '\'') {
+					state.quote = c;
+					state.attrValue = new StringBuilder(16);
+					state.state = ATTR_VALUE;
+				} else if (!isWhitespace(c)) {
+					error(handler, state, "Attribute value not quoted: " + state.attrName);
+				}
+				return;
+			case ATTR_VALUE:
+				if (c == state.quote) {
+					if (state.entityStart >= 0) {
+						error(handler, state, "Unterminated entity");
+						return;
+					}
+					addAttribute(state);
+					state.state = AFTER_ATTR_VALUE;
+				} else if (c == '<') {
+					error(handler, state, "Invalid character in attribute value: " + c);
+				} else {
+					appendText(handler, state, state.attrValue, c, MAX_ATTRIBUTE_VALUE_SIZE);
+				}
+				return;
+			case AFTER_ATTR_VALUE:
+				if (isWhitespace(c)) {
+					state.state = ATTRIBS;
+				} else if (c == '/') {
+					state.state = EMPTY_ELEMENT_END;
+				} else if (c == '>') {
+					startElement(handler, state);
+				} else {
+					error(handler, state, "Missing whitespace after attribute: " + state.attrName);
+				}
+				return;
+			case EMPTY_ELEMENT_END:
+				if (c != '>') {
+					error(handler, state, "Invalid character after '/' in element: " + state.name);
+					return;
+				}
+				startElement(handler, state);
+				if (state.state != ERROR) {
+					endElement(handler, state);
+				}
+				return;
+			case END_ELEMENT_NAME:
+				if (c == '>') {
+					endElement(handler, state);
+				} else if (isWhitespace(c) && state.name.length() > 0) {
+					state.state = END_ELEMENT_WS;
+				} else if (isNameChar(c)) {
+					appendName(handler, state, state.name, c, MAX_ELEMENT_NAME_SIZE);
+				} else {
+					error(handler, state, "Invalid element name character: " + c);
+				}
+				return;
+			case END_ELEMENT_WS:
+				if (c == '>') {
+					endElement(handler, state);
+				} else if (!isWhitespace(c)) {
+					error(handler, state, "Invalid character in closing tag of element: " + state.name);
+				}
+				return;
+			case PROCESSING_INSTRUCTION:
+				appendName(handler, state, state.other, c, MAX_ELEMENT_NAME_SIZE);
+				if (c == '>' && endsWith(state.other, "?>")) {
+					otherXML(handler, state);
+				}
+				return;
+			case MARKUP:
+				appendName(handler, state, state.other, c, MAX_ELEMENT_NAME_SIZE);
+				if (startsWith(CDATA_START, state.other)) {
+					if (state.other.length() == CDATA_START.length()) {
+						state.brackets = 0;
+						state.state = CDATA_SECTION;
+					}
+				} else if (startsWith(COMMENT_START, state.other)) {
+					if (state.other.length() == COMMENT_START.length()) {
+						state.state = COMMENT;
+					}
+				} else if (c == '>') {
+					otherXML(handler, state);
+				}
+				return;
+			case COMMENT:
+				appendName(handler, state, state.other, c, MAX_CDATA_SIZE);
+				if (c == '>' && endsWith(state.other, "-->")) {
+					otherXML(handler, state);
+				}
+				return;
+			case CDATA_SECTION:
+				appendCDataSection(handler, state, c);
+				return;
+			default:
+		}
+	}
+
+	private void addAttribute(ParserState state) {
+		if (state.attrNames == null || state.attrNames.length == state.attrCount) {
+			int size = state.attrNames == null ? 4 : state.attrNames.length * 2;
+			StringBuilder[] names = new StringBuilder[size];
+			StringBuilder[] values = new StringBuilder[size];
+			if (state.attrNames != null) {
+				System.arraycopy(state.attrNames, 0, names, 0, state.attrCount);
+				System.arraycopy(state.attrValues, 0, values, 0, state.attrCount);
+			}
+			state.attrNames = names;
+			state.attrValues = values;
+		}
+		state.attrNames[state.attrCount] = state.attrName;
+		state.attrValues[state.attrCount] = state.attrValue;
+		state.attrCount++;
+	}
+
+	private void appendCDataSection(SimpleHandler handler, ParserState state, char c) {
+		if (c == ']') {
+			state.brackets++;
+			return;
+		}
+		if (c == '>' && state.brackets >= 2) {
+			for (int i = 2; i < state.brackets; i++) {
+				state.cdata.append(']');
+			}
+			state.brackets = 0;
+			state.state = CONTENT;
+			return;
+		}
+		for (; state.brackets > 0; state.brackets--) {
+			state.cdata.append(']');
+		}
+		switch (c) {
+			case '&':
+				state.cdata.append("&amp;");
+				break;
+			case '<':
+				state.cdata.append("&lt;");
+				break;
+			case '>':
+				state.cdata.append("&gt;");
+				break;
+			default:
+				state.cdata.append(c);
+		}
+		if (state.cdata.length() > MAX_CDATA_SIZE) {
+			error(handler, state, "Max cdata size exceeded: " + MAX_CDATA_SIZE);
+		}
+	}
+
+	private void appendName(SimpleHandler handler, ParserState state, StringBuilder sb, char c, int limit) {
+		if (sb.length() >= limit) {
+			error(handler, state, "Max name size exceeded: " + limit);
+			return;
+		}
+		sb.append(c);
+	}
+
+	private void appendText(SimpleHandler handler, ParserState state, StringBuilder sb, char c, int limit) {
+		if (sb.length() >= limit) {
+			error(handler, state, "Max text size exceeded: " + limit);
+			return;
+		}
+		sb.append(c);
+		if (c == '&') {
+			if (state.entityStart >= 0) {
+				error(handler, state, "Unterminated entity");
+				return;
+			}
+			state.entityStart = sb.length() - 1;
+		} else if (state.entityStart >= 0) {
+			if (c == ';') {
+				if (!isValidEntity(sb, state.entityStart)) {
+					error(handler, state, "Invalid entity: " + sb.substring(state.entityStart));
+					return;
+				}
+				state.entityStart = -1;
+			} else if (sb.length() - state.entityStart >= MAX_ENTITY_SIZE) {
+				error(handler, state, "Invalid entity: " + sb.substring(state.entityStart));
+			}
+		}
+	}
+
+	private void endElement(SimpleHandler handler, ParserState state) {
+		state.state = CONTENT;
+		if (!handler.endElement(state.name)) {
+			error(handler, state, "Closing tag does not match opening tag: " + state.name);
+		}
+	}
+
+	private void otherXML(SimpleHandler handler, ParserState state) {
+		state.state = CONTENT;
+		handler.otherXML(state.other);
+		state.other.setLength(0);
+	}
+
+	private void startElement(SimpleHandler handler, ParserState state) {
+		StringBuilder[] names = null;
+		StringBuilder[] values = null;
+		if (state.attrCount > 0) {
+			names = new StringBuilder[state.attrCount];
+			values = new StringBuilder[state.attrCount];
+			System.arraycopy(state.attrNames, 0, names, 0, state.attrCount);
+			System.arraycopy(state.attrValues, 0, values, 0, state.attrCount);
+			state.attrCount = 0;
+		}
+		state.state = CONTENT;
+		handler.startElement(state.name, names, values);
+	}
+
+	private static class ParserState {
+
+		private final StringBuilder cdata = new StringBuilder(64);
+		private final StringBuilder other = new StringBuilder(64);
+		private int attrCount = 0;
+		private StringBuilder attrName = null;
+		private StringBuilder[] attrNames = null;
+		private StringBuilder attrValue = null;
+		private StringBuilder[] attrValues = null;
+		private int brackets = 0;
+		private int codePoint = 0;
+		private int entityStart = -1;
+		private int minCodePoint = 0;
+		private final StringBuilder name = new StringBuilder(16);
+		private int pending = 0;
+		private char quote = '"';
+		private byte[] scratch = null;
+		private int state = CONTENT;
+
+	}
+}
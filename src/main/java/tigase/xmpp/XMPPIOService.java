@@ -17,9 +17,11 @@
  */
 package tigase.xmpp;
 
+import tigase.net.ElementByteWriter;
 import tigase.net.IOService;
 import tigase.server.ConnectionManager;
 import tigase.server.Packet;
+import tigase.server.SharedPayload;
 import tigase.server.xmppclient.XMPPIOProcessor;
 import tigase.util.StringUtilities;
 import tigase.util.stringprep.TigaseStringprepException;
@@ -28,10 +30,18 @@ import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.locks.ReentrantLock;
@@ -62,6 +72,16 @@ public class XMPPIOService<RefObject>
 	 */
 	public static final String DOM_HANDLER = "XMPPDomBuilderHandler";
 
+	/**
+	 * Key name of the system property which allows to disable serialization of waiting packets directly to bytes.
+	 */
+	public static final String DIRECT_WRITE_PROP_KEY = "xmpp-direct-write";
+
+	/**
+	 * Key name of the system property with maximal number of bytes of serialized packets written at once.
+	 */
+	public static final String DIRECT_WRITE_BATCH_SIZE_PROP_KEY = "xmpp-direct-write-batch-size";
+
 	public static final String ID_ATT = "id";
 
 	public static final String REQ_NAME = "req";
@@ -70,9 +90,16 @@ public class XMPPIOService<RefObject>
 
 	private static final Logger log = Logger.getLogger(XMPPIOService.class.getName());
 
+	private static final boolean directWrite = Boolean.parseBoolean(System.getProperty(DIRECT_WRITE_PROP_KEY, "true"));
+	private static final int directWriteBatchSize = Integer.getInteger(DIRECT_WRITE_BATCH_SIZE_PROP_KEY, 16 * 1024);
+	private static final ConcurrentHashMap<Class<?>, Boolean> directWriteSupport = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<Class<?>, Boolean> byteParserSupport = new ConcurrentHashMap<>();
+
 	public ReentrantLock writeInProgress = new ReentrantLock();
 	protected SimpleParser parser = SingletonFactory.getParserInstance();
 	protected XMPPIOProcessor[] processors = null;
+	private Utf8XMLParser byteParser = null;
+	private boolean byteParserChecked = false;
 	private XMPPDomBuilderHandler<RefObject> domHandler = null;
 	private boolean firstPacket = true;
 	private String jid = null;
@@ -223,6 +250,16 @@ public class XMPPIOService<RefObject>
 	public void processWaitingPackets() throws IOException {
 		Packet packet = null;
 
+		if (isDirectWriteSupported()) {
+			// packets are removed from the queue after they are written, so only one thread may write them at a time
+			writeInProgress.lock();
+			try {
+				writeWaitingPackets();
+			} finally {
+				writeInProgress.unlock();
+			}
+		}
+
 		// int cnt = 0;
 		// while ((packet = waitingPackets.poll()) != null && (cnt < 1000)) {
 
@@ -266,6 +303,130 @@ public class XMPPIOService<RefObject>
 		return super.toString() + ", jid: " + jid;
 	}
 
+	/**
+	 * Method checks if waiting packets may be serialized directly to bytes and written to the socket in batches. This
+	 * is not possible if any subclass changes how data is written by overriding <code>writeRawData()</code> or
+	 * <code>writeData()</code> method, ie. to add framing.
+	 *
+	 * @return true if serialization directly to bytes is supported
+	 */
+	protected boolean isDirectWriteSupported() {
+		return directWrite && directWriteSupport.computeIfAbsent(getClass(), XMPPIOService::checkDirectWriteSupport);
+	}
+
+	/**
+	 * Method checks if serialization of waiting packets directly to bytes was not disabled by the system property.
+	 * Subclasses which override <code>writeData()</code>, but write data of XML stream unchanged, may use it to
+	 * implement {@link #isDirectWriteSupported()}.
+	 *
+	 * @return true if serialization directly to bytes is enabled
+	 */
+	protected static boolean isDirectWriteEnabled() {
+		return directWrite;
+	}
+
+	/**
+	 * Method called after batch of waiting packets serialized directly to bytes was written to the socket.
+	 *
+	 * @param packets number of packets written and removed from the queue
+	 * @param bytes number of bytes written
+	 */
+	protected void waitingPacketsWritten(int packets, int bytes) {
+	}
+
+	/**
+	 * Method checks if data read from the socket may be parsed directly from bytes. This is not possible if any
+	 * subclass changes how data is read or checked by overriding <code>readData()</code> or <code>checkData()</code>
+	 * method, ie. to remove framing.
+	 *
+	 * @return true if parsing of bytes is supported
+	 */
+	protected boolean isByteParserSupported() {
+		return byteParserSupport.computeIfAbsent(getClass(), XMPPIOService::checkByteParserSupport);
+	}
+
+	private static boolean checkByteParserSupport(Class<?> cls) {
+		for (Class<?> c = cls; c != null && c != XMPPIOService.class; c = c.getSuperclass()) {
+			for (Method m : c.getDeclaredMethods()) {
+				if (m.getName().equals("readData") || m.getName().equals("checkData")) {
+					log.log(Level.CONFIG, "{0} overrides {1}(), parsing of bytes is disabled",
+							new Object[]{cls.getName(), m.getName()});
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean checkDirectWriteSupport(Class<?> cls) {
+		for (Class<?> c = cls; c != null && c != XMPPIOService.class; c = c.getSuperclass()) {
+			for (Method m : c.getDeclaredMethods()) {
+				if ((m.getName().equals("writeRawData") || m.getName().equals("writeData")) &&
+						Arrays.equals(m.getParameterTypes(), new Class[]{String.class})) {
+					log.log(Level.CONFIG, "{0} overrides {1}(), direct write of packets is disabled",
+							new Object[]{cls.getName(), m.getName()});
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void writeWaitingPackets() {
+		ElementByteWriter writer = ElementByteWriter.getInstance();
+		Iterator<Packet> it = waitingPackets.iterator();
+		List<Packet> batch = new ArrayList<>();
+
+		while (it.hasNext()) {
+			Packet packet = it.next();
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, Sending packet: {1}", new Object[]{toString(), packet});
+			}
+			SharedPayload shared = packet.getSharedPayload();
+			if (shared != null) {
+				shared.write(writer, packet.getElement());
+			} else {
+				writer.write(packet.getElement());
+			}
+			batch.add(packet);
+			if (writer.size() >= directWriteBatchSize) {
+				writeWaitingPackets(writer, batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			writeWaitingPackets(writer, batch);
+		}
+	}
+
+	private void writeWaitingPackets(ElementByteWriter writer, List<Packet> batch) {
+		ByteBuffer data = writer.flip();
+		int bytes = data.remaining();
+		int written = 0;
+
+		try {
+			writeBytes(data);
+		} finally {
+			writer.release(data);
+		}
+
+		// and after sending them we should remove them to minimalize chances of lost packets
+		for (Packet packet : batch) {
+			// packet could be already removed, ie. when service was stopped and waiting packets were returned
+			if (waitingPackets.peek() != packet) {
+				break;
+			}
+			waitingPackets.poll();
+			++written;
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, SENT: {1}", new Object[]{toString(), packet});
+			}
+		}
+		waitingPacketsWritten(written, bytes);
+	}
+
 	public void writeRawData(String data) throws IOException {
 
 		// We change state of this object in this method
@@ -368,6 +529,16 @@ public class XMPPIOService<RefObject>
 
 	}
 
+	/**
+	 * Enables parsing of data read from the socket directly from UTF-8 bytes with {@link Utf8XMLParser} instead of
+	 * decoding it to characters first. It has no effect if subclass changes how data is read or checked.
+	 *
+	 * @param enabled true to use byte parser
+	 */
+	public void setByteParserEnabled(boolean enabled) {
+		byteParser = enabled && isByteParserSupported() ? Utf8XMLParser.getInstance() : null;
+	}
+
 	@SuppressWarnings({"unchecked", "rawtypes"})
 	public void setIOServiceListener(XMPPIOServiceListener servList) {
 		this.serviceListener = servList;
@@ -455,7 +626,7 @@ public class XMPPIOService<RefObject>
 		// readLock.lock();
 		// try {
 		if (isConnected()) {
-			char[] data = readData();
+			char[] data = byteParser != null ? processSocketBytes() : readData();
 
 			while (isConnected() && (data != null) && (data.length > 0)) {
 				if (log.isLoggable(Level.FINEST)) {
@@ -485,20 +656,7 @@ public class XMPPIOService<RefObject>
 				try {
 					parser.parse(domHandler, data, 0, data.length);
 					if (domHandler.parseError()) {
-						if (log.isLoggable(Level.FINE)) {
-							log.log(Level.FINE, "{0}, Data parsing error: {1}",
-									new Object[]{toString(), StringUtilities.convertNonPrintableCharactersToLiterals(new String(data))});
-						} else {
-							log.log(Level.INFO, "{0}, data parsing error, stopping connection", toString());
-						}
-						if (serviceListener != null) {
-							Element err = new Element("not-well-formed", new String[]{"xmlns"},
-													  new String[]{"urn:ietf:params:xml:ns:xmpp-streams"});
-							String streamErrorStr = serviceListener.xmppStreamError(this,
-																					Collections.singletonList(err));
-							writeRawData(streamErrorStr);
-						}
-						forceStop();
+						parseErrorOccurred(new String(data));
 
 						return;
 
@@ -526,6 +684,97 @@ public class XMPPIOService<RefObject>
 		}
 	}
 
+	/**
+	 * Reads data from the socket and parses it with byte parser as long as there is data available. First data read
+	 * from the socket is parsed this way only if it looks like <em>XML</em>, otherwise byte parser is disabled for the
+	 * connection, so data is handled as before (ie. TLS handshake sent to plain port is detected).
+	 *
+	 * @return characters decoded from data which should be parsed with character parser or <code>null</code>
+	 */
+	private char[] processSocketBytes() throws IOException {
+		ByteBuffer buf = readBytes();
+
+		while (isConnected() && (buf != null) && buf.hasRemaining()) {
+			if (!byteParserChecked) {
+				byteParserChecked = true;
+				if (!startsWithMarkup(buf)) {
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "{0}, received data is not XML, byte parser disabled", toString());
+					}
+					byteParser = null;
+					try {
+						return decodeData(buf);
+					} catch (MalformedInputException ex) {
+						log.log(Level.FINEST, "{0}, Incorrect data, stopping connection", toString());
+						forceStop();
+						return null;
+					}
+				}
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, READ:{1}",
+						new Object[]{toString(), StandardCharsets.UTF_8.decode(buf.duplicate())});
+			}
+
+			// This is log for debugging only,
+			// in normal mode don't even call below code
+			assert debug(StandardCharsets.UTF_8.decode(buf.duplicate()).toString(), "--RECEIVED:");
+
+			ByteBuffer data = buf.duplicate();
+			try {
+				byteParser.parse(domHandler, buf);
+				if (domHandler.parseError()) {
+					parseErrorOccurred(StandardCharsets.UTF_8.decode(data).toString());
+
+					return null;
+				}
+
+				moveParsedPacketsToReceived(true);
+			} catch (Exception ex) {
+				log.log(Level.INFO, toString() + ", Incorrect XML data: " + StandardCharsets.UTF_8.decode(data) +
+						", stopping connection: " + getConnectionId() + ", exception: ", ex);
+				forceStop();
+			} finally {
+				buf.clear();
+				if (domHandler.isStreamClosed()) {
+					xmppStreamClosed();
+				}
+			}
+			buf = readBytes();
+		}
+		if (buf != null) {
+			buf.clear();
+		}
+
+		return null;
+	}
+
+	private boolean startsWithMarkup(ByteBuffer buf) {
+		for (int i = buf.position(); i < buf.limit(); i++) {
+			byte b = buf.get(i);
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				return b == '<';
+			}
+		}
+		return true;
+	}
+
+	private void parseErrorOccurred(String data) throws IOException {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "{0}, Data parsing error: {1}",
+					new Object[]{toString(), StringUtilities.convertNonPrintableCharactersToLiterals(data)});
+		} else {
+			log.log(Level.INFO, "{0}, data parsing error, stopping connection", toString());
+		}
+		if (serviceListener != null) {
+			Element err = new Element("not-well-formed", new String[]{"xmlns"},
+									  new String[]{"urn:ietf:params:xml:ns:xmpp-streams"});
+			String streamErrorStr = serviceListener.xmppStreamError(this, Collections.singletonList(err));
+			writeRawData(streamErrorStr);
+		}
+		forceStop();
+	}
+
 	@Override
 	protected int receivedPackets() {
 		return receivedPackets.size();
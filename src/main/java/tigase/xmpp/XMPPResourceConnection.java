@@ -652,6 +652,12 @@ public class XMPPResourceConnection
 		}
 	}
 
+	@Override
+	protected UserDataCache getUserDataCache() {
+		XMPPSession session = parentSession;
+		return session == null ? null : session.getUserDataCache();
+	}
+
 	@Override
 	protected void login() {
 		authenticationTime = System.currentTimeMillis();
@@ -45,6 +45,7 @@ public class XMPPSession {
 	private long creationTime = 0;
 	private long packets_counter = 0;
 	private Map<String, Object> sessionData = null;
+	private volatile UserDataCache userDataCache = null;
 
 	/**
 	 * User name - localpart of user's JID
@@ -412,6 +413,19 @@ public class XMPPSession {
 		return username;
 	}
 
+	/**
+	 * Method returns cache of the user data shared by all connections of the user.
+	 *
+	 * @return cache of the user data or <code>null</code> if data is not cached
+	 */
+	public UserDataCache getUserDataCache() {
+		return userDataCache;
+	}
+
+	public void setUserDataCache(UserDataCache userDataCache) {
+		this.userDataCache = userDataCache;
+	}
+
 	public Object computeCommonSessionDataIfAbsent(String key, Function<String, Object> valueFactory) {
 		return sessionData.computeIfAbsent(key, valueFactory);
 	}
@@ -49,10 +49,22 @@ public class ClientStateIndication
 	protected static final String ID = XMLNS;
 	protected static final String ACTIVE_NAME = "active";
 	protected static final String INACTIVE_NAME = "inactive";
+	private static final String INACTIVE_KEY = "csi-inactive";
 	private static final Logger log = Logger.getLogger(ClientStateIndication.class.getCanonicalName());
 	@Inject
 	private Logic logic;
 
+	/**
+	 * Checks if the client reported that it is inactive.
+	 *
+	 * @param session user session.
+	 *
+	 * @return <code>true</code> if the last state reported by the client was <code>inactive</code>.
+	 */
+	public static boolean isInactive(XMPPResourceConnection session) {
+		return session.getSessionData(INACTIVE_KEY) != null;
+	}
+
 	@Override
 	public void filter(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
 					   Queue<Packet> results) {
@@ -78,9 +90,11 @@ public class ClientStateIndication
 
 		switch (packet.getElemName()) {
 			case ACTIVE_NAME:
+				session.removeSessionData(INACTIVE_KEY);
 				logic.deactivate(session, results);
 				break;
 			case INACTIVE_NAME:
+				session.putSessionData(INACTIVE_KEY, INACTIVE_KEY);
 				logic.activate(session, results);
 				break;
 			default:
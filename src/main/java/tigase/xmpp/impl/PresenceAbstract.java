@@ -21,6 +21,7 @@ import tigase.db.TigaseDBException;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
+import tigase.server.SharedPayload;
 import tigase.sys.TigaseRuntime;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
@@ -186,17 +187,7 @@ public abstract class PresenceAbstract
 		Packet result = null;
 
 		if (pres == null) {
-			presence = new Element(PRESENCE_ELEMENT_NAME);
-			if (t != null) {
-				presence.setAttribute("type", t.toString());
-			}    // end of if (t != null)
-			else {
-				presence.setAttribute("type", StanzaType.unavailable.toString());
-			}    // end of if (t != null) else
-			if (null != from) {
-				presence.setAttribute("from", from.toString());
-			}
-			presence.setXMLNS(XMLNS);
+			presence = createPresence(t, from);
 		} else {
 			presence = pres.clone();
 		}      // end of if (pres == null) else
@@ -216,6 +207,77 @@ public abstract class PresenceAbstract
 		return result;
 	}
 
+	/**
+	 * Sends Presence stanza with the payload shared with other recipients and returns created result {@link Packet}
+	 * object. Neither the stanza is cloned nor the addresses are parsed again, so this method should be used when the
+	 * same presence is sent to many buddies.
+	 *
+	 * @param to is a <code>JID</code> instance with stanza destination address.
+	 * @param results this a collection with packets which have been generated as input packet processing results.
+	 * @param payload presence created by {@link #sharedPresence(StanzaType, JID, Element)}.
+	 *
+	 * @return an instance of {@link Packet} holding Presence stanza addressed to {@code to}.
+	 */
+	public static Packet sendPresence(JID to, Queue<Packet> results, SharedPayload payload) {
+		Packet result = payload.packetInstance(to);
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending presence info: {0}", result);
+		}
+		results.offer(result);
+
+		return result;
+	}
+
+	/**
+	 * Creates Presence stanza which may be sent to many recipients with {@link #sendPresence(JID, Queue,
+	 * SharedPayload)}. Stanza is created the same way as by {@link #sendPresence(StanzaType, JID, JID, Queue,
+	 * Element)}, and the source address is parsed only once for all recipients.
+	 *
+	 * @param t specifies type of the presence to be send if {@code pres} is <code>null</code>.
+	 * @param from is a <code>JID</code> instance with stanza source address.
+	 * @param pres an Object of type {@link Element} holding Presence stanza to be sent.
+	 *
+	 * @return payload of the presence or <code>null</code> if source address of {@code pres} is not valid.
+	 */
+	public static SharedPayload sharedPresence(StanzaType t, JID from, Element pres) {
+		if (pres == null) {
+			return new SharedPayload(createPresence(t, from), from);
+		}
+
+		String stanzaFrom = pres.getAttributeStaticStr(Packet.FROM_ATT);
+
+		if (stanzaFrom == null) {
+			return new SharedPayload(pres, null);
+		}
+		if (from != null && stanzaFrom.equals(from.toString())) {
+			return new SharedPayload(pres, from);
+		}
+		try {
+			return new SharedPayload(pres, JID.jidInstance(stanzaFrom));
+		} catch (TigaseStringprepException ex) {
+			log.log(Level.FINE, "Packet stringprep addressing problem, skipping presence send: {0}", pres);
+			return null;
+		}
+	}
+
+	private static Element createPresence(StanzaType t, JID from) {
+		Element presence = new Element(PRESENCE_ELEMENT_NAME);
+
+		if (t != null) {
+			presence.setAttribute("type", t.toString());
+		}    // end of if (t != null)
+		else {
+			presence.setAttribute("type", StanzaType.unavailable.toString());
+		}    // end of if (t != null) else
+		if (null != from) {
+			presence.setAttribute("from", from.toString());
+		}
+		presence.setXMLNS(XMLNS);
+
+		return presence;
+	}
+
 	/**
 	 * Sends Presence stanza from provided parameters without returning created result {@link Packet} object. In case of
 	 * missing {@code  pres} parameter a Presence stanza will be created with provided {@link StanzaType} type {@code
@@ -451,6 +513,8 @@ public abstract class PresenceAbstract
 		// Probe is always broadcasted with initial presence
 		Element presInit = session.getPresence();
 		Element presProbe = prepareProbe(session);
+		SharedPayload sharedInit = sharedPresence(null, null, presInit);
+		SharedPayload sharedProbe = sharedPresence(null, null, presProbe);
 
 		JID[] buddies = roster_util.getBuddies(session, SUB_BOTH);
 
@@ -466,11 +530,15 @@ public abstract class PresenceAbstract
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending presence probe to: " + buddy);
 					}
-					sendPresence(null, null, buddy, results, presProbe);
+					if (sharedProbe != null) {
+						sendPresence(buddy, results, sharedProbe);
+					}
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending intial presence to: " + buddy);
 					}
-					sendPresence(null, null, buddy, results, presInit);
+					if (sharedInit != null) {
+						sendPresence(buddy, results, sharedInit);
+					}
 					roster_util.setPresenceSent(session, buddy, true);
 				} else {
 					if (log.isLoggable(Level.FINEST)) {
@@ -495,7 +563,9 @@ public abstract class PresenceAbstract
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending probe to: " + buddy);
 					}
-					sendPresence(null, null, buddy, results, presProbe);
+					if (sharedProbe != null) {
+						sendPresence(buddy, results, sharedProbe);
+					}
 				} else {
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Skipping sending presence probe to: " + buddy);
@@ -520,7 +590,9 @@ public abstract class PresenceAbstract
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending initial presence to: " + buddy);
 					}
-					sendPresence(null, null, buddy, results, presInit);
+					if (sharedInit != null) {
+						sendPresence(buddy, results, sharedInit);
+					}
 					roster_util.setPresenceSent(session, buddy, true);
 				} else {
 					if (log.isLoggable(Level.FINEST)) {
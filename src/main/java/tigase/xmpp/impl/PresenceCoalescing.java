@@ -0,0 +1,118 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl;
+
+import tigase.util.common.TimerTask;
+
+/**
+ * State of presence broadcast coalescing kept in the session data of a single user session by {@link PresenceState}.
+ * <br>
+ * Presence is broadcast at most once per window. Presence changed within the window after the last broadcast is
+ * delayed until the end of the window and only the latest presence is sent, so no change is delayed longer than the
+ * window. Instances are not thread safe, access has to be synchronized on the session.
+ */
+final class PresenceCoalescing {
+
+	static final String SESSION_KEY = "presence-coalescing";
+
+	enum Action {
+		/**
+		 * Presence should be broadcast now.
+		 */
+		SEND,
+		/**
+		 * Presence should be broadcast by a task scheduled with delay returned by {@link #getDelay(long)}.
+		 */
+		SCHEDULE,
+		/**
+		 * Broadcast is already scheduled and it will send this presence instead of the previous one.
+		 */
+		REPLACE
+	}
+
+	private final long window;
+	private boolean broadcastSent = false;
+	private long lastBroadcast = 0;
+	private TimerTask pending = null;
+
+	PresenceCoalescing(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * Decides what to do with the presence changed by the user.
+	 *
+	 * @param now current time in milliseconds.
+	 *
+	 * @return action which should be taken.
+	 */
+	Action offer(long now) {
+		if (pending != null) {
+			return Action.REPLACE;
+		}
+		if (!broadcastSent || now - lastBroadcast >= window) {
+			broadcastSent(now);
+			return Action.SEND;
+		}
+		return Action.SCHEDULE;
+	}
+
+	long getDelay(long now) {
+		return Math.max(0, lastBroadcast + window - now);
+	}
+
+	boolean isPending() {
+		return pending != null;
+	}
+
+	boolean isPending(TimerTask task) {
+		return pending == task;
+	}
+
+	void setPending(TimerTask task) {
+		this.pending = task;
+	}
+
+	/**
+	 * Records broadcast of the presence. Scheduled broadcast, if any, is no longer pending.
+	 *
+	 * @param now time of the broadcast in milliseconds.
+	 */
+	void broadcastSent(long now) {
+		pending = null;
+		broadcastSent = true;
+		lastBroadcast = now;
+	}
+
+	/**
+	 * Cancels scheduled broadcast, ie. because unavailable presence was broadcast.
+	 *
+	 * @param now time in milliseconds at which presence which replaced the scheduled one was sent.
+	 *
+	 * @return <code>true</code> if scheduled broadcast was cancelled.
+	 */
+	boolean cancel(long now) {
+		TimerTask task = pending;
+		broadcastSent(now);
+		if (task != null) {
+			task.cancel();
+			return true;
+		}
+		return false;
+	}
+}
@@ -25,6 +25,7 @@ import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Iq;
 import tigase.server.Packet;
 import tigase.server.Priority;
+import tigase.server.SharedPayload;
 import tigase.server.xmppsession.SessionManager;
 import tigase.stats.StatisticsList;
 import tigase.xml.Element;
@@ -75,6 +76,14 @@ public class PresenceState
 	 * key allowing setting global forwarding JID address.
 	 */
 	public static final String PRESENCE_GLOBAL_FORWARD = "presence-global-forward";
+
+	public static final String PRESENCE_COALESCING_WINDOW_KEY = "presence-coalescing-window";
+
+	public static final String PRESENCE_COALESCING_CSI_ONLY_KEY = "presence-coalescing-csi-only";
+
+	public static final String PRESENCE_BROADCASTS_COALESCED = "Presence broadcasts coalesced";
+
+	public static final String PRESENCE_BROADCASTS_DELAYED = "Presence broadcasts delayed";
 	protected static final String ID = "presence-state";
 	private static final Logger log = Logger.getLogger(PresenceState.class.getCanonicalName());
 	private static final long MAX_DIRECT_PRESENCES_NO = 1000;
@@ -91,6 +100,14 @@ public class PresenceState
 	private JID presenceGLobalForward = null;
 	@ConfigField(desc = "Enable roster lazy loading", alias = ENABLE_ROSTER_LAZY_LOADING_KEY)
 	private boolean rosterLazyLoading = true;
+	@ConfigField(desc = "Presence broadcast coalescing window in ms", alias = PRESENCE_COALESCING_WINDOW_KEY)
+	private long presenceCoalescingWindow = 0;
+	@ConfigField(desc = "Coalesce presence broadcasts only for inactive clients", alias = PRESENCE_COALESCING_CSI_ONLY_KEY)
+	private boolean presenceCoalescingCsiOnly = false;
+	@Inject(nullAllowed = true)
+	private SessionManager sessionManager;
+	private long presenceBroadcastsCoalesced = 0;
+	private long presenceBroadcastsDelayed = 0;
 	private long usersStatusChanges = 0;
 
 	/**
@@ -134,12 +151,17 @@ public class PresenceState
 		Set<JID> direct_presences = (Set<JID>) session.getSessionData(DIRECT_PRESENCE);
 
 		if ((direct_presences != null) && (t != null) && (t == StanzaType.unavailable)) {
+			SharedPayload payload = sharedPresence(t, session.getJID(), pres);
+
+			if (payload == null) {
+				return;
+			}
 			for (JID buddy : direct_presences) {
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "Updating direct presence for: {0}", buddy);
 				}
 
-				Packet pack = sendPresence(t, session.getJID(), buddy, results, pres);
+				Packet pack = sendPresence(buddy, results, payload);
 
 				pack.setPriority(Priority.LOW);
 			}    // end of for (String buddy: buddies)
@@ -244,9 +266,15 @@ public class PresenceState
 			Priority pack_priority = Priority.PRESENCE;
 			int pres_cnt = 0;
 
+			// the same stanza is sent to all buddies, so it is copied and its addresses are parsed only once
+			SharedPayload payload = sharedPresence(t, session.getJID(), pres);
+
+			if (payload == null) {
+				return;
+			}
 			for (JID buddy : buddies) {
 				if (requiresPresenceSending(roster, buddy, session, false)) {
-					Packet pack = sendPresence(t, session.getJID(), buddy, results, pres);
+					Packet pack = sendPresence(buddy, results, payload);
 
 					if (pres_cnt == HIGH_PRIORITY_PRESENCES_NO) {
 						++pres_cnt;
@@ -463,6 +491,14 @@ public class PresenceState
 						pres.setAttribute(Packet.TYPE_ATT, StanzaType.unavailable.toString());
 						session.setPresence(pres);
 					}
+
+					// Unavailable presence is never delayed, it replaces coalesced one
+					PresenceCoalescing coalescing = (PresenceCoalescing) session.getSessionData(
+							PresenceCoalescing.SESSION_KEY);
+
+					if (coalescing != null && coalescing.cancel(System.currentTimeMillis())) {
+						++presenceBroadcastsCoalesced;
+					}
 					broadcastOffline(session, results, settings, roster_util);
 					updateOfflineChange(session, results);
 				} else {
@@ -483,6 +519,10 @@ public class PresenceState
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
 		list.add(id(), USERS_STATUS_CHANGES, usersStatusChanges, Level.INFO);
+		if (presenceCoalescingWindow > 0) {
+			list.add(id(), PRESENCE_BROADCASTS_COALESCED, presenceBroadcastsCoalesced, Level.INFO);
+			list.add(id(), PRESENCE_BROADCASTS_DELAYED, presenceBroadcastsDelayed, Level.INFO);
+		}
 	}
 
 	public void rebroadcastPresence(XMPPResourceConnection session, Queue<Packet> results)
@@ -849,7 +889,7 @@ public class PresenceState
 
 						// Resend pending in subscription requests
 						resendPendingInRequests(session, results);
-					} else {
+					} else if (!coalescePresenceBroadcast(session, settings)) {
 						// Broadcast initial presence to 'from' or 'both' contacts
 						sendPresenceBroadcast(StanzaType.available, session, FROM_SUBSCRIBED, results, presenceEl,
 											  settings, roster_util);
@@ -988,6 +1028,59 @@ public class PresenceState
 		}
 	}
 
+	/**
+	 * Method decides if broadcast of the changed presence of the user should be coalesced with next changes. If
+	 * broadcast is coalesced, then the latest presence of the session will be broadcast by a scheduled task at the end
+	 * of the coalescing window.
+	 *
+	 * @param session user session which changed its presence.
+	 * @param settings this map keeps plugin specific settings loaded from the Tigase server configuration.
+	 *
+	 * @return <code>true</code> if presence should not be broadcast now.
+	 */
+	private boolean coalescePresenceBroadcast(XMPPResourceConnection session, Map<String, Object> settings) {
+		if (presenceCoalescingWindow <= 0 || sessionManager == null) {
+			return false;
+		}
+		synchronized (session) {
+			PresenceCoalescing coalescing = (PresenceCoalescing) session.getSessionData(
+					PresenceCoalescing.SESSION_KEY);
+
+			long now = System.currentTimeMillis();
+
+			if (presenceCoalescingCsiOnly && !ClientStateIndication.isInactive(session) &&
+					(coalescing == null || !coalescing.isPending())) {
+				if (coalescing != null) {
+					coalescing.broadcastSent(now);
+				}
+				return false;
+			}
+			if (coalescing == null) {
+				coalescing = new PresenceCoalescing(presenceCoalescingWindow);
+				session.putSessionData(PresenceCoalescing.SESSION_KEY, coalescing);
+			}
+
+			switch (coalescing.offer(now)) {
+				case SEND:
+					return false;
+				case SCHEDULE:
+					CoalescedBroadcastTask task = new CoalescedBroadcastTask(session, settings);
+
+					coalescing.setPending(task);
+					sessionManager.addTimerTask(task, coalescing.getDelay(now));
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "{0} | Presence broadcast delayed by {1}ms",
+								new Object[]{session, coalescing.getDelay(now)});
+					}
+					return true;
+				default:
+					// previous presence waiting for broadcast is replaced
+					++presenceBroadcastsCoalesced;
+					return true;
+			}
+		}
+	}
+
 	private boolean isAllowedForPresenceProbe(XMPPResourceConnection session, JID jid) {
 		if (jid == null) {
 			return false;
@@ -996,6 +1089,56 @@ public class PresenceState
 		return session.getDomain().isTrustedJID(jid);
 	}
 
+	/**
+	 * Task broadcasting the latest presence of the session at the end of the coalescing window.
+	 */
+	private class CoalescedBroadcastTask
+			extends tigase.util.common.TimerTask {
+
+		private final XMPPResourceConnection session;
+		private final Map<String, Object> settings;
+
+		private CoalescedBroadcastTask(XMPPResourceConnection session, Map<String, Object> settings) {
+			this.session = session;
+			this.settings = settings;
+		}
+
+		@Override
+		public void run() {
+			Queue<Packet> results = new ArrayDeque<>();
+
+			synchronized (session) {
+				PresenceCoalescing coalescing = (PresenceCoalescing) session.getSessionData(
+						PresenceCoalescing.SESSION_KEY);
+
+				if (isCancelled() || coalescing == null || !coalescing.isPending(this)) {
+					return;
+				}
+				coalescing.broadcastSent(System.currentTimeMillis());
+
+				Element presence = session.getPresence();
+
+				if (presence == null ||
+						StanzaType.unavailable.toString().equals(presence.getAttributeStaticStr(Packet.TYPE_ATT))) {
+					return;
+				}
+				try {
+					sendPresenceBroadcast(StanzaType.available, session, FROM_SUBSCRIBED, results, presence, settings,
+										  roster_util);
+					++presenceBroadcastsDelayed;
+				} catch (NotAuthorizedException ex) {
+					// session was closed in the meantime
+					return;
+				} catch (TigaseDBException ex) {
+					log.log(Level.WARNING, "Error accessing database during coalesced presence broadcast: ", ex);
+				}
+			}
+			if (!results.isEmpty()) {
+				sessionManager.addOutPackets(session, results);
+			}
+		}
+	}
+
 	public interface ExtendedPresenceProcessorIfc {
 
 		default Element extend(Element presence, XMPPResourceConnection session, Queue<Packet> results) {
@@ -0,0 +1,173 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import tigase.db.TigaseDBException;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Roster implementation storing each roster element as a separate entry in the <code>roster-items</code> subnode of
+ * the user repository, keyed by the contact bare JID, instead of a single entry holding the whole roster.
+ * <br>
+ * Only elements which were modified since the last save and elements which were removed are written to the
+ * repository, so the cost of a roster change does not depend on the roster size. Roster stored by {@link RosterFlat}
+ * is converted to this format on load, and merged into the stored items again until its conversion succeeds.
+ */
+public class RosterPerItem
+		extends RosterFlat {
+
+	public static final String ROSTER_ITEMS_NODE = "roster-items";
+
+	private static final Logger log = Logger.getLogger(RosterPerItem.class.getName());
+	private static final String ROSTER_REMOVED = "roster-removed";
+
+	@Override
+	public boolean isModified(XMPPResourceConnection session) throws NotAuthorizedException, TigaseDBException {
+		Set<BareJID> removed = getRemoved(session);
+
+		return super.isModified(session) || (removed != null && !removed.isEmpty());
+	}
+
+	@Override
+	public Map<BareJID, RosterElement> loadUserRoster(XMPPResourceConnection session)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = new ConcurrentHashMap<BareJID, RosterElement>(100, 0.25f, 1);
+
+		String roster_str = session.getData(null, ROSTER, null);
+
+		// roster stored as a single entry is authoritative until it is removed, as its conversion could have been
+		// interrupted after only some of the items were stored
+		if ((roster_str != null) && !roster_str.isEmpty()) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Converting user {0} roster to per item storage", session.getjid());
+			}
+
+			Map<BareJID, RosterElement> converted = new HashMap<BareJID, RosterElement>();
+
+			parseRoster(roster_str, converted, session);
+			for (RosterElement relem : converted.values()) {
+				storeItem(session, relem);
+			}
+			session.removeData(null, ROSTER);
+		}
+
+		// roster is available to the session only after the conversion succeeds, so failed one is retried
+		session.putCommonSessionData(ROSTER, roster);
+		session.putCommonSessionData(ROSTER_REMOVED, ConcurrentHashMap.<BareJID>newKeySet());
+
+		Map<String, String> items = session.getDataMap(ROSTER_ITEMS_NODE);
+
+		if ((items == null) || items.isEmpty()) {
+			return roster;
+		}
+
+		// sorted to calculate the same roster hash for the same roster content
+		StringBuilder sb = new StringBuilder(items.size() * 200);
+
+		for (String item : new TreeMap<String, String>(items).values()) {
+			if (item != null) {
+				sb.append(item);
+			}
+		}
+
+		roster_str = sb.toString();
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Loaded user {1} roster: {0}", new Object[]{roster_str, session.getjid()});
+		}
+		updateRosterHash(roster_str, session);
+
+		boolean modified = parseRoster(roster_str, roster, session);
+
+		if (modified) {
+			saveUserRoster(session);
+		}
+
+		return roster;
+	}
+
+	@Override
+	public boolean removeBuddy(XMPPResourceConnection session, JID jid)
+			throws NotAuthorizedException, TigaseDBException {
+		// make sure roster is loaded before removal is recorded
+		getUserRoster(session);
+
+		Set<BareJID> removed = getRemoved(session);
+
+		if (removed != null) {
+			removed.add(jid.getBareJID());
+		}
+
+		return super.removeBuddy(session, jid);
+	}
+
+	@Override
+	protected void saveUserRoster(XMPPResourceConnection session) throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+		Set<BareJID> removed = getRemoved(session);
+		int written = 0;
+
+		if (removed != null) {
+			for (BareJID jid : removed) {
+				removed.remove(jid);
+
+				RosterElement relem = roster.get(jid);
+
+				// contact could be added again after it was removed
+				if ((relem == null) || !relem.isPersistent()) {
+					session.removeData(ROSTER_ITEMS_NODE, jid.toString());
+					++written;
+				}
+			}
+		}
+		for (RosterElement relem : roster.values()) {
+			if (relem.isPersistent() && relem.isModified()) {
+				storeItem(session, relem);
+				++written;
+			}
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0} | Saved {1} changed roster items",
+					new Object[]{session.getBareJID(), written});
+		}
+	}
+
+	@SuppressWarnings({"unchecked"})
+	private Set<BareJID> getRemoved(XMPPResourceConnection session) {
+		return (Set<BareJID>) session.getCommonSessionData(ROSTER_REMOVED);
+	}
+
+	private void storeItem(XMPPResourceConnection session, RosterElement relem)
+			throws NotAuthorizedException, TigaseDBException {
+		if (relem.isPersistent()) {
+			session.setData(ROSTER_ITEMS_NODE, relem.getJid().getBareJID().toString(),
+							relem.getRosterElement().toString());
+		}
+	}
+}    // RosterPerItem
@@ -0,0 +1,182 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import org.junit.Test;
+import tigase.cluster.api.ClusterElement;
+import tigase.xml.Element;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClusterFrameCodecTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder(ClusterFrameCodec.DEF_DICTIONARY_SIZE);
+		List<Element> sent = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Element packet = i % 2 == 0 ? dataPacket(i) : methodCall(i);
+			sent.add(packet);
+			encoder.writeElement(packet);
+		}
+
+		List<Object> received = decode(new ClusterFrameCodec.Decoder(), toBytes(encoder), -1);
+		assertEquals(sent.size(), received.size());
+		for (int i = 0; i < sent.size(); i++) {
+			Element elem = (Element) received.get(i);
+			assertEquals(sent.get(i).toString(), elem.toString());
+			assertSame(ClusterElement.XMLNS, elem.getXMLNS());
+		}
+	}
+
+	@Test
+	public void testDictionaryReducesSize() {
+		ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder(ClusterFrameCodec.DEF_DICTIONARY_SIZE);
+		encoder.writeElement(methodCall(1));
+		int first = encoder.size();
+		encoder.release(encoder.flip());
+
+		encoder.writeElement(methodCall(2));
+		int second = encoder.size();
+
+		int xml = methodCall(2).toString().getBytes(StandardCharsets.UTF_8).length;
+		assertTrue("first: " + first + ", second: " + second, second < first);
+		assertTrue("xml: " + xml + ", binary: " + second, second * 2 < xml);
+	}
+
+	@Test
+	public void testDictionaryLimit() throws IOException {
+		ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder(4);
+		for (int i = 0; i < 5; i++) {
+			encoder.writeElement(methodCall(i));
+		}
+		assertEquals(4, encoder.getDictionarySize());
+
+		ClusterFrameCodec.Decoder decoder = new ClusterFrameCodec.Decoder();
+		List<Object> received = decode(decoder, toBytes(encoder), -1);
+		assertEquals(5, received.size());
+		assertEquals(methodCall(4).toString(), received.get(4).toString());
+		assertEquals(4, decoder.getDictionarySize());
+	}
+
+	@Test
+	public void testPartialFrames() throws IOException {
+		ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder(ClusterFrameCodec.DEF_DICTIONARY_SIZE);
+		encoder.writeElement(dataPacket(1));
+		encoder.writeRawData("</stream:stream>");
+		encoder.writeElement(dataPacket(2));
+
+		List<Object> received = decode(new ClusterFrameCodec.Decoder(), toBytes(encoder), 7);
+		assertEquals(3, received.size());
+		assertEquals(dataPacket(1).toString(), received.get(0).toString());
+		assertEquals("</stream:stream>", received.get(1));
+		assertEquals(dataPacket(2).toString(), received.get(2).toString());
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidFrame() throws IOException {
+		byte[] data = new byte[]{ClusterFrameCodec.MARKER, ClusterFrameCodec.VERSION, 0, 0, 0, 2, 1, 5};
+		decode(new ClusterFrameCodec.Decoder(), data, -1);
+	}
+
+	private static Element methodCall(int i) {
+		Element cluster = clusterElement(i);
+		Element method = new Element(ClusterElement.CLUSTER_METHOD_EL_NAME, new String[]{"name"},
+									 new String[]{"user-presence-update"});
+		method.addChild(new Element(ClusterElement.CLUSTER_METHOD_PAR_EL_NAME, "user" + i + "@example.com/res",
+									new String[]{"name"}, new String[]{"userId"}));
+		method.addChild(new Element(ClusterElement.CLUSTER_METHOD_PAR_EL_NAME, "5", new String[]{"name"},
+									new String[]{"priority"}));
+		cluster.getChild(ClusterElement.CLUSTER_CONTROL_EL_NAME).addChild(method);
+		return cluster;
+	}
+
+	private static Element dataPacket(int i) {
+		Element cluster = clusterElement(i);
+		Element message = new Element("message", new String[]{"from", "to", "id", "type"},
+									  new String[]{"user" + i + "@example.com/res", "friend@example.com", "id-" + i,
+												   "chat"});
+		message.addChild(new Element("body", "Zażółć gęślą jaźń &amp; 😀 " + i));
+		Element data = new Element(ClusterElement.CLUSTER_DATA_EL_NAME);
+		data.addChild(message);
+		cluster.addChild(data);
+		return cluster;
+	}
+
+	private static Element clusterElement(int i) {
+		Element cluster = new Element(ClusterElement.CLUSTER_EL_NAME, new String[]{"from", "to", "type", "id"},
+									  new String[]{"sess-man@node1.example.com", "sess-man@node2.example.com", "set",
+												   "cl-" + i});
+		cluster.setXMLNS(ClusterElement.XMLNS);
+		Element visited = new Element(ClusterElement.VISITED_NODES_EL_NAME);
+		visited.addChild(new Element(ClusterElement.NODE_ID_EL_NAME, "sess-man@node1.example.com"));
+		Element control = new Element(ClusterElement.CLUSTER_CONTROL_EL_NAME);
+		control.addChild(visited);
+		control.addChild(new Element(ClusterElement.FIRST_NODE_EL_NAME, "sess-man@node1.example.com"));
+		cluster.addChild(control);
+		return cluster;
+	}
+
+	private static byte[] toBytes(ClusterFrameCodec.Encoder encoder) {
+		ByteBuffer buf = encoder.flip();
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		encoder.release(buf);
+		return data;
+	}
+
+	private static List<Object> decode(ClusterFrameCodec.Decoder decoder, byte[] data, int chunk) throws IOException {
+		List<Object> received = new ArrayList<>();
+		ClusterFrameCodec.FrameHandler handler = new ClusterFrameCodec.FrameHandler() {
+			@Override
+			public void elementReceived(Element elem) {
+				received.add(elem);
+			}
+
+			@Override
+			public void rawDataReceived(String rawData) {
+				received.add(rawData);
+			}
+		};
+
+		if (chunk < 0) {
+			assertEquals(data.length, decoder.decode(data, 0, data.length, handler));
+			return received;
+		}
+
+		// data arrives in small chunks, incomplete frames are kept until next chunk
+		byte[] input = new byte[data.length];
+		int length = 0;
+		for (int pos = 0; pos < data.length; pos += chunk) {
+			int len = Math.min(chunk, data.length - pos);
+			System.arraycopy(data, pos, input, length, len);
+			length += len;
+			int consumed = decoder.decode(input, 0, length, handler);
+			System.arraycopy(input, consumed, input, 0, length - consumed);
+			length -= consumed;
+		}
+		assertEquals(0, length);
+		return received;
+	}
+}
@@ -26,6 +26,7 @@ import tigase.xmpp.jid.BareJID;
 
 import java.time.LocalDateTime;
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -69,6 +70,21 @@ public abstract class AbstractUserRepositoryTest<DS extends DataSource> extends
 		repo.removeUser(user);
 	}
 
+	@Test
+	public void testGetUserData() throws TigaseDBException {
+		BareJID user = BareJID.bareJIDInstanceNS("user-data", "domain");
+		repo.addUser(user);
+		repo.setData(user, null, "key", "value");
+		repo.setData(user, "node1/node2", "key", "value2");
+		repo.setDataList(user, "node1", "list", new String[]{"a", "b"});
+
+		Map<String, Map<String, String[]>> data = repo.getUserData(user);
+		Assert.assertArrayEquals(new String[]{"value"}, data.get("").get("key"));
+		Assert.assertArrayEquals(new String[]{"a", "b"}, data.get("node1").get("list"));
+		Assert.assertArrayEquals(new String[]{"value2"}, data.get("node1/node2").get("key"));
+		repo.removeUser(user);
+	}
+
 	@Test
 	public void testGetData() throws InterruptedException {
 
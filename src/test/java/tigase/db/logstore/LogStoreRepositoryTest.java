@@ -0,0 +1,275 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.logstore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import tigase.db.UserExistsException;
+import tigase.db.UserNotFoundException;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LogStoreRepositoryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private LogStoreDataSource dataSource;
+	private LogStoreRepository repository;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = folder.newFolder("store");
+		open("");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dataSource.close();
+	}
+
+	@Test
+	public void testUserData() throws Exception {
+		BareJID user = BareJID.bareJIDInstance("alice@example.com");
+		assertFalse(repository.userExists(user));
+		repository.addUser(user, "secret");
+		assertTrue(repository.userExists(user));
+		assertEquals("secret", repository.getPassword(user));
+		try {
+			repository.addUser(user);
+			fail("User should already exist");
+		} catch (UserExistsException ex) {
+			// expected
+		}
+
+		repository.setData(user, "roster/bob@example.com", "name", "Bob");
+		repository.setDataList(user, "privacy", "lists", new String[]{"a", "b"});
+		repository.addDataList(user, "/privacy/", "lists", new String[]{"c"});
+		assertEquals("Bob", repository.getData(user, "roster/bob@example.com", "name"));
+		assertEquals("def", repository.getData(user, "roster", "name", "def"));
+		assertArrayEquals(new String[]{"a", "b", "c"}, repository.getDataList(user, "privacy", "lists"));
+		assertEquals(new HashSet<>(Arrays.asList("roster", "privacy")),
+					 new HashSet<>(Arrays.asList(repository.getSubnodes(user))));
+		assertArrayEquals(new String[]{"bob@example.com"}, repository.getSubnodes(user, "roster"));
+		assertNull(repository.getKeys(user, "roster"));
+
+		Map<String, Map<String, String[]>> data = repository.getUserData(user);
+		assertTrue(data.containsKey("roster"));
+		assertEquals("Bob", data.get("roster/bob@example.com").get("name")[0]);
+
+		repository.removeData(user, "privacy", "lists");
+		assertNull(repository.getDataList(user, "privacy", "lists"));
+		repository.removeSubnode(user, "roster");
+		assertNull(repository.getData(user, "roster/bob@example.com", "name"));
+		assertEquals("secret", repository.getPassword(user));
+
+		repository.removeUser(user);
+		assertFalse(repository.userExists(user));
+		try {
+			repository.getData(user, "name");
+			fail("User should not exist");
+		} catch (UserNotFoundException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			BareJID user = BareJID.bareJIDInstance("user" + i + "@example.com");
+			repository.addUser(user, "pass" + i);
+			repository.setData(user, "vcard", "nick", "Nick " + i);
+		}
+		repository.removeUser(BareJID.bareJIDInstance("user0@example.com"));
+		dataSource.close();
+
+		open("");
+		assertEquals(99, repository.getUsersCount());
+		assertEquals(99, repository.getUsersCount("example.com"));
+		assertFalse(repository.userExists(BareJID.bareJIDInstance("user0@example.com")));
+		assertEquals("Nick 42", repository.getData(BareJID.bareJIDInstance("user42@example.com"), "vcard", "nick"));
+
+		// index is rebuilt from the log if it is lost
+		dataSource.close();
+		Files.delete(directory.toPath().resolve("index.dat"));
+		open("");
+		assertEquals(99, repository.getUsersCount());
+		assertEquals("pass99", repository.getPassword(BareJID.bareJIDInstance("user99@example.com")));
+		assertFalse(repository.userExists(BareJID.bareJIDInstance("user0@example.com")));
+	}
+
+	@Test
+	public void testIncompleteRecord() throws Exception {
+		BareJID user = BareJID.bareJIDInstance("alice@example.com");
+		repository.addUser(user, "secret");
+		dataSource.close();
+
+		// record written partially during crash, after the checkpoint
+		File segment = new File(directory, "segment-00000001.log");
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(file.length());
+			file.writeInt(1000);
+			file.writeInt(0);
+			file.write(new byte[10]);
+		}
+		long length = segment.length();
+		open("");
+		assertTrue(segment.length() < length);
+		assertEquals("secret", repository.getPassword(user));
+		repository.setData(user, "key", "value");
+		dataSource.close();
+
+		open("");
+		assertEquals("value", repository.getData(user, "key"));
+	}
+
+	@Test
+	public void testIndexAheadOfLog() throws Exception {
+		BareJID user = BareJID.bareJIDInstance("alice@example.com");
+		BareJID other = BareJID.bareJIDInstance("bob@example.com");
+		repository.addUser(user, "secret");
+		repository.addUser(other, "password");
+		dataSource.close();
+		File segment = new File(directory, "segment-00000001.log");
+		long checkpoint = segment.length();
+
+		open("");
+		repository.setData(user, "key", "value");
+		dataSource.close();
+
+		// slot of the index was written to the disk during crash, but the record and the checkpoint were not
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.setLength(checkpoint);
+		}
+		LogStoreIndex.open(directory.toPath().resolve("index.dat")).setCheckpoint(1, checkpoint);
+
+		open("");
+		assertTrue(repository.userExists(user));
+		assertEquals("secret", repository.getPassword(user));
+		assertNull(repository.getData(user, "key"));
+		assertEquals("password", repository.getPassword(other));
+		assertEquals(2, repository.getUsersCount());
+		repository.setData(user, "key", "other");
+		dataSource.close();
+
+		open("");
+		assertEquals("other", repository.getData(user, "key"));
+		assertEquals(2, repository.getUsersCount());
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		dataSource.close();
+		open("?maxSegmentSize=4096&compactionRatio=0.5&cacheSize=10");
+		BareJID user = BareJID.bareJIDInstance("alice@example.com");
+		repository.addUser(user);
+		for (int i = 0; i < 2000; i++) {
+			repository.setData(user, "counter", String.valueOf(i));
+		}
+		BareJID removed = BareJID.bareJIDInstance("bob@example.com");
+		repository.addUser(removed);
+		repository.removeUser(removed);
+
+		LogStore store = dataSource.getStore();
+		int segments = store.getSegmentsCount();
+		assertTrue(segments > 2);
+		store.compact();
+		assertTrue(store.getSegmentsCount() < segments);
+		assertEquals("1999", repository.getData(user, "counter"));
+		dataSource.close();
+
+		Files.delete(directory.toPath().resolve("index.dat"));
+		open("");
+		assertEquals("1999", repository.getData(user, "counter"));
+		assertFalse(repository.userExists(removed));
+		assertEquals(1, repository.getUsersCount());
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			Future<?>[] futures = new Future<?>[8];
+			for (int t = 0; t < futures.length; t++) {
+				final int thread = t;
+				futures[t] = executor.submit(() -> {
+					for (int i = 0; i < 500; i++) {
+						BareJID user = BareJID.bareJIDInstance("user" + thread + "-" + i + "@example.com");
+						repository.addUser(user, "pass");
+						repository.addDataList(BareJID.bareJIDInstance("user" + thread + "-0@example.com"), "log",
+											   "entries", new String[]{String.valueOf(i)});
+						assertEquals("pass", repository.getPassword(user));
+					}
+					return null;
+				});
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		assertEquals(4000, repository.getUsersCount());
+		assertEquals(500, repository.getDataList(BareJID.bareJIDInstance("user3-0@example.com"), "log", "entries").length);
+	}
+
+	@Test
+	@Category(tigase.tests.SlowTest.class)
+	public void testManyUsers() throws Exception {
+		int count = 200000;
+		for (int i = 0; i < count; i++) {
+			BareJID user = BareJID.bareJIDInstance("user" + i + "@example.com");
+			repository.addUser(user, "pass" + i);
+			repository.setData(user, "roster/friend@example.com", "name", "Friend");
+		}
+		dataSource.close();
+
+		open("?cacheSize=1000");
+		assertEquals(count, repository.getUsersCount());
+		for (int i = 0; i < count; i++) {
+			BareJID user = BareJID.bareJIDInstance("user" + i + "@example.com");
+			assertEquals("pass" + i, repository.getPassword(user));
+			assertEquals("Friend", repository.getData(user, "roster/friend@example.com", "name"));
+		}
+	}
+
+	private void open(String params) throws Exception {
+		dataSource = new LogStoreDataSource();
+		dataSource.initialize(LogStoreDataSource.URI_PREFIX + directory.getAbsolutePath() + params);
+		repository = new LogStoreRepository();
+		repository.setDataSource(dataSource);
+	}
+}
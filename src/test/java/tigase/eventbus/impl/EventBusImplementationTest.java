@@ -20,22 +20,37 @@ package tigase.eventbus.impl;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.TestLogger;
 import tigase.eventbus.EventListener;
 import tigase.eventbus.FillRoutedEvent;
 import tigase.eventbus.HandleEvent;
 import tigase.eventbus.RouteEvent;
 import tigase.eventbus.component.stores.Subscription;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
 public class EventBusImplementationTest {
 
+	private static final Logger log = TestLogger.getLogger(EventBusImplementationTest.class);
+
 	private EventBusImplementation eventBus;
 
 	@Before
@@ -441,6 +456,150 @@ public class EventBusImplementationTest {
 		Assert.assertNull(resp[4]);
 	}
 
+	@Test
+	public void testLaneKeepsOrder() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			eventBus.setExecutor(executor);
+			eventBus.setLaneCapacity(5);
+			eventBus.setLaneOverflowPolicy(EventBusImplementation.OverflowPolicy.block);
+
+			final List<Integer> received = new CopyOnWriteArrayList<>();
+			final CountDownLatch done = new CountDownLatch(50);
+			eventBus.addListener(Event1.class, e -> {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException ex) {
+				}
+				received.add(e.getV2());
+				done.countDown();
+			});
+
+			for (int i = 0; i < 50; i++) {
+				Event1 event = new Event1();
+				event.setV2(i);
+				eventBus.fire(event);
+			}
+
+			Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 50; i++) {
+				Assert.assertEquals(i, (int) received.get(i));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testLaneOverflow() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			eventBus.setExecutor(executor);
+			eventBus.setLaneCapacity(10);
+			eventBus.setLaneOverflowPolicy(EventBusImplementation.OverflowPolicy.dropNewest);
+
+			final CountDownLatch release = new CountDownLatch(1);
+			final List<Integer> received = new CopyOnWriteArrayList<>();
+			eventBus.addListener(Event1.class, e -> {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+				}
+				received.add(e.getV2());
+			});
+
+			for (int i = 0; i < 100; i++) {
+				Event1 event = new Event1();
+				event.setV2(i);
+				eventBus.fire(event);
+			}
+			release.countDown();
+			Thread.sleep(200);
+
+			// one event taken by the listener and ten waiting in the queue
+			Assert.assertTrue("received " + received.size(), received.size() <= 11);
+			Assert.assertEquals(0, (int) received.get(0));
+
+			StatisticsList list = new StatisticsList(Level.FINEST);
+			eventBus.getStatistics("eventbus", list);
+			Assert.assertEquals(100 - received.size(), list.getValue("eventbus", "Dropped events", -1L));
+			Assert.assertEquals(0, list.getValue("eventbus", "Queued events", -1L));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testLaneOfRemovedHandlerNotKept() {
+		AbstractHandler handler = new ObjectEventsListenerHandler(null, null, (EventListener<Event1>) e -> {
+		});
+
+		// event matched to the handler before it was removed
+		Assert.assertNotNull(eventBus.getLane(handler));
+
+		StatisticsList list = new StatisticsList(Level.FINE);
+		eventBus.getStatistics("eventbus", list);
+		Assert.assertEquals(0, list.getValue("eventbus", "Dispatch lanes", -1));
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testFireThroughput() {
+		final Event1 event = new Event1();
+		event.setJid(JID.jidInstanceNS("a@b.c/d"));
+		event.setV1("message");
+		event.setV2(9898);
+		event.setElementField(new Element("x", "v", new String[]{"a"}, new String[]{"b"}));
+		event.setStrArrField(new String[]{"ala", "m,a", "kota"});
+		event.setSetField(new HashSet<>(Arrays.asList("test123")));
+		final int rounds = 100000;
+
+		// local event, dispatched to @HandleEvent method
+		final CountingConsumer consumer = new CountingConsumer();
+		eventBus.registerAll(consumer);
+		long local = measureFire(event, rounds);
+		eventBus.unregisterAll(consumer);
+		Assert.assertEquals(2 * rounds, consumer.counter);
+
+		// remote event, serialized to element and deserialized as on the receiving node
+		final EventBusSerializer serializer = new EventBusSerializer();
+		final int[] received = new int[]{0};
+		eventBus.addListener(Event1.class.getPackage().getName(), Event1.class.getSimpleName(),
+							 (EventListener<Element>) e -> {
+								 Event1 deserialized = serializer.deserialize(e);
+								 if (deserialized.getV2() == 9898) {
+									 received[0]++;
+								 }
+							 });
+		long remote = measureFire(event, rounds);
+		Assert.assertEquals(2 * rounds, received[0]);
+
+		log.log(Level.INFO, "EventBus fire() throughput [events/s], local: {0}, remote: {1}",
+				new Object[]{local, remote});
+	}
+
+	private long measureFire(Object event, int rounds) {
+		// warm up
+		for (int i = 0; i < rounds; i++) {
+			eventBus.fire(event);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			eventBus.fire(event);
+		}
+		return rounds * 1000000000L / Math.max(1, System.nanoTime() - start);
+	}
+
+	public static class CountingConsumer {
+
+		private int counter = 0;
+
+		@HandleEvent
+		public void onEvent(Event1 e) {
+			counter++;
+		}
+	}
+
 	public static class Consumer {
 
 		private final Object resp[] = new Object[]{null, null, null};
@@ -78,4 +78,32 @@ public class EventBusSerializerTest {
 		Assert.assertNotEquals("ala,m,a,kota", ex.getCData(new String[]{"tigase.eventbus.impl.Event1", "strArrField"}));
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testFieldsWithoutAccessors() {
+		EventBusSerializer serializer = new EventBusSerializer();
+
+		for (int i = 0; i < 3; i++) {
+			EventWithoutAccessors eo = new EventWithoutAccessors();
+			eo.counter = i;
+			eo.name = "name-" + i;
+
+			Element ex = serializer.serialize(eo);
+			Assert.assertEquals(String.valueOf(i), ex.getCData(
+					new String[]{EventWithoutAccessors.class.getName(), "counter"}));
+
+			EventWithoutAccessors ed = new EventBusSerializer().deserialize(ex);
+			Assert.assertEquals(i, ed.counter);
+			Assert.assertEquals("name-" + i, ed.name);
+			Assert.assertNull(ed.skipped);
+		}
+	}
+
+	public static class EventWithoutAccessors {
+
+		private long counter;
+		private String name;
+		private transient String skipped = null;
+
+	}
+
+}
@@ -23,6 +23,8 @@ import tigase.eventbus.EventBus;
 import tigase.eventbus.EventListener;
 import tigase.eventbus.impl.EventBusImplementation;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class ClusterMapFactoryTest {
@@ -183,4 +185,116 @@ public class ClusterMapFactoryTest {
 		Thread.sleep(100);
 		Assert.assertTrue(received[0]);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testCoalescedChanges() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		factory.setCoalesceWindow(50);
+		final EventBus eventBus = factory.getEventBus();
+
+		final List<ClusterMapFactory.MapChangesEvent> events = new ArrayList<>();
+		eventBus.addListener(ClusterMapFactory.MapChangesEvent.class, events::add);
+		eventBus.addListener(ClusterMapFactory.ElementAddEvent.class,
+							 event -> Assert.fail("Change should not be sent immediately"));
+
+		final Map<String, String> map = factory.createMap("test-coalesced", String.class, String.class,
+														  ClusterMapFactory.Replication.coalesced);
+		for (int i = 0; i < 100; i++) {
+			map.put("key", "value-" + i);
+		}
+		map.put("removed", "value");
+		map.remove("removed");
+
+		Thread.sleep(300);
+
+		Assert.assertEquals(1, events.size());
+		ClusterMapFactory.MapChangesEvent event = events.get(0);
+		Assert.assertFalse(event.isFullState());
+		Assert.assertArrayEquals(new String[]{"key"}, event.getKeys());
+		Assert.assertArrayEquals(new String[]{"value-99"}, event.getValues());
+		Assert.assertArrayEquals(new String[]{"removed"}, event.getRemovedKeys());
+		Assert.assertTrue(event.getRemovedVersions()[0] > event.getVersions()[0]);
+		Assert.assertTrue(event.getTimestamp() > 0);
+	}
+
+	@Test
+	public void testLastWriterWins() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+
+		final Map<String, String> map = factory.createMap("test-lww", String.class, String.class,
+														  ClusterMapFactory.Replication.coalesced);
+		map.put("key", "local");
+
+		ClusterMapFactory.MapChangesEvent stale = new ClusterMapFactory.MapChangesEvent();
+		stale.setUid("test-lww");
+		stale.setKeys(new String[]{"key"});
+		stale.setValues(new String[]{"stale"});
+		stale.setVersions(new long[]{1});
+		factory.onMapChanges(stale);
+		Assert.assertEquals("local", map.get("key"));
+
+		ClusterMapFactory.MapChangesEvent newer = new ClusterMapFactory.MapChangesEvent();
+		newer.setUid("test-lww");
+		newer.setRemovedKeys(new String[]{"key"});
+		newer.setRemovedVersions(new long[]{Long.MAX_VALUE >> 1});
+		factory.onMapChanges(newer);
+		Assert.assertNull(map.get("key"));
+
+		// value older than removal is not brought back
+		factory.onMapChanges(stale);
+		Assert.assertNull(map.get("key"));
+
+		// local change after receiving newer version has to be newer as well
+		map.put("key", "local");
+		ClusterMapFactory.MapChangesEvent concurrent = new ClusterMapFactory.MapChangesEvent();
+		concurrent.setUid("test-lww");
+		concurrent.setKeys(new String[]{"key"});
+		concurrent.setValues(new String[]{"remote"});
+		concurrent.setVersions(new long[]{Long.MAX_VALUE >> 1});
+		factory.onMapChanges(concurrent);
+		Assert.assertEquals("local", map.get("key"));
+	}
+
+	@Test
+	public void testFullStateSentToJoiningNode() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		factory.setCoalesceWindow(10);
+		final EventBus eventBus = factory.getEventBus();
+
+		final Map<String, String> map = factory.createMap("test-full", String.class, String.class,
+														  ClusterMapFactory.Replication.coalesced);
+		map.put("a", "1");
+		map.put("b", "2");
+		map.remove("b");
+		Thread.sleep(100);
+
+		final List<ClusterMapFactory.MapChangesEvent> events = new ArrayList<>();
+		eventBus.addListener(ClusterMapFactory.MapChangesEvent.class, events::add);
+
+		ClusterMapFactory.NewMapCreatedEvent eventCreate = new ClusterMapFactory.NewMapCreatedEvent();
+		eventCreate.setUid("test-full");
+		eventCreate.setKeyClass(String.class);
+		eventCreate.setValueClass(String.class);
+		eventCreate.setReplication(ClusterMapFactory.Replication.coalesced.name());
+		factory.onNewMapCreated(eventCreate);
+
+		Thread.sleep(100);
+
+		Assert.assertEquals(1, events.size());
+		Assert.assertTrue(events.get(0).isFullState());
+		Assert.assertArrayEquals(new String[]{"a"}, events.get(0).getKeys());
+		Assert.assertArrayEquals(new String[]{"1"}, events.get(0).getValues());
+		Assert.assertArrayEquals(new String[]{"b"}, events.get(0).getRemovedKeys());
+
+		// joining node applies received state
+		final ClusterMapFactory joining = new ClusterMapFactory();
+		joining.setEventBus(new EventBusImplementation());
+		joining.onNewMapCreated(eventCreate);
+		joining.onMapChanges(events.get(0));
+		Assert.assertEquals("1", joining.getMap("test-full").get("a"));
+		Assert.assertEquals(1, joining.getMap("test-full").size());
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testSizeClasses() {
+		BufferPool<ByteBuffer> pool = new BufferPool<>("test", ByteBuffer::allocate, 1);
+
+		assertEquals(1024, pool.borrow(10).capacity());
+		assertEquals(1024, pool.borrow(1024).capacity());
+		assertEquals(2048, pool.borrow(1025).capacity());
+		assertEquals(65536, pool.capacityFor(40000));
+		// too big to be pooled
+		int size = 4 * 1024 * 1024 + 1;
+		assertEquals(size, pool.borrow(size).capacity());
+		assertEquals(size, pool.capacityFor(size));
+	}
+
+	@Test
+	public void testReuse() {
+		BufferPool<ByteBuffer> pool = new BufferPool<>("test", ByteBuffer::allocate, 1);
+
+		ByteBuffer buf = pool.borrow(3000);
+		buf.put((byte) 1).flip();
+		pool.release(buf);
+
+		ByteBuffer reused = pool.borrow(4096);
+		assertSame(buf, reused);
+		assertEquals(0, reused.position());
+		assertEquals(reused.capacity(), reused.limit());
+		assertNotSame(buf, pool.borrow(4096));
+	}
+
+	@Test
+	public void testForeignBufferDropped() {
+		BufferPool<ByteBuffer> pool = new BufferPool<>("test", ByteBuffer::allocate, 1);
+
+		ByteBuffer foreign = ByteBuffer.allocate(3000);
+		pool.release(foreign);
+		assertNotSame(foreign, pool.borrow(3000));
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import org.junit.Test;
+import tigase.xml.Element;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ElementByteWriterTest {
+
+	@Test
+	public void testWriteElement() {
+		Element message = new Element("message", new String[]{"to"}, new String[]{"user@example.com"});
+		message.addChild(new Element("body", "za\u017C\u00F3\u0142\u0107 \uD83D\uDE00 &amp; ok"));
+		message.addChild(new Element("active", new String[]{"xmlns"},
+									 new String[]{"http://jabber.org/protocol/chatstates"}));
+
+		ElementByteWriter writer = new ElementByteWriter(8);
+		writer.write(message);
+
+		assertEquals("<message to=\"user@example.com\"><body>za\u017C\u00F3\u0142\u0107 \uD83D\uDE00 &amp; ok</body>" +
+							 "<active xmlns=\"http://jabber.org/protocol/chatstates\"/></message>", read(writer));
+	}
+
+	@Test
+	public void testWriteString() {
+		ElementByteWriter writer = new ElementByteWriter(4);
+		String data = "<r xmlns='urn:xmpp:sm:3'/>\u20AC\u00E9\uD800x";
+		writer.write(data);
+
+		byte[] expected = "<r xmlns='urn:xmpp:sm:3'/>\u20AC\u00E9?x".getBytes(StandardCharsets.UTF_8);
+		assertEquals(expected.length, writer.size());
+		assertEquals(new String(expected, StandardCharsets.UTF_8), read(writer));
+	}
+
+	@Test
+	public void testRelease() {
+		ElementByteWriter writer = new ElementByteWriter(64);
+		writer.write("<a/>");
+		ByteBuffer buf = writer.flip();
+		buf.position(buf.limit());
+		writer.release(buf);
+		assertEquals(0, writer.size());
+
+		writer.write("<b/>");
+		ByteBuffer queued = writer.flip();
+		writer.release(queued);
+		assertEquals(0, writer.size());
+		writer.write("<c/>");
+
+		// buffer which was not written completely must not be reused
+		assertEquals("<b/>", StandardCharsets.UTF_8.decode(queued).toString());
+		assertEquals("<c/>", read(writer));
+	}
+
+	private String read(ElementByteWriter writer) {
+		ByteBuffer buf = writer.flip();
+		String result = StandardCharsets.UTF_8.decode(buf).toString();
+		writer.release(buf);
+		return result;
+	}
+}
@@ -25,6 +25,9 @@ import tigase.xml.Element;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.jid.JID;
 
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -145,4 +148,28 @@ public class PacketTest {
 		Assert.assertTrue("Output secured in default Packet.toString(false)",
 						  result.toString(false).contains("mySuperSecretPassword"));
 	}
+
+	@Test
+	public void testProcessedBy() {
+		Assert.assertFalse(packetInstance.wasProcessed());
+		Assert.assertFalse(packetInstance.wasSkipped());
+
+		// enough identifiers to use indexes above 63
+		for (int i = 0; i < 70; i++) {
+			ProcessorIdRegistry.register("test-processor-" + i);
+		}
+		packetInstance.processedBy("test-processor-1");
+		packetInstance.processedBy("test-processor-69");
+		packetInstance.notProcessedBy("test-processor-2");
+
+		Assert.assertTrue(packetInstance.wasProcessed());
+		Assert.assertTrue(packetInstance.wasSkipped());
+		Assert.assertTrue(packetInstance.wasProcessedBy("test-processor-1"));
+		Assert.assertTrue(packetInstance.wasProcessedBy("test-processor-69"));
+		Assert.assertFalse(packetInstance.wasProcessedBy("test-processor-2"));
+		Assert.assertFalse(packetInstance.wasProcessedBy("not-registered-processor"));
+		assertEquals(new LinkedHashSet<>(Arrays.asList("test-processor-1", "test-processor-69")),
+					 packetInstance.getProcessorsIds());
+		assertEquals(new LinkedHashSet<>(Arrays.asList("test-processor-2")), packetInstance.getSkippedProcessorsIds());
+	}
 }
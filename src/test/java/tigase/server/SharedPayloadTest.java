@@ -0,0 +1,153 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.net.ElementByteWriter;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SharedPayloadTest {
+
+	private static final JID FROM = JID.jidInstanceNS("alice@example.com/mobile");
+
+	@Test
+	public void testPacketInstance() {
+		Element presence = createPresence();
+		SharedPayload payload = new SharedPayload(presence, FROM);
+		// changes of the stanza after payload was created must not be visible in packets
+		presence.addChild(new Element("status", "changed"));
+
+		JID bob = JID.jidInstanceNS("bob@example.com");
+		JID carol = JID.jidInstanceNS("carol@example.net");
+		Packet first = payload.packetInstance(bob);
+		Packet second = payload.packetInstance(carol);
+
+		assertTrue(first instanceof Presence);
+		assertSame(FROM, first.getStanzaFrom());
+		assertSame(bob, first.getStanzaTo());
+		assertSame(carol, second.getStanzaTo());
+		assertSame(payload, first.getSharedPayload());
+		assertEquals(Priority.PRESENCE, first.getPriority());
+		assertEquals("bob@example.com", first.getElement().getAttributeStaticStr(Packet.TO_ATT));
+		assertEquals("carol@example.net", second.getElement().getAttributeStaticStr(Packet.TO_ATT));
+		assertEquals("alice@example.com/mobile", second.getElement().getAttributeStaticStr(Packet.FROM_ATT));
+		assertEquals("jabber:client", first.getElement().getXMLNS());
+		assertEquals("Available", first.getElement().getChildCData(new String[]{"presence", "status"}));
+		assertEquals(3, first.getElement().getChildren().size());
+		assertSame(first.getElement().getChild("c"), second.getElement().getChild("c"));
+		assertNotSame(first.getElement(), second.getElement());
+	}
+
+	@Test
+	public void testWrite() {
+		SharedPayload payload = new SharedPayload(createPresence(), FROM);
+		Packet first = payload.packetInstance(JID.jidInstanceNS("bob@example.com"));
+		Packet second = payload.packetInstance(JID.jidInstanceNS("carol@example.net"));
+
+		assertEquals(serialize(first.getElement()), serialize(payload, first.getElement()));
+		assertEquals(serialize(second.getElement()), serialize(payload, second.getElement()));
+
+		// top level element may be changed, ie. by stream management
+		first.getElement().addChild(new Element("r", new String[]{"xmlns"}, new String[]{"urn:xmpp:sm:3"}));
+		assertEquals(serialize(first.getElement()), serialize(payload, first.getElement()));
+		second.getElement().removeChild(second.getElement().getChild("show"));
+		assertEquals(serialize(second.getElement()), serialize(payload, second.getElement()));
+	}
+
+	@Test
+	@Category(tigase.tests.SlowTest.class)
+	public void testFanOutAllocation() throws TigaseStringprepException {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+
+		int buddies = 3000;
+		List<JID> jids = new ArrayList<>(buddies);
+		for (int i = 0; i < buddies; i++) {
+			jids.add(JID.jidInstanceNS("buddy" + i + "@example" + (i % 10) + ".com"));
+		}
+		Element presence = createPresence();
+		long threadId = Thread.currentThread().getId();
+		long cloneBytes = Long.MAX_VALUE;
+		long sharedBytes = Long.MAX_VALUE;
+
+		// first rounds warm up the code, so the smallest result of all rounds is compared
+		for (int round = 0; round < 5; round++) {
+			long cloneLength = 0;
+			long start = threadBean.getThreadAllocatedBytes(threadId);
+			for (JID jid : jids) {
+				// the same steps as in PresenceAbstract.sendPresence(..., Element)
+				Element elem = presence.clone();
+				elem.setAttribute(Packet.TO_ATT, jid.toString());
+				cloneLength += serialize(Packet.packetInstance(elem).getElement()).length();
+			}
+			cloneBytes = Math.min(cloneBytes, threadBean.getThreadAllocatedBytes(threadId) - start);
+
+			long sharedLength = 0;
+			start = threadBean.getThreadAllocatedBytes(threadId);
+			SharedPayload payload = new SharedPayload(presence, FROM);
+			for (JID jid : jids) {
+				sharedLength += serialize(payload, payload.packetInstance(jid).getElement()).length();
+			}
+			sharedBytes = Math.min(sharedBytes, threadBean.getThreadAllocatedBytes(threadId) - start);
+
+			assertEquals(cloneLength, sharedLength);
+		}
+		assertTrue("Presence sent to " + buddies + " buddies allocated " + cloneBytes + " bytes with clone and " +
+						   sharedBytes + " bytes with shared payload", sharedBytes <= cloneBytes);
+	}
+
+	private static Element createPresence() {
+		Element presence = new Element("presence", new String[]{"from", "to", "xmlns"},
+									   new String[]{"alice@example.com/mobile", "alice@example.com", "jabber:client"});
+		presence.addChild(new Element("show", "away"));
+		presence.addChild(new Element("status", "Available"));
+		presence.addChild(new Element("c", new String[]{"xmlns", "hash", "node", "ver"},
+									  new String[]{"http://jabber.org/protocol/caps", "sha-1",
+												   "http://example.com/client", "QgayPKawpkPSDYmwT/WM94uAlu0="}));
+		return presence;
+	}
+
+	private static String serialize(Element elem) {
+		return read(new ElementByteWriter(64).write(elem));
+	}
+
+	private static String serialize(SharedPayload payload, Element elem) {
+		ElementByteWriter writer = new ElementByteWriter(64);
+		payload.write(writer, elem);
+		return read(writer);
+	}
+
+	private static String read(ElementByteWriter writer) {
+		ByteBuffer buf = writer.flip();
+		return StandardCharsets.UTF_8.decode(buf).toString();
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.bosh;
+
+import org.junit.Test;
+import tigase.util.common.TimerTask;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BoshTimerWheelTest {
+
+	@Test
+	public void testExpire() {
+		BoshTimerWheel wheel = new BoshTimerWheel(100);
+		long now = System.currentTimeMillis();
+		AtomicInteger counter = new AtomicInteger();
+
+		TestTask first = new TestTask(counter);
+		TestTask second = new TestTask(counter);
+		TestTask cancelled = new TestTask(counter);
+		wheel.schedule(first, 1000);
+		wheel.schedule(second, 30000);
+		wheel.schedule(cancelled, 1000);
+		assertEquals(3, wheel.size());
+
+		cancelled.cancel();
+		assertTrue(wheel.remove(cancelled));
+		assertFalse(wheel.remove(cancelled));
+
+		assertEquals(0, wheel.expire(now + 500));
+		assertEquals(1, wheel.expire(now + 1200));
+		assertEquals(1, first.runs);
+		assertEquals(0, cancelled.runs);
+		assertEquals(1, wheel.size());
+
+		// task cancelled without removal from the wheel is not executed
+		second.cancel();
+		assertEquals(0, wheel.expire(now + 31000));
+		assertEquals(0, second.runs);
+		assertEquals(0, wheel.size());
+		assertEquals(1, counter.get());
+	}
+
+	private static class TestTask
+			extends TimerTask {
+
+		private final AtomicInteger counter;
+		private int runs = 0;
+
+		private TestTask(AtomicInteger counter) {
+			this.counter = counter;
+		}
+
+		@Override
+		public void run() {
+			++runs;
+			if (counter != null) {
+				counter.incrementAndGet();
+			}
+		}
+	}
+}
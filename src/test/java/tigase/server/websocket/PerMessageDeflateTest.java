@@ -0,0 +1,209 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.websocket;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class PerMessageDeflateTest {
+
+	private static final String MESSAGE1 =
+			"<message to='juliet@example.com' type='chat'><body>Wherefore art thou, Romeo?</body></message>";
+	private static final String MESSAGE2 =
+			"<message to='romeo@example.com' type='chat'><body>Wherefore art thou, Juliet?</body></message>";
+
+	@Test
+	public void testNegotiate() {
+		PerMessageDeflate.Pool pool = new PerMessageDeflate.Pool(1);
+
+		assertNull(PerMessageDeflate.negotiate(null, true, true, 15, pool));
+		assertNull(PerMessageDeflate.negotiate("x-webkit-deflate-frame", true, true, 15, pool));
+		assertNull(PerMessageDeflate.negotiate("permessage-deflate; unknown_param", true, true, 15, pool));
+		assertNull(PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=7", true, true, 15, pool));
+
+		PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate", true, true, 15, pool);
+		assertEquals("permessage-deflate", deflate.getResponseHeader());
+		assertFalse(deflate.isServerNoContextTakeover());
+		assertFalse(deflate.isClientNoContextTakeover());
+
+		// first acceptable offer is selected
+		deflate = PerMessageDeflate.negotiate(
+				"permessage-deflate; server_max_window_bits=4, permessage-deflate; client_max_window_bits", true, true,
+				10, pool);
+		assertEquals("permessage-deflate; client_max_window_bits=10", deflate.getResponseHeader());
+
+		// smaller window than used by deflater requires server to reset compression after each message
+		deflate = PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=\"10\"", true, true, 15,
+											  pool);
+		assertEquals("permessage-deflate; server_max_window_bits=10; server_no_context_takeover",
+					 deflate.getResponseHeader());
+		assertTrue(deflate.isServerNoContextTakeover());
+
+		deflate = PerMessageDeflate.negotiate("permessage-deflate; client_no_context_takeover", false, true, 15, pool);
+		assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover",
+					 deflate.getResponseHeader());
+		assertTrue(deflate.isServerNoContextTakeover());
+		assertTrue(deflate.isClientNoContextTakeover());
+	}
+
+	@Test
+	public void testContextTakeover() throws DataFormatException {
+		PerMessageDeflate.Pool pool = new PerMessageDeflate.Pool(4);
+		PerMessageDeflate server = PerMessageDeflate.negotiate("permessage-deflate", true, true, 15, pool);
+
+		ByteBuffer compressed1 = server.compress(wrap(MESSAGE1));
+		ByteBuffer compressed2 = server.compress(wrap(MESSAGE2));
+		assertTrue(compressed1.remaining() < MESSAGE1.length());
+		assertTrue("Context of previous message not used", compressed2.remaining() < compressed1.remaining());
+
+		// output of compression is valid input for the peer
+		assertEquals(MESSAGE1, toString(server.decompress(toArray(compressed1), true)));
+		assertEquals(MESSAGE2, toString(server.decompress(toArray(compressed2), true)));
+		assertTrue(server.getCompressionRatio() < 1);
+
+		server.release();
+		assertNull(server.compress(wrap(MESSAGE1)));
+		assertEquals(1, pool.getIdleDeflaters());
+		assertEquals(1, pool.getIdleInflaters());
+	}
+
+	@Test
+	public void testNoContextTakeover() throws DataFormatException {
+		PerMessageDeflate.Pool pool = new PerMessageDeflate.Pool(4);
+		PerMessageDeflate server = PerMessageDeflate.negotiate(
+				"permessage-deflate; server_no_context_takeover; client_no_context_takeover", true, true, 15, pool);
+
+		ByteBuffer compressed1 = server.compress(wrap(MESSAGE1));
+		assertEquals(1, pool.getIdleDeflaters());
+		ByteBuffer compressed2 = server.compress(wrap(MESSAGE1));
+		assertEquals("Messages compressed independently", compressed1, compressed2);
+
+		// each message is decompressed independently, so it may be processed in any order
+		PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate; client_no_context_takeover", true,
+															   true, 15, pool);
+		assertEquals(MESSAGE1, toString(client.decompress(toArray(compressed2), true)));
+		assertEquals(MESSAGE1, toString(client.decompress(toArray(compressed1), true)));
+		assertEquals(1, pool.getIdleInflaters());
+		assertEquals(2, pool.getInstances());
+	}
+
+	@Test
+	public void testNoContextTakeoverWindowSize() throws DataFormatException {
+		PerMessageDeflate.Pool pool = new PerMessageDeflate.Pool(4);
+		byte[] big = new byte[64 * 1024];
+
+		// deflater window is not smaller than negotiated one, so message of any size may be compressed
+		PerMessageDeflate server = PerMessageDeflate.negotiate("permessage-deflate; server_no_context_takeover", true,
+															   true, 15, pool);
+		ByteBuffer compressed = server.compress(ByteBuffer.wrap(big));
+		assertNotNull(compressed);
+		assertEquals(big.length, server.decompress(toArray(compressed), true).remaining());
+
+		// message bigger than negotiated window could refer to data outside of it
+		server = PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=10", true, true, 15, pool);
+		assertNull(server.compress(ByteBuffer.wrap(big)));
+		assertNotNull(server.compress(wrap(MESSAGE1)));
+	}
+
+	@Test
+	public void testFragmentedMessage() throws DataFormatException {
+		PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate", true, true, 15,
+																new PerMessageDeflate.Pool(1));
+		byte[] compressed = toArray(deflate.compress(wrap(MESSAGE1)));
+		int split = compressed.length / 2;
+		byte[] part1 = new byte[split];
+		byte[] part2 = new byte[compressed.length - split];
+		System.arraycopy(compressed, 0, part1, 0, part1.length);
+		System.arraycopy(compressed, split, part2, 0, part2.length);
+
+		ByteBuffer decompressed1 = deflate.decompress(part1, false);
+		assertTrue(deflate.isInflatingMessage());
+		ByteBuffer decompressed2 = deflate.decompress(part2, true);
+		assertFalse(deflate.isInflatingMessage());
+		assertEquals(MESSAGE1, toString(decompressed1) + toString(decompressed2));
+	}
+
+	@Test
+	public void testFragmentedMessageTooBig() {
+		PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate", true, true, 15,
+																new PerMessageDeflate.Pool(1));
+		// each fragment is below the limit, but the whole message is not
+		byte[] compressed = toArray(deflate.compress(ByteBuffer.wrap(new byte[17 * 1024 * 1024])));
+		int split = compressed.length / 2;
+		byte[] part1 = new byte[split];
+		byte[] part2 = new byte[compressed.length - split];
+		System.arraycopy(compressed, 0, part1, 0, part1.length);
+		System.arraycopy(compressed, split, part2, 0, part2.length);
+
+		try {
+			deflate.decompress(part1, false);
+			deflate.decompress(part2, true);
+			fail("Decompressed message exceeding the limit accepted");
+		} catch (DataFormatException ex) {
+			assertFalse(deflate.isInflatingMessage());
+		}
+	}
+
+	@Test
+	public void testFinalBlockWithContextTakeover() throws DataFormatException {
+		PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate", true, true, 15,
+																new PerMessageDeflate.Pool(1));
+
+		// client may end each message with a final block, so the next one starts a new stream
+		assertEquals(MESSAGE1, toString(deflate.decompress(deflateFinal(MESSAGE1), true)));
+		assertEquals(MESSAGE2, toString(deflate.decompress(deflateFinal(MESSAGE2), true)));
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void testInvalidData() throws DataFormatException {
+		PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate", true, true, 15,
+																new PerMessageDeflate.Pool(1));
+		deflate.decompress(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x00}, true);
+	}
+
+	private static byte[] deflateFinal(String data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data.getBytes(StandardCharsets.UTF_8));
+		deflater.finish();
+		byte[] buf = new byte[1024];
+		int length = deflater.deflate(buf);
+		deflater.end();
+		return Arrays.copyOf(buf, length);
+	}
+
+	private static byte[] toArray(ByteBuffer buf) {
+		byte[] data = new byte[buf.remaining()];
+		buf.duplicate().get(data);
+		return data;
+	}
+
+	private static String toString(ByteBuffer buf) {
+		return new String(toArray(buf), StandardCharsets.UTF_8);
+	}
+
+	private static ByteBuffer wrap(String data) {
+		return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+	}
+}
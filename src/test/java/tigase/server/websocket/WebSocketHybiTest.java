@@ -147,6 +147,125 @@ public class WebSocketHybiTest
 		assertEquals(expSecWebSocketAccept, secWebSocketAccept.get());
 	}
 
+	@Test
+	public void testHandshakeWithPermessageDeflate() throws NoSuchAlgorithmException, IOException {
+		final StringBuilder sb = new StringBuilder();
+		WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{new WebSocketHybi()}) {
+
+			@Override
+			public int getLocalPort() {
+				return 80;
+			}
+
+			protected void writeData(String data) {
+				sb.append(data);
+			}
+
+		};
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("Sec-WebSocket-Version".toUpperCase(), "13");
+		params.put("Sec-WebSocket-Key".toUpperCase(), "some random data as a key");
+		params.put("Sec-WebSocket-Protocol".toUpperCase(), "xmpp");
+		params.put("Sec-WebSocket-Extensions".toUpperCase(),
+				   "x-webkit-deflate-frame, permessage-deflate; client_max_window_bits");
+		byte[] bytes = new byte[10];
+		bytes[0] = '\r';
+		bytes[1] = '\n';
+
+		Assert.assertTrue("Handshake failed", impl.handshake(io, params, bytes));
+		Assert.assertFalse("Compression negotiated while disabled", sb.toString().contains("Sec-WebSocket-Extensions"));
+		Assert.assertNull(io.deflate);
+
+		impl.setPermessageDeflate(true);
+		sb.setLength(0);
+		Assert.assertTrue("Handshake failed", impl.handshake(io, params, bytes));
+		Assert.assertTrue("Compression not negotiated",
+						  sb.toString().contains("Sec-WebSocket-Extensions: permessage-deflate\r\n"));
+		Assert.assertNotNull(io.deflate);
+	}
+
+	@Test
+	public void testCompressedFrameEncodingDecoding() throws IOException {
+		String input1 = "<message to='juliet@example.com'><body>Wherefore art thou, Romeo?</body></message>";
+		String input2 = "<message to='romeo@example.com'><body>Wherefore art thou, Juliet?</body></message>";
+		final ByteBuffer tmp = ByteBuffer.allocate(1024);
+		WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{new WebSocketHybi()}) {
+
+			@Override
+			protected void writeBytes(ByteBuffer data) {
+				tmp.put(data);
+			}
+
+		};
+		io.maskingKey = new byte[4];
+		io.deflate = PerMessageDeflate.negotiate("permessage-deflate", true, true, 15, new PerMessageDeflate.Pool(1));
+
+		impl.encodeFrameAndWrite(io, ByteBuffer.wrap(input1.getBytes()));
+		tmp.flip();
+		assertEquals("Compressed frame should have RSV1 bit set", (byte) 0xC1, tmp.get(0));
+		int firstSize = tmp.get(1);
+		Assert.assertTrue("Data not compressed", firstSize < input1.length());
+		ByteBuffer decoded = impl.decodeFrame(io, maskFrame(tmp));
+		assertEquals(input1, toString(decoded));
+
+		// second message uses context of the first one
+		tmp.clear();
+		impl.encodeFrameAndWrite(io, ByteBuffer.wrap(input2.getBytes()));
+		tmp.flip();
+		Assert.assertTrue("Context not used", tmp.get(1) < firstSize);
+		decoded = impl.decodeFrame(io, maskFrame(tmp));
+		assertEquals(input2, toString(decoded));
+	}
+
+	@Test
+	public void testFragmentedCompressedMessage() throws IOException {
+		String input = "<message to='juliet@example.com'><body>Wherefore art thou, Romeo?</body></message>";
+		final ByteBuffer tmp = ByteBuffer.allocate(1024);
+		WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{new WebSocketHybi()}) {
+
+			@Override
+			protected void writeBytes(ByteBuffer data) {
+				tmp.put(data);
+			}
+
+		};
+		io.maskingKey = new byte[4];
+		io.deflate = PerMessageDeflate.negotiate("permessage-deflate", true, true, 15, new PerMessageDeflate.Pool(1));
+		impl.encodeFrameAndWrite(io, ByteBuffer.wrap(input.getBytes()));
+		tmp.flip();
+		tmp.position(2);
+		byte[] payload = new byte[tmp.remaining()];
+		tmp.get(payload);
+
+		// first frame: not final (0x00), compressed (0x40), text (0x01), second: final (0x80) continuation (0x00)
+		int split = payload.length / 2;
+		ByteBuffer frame1 = ByteBuffer.allocate(split + 2);
+		frame1.put((byte) 0x41).put((byte) split).put(payload, 0, split).flip();
+		ByteBuffer frame2 = ByteBuffer.allocate(payload.length - split + 2);
+		frame2.put((byte) 0x80).put((byte) (payload.length - split)).put(payload, split, payload.length - split).flip();
+
+		ByteBuffer part1 = impl.decodeFrame(io, maskFrame(frame1));
+		Assert.assertTrue(io.deflate.isInflatingMessage());
+		ByteBuffer part2 = impl.decodeFrame(io, maskFrame(frame2));
+		Assert.assertFalse(io.deflate.isInflatingMessage());
+		assertEquals(input, toString(part1) + toString(part2));
+	}
+
+	@Test
+	public void testCompressedFrameWithoutNegotiation() throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(10);
+		frame.put((byte) 0xC1).put((byte) 0x02).put(new byte[]{0x03, 0x00}).flip();
+		WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{new WebSocketHybi()});
+		io.maskingKey = new byte[4];
+		io.setState(WebSocketXMPPIOService.State.handshaked);
+		Assert.assertNull(impl.decodeFrame(io, maskFrame(frame)));
+		assertEquals(WebSocketXMPPIOService.State.closing, io.getState());
+	}
+
 	@Test
 	public void testTwoWebSocketTextFramesInSingleTcpFrame() throws Exception {
 		String input1 = "<test-data><subdata/></test-data>";
@@ -237,6 +356,12 @@ public class WebSocketHybiTest
 		return tmp;
 	}
 
+	private static String toString(ByteBuffer buf) {
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		return new String(data, Charset.forName("UTF-8"));
+	}
+
 	private ByteBuffer generateIncomingFrame(String input) throws IOException {
 		ByteBuffer buf = ByteBuffer.wrap(input.getBytes());
 		final ByteBuffer tmp = ByteBuffer.allocate(1024);
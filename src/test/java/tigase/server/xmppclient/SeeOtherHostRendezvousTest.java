@@ -0,0 +1,138 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppclient;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SeeOtherHostRendezvousTest {
+
+	private static final int USERS = 20000;
+	private static final BareJID THIS_HOST = BareJID.bareJIDInstanceNS("node1.example.com");
+
+	private static List<JID> nodes(int count) {
+		List<JID> nodes = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			nodes.add(JID.jidInstanceNS("sess-man", "node" + i + ".example.com", null));
+		}
+		return nodes;
+	}
+
+	private static BareJID[] assign(SeeOtherHostIfc seeOtherHost) {
+		BareJID[] hosts = new BareJID[USERS];
+		for (int i = 0; i < USERS; i++) {
+			hosts[i] = seeOtherHost.findHostForJID(BareJID.bareJIDInstanceNS("user" + i, "example.com"), THIS_HOST);
+		}
+		return hosts;
+	}
+
+	private static double remappedFraction(SeeOtherHostIfc seeOtherHost, List<JID> before, List<JID> after) {
+		seeOtherHost.setNodes(before);
+		BareJID[] hostsBefore = assign(seeOtherHost);
+		seeOtherHost.setNodes(after);
+		BareJID[] hostsAfter = assign(seeOtherHost);
+		int remapped = 0;
+		for (int i = 0; i < USERS; i++) {
+			if (!hostsBefore[i].equals(hostsAfter[i])) {
+				++remapped;
+			}
+		}
+		return ((double) remapped) / USERS;
+	}
+
+	@Test
+	public void testBalancedDistribution() {
+		SeeOtherHostRendezvous seeOtherHost = new SeeOtherHostRendezvous();
+		seeOtherHost.setNodes(nodes(10));
+		Map<BareJID, Integer> counts = new HashMap<>();
+		for (BareJID host : assign(seeOtherHost)) {
+			counts.merge(host, 1, Integer::sum);
+		}
+		assertEquals(10, counts.size());
+		for (Map.Entry<BareJID, Integer> e : counts.entrySet()) {
+			assertEquals("users of " + e.getKey(), USERS / 10, e.getValue(), USERS / 10 * 0.1);
+		}
+	}
+
+	@Test
+	public void testRemappedFractionOnNodeChange() {
+		List<JID> nodes = nodes(10);
+		List<JID> withoutNode = new ArrayList<>(nodes);
+		withoutNode.remove(4);
+		List<JID> withNewNode = nodes(11);
+
+		double removed = remappedFraction(new SeeOtherHostRendezvous(), nodes, withoutNode);
+		double added = remappedFraction(new SeeOtherHostRendezvous(), nodes, withNewNode);
+		double removedHashed = remappedFraction(new SeeOtherHostHashed(), nodes, withoutNode);
+		double addedHashed = remappedFraction(new SeeOtherHostHashed(), nodes, withNewNode);
+
+		// only users of removed node or users moved to new node should be remapped (~1/N)
+		assertEquals(1.0 / 10, removed, 0.02);
+		assertEquals(1.0 / 11, added, 0.02);
+		assertTrue(removedHashed > 0.5);
+		assertTrue(addedHashed > 0.5);
+	}
+
+	@Test
+	public void testOnlyUsersOfRemovedNodeMoved() {
+		SeeOtherHostRendezvous seeOtherHost = new SeeOtherHostRendezvous();
+		List<JID> nodes = nodes(5);
+		seeOtherHost.setNodes(nodes);
+		BareJID[] hostsBefore = assign(seeOtherHost);
+		JID removed = nodes.remove(2);
+		seeOtherHost.setNodes(nodes);
+		BareJID[] hostsAfter = assign(seeOtherHost);
+		for (int i = 0; i < USERS; i++) {
+			if (hostsBefore[i].getDomain().equals(removed.getDomain())) {
+				assertNotEquals(removed.getDomain(), hostsAfter[i].getDomain());
+			} else {
+				assertEquals(hostsBefore[i], hostsAfter[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testNodeWeights() {
+		SeeOtherHostRendezvous seeOtherHost = new SeeOtherHostRendezvous();
+		Map<String, Integer> weights = new HashMap<>();
+		weights.put("node1.example.com", 2);
+		weights.put("node4.example.com", 0);
+		seeOtherHost.setNodeWeights(weights);
+		seeOtherHost.setNodes(nodes(4));
+		Map<String, Integer> counts = new HashMap<>();
+		for (BareJID host : assign(seeOtherHost)) {
+			counts.merge(host.getDomain(), 1, Integer::sum);
+		}
+		assertNull(counts.get("node4.example.com"));
+		assertEquals(USERS / 2, counts.get("node1.example.com"), USERS / 2 * 0.1);
+		assertEquals(USERS / 4, counts.get("node2.example.com"), USERS / 4 * 0.1);
+		assertEquals(USERS / 4, counts.get("node3.example.com"), USERS / 4 * 0.1);
+	}
+
+	@Test
+	public void testNoNodes() {
+		SeeOtherHostRendezvous seeOtherHost = new SeeOtherHostRendezvous();
+		assertEquals(THIS_HOST, seeOtherHost.findHostForJID(BareJID.bareJIDInstanceNS("user", "example.com"), THIS_HOST));
+	}
+
+}
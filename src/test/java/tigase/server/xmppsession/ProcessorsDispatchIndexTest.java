@@ -0,0 +1,171 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.NonAuthUserRepository;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ProcessorsDispatchIndexTest {
+
+	private TestProcessor custom;
+	private ProcessorsDispatchIndex index;
+	private TestProcessor message;
+	private TestProcessor ping;
+	private TestProcessor roster;
+	private TestProcessor wildcard;
+
+	@Before
+	public void setUp() {
+		message = new TestProcessor("message", new String[][]{{"message"}}, new String[]{"jabber:client"}, null);
+		ping = new TestProcessor("ping", new String[][]{{"iq", "ping"}}, new String[]{"urn:xmpp:ping"}, null);
+		roster = new TestProcessor("roster", new String[][]{{"iq", "query"}, {"iq", "query"}},
+								   new String[]{"jabber:iq:roster", "jabber:iq:roster:dynamic"},
+								   EnumSet.of(StanzaType.get, StanzaType.set));
+		wildcard = new TestProcessor("wildcard", new String[][]{{"*"}}, new String[]{"*"},
+									 EnumSet.of(StanzaType.error));
+		custom = new TestProcessor("custom", null, null, null) {
+			@Override
+			public Authorization canHandle(Packet packet, XMPPResourceConnection conn) {
+				return packet.getElemName() == "presence" ? Authorization.AUTHORIZED : null;
+			}
+		};
+		index = ProcessorsDispatchIndex.build(Arrays.<XMPPProcessorIfc>asList(message, ping, roster, wildcard, custom));
+	}
+
+	@Test
+	public void testFindProcessors() throws TigaseStringprepException {
+		assertEquals(Collections.singletonList(message), find(new Element("message", new String[]{"xmlns", "type"},
+																		  new String[]{"jabber:client", "chat"})));
+
+		Element iq = new Element("iq", new String[]{"xmlns", "type"}, new String[]{"jabber:client", "get"});
+		iq.addChild(new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:ping"}));
+		assertEquals(Collections.singletonList(ping), find(iq));
+
+		iq = new Element("iq", new String[]{"xmlns", "type"}, new String[]{"jabber:client", "set"});
+		iq.addChild(new Element("query", new String[]{"xmlns"}, new String[]{"jabber:iq:roster"}));
+		assertEquals(Collections.singletonList(roster), find(iq));
+
+		iq = new Element("iq", new String[]{"xmlns", "type"}, new String[]{"jabber:client", "result"});
+		iq.addChild(new Element("query", new String[]{"xmlns"}, new String[]{"jabber:iq:roster"}));
+		assertTrue(find(iq).isEmpty());
+
+		iq = new Element("iq", new String[]{"xmlns", "type"}, new String[]{"jabber:client", "error"});
+		iq.addChild(new Element("query", new String[]{"xmlns"}, new String[]{"jabber:iq:version"}));
+		assertEquals(Collections.singletonList(wildcard), find(iq));
+
+		assertEquals(Collections.singletonList(custom),
+					 find(new Element("presence", new String[]{"xmlns"}, new String[]{"jabber:client"})));
+
+		assertEquals(1, index.getFallbackSize());
+		assertEquals(6, index.getPacketsCount());
+	}
+
+	@Test
+	public void testMatchesDefaultCanHandle() throws TigaseStringprepException {
+		List<XMPPProcessorIfc> processors = Arrays.<XMPPProcessorIfc>asList(message, ping, roster, wildcard, custom);
+		String[] types = {null, "get", "set", "result", "error", "chat"};
+		String[][] children = {{null, null}, {"ping", "urn:xmpp:ping"}, {"query", "jabber:iq:roster"},
+							   {"query", "jabber:iq:roster:dynamic"}, {"query", "jabber:iq:private"}};
+		for (String name : new String[]{"message", "iq", "presence"}) {
+			for (String type : types) {
+				for (String[] child : children) {
+					Element elem = new Element(name, new String[]{"xmlns"}, new String[]{"jabber:client"});
+					if (type != null) {
+						elem.setAttribute("type", type);
+					}
+					if (child[0] != null) {
+						elem.addChild(new Element(child[0], new String[]{"xmlns"}, new String[]{child[1]}));
+					}
+					Packet packet = Packet.packetInstance(elem);
+					Set<XMPPProcessorIfc> expected = new HashSet<>();
+					for (XMPPProcessorIfc proc : processors) {
+						if (proc.canHandle(packet, null) == Authorization.AUTHORIZED) {
+							expected.add(proc);
+						}
+					}
+					List<XMPPProcessorIfc> result = new ArrayList<>();
+					index.findProcessors(packet, null, result);
+					assertEquals(elem.toString(), expected, new HashSet<>(result));
+					assertEquals(elem.toString(), expected.size(), result.size());
+				}
+			}
+		}
+	}
+
+	private List<XMPPProcessorIfc> find(Element elem) throws TigaseStringprepException {
+		List<XMPPProcessorIfc> result = new ArrayList<>();
+		index.findProcessors(Packet.packetInstance(elem), null, result);
+		return result;
+	}
+
+	private static class TestProcessor
+			extends XMPPProcessor
+			implements XMPPProcessorIfc {
+
+		private final String id;
+		private final String[][] paths;
+		private final Set<StanzaType> types;
+		private final String[] xmlnss;
+
+		private TestProcessor(String id, String[][] paths, String[] xmlnss, Set<StanzaType> types) {
+			this.id = id;
+			this.paths = paths == null ? null : ("*".equals(paths[0][0]) ? ALL_PATHS : paths);
+			this.xmlnss = xmlnss;
+			this.types = types;
+		}
+
+		@Override
+		public String id() {
+			return id;
+		}
+
+		@Override
+		public void process(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
+							Queue<Packet> results, Map<String, Object> settings) throws XMPPException {
+		}
+
+		@Override
+		public String[][] supElementNamePaths() {
+			return paths;
+		}
+
+		@Override
+		public String[] supNamespaces() {
+			return xmlnss;
+		}
+
+		@Override
+		public Set<StanzaType> supTypes() {
+			return types;
+		}
+
+		@Override
+		public String toString() {
+			return id;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram("test");
+		Assert.assertEquals(0, histogram.getCount());
+		Assert.assertEquals(0, histogram.getPercentile(99));
+		Assert.assertEquals("", histogram.toString());
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram("test");
+		for (int i = 0; i < 99; i++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+		}
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+
+		Assert.assertEquals(100, histogram.getCount());
+		Assert.assertEquals(4, histogram.getPercentile(50));
+		Assert.assertEquals(4, histogram.getPercentile(99));
+		Assert.assertEquals(100000, histogram.getPercentile(100));
+		Assert.assertEquals(100000, histogram.getMax());
+		Assert.assertEquals((99 * 3 + 100000) / 100, histogram.getAverage());
+		Assert.assertEquals("<=4us:99, <=131072us:1", histogram.toString());
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+	@Test
+	public void testItemsReturnedAtDeadline() {
+		long start = 1000000;
+		TimingWheel<Integer> wheel = new TimingWheel<>(10, start);
+		Random random = new Random(1);
+		long[] deadlines = new long[5000];
+		for (int i = 0; i < deadlines.length; i++) {
+			// deadlines spread over all levels of the wheel
+			deadlines[i] = start + 1 + random.nextInt(20 * 1000 * 1000);
+			wheel.schedule(i, deadlines[i]);
+		}
+		assertEquals(deadlines.length, wheel.size());
+
+		int returned = 0;
+		for (long now = start; now <= start + 20 * 1000 * 1000 + 10; now += 1000) {
+			for (Integer i : wheel.advance(now)) {
+				assertTrue("item " + i + " returned too early", deadlines[i] <= now);
+				assertTrue("item " + i + " returned too late", deadlines[i] > now - 1000 - 10);
+				++returned;
+			}
+		}
+		assertEquals(deadlines.length, returned);
+		assertEquals(0, wheel.size());
+		assertArrayEquals(new int[4], wheel.getOccupancy());
+	}
+
+	@Test
+	public void testRescheduleAndRemove() {
+		TimingWheel<String> wheel = new TimingWheel<>(100, 0);
+		wheel.schedule("a", 500);
+		wheel.schedule("b", 500);
+		wheel.schedule("c", 10000);
+
+		wheel.schedule("a", 20000);
+		assertTrue(wheel.remove("b"));
+		assertFalse(wheel.remove("b"));
+
+		assertEquals(Collections.emptyList(), wheel.advance(1000));
+		assertEquals(Arrays.asList("c"), wheel.advance(10000));
+		assertTrue(wheel.contains("a"));
+
+		List<String> due = wheel.advance(30000);
+		assertEquals(Arrays.asList("a"), due);
+		assertFalse(wheel.contains("a"));
+	}
+
+	@Test
+	public void testPastDeadlineReturnedOnNextTick() {
+		TimingWheel<String> wheel = new TimingWheel<>(100, 10000);
+		wheel.schedule("a", 5000);
+		assertEquals(Collections.emptyList(), wheel.advance(10050));
+		assertEquals(Arrays.asList("a"), wheel.advance(10100));
+	}
+
+}
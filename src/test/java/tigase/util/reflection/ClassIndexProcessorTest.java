@@ -0,0 +1,72 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.reflection;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClassIndexProcessorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testIndexGenerated() throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		Assume.assumeNotNull(compiler);
+
+		File src = folder.newFolder("src");
+		File out = folder.newFolder("out");
+		File file = new File(src, "TestBean.java");
+		// index left by previous build with class which was removed since then
+		File oldIndex = new File(out, ClassIndexProcessor.CLASSES_INDEX);
+		oldIndex.getParentFile().mkdirs();
+		Files.write(oldIndex.toPath(), "test.Removed\n".getBytes(StandardCharsets.UTF_8));
+
+		String source = String.join("\n", "package test;", "@tigase.kernel.beans.Bean(name = \"test-bean\")",
+									 "public class TestBean {",
+									 "  public static class Processor extends tigase.xmpp.XMPPProcessor {}",
+									 "  public static abstract class AbstractProcessor extends tigase.xmpp.XMPPProcessor {}",
+									 "  public static class Plain {}", "}");
+		Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+
+		String classpath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+		int result = compiler.run(null, null, null, "-proc:only", "-processor", ClassIndexProcessor.class.getName(),
+								  "-cp", classpath, "-d", out.getAbsolutePath(), file.getAbsolutePath());
+		assertEquals(0, result);
+
+		List<String> beans = Files.readAllLines(new File(out, ClassIndexProcessor.BEANS_INDEX).toPath());
+		assertEquals(Arrays.asList("test.TestBean", "test.TestBean$Processor"), beans);
+		List<String> classes = Files.readAllLines(new File(out, ClassIndexProcessor.CLASSES_INDEX).toPath());
+		assertEquals(Arrays.asList("test.TestBean", "test.TestBean$AbstractProcessor", "test.TestBean$Plain",
+								   "test.TestBean$Processor"), classes);
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PriorityQueueLockFreeTest {
+
+	@Test
+	public void testPriorityOrder() throws InterruptedException {
+		PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(3, 10,
+																					  PriorityQueueLockFree.class);
+		queue.offer(20, 2);
+		queue.offer(10, 1);
+		queue.offer(0, 0);
+		queue.offer(11, 1);
+
+		assertEquals(4, queue.totalSize());
+		assertArrayEquals(new int[]{1, 2, 1}, queue.size());
+		assertEquals(Integer.valueOf(0), queue.take());
+		assertEquals(Integer.valueOf(10), queue.take());
+		assertEquals(Integer.valueOf(11), queue.take());
+		assertEquals(Integer.valueOf(20), queue.take());
+		assertEquals(0, queue.totalSize());
+	}
+
+	@Test
+	public void testOverflow() {
+		PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(2, 2,
+																					  PriorityQueueLockFree.class);
+		assertTrue(queue.offer(1, 0));
+		assertTrue(queue.offer(2, 0));
+		assertTrue(queue.offer(3, 0));
+		assertTrue(queue.offer(4, 1));
+		assertFalse(queue.offer(5, 0));
+		assertArrayEquals(new int[]{2, 2}, queue.size());
+
+		queue.setMaxSize(3);
+		assertTrue(queue.offer(5, 0));
+	}
+
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 50000;
+		final PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(3, 1000,
+																							PriorityQueueLockFree.class);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			final int base = p * perProducer;
+			Thread thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < perProducer; i++) {
+						queue.put(base + i, i % 3);
+					}
+				} catch (InterruptedException ex) {
+					throw new RuntimeException(ex);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+
+		BitSet received = new BitSet(producers * perProducer);
+		for (int i = 0; i < producers * perProducer; i++) {
+			int value = queue.take();
+			assertFalse("duplicated element " + value, received.get(value));
+			received.set(value);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(producers * perProducer, received.cardinality());
+		assertEquals(0, queue.totalSize());
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.xml.XMLRepository;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UserDataCacheTest {
+
+	private final List<String> changes = new ArrayList<>();
+	private UserDataCache cache;
+	private XMLRepository repo;
+	private BareJID user;
+
+	@Before
+	public void setUp() throws Exception {
+		repo = new XMLRepository();
+		repo.initRepository("memory://xmlRepo?autoCreateUser=true", null);
+		user = BareJID.bareJIDInstance("user@example.com");
+		repo.addUser(user);
+		repo.setData(user, "roster", "item", "value-1");
+		repo.setDataList(user, "privacy/list", "items", new String[]{"a", "b"});
+		repo.setData(user, null, "root-key", "root-value");
+		changes.clear();
+		cache = new UserDataCache(repo, user, (jid, node) -> changes.add(node));
+	}
+
+	@Test
+	public void testReadsServedFromLoadedData() throws Exception {
+		assertTrue(cache.load());
+		assertTrue(cache.isLoaded());
+
+		assertEquals("value-1", cache.getData("roster", "item", null));
+		assertEquals("root-value", cache.getData(null, "root-key", null));
+		assertEquals("def", cache.getData("roster", "missing", "def"));
+		assertArrayEquals(new String[]{"a", "b"}, cache.getDataList("/privacy/list/", "items"));
+		assertArrayEquals(new String[]{"list"}, cache.getSubnodes("privacy"));
+		assertArrayEquals(new String[]{"item"}, cache.getKeys("roster"));
+		assertTrue(Arrays.asList(cache.getSubnodes(null)).containsAll(Arrays.asList("roster", "privacy")));
+
+		// change made directly in the repository is not visible until cache is invalidated
+		repo.setData(user, "roster", "item", "value-2");
+		assertEquals("value-1", cache.getData("roster", "item", null));
+		cache.invalidate();
+		assertFalse(cache.isLoaded());
+		assertEquals("value-2", cache.getData("roster", "item", null));
+		assertTrue(cache.isLoaded());
+	}
+
+	@Test
+	public void testWritesPassedToRepository() throws Exception {
+		assertTrue(cache.load());
+
+		cache.setData("vcard/photo", "hash", "1234");
+		assertEquals("1234", repo.getData(user, "vcard/photo", "hash", null));
+		assertEquals("1234", cache.getData("vcard/photo", "hash", null));
+		assertArrayEquals(new String[]{"photo"}, cache.getSubnodes("vcard"));
+
+		cache.removeData("roster", "item");
+		assertNull(repo.getData(user, "roster", "item", null));
+		assertNull(cache.getData("roster", "item", null));
+
+		cache.removeSubnode("privacy");
+		assertNull(repo.getDataList(user, "privacy/list", "items"));
+		assertNull(cache.getDataList("privacy/list", "items"));
+		assertNull(cache.getSubnodes("privacy"));
+
+		cache.addDataList("offline", "ids", new String[]{"1"});
+		assertFalse(cache.isLoaded());
+		assertArrayEquals(new String[]{"1"}, cache.getDataList("offline", "ids"));
+
+		assertEquals(Arrays.asList("vcard/photo", "roster", "privacy", "offline"), changes);
+	}
+
+	@Test
+	public void testExpiredDataLoadedAgain() throws Exception {
+		cache = new UserDataCache(repo, user, null, 50);
+		assertTrue(cache.load());
+
+		// change made directly in the repository is visible after data expires
+		repo.setData(user, "roster", "item", "value-2");
+		assertEquals("value-1", cache.getData("roster", "item", null));
+		Thread.sleep(100);
+		assertFalse(cache.isLoaded());
+		assertEquals("value-2", cache.getData("roster", "item", null));
+		assertTrue(cache.isLoaded());
+	}
+
+}
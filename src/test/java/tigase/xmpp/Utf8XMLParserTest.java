@@ -0,0 +1,252 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.TestLogger;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class Utf8XMLParserTest {
+
+	private static final Logger log = TestLogger.getLogger(Utf8XMLParserTest.class);
+	private static final String STREAM_START =
+			"<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' " +
+					"to='example.com' version='1.0'>";
+
+	private final Utf8XMLParser parser = Utf8XMLParser.getInstance();
+
+	@Test
+	public void testParse() {
+		String data = STREAM_START + "<message to='friend@example.com' id=\"m-1\" type='chat'>" +
+				"<body>Zażółć gęślą jaźń &amp; 😀 &lt;b&gt; &#x1F600; &#65;</body></message>\n " +
+				"<iq type='get' id='r1'><query xmlns='jabber:iq:roster'/></iq>" +
+				"<presence><status>a &apos;b&apos; &quot;c&quot;</status><priority>5</priority></presence>";
+		byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+		List<Element> parsed = parse(bytes, bytes.length);
+		assertEquals(3, parsed.size());
+
+		Element message = parsed.get(0);
+		assertEquals("message", message.getName());
+		assertEquals("friend@example.com", message.getAttributeStaticStr("to"));
+		assertEquals("m-1", message.getAttributeStaticStr("id"));
+		assertEquals("Zażółć gęślą jaźń &amp; 😀 &lt;b&gt; &#x1F600; &#65;",
+					 message.getChildCData(new String[]{"message", "body"}));
+
+		Element iq = parsed.get(1);
+		assertEquals("r1", iq.getAttributeStaticStr("id"));
+		assertNotNull(iq.getChild("query", "jabber:iq:roster"));
+
+		Element presence = parsed.get(2);
+		assertEquals("a &apos;b&apos; &quot;c&quot;", presence.getChildCData(new String[]{"presence", "status"}));
+		assertEquals("5", presence.getChildCData(new String[]{"presence", "priority"}));
+
+		// data split at every byte, including inside of multibyte characters
+		for (int split = 1; split < bytes.length; split++) {
+			List<Element> result = parse(bytes, split);
+			assertEquals("split at " + split, toStrings(parsed), toStrings(result));
+		}
+	}
+
+	@Test
+	public void testCDataSectionAndComments() {
+		String data = STREAM_START + "<!-- comment <a> -->" +
+				"<message><body><![CDATA[<b>x & y</b> ]]]]></body><!-- <x/> --></message>";
+		byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+		for (int split = 1; split <= bytes.length; split++) {
+			List<Element> parsed = parse(bytes, split);
+			assertEquals(1, parsed.size());
+			assertEquals("&lt;b&gt;x &amp; y&lt;/b&gt; ]]", parsed.get(0).getChildCData(new String[]{"message", "body"}));
+		}
+	}
+
+	@Test
+	public void testStreamClose() {
+		XMPPDomBuilderHandler<Object> handler = newHandler();
+		byte[] bytes = (STREAM_START + "<presence/></stream:stream>").getBytes(StandardCharsets.UTF_8);
+		parser.parse(handler, ByteBuffer.wrap(bytes));
+		assertFalse(handler.parseError());
+		assertEquals(1, handler.getParsedElements().size());
+		assertTrue(handler.isStreamClosed());
+	}
+
+	@Test
+	public void testInvalidData() {
+		assertInvalid(STREAM_START.getBytes(StandardCharsets.UTF_8), new byte[]{'<', 'a', '>', (byte) 0xC3, 'b'});
+		assertInvalid(STREAM_START.getBytes(StandardCharsets.UTF_8), new byte[]{'<', 'a', '>', (byte) 0xC0, (byte) 0x80});
+		assertInvalid(STREAM_START.getBytes(StandardCharsets.UTF_8), new byte[]{'<', 'a', '>', 1, '<', '/', 'a', '>'});
+		assertInvalid(STREAM_START, "<a>&nbsp;</a>");
+		assertInvalid(STREAM_START, "<a>&#0;</a>");
+		assertInvalid(STREAM_START, "<a>& b</a>");
+		assertInvalid(STREAM_START, "<a b='<'/>");
+		assertInvalid(STREAM_START, "<a b=c/>");
+		assertInvalid(STREAM_START, "<a b='1'c='2'/>");
+		assertInvalid(STREAM_START, "<a></b>");
+		assertInvalid(STREAM_START, "<a><b></a>");
+		assertInvalid(STREAM_START, "<a/ >");
+
+		StringBuilder sb = new StringBuilder("<a");
+		for (int i = 0; i <= Utf8XMLParser.MAX_ATTRIBS_NUMBER; i++) {
+			sb.append(" a").append(i).append("='").append(i).append("'");
+		}
+		assertInvalid(STREAM_START, sb.append("/>").toString());
+	}
+
+	@Test
+	@Category(tigase.tests.SlowTest.class)
+	public void testParserPerformance() {
+		byte[] traffic = recordedTraffic(2000);
+		int chunk = 2048;
+		int iterations = 100;
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			int count = 0;
+			for (int i = 0; i < iterations; i++) {
+				count += parseWithSimpleParser(traffic, chunk);
+			}
+			long charsTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int byteCount = 0;
+			for (int i = 0; i < iterations; i++) {
+				byteCount += parseWithByteParser(traffic, chunk);
+			}
+			long bytesTime = System.nanoTime() - start;
+
+			assertEquals(count, byteCount);
+			log.log(Level.INFO, "Parsed {0} stanzas, decoder + SimpleParser: {1}ms, Utf8XMLParser: {2}ms",
+					new Object[]{count, charsTime / 1000000, bytesTime / 1000000});
+		}
+	}
+
+	private static byte[] recordedTraffic(int stanzas) {
+		StringBuilder sb = new StringBuilder(STREAM_START);
+		for (int i = 0; i < stanzas; i++) {
+			switch (i % 4) {
+				case 0:
+					sb.append("<message to='friend").append(i % 50).append("@example.com' id='msg-").append(i)
+							.append("' type='chat'><body>Hello, how are you? Zażółć gęślą jaźń &amp; 😀 ").append(i)
+							.append("</body><active xmlns='http://jabber.org/protocol/chatstates'/>")
+							.append("<request xmlns='urn:xmpp:receipts'/></message>");
+					break;
+				case 1:
+					sb.append("<presence><show>away</show><status>In a meeting</status><priority>5</priority>")
+							.append("<c xmlns='http://jabber.org/protocol/caps' hash='sha-1' node='http://example.com/client' ")
+							.append("ver='QgayPKawpkPSDYmwT/WM94uAlu0='/></presence>");
+					break;
+				case 2:
+					sb.append("<iq type='get' id='ping-").append(i).append("' to='example.com'>")
+							.append("<ping xmlns='urn:xmpp:ping'/></iq>");
+					break;
+				default:
+					sb.append("<r xmlns='urn:xmpp:sm:3'/> ");
+			}
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static XMPPDomBuilderHandler<Object> newHandler() {
+		XMPPIOService<Object> ioserv = new XMPPIOService<Object>() {
+			@Override
+			protected void xmppStreamOpened(Map<String, String> attribs) {
+			}
+		};
+		XMPPDomBuilderHandler<Object> handler = new XMPPDomBuilderHandler<>(ioserv);
+		handler.setElementsLimit(1000);
+		return handler;
+	}
+
+	private static List<String> toStrings(List<Element> elems) {
+		List<String> result = new ArrayList<>();
+		for (Element elem : elems) {
+			result.add(elem.toString());
+		}
+		return result;
+	}
+
+	private void assertInvalid(String streamStart, String data) {
+		assertInvalid(streamStart.getBytes(StandardCharsets.UTF_8), data.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void assertInvalid(byte[] streamStart, byte[] data) {
+		XMPPDomBuilderHandler<Object> handler = newHandler();
+		parser.parse(handler, streamStart, 0, streamStart.length);
+		assertFalse(handler.parseError());
+		parser.parse(handler, data, 0, data.length);
+		assertTrue(new String(data, StandardCharsets.UTF_8), handler.parseError());
+	}
+
+	private List<Element> parse(byte[] bytes, int split) {
+		XMPPDomBuilderHandler<Object> handler = newHandler();
+		for (int pos = 0; pos < bytes.length; pos += split) {
+			parser.parse(handler, ByteBuffer.wrap(bytes, pos, Math.min(split, bytes.length - pos)));
+			assertFalse(handler.parseError());
+		}
+		return new ArrayList<>(handler.getParsedElements());
+	}
+
+	private int parseWithByteParser(byte[] traffic, int chunk) {
+		XMPPDomBuilderHandler<Object> handler = newHandler();
+		int count = 0;
+		for (int pos = 0; pos < traffic.length; pos += chunk) {
+			parser.parse(handler, traffic, pos, Math.min(chunk, traffic.length - pos));
+			count += handler.getParsedElements().size();
+			handler.getParsedElements().clear();
+		}
+		return count;
+	}
+
+	private int parseWithSimpleParser(byte[] traffic, int chunk) {
+		SimpleParser simpleParser = SingletonFactory.getParserInstance();
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+		CharBuffer cb = CharBuffer.allocate(chunk * 4);
+		ByteBuffer input = ByteBuffer.allocate(chunk + 4);
+		XMPPDomBuilderHandler<Object> handler = newHandler();
+		int count = 0;
+		for (int pos = 0; pos < traffic.length; pos += chunk) {
+			// the same steps as in IOService.readData(): decode, copy to array and parse
+			input.put(traffic, pos, Math.min(chunk, traffic.length - pos));
+			input.flip();
+			decoder.decode(input, cb, false);
+			input.compact();
+			cb.flip();
+			char[] data = new char[cb.remaining()];
+			cb.get(data);
+			cb.clear();
+			simpleParser.parse(handler, data, 0, data.length);
+			count += handler.getParsedElements().size();
+			handler.getParsedElements().clear();
+		}
+		return count;
+	}
+}
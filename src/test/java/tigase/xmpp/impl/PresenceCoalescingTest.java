@@ -0,0 +1,74 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl;
+
+import org.junit.Test;
+import tigase.util.common.TimerTask;
+
+import static org.junit.Assert.*;
+
+public class PresenceCoalescingTest {
+
+	@Test
+	public void testOffer() {
+		PresenceCoalescing coalescing = new PresenceCoalescing(1000);
+
+		assertEquals(PresenceCoalescing.Action.SEND, coalescing.offer(10000));
+		assertEquals(PresenceCoalescing.Action.SCHEDULE, coalescing.offer(10200));
+		assertEquals(800, coalescing.getDelay(10200));
+
+		TimerTask task = new TestTask();
+		coalescing.setPending(task);
+		assertTrue(coalescing.isPending(task));
+		assertEquals(PresenceCoalescing.Action.REPLACE, coalescing.offer(10500));
+		assertEquals(PresenceCoalescing.Action.REPLACE, coalescing.offer(10900));
+
+		// scheduled task sent the latest presence
+		coalescing.broadcastSent(11000);
+		assertFalse(coalescing.isPending());
+		assertEquals(PresenceCoalescing.Action.SCHEDULE, coalescing.offer(11500));
+		assertEquals(PresenceCoalescing.Action.SEND, coalescing.offer(12000));
+	}
+
+	@Test
+	public void testCancel() {
+		PresenceCoalescing coalescing = new PresenceCoalescing(1000);
+
+		assertEquals(PresenceCoalescing.Action.SEND, coalescing.offer(10000));
+		assertEquals(PresenceCoalescing.Action.SCHEDULE, coalescing.offer(10100));
+		TimerTask task = new TestTask();
+		coalescing.setPending(task);
+
+		// unavailable presence is sent immediately and cancels scheduled broadcast
+		assertTrue(coalescing.cancel(10300));
+		assertTrue(task.isCancelled());
+		assertFalse(coalescing.isPending());
+
+		// available presence after unavailable is not delayed longer than the window
+		assertEquals(PresenceCoalescing.Action.SCHEDULE, coalescing.offer(10500));
+		assertEquals(800, coalescing.getDelay(10500));
+	}
+
+	private static class TestTask
+			extends TimerTask {
+
+		@Override
+		public void run() {
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.TigaseDBException;
+import tigase.db.UserNotFoundException;
+import tigase.db.UserRepository;
+import tigase.db.xml.XMLRepository;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RosterPerItemTest
+		extends ProcessorTestCase {
+
+	private final RosterPerItem roster = new RosterPerItem();
+	// number of roster items which may be stored before the repository starts to fail
+	private final AtomicInteger itemWrites = new AtomicInteger(Integer.MAX_VALUE);
+	private XMLRepository repository;
+
+	@Before
+	public void setUpRepository() throws Exception {
+		repository = new XMLRepository() {
+			@Override
+			public synchronized void setData(BareJID user, String subnode, String key, String value)
+					throws UserNotFoundException, TigaseDBException {
+				if (RosterPerItem.ROSTER_ITEMS_NODE.equals(subnode) && itemWrites.getAndDecrement() <= 0) {
+					throw new TigaseDBException("Repository failure");
+				}
+				super.setData(user, subnode, key, value);
+			}
+		};
+		repository.initRepository("memory://xmlRepo?autoCreateUser=true", null);
+	}
+
+	@Override
+	public UserRepository getUserRepository() {
+		return repository;
+	}
+
+	@Test
+	public void testItemsStoredSeparately() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-1@example.com/res-1");
+		XMPPResourceConnection sess = getSession(JID.jidInstanceNS("c2s@example.com/test-1"), userJid);
+		JID buddy1 = JID.jidInstanceNS("buddy-1@example.com");
+		JID buddy2 = JID.jidInstanceNS("buddy-2@example.com");
+
+		roster.addBuddy(sess, buddy1, "Buddy 1", new String[]{"Friends"}, null, null);
+		roster.addBuddy(sess, buddy2, "Buddy 2", null, null, null);
+
+		Map<String, String> items = getItems(userJid.getBareJID());
+		assertEquals(2, items.size());
+		assertTrue(items.get(buddy1.toString()).contains("Friends"));
+		assertNull(getUserRepository().getData(userJid.getBareJID(), RosterAbstract.ROSTER));
+
+		roster.removeBuddy(sess, buddy1);
+		items = getItems(userJid.getBareJID());
+		assertEquals(1, items.size());
+		assertTrue(items.containsKey(buddy2.toString()));
+		assertFalse(roster.isModified(sess));
+	}
+
+	@Test
+	public void testOnlyModifiedItemsWritten() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-2@example.com/res-1");
+		XMPPResourceConnection sess = getSession(JID.jidInstanceNS("c2s@example.com/test-2"), userJid);
+		JID buddy1 = JID.jidInstanceNS("buddy-1@example.com");
+		JID buddy2 = JID.jidInstanceNS("buddy-2@example.com");
+
+		roster.addBuddy(sess, buddy1, "Buddy 1", null, null, null);
+		roster.addBuddy(sess, buddy2, "Buddy 2", null, null, null);
+
+		String marker = "<not-rewritten/>";
+		getUserRepository().setData(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS_NODE, buddy2.toString(), marker);
+
+		roster.setBuddyName(sess, buddy1, "Renamed");
+
+		Map<String, String> items = getItems(userJid.getBareJID());
+		assertTrue(items.get(buddy1.toString()).contains("Renamed"));
+		assertEquals(marker, items.get(buddy2.toString()));
+	}
+
+	@Test
+	public void testConvertFlatRoster() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-3@example.com/res-1");
+		BareJID user = userJid.getBareJID();
+		RosterElement buddy1 = new RosterElement(JID.jidInstanceNS("buddy-1@example.com"), "Buddy 1", null);
+		RosterElement buddy2 = new RosterElement(JID.jidInstanceNS("buddy-2@example.com"), "Buddy 2", null);
+		buddy2.setSubscription(RosterAbstract.SubscriptionType.both);
+
+		getUserRepository().setData(user, RosterAbstract.ROSTER,
+									buddy1.getRosterElement().toString() + buddy2.getRosterElement().toString());
+
+		XMPPResourceConnection sess = getSession(JID.jidInstanceNS("c2s@example.com/test-3"), userJid);
+
+		assertEquals(2, roster.getRosterItems(sess).size());
+		assertEquals(RosterAbstract.SubscriptionType.both, roster.getBuddySubscription(sess, buddy2.getJid()));
+		assertEquals(2, getItems(user).size());
+		assertNull(getUserRepository().getData(user, RosterAbstract.ROSTER));
+	}
+
+	@Test
+	public void testConvertFlatRosterInterrupted() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-4@example.com/res-1");
+		BareJID user = userJid.getBareJID();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5; i++) {
+			sb.append(new RosterElement(JID.jidInstanceNS("buddy-" + i + "@example.com"), "Buddy " + i, null)
+							  .getRosterElement());
+		}
+		getUserRepository().setData(user, RosterAbstract.ROSTER, sb.toString());
+
+		itemWrites.set(2);
+		XMPPResourceConnection sess = getSession(JID.jidInstanceNS("c2s@example.com/test-4"), userJid);
+		try {
+			roster.getRosterItems(sess);
+			fail("Conversion should fail");
+		} catch (TigaseDBException ex) {
+			// expected
+		}
+		assertEquals(2, getItems(user).size());
+		assertNotNull(getUserRepository().getData(user, RosterAbstract.ROSTER));
+
+		itemWrites.set(Integer.MAX_VALUE);
+		sess = getSession(JID.jidInstanceNS("c2s@example.com/test-5"), userJid);
+		assertEquals(5, roster.getRosterItems(sess).size());
+		assertEquals("Buddy 4", roster.getBuddyName(sess, JID.jidInstanceNS("buddy-4@example.com")));
+		assertEquals(5, getItems(user).size());
+		assertNull(getUserRepository().getData(user, RosterAbstract.ROSTER));
+	}
+
+	private Map<String, String> getItems(BareJID user) throws Exception {
+		return getUserRepository().getDataMap(user, RosterPerItem.ROSTER_ITEMS_NODE);
+	}
+}